@@ -0,0 +1,162 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accounting of heap allocated by callouts per phase, based on the allocated
+ * bytes counter of the current thread provided by HotSpot based JVMs. The
+ * counter is read through reflection, so on other JVMs the accounting records
+ * nothing. Enabled for all mediators with system property
+ * fi.mystes.customCallout.allocationAccounting=true.
+ */
+public class AllocationAccounting {
+
+    public static final String PROPERTY = "fi.mystes.customCallout.allocationAccounting";
+
+    public static final int PHASE_PREPARE = 0;
+    public static final int PHASE_LOOKUP = 1;
+    public static final int PHASE_SEND = 2;
+    public static final int PHASE_RESPONSE = 3;
+
+    private static final String[] PHASE_NAMES = { "prepare", "lookup", "send", "response" };
+
+    private static final Object THREAD_BEAN = ManagementFactory.getThreadMXBean();
+    private static final Method ALLOCATED_BYTES = getAllocatedBytesMethod();
+
+    private final AtomicLongArray phaseBytes = new AtomicLongArray(PHASE_NAMES.length);
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong calls = new AtomicLong();
+
+    /**
+     * Helper method to look up the allocated bytes counter.
+     * 
+     * @return Method reading the counter of a thread or null if not
+     *         supported
+     */
+    private static Method getAllocatedBytesMethod() {
+        try {
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            if (!beanClass.isInstance(THREAD_BEAN)
+                    || !(Boolean) beanClass.getMethod("isThreadAllocatedMemorySupported").invoke(THREAD_BEAN)) {
+                return null;
+            }
+            beanClass.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(THREAD_BEAN, true);
+            return beanClass.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return True if the JVM counts bytes allocated by threads
+     */
+    public static boolean isSupported() {
+        return ALLOCATED_BYTES != null;
+    }
+
+    /**
+     * Reads the bytes allocated by the current thread since it started.
+     * 
+     * @return Allocated bytes or -1 if not supported
+     */
+    public static long getAllocatedBytes() {
+        if (ALLOCATED_BYTES == null) {
+            return -1;
+        }
+        try {
+            return (Long) ALLOCATED_BYTES.invoke(THREAD_BEAN, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Adds bytes allocated by the current thread since given mark to given
+     * phase.
+     * 
+     * @param phase
+     *            One of the phase constants
+     * @param mark
+     *            Allocated bytes read at the start of the phase
+     * @return Allocated bytes now, the mark of the next phase
+     */
+    public long record(int phase, long mark) {
+        long now = getAllocatedBytes();
+        if (mark >= 0 && now >= mark) {
+            phaseBytes.addAndGet(phase, now - mark);
+        }
+        return now;
+    }
+
+    /**
+     * Counts a completed call.
+     * 
+     * @param start
+     *            Allocated bytes read at the start of the call
+     * @param end
+     *            Allocated bytes read at the end of the call
+     */
+    public void recordCall(long start, long end) {
+        if (start >= 0 && end >= start) {
+            totalBytes.addAndGet(end - start);
+            calls.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Number of calls accounted
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return Average bytes allocated per call or 0 if no calls
+     */
+    public long getAverageBytesPerCall() {
+        long count = calls.get();
+        return count > 0 ? totalBytes.get() / count : 0;
+    }
+
+    /**
+     * Returns average bytes allocated per call in given phase.
+     * 
+     * @param phase
+     *            One of the phase constants
+     * @return Average bytes or 0 if no calls
+     */
+    public long getAverageBytes(int phase) {
+        long count = calls.get();
+        return count > 0 ? phaseBytes.get(phase) / count : 0;
+    }
+
+    /**
+     * @return Average bytes allocated per call in each phase, one line per
+     *         phase
+     */
+    public String[] getPhaseSummary() {
+        String[] result = new String[PHASE_NAMES.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = PHASE_NAMES[i] + " " + getAverageBytes(i);
+        }
+        return result;
+    }
+}
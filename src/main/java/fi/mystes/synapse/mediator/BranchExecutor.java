@@ -0,0 +1,214 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.axis2.AxisFault;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseException;
+import org.apache.synapse.SynapseLog;
+
+/**
+ * Concurrent invocation of the branches of a mediator in a bounded thread pool
+ * shared by all mediators. Both the
+ * number of threads and the number of queued invocations are limited, so a
+ * burst of branched callouts cannot create an unbounded number of threads.
+ * When the pool is saturated a branch is rejected instead of run in the
+ * calling thread, which would serialize the branches and defeat the branch
+ * timeout.
+ */
+class BranchExecutor {
+
+    public static final String THREADS_PROPERTY = "fi.mystes.customCallout.branchThreads";
+    public static final int DEFAULT_THREADS = 64;
+
+    public static final String QUEUE_SIZE_PROPERTY = "fi.mystes.customCallout.branchQueueSize";
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private BranchExecutor() {
+    }
+
+    /**
+     * Invokes given branches concurrently. Outgoing messages are built and
+     * responses are processed in the calling thread, only the service
+     * invocations run in parallel. Returns after every branch has completed,
+     * failed or the branch timeout has elapsed. A failing branch does not
+     * abort the others, instead its fault is stored into properties prefixed
+     * with the branch name.
+     * 
+     * @param branches
+     *            Branches to invoke
+     * @param branchTimeout
+     *            Time waited for all branches in milliseconds, 0 to wait
+     *            until they complete
+     * @param synCtx
+     *            Request/current message context
+     * @param synLog
+     *            To trace/debug the branch invocations
+     */
+    static void invokeAll(List<CustomCalloutMediator> branches, long branchTimeout, MessageContext synCtx,
+            SynapseLog synLog) {
+        List<Future<MessageContext>> futures = new ArrayList<Future<MessageContext>>(branches.size());
+
+        for (final CustomCalloutMediator branch : branches) {
+            try {
+                final MessageContext synapseOutMsgCtx = branch.prepareOutMessageContext(synCtx, synLog);
+                branch.debugServiceInvocationOnDemand(synLog, synapseOutMsgCtx);
+                futures.add(submit(new Callable<MessageContext>() {
+                    @Override
+                    public MessageContext call() throws Exception {
+                        // Faults are collected into the cloned context, the
+                        // current context is only touched in calling thread
+                        return branch.invokeService(synapseOutMsgCtx, synapseOutMsgCtx);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                recordFault(branch, synCtx, synLog, new AxisFault("Branch rejected, all branch threads are busy", e));
+                futures.add(null);
+            } catch (Exception e) {
+                recordFault(branch, synCtx, synLog, e);
+                futures.add(null);
+            }
+        }
+
+        long deadline = branchTimeout > 0 ? System.currentTimeMillis() + branchTimeout : 0;
+
+        for (int i = 0; i < branches.size(); i++) {
+            CustomCalloutMediator branch = branches.get(i);
+            Future<MessageContext> future = futures.get(i);
+            if (future == null) {
+                continue;
+            }
+            try {
+                MessageContext resultMsgCtx;
+                if (deadline > 0) {
+                    resultMsgCtx = future.get(Math.max(0, deadline - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                } else {
+                    resultMsgCtx = future.get();
+                }
+
+                branch.traceResponseOnDemand(synLog, resultMsgCtx);
+
+                if (resultMsgCtx != null) {
+                    branch.processResponseMessageContext(synCtx, resultMsgCtx);
+                } else {
+                    synLog.traceOrDebug("Branch " + branch.getBranchName() + " returned a null response");
+                }
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                recordFault(branch, synCtx, synLog,
+                        new AxisFault("Branch did not complete within " + branchTimeout + " ms"));
+            } catch (ExecutionException e) {
+                recordFault(branch, synCtx, synLog, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                recordFault(branch, synCtx, synLog, e);
+            } catch (Exception e) {
+                recordFault(branch, synCtx, synLog, e);
+            }
+        }
+    }
+
+    /**
+     * Stores the fault of given branch into given message context. Properties
+     * are named as Synapse error properties prefixed with the branch name,
+     * e.g. 'branch1.ERROR_MESSAGE'.
+     * 
+     * @param branch
+     *            Failed branch
+     * @param synCtx
+     *            Current message context
+     * @param synLog
+     *            To log the failure
+     * @param t
+     *            Occurred error
+     */
+    private static void recordFault(CustomCalloutMediator branch, MessageContext synCtx, SynapseLog synLog,
+            Throwable t) {
+        Throwable cause = t;
+        if (cause instanceof SynapseException && cause.getCause() != null) {
+            // Unwrap the exception thrown by handleFault
+            cause = cause.getCause();
+        }
+        Exception ex = cause instanceof Exception ? (Exception) cause : new Exception(cause);
+        synLog.traceOrDebug("Branch " + branch.getBranchName() + " failed : " + ex.getMessage());
+        branch.setFaultProperties(synCtx, branch.getBranchName() + ".", ex);
+    }
+
+    /**
+     * Submits given branch invocation to the shared pool.
+     * 
+     * @param invocation
+     *            Branch invocation
+     * @return Future of the invocation
+     * @throws RejectedExecutionException
+     *             If all threads are busy and the queue is full
+     */
+    static <T> Future<T> submit(Callable<T> invocation) {
+        return ExecutorHolder.EXECUTOR.submit(invocation);
+    }
+
+    /**
+     * Creates a pool of given bounds. Idle threads, core threads included,
+     * are terminated after a minute.
+     * 
+     * @param threads
+     *            Maximum number of threads
+     * @param queueSize
+     *            Maximum number of invocations waiting for a thread
+     * @return New executor
+     */
+    static ThreadPoolExecutor create(int threads, int queueSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "CustomCalloutBranch-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Lazy holder of the shared pool.
+     */
+    private static class ExecutorHolder {
+
+        static final ThreadPoolExecutor EXECUTOR = create(Math.max(1, Integer.getInteger(THREADS_PROPERTY,
+                DEFAULT_THREADS)), Math.max(1, Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE)));
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.axiom.soap.SOAPHeader;
+import org.apache.axis2.AxisFault;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.util.MessageHelper;
+
+import fi.mystes.synapse.mediator.transport.PooledByteArrayOutputStream;
+
+/**
+ * Message scoped memo of callout responses. Responses are stored into a
+ * property of the current message context keyed by a hash of the target and
+ * the request payload, so identical callouts later in the same flow, also in
+ * iterated copies of the message, reuse the response instead of invoking the
+ * service again. Nothing is shared between messages. Keys of responses shared
+ * between messages also hash the SOAP header and given transport headers.
+ */
+final class CalloutMemo {
+
+    static final String MEMO_PROPERTY = "fi.mystes.customCallout.memo";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private CalloutMemo() {
+    }
+
+    /**
+     * Builds memo key of given outgoing message.
+     * 
+     * @param target
+     *            Identifies the invoked service, e.g. address and action
+     * @param synapseOutMsgCtx
+     *            Message to be sent
+     * @return Hash of target and payload
+     * @throws AxisFault
+     *             If serializing JSON payload fails
+     */
+    static String key(String target, MessageContext synapseOutMsgCtx) throws AxisFault {
+        return key(target, synapseOutMsgCtx, null);
+    }
+
+    /**
+     * Builds key of given outgoing message, including the caller specific
+     * parts of the message when responses are shared between messages.
+     * 
+     * @param target
+     *            Identifies the invoked service, e.g. address, action and
+     *            security policy
+     * @param synapseOutMsgCtx
+     *            Message to be sent
+     * @param varyHeaders
+     *            Transport headers to include with the SOAP header, or null
+     *            to hash only the payload
+     * @return Hash of target, payload and given headers
+     * @throws AxisFault
+     *             If serializing the message fails
+     */
+    static String key(String target, MessageContext synapseOutMsgCtx, List<String> varyHeaders) throws AxisFault {
+        org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) synapseOutMsgCtx)
+                .getAxis2MessageContext();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(target.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            PooledByteArrayOutputStream payload = new PooledByteArrayOutputStream();
+            try {
+                if (JsonUtil.hasAJsonPayload(axis2Ctx)) {
+                    JsonUtil.writeAsJson(axis2Ctx, payload);
+                } else {
+                    synapseOutMsgCtx.getEnvelope().getBody().serialize(payload);
+                }
+                digest.update(payload.getBuffer(), 0, payload.size());
+                if (varyHeaders != null) {
+                    digest.update((byte) 0);
+                    SOAPHeader soapHeader = synapseOutMsgCtx.getEnvelope() != null
+                            ? synapseOutMsgCtx.getEnvelope().getHeader() : null;
+                    if (soapHeader != null) {
+                        payload.release();
+                        payload = new PooledByteArrayOutputStream();
+                        soapHeader.serialize(payload);
+                        digest.update(payload.getBuffer(), 0, payload.size());
+                    }
+                    updateWithHeaders(digest, axis2Ctx, varyHeaders);
+                }
+            } finally {
+                payload.release();
+            }
+            return toHex(digest.digest());
+        } catch (XMLStreamException e) {
+            throw AxisFault.makeFault(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Helper method to hash values of given transport headers, matching the
+     * names case insensitively. A missing header is hashed differently from
+     * an empty one.
+     */
+    private static void updateWithHeaders(MessageDigest digest, org.apache.axis2.context.MessageContext axis2Ctx,
+            List<String> varyHeaders) throws UnsupportedEncodingException {
+        Object headers = axis2Ctx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+        for (String name : varyHeaders) {
+            digest.update((byte) 0);
+            Object value = null;
+            if (headers instanceof Map) {
+                for (Map.Entry<?, ?> header : ((Map<?, ?>) headers).entrySet()) {
+                    if (name.equalsIgnoreCase(String.valueOf(header.getKey()))) {
+                        value = header.getValue();
+                        break;
+                    }
+                }
+            }
+            if (value != null) {
+                digest.update((byte) 1);
+                digest.update(String.valueOf(value).getBytes("UTF-8"));
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of memoized response of given key.
+     * 
+     * @param synCtx
+     *            Current message context
+     * @param key
+     *            Memo key
+     * @return Copy of the response or null if not memoized
+     * @throws AxisFault
+     *             If copying the response fails
+     */
+    static MessageContext get(MessageContext synCtx, String key) throws AxisFault {
+        Map<String, MessageContext> memo = getMemo(synCtx, false);
+        MessageContext response = memo != null ? memo.get(key) : null;
+        return response != null ? copy(response) : null;
+    }
+
+    /**
+     * Stores a copy of given response, the response itself is consumed when
+     * it is merged into the current message.
+     * 
+     * @param synCtx
+     *            Current message context
+     * @param key
+     *            Memo key
+     * @param response
+     *            Response message context
+     * @throws AxisFault
+     *             If copying the response fails
+     */
+    static void put(MessageContext synCtx, String key, MessageContext response) throws AxisFault {
+        getMemo(synCtx, true).put(key, copy(response));
+    }
+
+    /**
+     * Helper method to get memo of the message, created on demand.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, MessageContext> getMemo(MessageContext synCtx, boolean create) {
+        Object memo = synCtx.getProperty(MEMO_PROPERTY);
+        if (memo == null && create) {
+            synchronized (synCtx) {
+                memo = synCtx.getProperty(MEMO_PROPERTY);
+                if (memo == null) {
+                    // Concurrent as iterated copies of the message share it
+                    memo = new ConcurrentHashMap<String, MessageContext>();
+                    synCtx.setProperty(MEMO_PROPERTY, memo);
+                }
+            }
+        }
+        return (Map<String, MessageContext>) memo;
+    }
+
+    /**
+     * Helper method to copy given response including its JSON payload.
+     */
+    private static MessageContext copy(MessageContext response) throws AxisFault {
+        MessageContext copy = MessageHelper.cloneMessageContext(response);
+        org.apache.axis2.context.MessageContext axis2Response = ((Axis2MessageContext) response)
+                .getAxis2MessageContext();
+        if (JsonUtil.hasAJsonPayload(axis2Response)) {
+            JsonUtil.cloneJsonPayload(axis2Response, ((Axis2MessageContext) copy).getAxis2MessageContext());
+        }
+        return copy;
+    }
+
+    /**
+     * Helper method to format given bytes as hexadecimal.
+     */
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.axis2.AxisFault;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseConstants;
+import org.apache.synapse.endpoints.AddressEndpoint;
+
+import fi.mystes.synapse.mediator.balancer.LoadBalancer;
+import fi.mystes.synapse.mediator.fault.StacklessAxisFault;
+import fi.mystes.synapse.mediator.health.HealthCheckConfiguration;
+import fi.mystes.synapse.mediator.health.HealthCheckRegistry;
+import fi.mystes.synapse.mediator.health.HealthProbe;
+import fi.mystes.synapse.mediator.inflight.InFlightCallout;
+import fi.mystes.synapse.mediator.inflight.InFlightRegistry;
+
+/**
+ * Routing of callouts of a mediator to the member chosen by its load balancer
+ * or to its own endpoint, guarded by active health checks. Callouts to
+ * unhealthy endpoints fail fast without being sent.
+ */
+final class CalloutRouting {
+
+    /**
+     * Sends a message to the endpoint resolved into it.
+     */
+    interface Sender {
+
+        /**
+         * @param synapseOutMsgCtx
+         *            Contains the payload to be sent
+         * @return New or given message context as response
+         * @throws Exception
+         *             If sending fails
+         */
+        MessageContext send(MessageContext synapseOutMsgCtx) throws Exception;
+    }
+
+    private static final AxisFault ALL_MEMBERS_UNHEALTHY_FAULT = new StacklessAxisFault(
+            "All load balanced endpoints are unhealthy, callout not sent");
+
+    private final LoadBalancer loadBalancer;
+    private final boolean stacklessFaults;
+    private final Sender sender;
+    private final List<HealthProbe> healthProbes = new ArrayList<HealthProbe>();
+    private HealthProbe healthProbe = null;
+    private AxisFault unhealthyEndpointFault = null;
+
+    /**
+     * @param loadBalancer
+     *            Load balancer with member endpoints set, or null if not load
+     *            balanced
+     * @param stacklessFaults
+     *            True to fail fast with faults without stack traces
+     * @param sender
+     *            Sends to the chosen endpoint
+     */
+    CalloutRouting(LoadBalancer loadBalancer, boolean stacklessFaults, Sender sender) {
+        this.loadBalancer = loadBalancer;
+        this.stacklessFaults = stacklessFaults;
+        this.sender = sender;
+    }
+
+    /**
+     * Starts or joins active health checks of the load balanced members or
+     * given address.
+     * 
+     * @param configuration
+     *            Health check settings
+     * @param address
+     *            Address of the endpoint when not load balanced, or null if it
+     *            cannot be checked
+     */
+    void startHealthChecks(HealthCheckConfiguration configuration, String address) {
+        if (loadBalancer != null) {
+            for (LoadBalancer.Member member : loadBalancer.getMembers()) {
+                HealthProbe probe = HealthCheckRegistry.acquire(
+                        ((AddressEndpoint) member.getEndpoint()).getDefinition().getAddress(), configuration);
+                member.setHealthProbe(probe);
+                healthProbes.add(probe);
+            }
+        } else if (address != null) {
+            healthProbe = HealthCheckRegistry.acquire(address, configuration);
+            healthProbes.add(healthProbe);
+            if (stacklessFaults) {
+                unhealthyEndpointFault = new StacklessAxisFault("Endpoint " + healthProbe.getAddress()
+                        + " is unhealthy, callout not sent");
+            }
+        }
+    }
+
+    /**
+     * @return Health probes, empty if not probed
+     */
+    List<HealthProbe> getHealthProbes() {
+        return Collections.unmodifiableList(healthProbes);
+    }
+
+    /**
+     * Sends given message to the member chosen by the load balancer, recording
+     * the latency and outcome, or to the endpoint of the mediator when not
+     * load balanced. Fails fast without sending when the health check reports
+     * the endpoint or every member unhealthy.
+     * 
+     * @param synapseOutMsgCtx
+     *            Contains the payload to be sent
+     * @return New or given message context as response
+     * @throws Exception
+     *             If sending fails
+     */
+    MessageContext send(MessageContext synapseOutMsgCtx) throws Exception {
+        if (loadBalancer == null) {
+            HealthProbe probe = healthProbe;
+            if (probe != null && !probe.isHealthy()) {
+                throw unhealthyEndpointFault != null ? unhealthyEndpointFault
+                        : new AxisFault("Endpoint " + probe.getAddress() + " is unhealthy, callout not sent");
+            }
+            return sender.send(synapseOutMsgCtx);
+        }
+        LoadBalancer.Member member = loadBalancer.select();
+        if (!member.isHealthy()) {
+            // Every member is unhealthy
+            loadBalancer.abandon(member);
+            throw stacklessFaults ? ALL_MEMBERS_UNHEALTHY_FAULT
+                    : new AxisFault("All load balanced endpoints are unhealthy, callout not sent");
+        }
+        synapseOutMsgCtx.setProperty(CustomCalloutMediator.RESOLVED_ENDPOINT_PROPERTY, member.getEndpoint());
+        InFlightCallout inFlight = InFlightRegistry.current();
+        if (inFlight != null) {
+            inFlight.setEndpoint(member.getAddress());
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            MessageContext resultMsgCtx = sender.send(synapseOutMsgCtx);
+            success = resultMsgCtx == null
+                    || (!"true".equals(resultMsgCtx.getProperty(SynapseConstants.BLOCKING_SENDER_ERROR))
+                            && (resultMsgCtx.getEnvelope() == null || !resultMsgCtx.getEnvelope().hasFault()));
+            return resultMsgCtx;
+        } finally {
+            loadBalancer.complete(member, System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Releases the health probes, which are stopped once no mediator uses
+     * them.
+     */
+    void release() {
+        for (HealthProbe probe : healthProbes) {
+            HealthCheckRegistry.release(probe);
+        }
+        healthProbes.clear();
+        healthProbe = null;
+        unhealthyEndpointFault = null;
+    }
+}
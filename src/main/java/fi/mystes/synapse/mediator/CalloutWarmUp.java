@@ -0,0 +1,220 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.SynapseEnvironment;
+import org.apache.synapse.util.MessageHelper;
+import org.apache.synapse.util.xpath.SynapseXPath;
+
+import fi.mystes.synapse.mediator.transport.HttpCalloutTransport;
+
+/**
+ * Optional warm-up run when {@link CustomCalloutMediator} is initiated. Resolves
+ * the service host, opens pooled connections, optionally pings the service
+ * over each of them and exercises XPath evaluation, message cloning and
+ * serialization on a synthetic message. Warm-up runs in its own thread and is
+ * abandoned after the timeout, failures are only logged.
+ * 
+ * <pre>
+ * &lt;warmUp [connections="int"] [pingMethod="string"] [iterations="int"] [timeout="long"]/&gt;
+ * </pre>
+ */
+public class CalloutWarmUp {
+
+    private static final Log log = LogFactory.getLog(CalloutWarmUp.class);
+
+    public static final int DEFAULT_ITERATIONS = 100;
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    private int connections = 0;
+    private String pingMethod = null;
+    private int iterations = DEFAULT_ITERATIONS;
+    private long timeout = DEFAULT_TIMEOUT;
+
+    /**
+     * Runs the warm-up and waits for it at most the timeout.
+     * 
+     * @param address
+     *            Service address or null if not known before mediation
+     * @param httpTransport
+     *            HTTP transport whose connections are opened or null
+     * @param synEnv
+     *            Environment to create the synthetic message with
+     * @param xpaths
+     *            Source and target expressions to evaluate, null values are
+     *            skipped
+     */
+    public void run(final String address, final HttpCalloutTransport httpTransport, final SynapseEnvironment synEnv,
+            final SynapseXPath... xpaths) {
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                warmUpConnections(address, httpTransport);
+                warmUpMessageProcessing(synEnv, xpaths);
+            }
+        }, null);
+        Thread thread = new Thread(task, "CustomCalloutWarmUp");
+        thread.setDaemon(true);
+        long start = System.currentTimeMillis();
+        thread.start();
+        try {
+            task.get(timeout, TimeUnit.MILLISECONDS);
+            log.info("CustomCallout warm-up of " + address + " completed in " + (System.currentTimeMillis() - start)
+                    + " ms");
+        } catch (TimeoutException e) {
+            task.cancel(true);
+            log.warn("CustomCallout warm-up of " + address + " did not complete within " + timeout + " ms");
+        } catch (ExecutionException e) {
+            log.warn("CustomCallout warm-up of " + address + " failed : " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.cancel(true);
+        }
+    }
+
+    /**
+     * Helper method to resolve service host and open pooled connections.
+     */
+    private void warmUpConnections(String address, HttpCalloutTransport httpTransport) {
+        if (address == null) {
+            return;
+        }
+        try {
+            InetAddress.getAllByName(new URL(address).getHost());
+            if (httpTransport != null && connections > 0) {
+                httpTransport.warmUp(address, connections, pingMethod);
+            }
+        } catch (Exception e) {
+            log.warn("CustomCallout warm-up could not connect " + address + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Helper method to exercise payload extraction and response processing
+     * code paths on a synthetic message.
+     */
+    private void warmUpMessageProcessing(SynapseEnvironment synEnv, SynapseXPath... xpaths) {
+        if (synEnv == null || iterations <= 0) {
+            return;
+        }
+        try {
+            MessageContext synCtx = synEnv.createMessageContext();
+            synCtx.setEnvelope(OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < iterations && !Thread.currentThread().isInterrupted(); i++) {
+                MessageContext clone = MessageHelper.cloneMessageContext(synCtx);
+                for (SynapseXPath xpath : xpaths) {
+                    if (xpath != null) {
+                        xpath.evaluate(clone);
+                    }
+                }
+                out.reset();
+                clone.getEnvelope().serialize(out);
+            }
+        } catch (Exception e) {
+            log.warn("CustomCallout warm-up of message processing failed : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Getter for number of connections opened.
+     * 
+     * @return Number of pooled connections opened by the warm-up
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Setter for number of connections opened.
+     * 
+     * @param connections
+     *            Number of pooled connections to open
+     */
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Getter for HTTP method of ping request.
+     * 
+     * @return HTTP method or null if connections are not pinged
+     */
+    public String getPingMethod() {
+        return pingMethod;
+    }
+
+    /**
+     * Setter for HTTP method of ping request sent over each opened
+     * connection, e.g. HEAD or OPTIONS.
+     * 
+     * @param pingMethod
+     *            HTTP method or null to only connect
+     */
+    public void setPingMethod(String pingMethod) {
+        this.pingMethod = pingMethod;
+    }
+
+    /**
+     * Getter for iterations of synthetic message processing.
+     * 
+     * @return Number of iterations
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Setter for iterations of synthetic message processing.
+     * 
+     * @param iterations
+     *            Number of iterations, 0 to skip
+     */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Getter for maximum duration of the warm-up.
+     * 
+     * @return Timeout in milliseconds
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Setter for maximum duration of the warm-up.
+     * 
+     * @param timeout
+     *            Timeout in milliseconds
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+}
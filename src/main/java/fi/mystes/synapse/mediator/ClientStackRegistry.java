@@ -0,0 +1,247 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.context.ConfigurationContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.message.senders.blocking.BlockingMsgSender;
+
+import fi.mystes.synapse.mediator.transport.HttpCalloutTransport;
+
+/**
+ * Registry of client stacks, i.e. Axis2 configuration context, blocking message
+ * sender and HTTP transport, shared by mediators having identical transport
+ * configuration. A stack is reference counted and terminated only after it has
+ * been unused for a grace period, so that a redeployed mediator takes over the
+ * stack of the instance it replaces regardless of whether Synapse initiates the
+ * new instance before or after destroying the old one. Stacks are created
+ * outside the registry lock, so that a slow creation delays only the mediators
+ * waiting for the same stack.
+ */
+class ClientStackRegistry {
+
+    private static final Log log = LogFactory.getLog(ClientStackRegistry.class);
+
+    public static final String RELEASE_DELAY_PROPERTY = "fi.mystes.customCallout.clientStackReleaseDelay";
+    public static final long DEFAULT_RELEASE_DELAY = 60000;
+
+    private static final Map<String, ClientStack> stacks = new HashMap<String, ClientStack>();
+
+    private static final Map<String, FutureTask<ClientStack>> creations =
+            new HashMap<String, FutureTask<ClientStack>>();
+
+    private ClientStackRegistry() {
+    }
+
+    /**
+     * Factory of new client stacks.
+     */
+    interface Factory {
+
+        /**
+         * @return New client stack
+         * @throws AxisFault
+         *             If creating the stack fails
+         */
+        ClientStack create() throws AxisFault;
+    }
+
+    /**
+     * Takes a reference to the live stack of given key or creates a new one.
+     * Concurrent callers of the same key wait for a single creation.
+     * 
+     * @param key
+     *            Transport relevant configuration of the mediator
+     * @param factory
+     *            Creates the stack if none is live
+     * @return Referenced client stack
+     * @throws AxisFault
+     *             If creating the stack fails
+     */
+    static ClientStack acquire(final String key, final Factory factory) throws AxisFault {
+        while (true) {
+            FutureTask<ClientStack> creation;
+            boolean creator = false;
+            synchronized (ClientStackRegistry.class) {
+                ClientStack stack = stacks.get(key);
+                if (stack != null) {
+                    if (stack.pendingTermination != null) {
+                        stack.pendingTermination.cancel(false);
+                        stack.pendingTermination = null;
+                    }
+                    if (log.isDebugEnabled()) {
+                        log.debug("Reusing CustomCallout client stack of " + key);
+                    }
+                    stack.references++;
+                    return stack;
+                }
+                creation = creations.get(key);
+                if (creation == null) {
+                    creation = new FutureTask<ClientStack>(new Callable<ClientStack>() {
+                        @Override
+                        public ClientStack call() throws AxisFault {
+                            ClientStack created = null;
+                            try {
+                                created = factory.create();
+                                return created;
+                            } finally {
+                                publish(key, created);
+                            }
+                        }
+                    });
+                    creations.put(key, creation);
+                    creator = true;
+                }
+            }
+            if (creator) {
+                creation.run();
+            }
+            // The published stack is referenced on the next round, or a new
+            // one is created if it was already terminated
+            awaitCreation(creation);
+        }
+    }
+
+    /**
+     * Helper method to replace the pending creation of given key with the
+     * created stack, or just remove it if the creation failed.
+     */
+    private static synchronized void publish(String key, ClientStack created) {
+        creations.remove(key);
+        if (created != null) {
+            stacks.put(key, created);
+        }
+    }
+
+    /**
+     * Helper method to wait for given creation to complete.
+     */
+    private static void awaitCreation(FutureTask<ClientStack> creation) throws AxisFault {
+        try {
+            creation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AxisFault("Interrupted while waiting for CustomCallout client stack", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AxisFault) {
+                throw (AxisFault) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AxisFault("Creating CustomCallout client stack failed", cause);
+        }
+    }
+
+    /**
+     * Releases a reference to the stack of given key. The stack is terminated
+     * when it stays unreferenced for the release delay.
+     * 
+     * @param key
+     *            Key the stack was acquired with
+     */
+    static synchronized void release(final String key) {
+        final ClientStack stack = stacks.get(key);
+        if (stack == null || --stack.references > 0) {
+            return;
+        }
+        long delay = Long.getLong(RELEASE_DELAY_PROPERTY, DEFAULT_RELEASE_DELAY);
+        if (delay <= 0) {
+            terminate(key, stack);
+            return;
+        }
+        stack.pendingTermination = TerminatorHolder.EXECUTOR.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ClientStackRegistry.class) {
+                    if (stack.references == 0 && stacks.get(key) == stack) {
+                        terminate(key, stack);
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Helper method to remove and terminate given stack.
+     */
+    private static void terminate(String key, ClientStack stack) {
+        stacks.remove(key);
+        if (stack.httpTransport != null) {
+            stack.httpTransport.destroy();
+        }
+        try {
+            stack.configCtx.terminate();
+        } catch (AxisFault ignore) {
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Terminated CustomCallout client stack of " + key);
+        }
+    }
+
+    /**
+     * Configuration context, blocking message sender and HTTP transport
+     * shared by mediators.
+     */
+    static class ClientStack {
+
+        final ConfigurationContext configCtx;
+        final BlockingMsgSender blockingMsgSender;
+        final HttpCalloutTransport httpTransport;
+        private int references = 0;
+        private ScheduledFuture<?> pendingTermination;
+
+        ClientStack(ConfigurationContext configCtx, BlockingMsgSender blockingMsgSender,
+                HttpCalloutTransport httpTransport) {
+            this.configCtx = configCtx;
+            this.blockingMsgSender = blockingMsgSender;
+            this.httpTransport = httpTransport;
+        }
+    }
+
+    /**
+     * Lazy holder of the thread terminating released stacks.
+     */
+    private static class TerminatorHolder {
+
+        static final ScheduledExecutorService EXECUTOR = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "CustomCalloutClientStackTerminator");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+}
@@ -15,25 +15,30 @@
  */
 package fi.mystes.synapse.mediator;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.axiom.om.OMElement;
 import org.apache.axiom.om.OMNode;
 import org.apache.axiom.soap.SOAPBody;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFault;
 import org.apache.axis2.AxisFault;
 import org.apache.axis2.Constants;
 import org.apache.axis2.context.ConfigurationContext;
 import org.apache.axis2.context.ConfigurationContextFactory;
+import org.apache.commons.logging.LogFactory;
 import org.apache.synapse.ManagedLifecycle;
 import org.apache.synapse.MessageContext;
 import org.apache.synapse.SynapseConstants;
 import org.apache.synapse.SynapseException;
 import org.apache.synapse.SynapseLog;
+import org.apache.synapse.commons.jmx.MBeanRegistrar;
 import org.apache.synapse.commons.json.JsonUtil;
 import org.apache.synapse.core.SynapseEnvironment;
 import org.apache.synapse.core.axis2.Axis2MessageContext;
@@ -48,25 +53,65 @@ import org.apache.synapse.util.MessageHelper;
 import org.apache.synapse.util.xpath.SynapseXPath;
 import org.jaxen.JaxenException;
 
+import fi.mystes.synapse.mediator.ClientStackRegistry.ClientStack;
+import fi.mystes.synapse.mediator.balancer.LoadBalancer;
+import fi.mystes.synapse.mediator.cache.OffHeapResponseStore;
+import fi.mystes.synapse.mediator.capture.SlowCallCapture;
+import fi.mystes.synapse.mediator.capture.SlowCallCaptureConfiguration;
+import fi.mystes.synapse.mediator.compression.CalloutCompression;
+import fi.mystes.synapse.mediator.compression.CompressionConfiguration;
+import fi.mystes.synapse.mediator.encoding.FastInfosetNegotiation;
+import fi.mystes.synapse.mediator.fault.FaultLog;
+import fi.mystes.synapse.mediator.fault.StacklessAxisFault;
+import fi.mystes.synapse.mediator.fault.StacklessSynapseException;
+import fi.mystes.synapse.mediator.health.HealthCheckConfiguration;
+import fi.mystes.synapse.mediator.health.HealthProbe;
+import fi.mystes.synapse.mediator.inflight.InFlightCallout;
+import fi.mystes.synapse.mediator.inflight.InFlightRegistry;
+import fi.mystes.synapse.mediator.cache.ResponseCacheConfiguration;
+import fi.mystes.synapse.mediator.jfr.CalloutEvents;
+import fi.mystes.synapse.mediator.jfr.CalloutEvents.PhaseEvent;
+import fi.mystes.synapse.mediator.jmx.CustomCalloutView;
+import fi.mystes.synapse.mediator.jmx.InFlightCalloutsView;
+import fi.mystes.synapse.mediator.json.JsonPath;
+import fi.mystes.synapse.mediator.json.JsonPayloads;
+import fi.mystes.synapse.mediator.transport.ConnectionPoolConfiguration;
+import fi.mystes.synapse.mediator.transport.HttpCalloutTransport;
+import fi.mystes.synapse.mediator.transport.PooledByteArrayOutputStream;
+
 /**
- * Custom Callout mediator where SOAP fault handling is fixed.
+ * Custom Callout mediator where SOAP fault handling is fixed. Invokes a
+ * service, or its branches concurrently, and merges the response into the
+ * current message; attributes of the nested elements are documented in
+ * {@link fi.mystes.synapse.mediator.xml.CustomCalloutMediatorFactory} and the
+ * README.
  * 
  * <customCallout serviceURL="string" | endpointKey="string" [action="string"]
- * [initAxis2ClientOptions="boolean"]> <configuration [axis2xml="string"]
- * [repository="string"]/>? <endpoint/>? <source xpath="expression" |
- * key="string" | type="envelope">? <!-- key can be a MC property or entry key
- * --> <target xpath="expression" | key="string"/>? <enableSec policy="string" |
- * outboundPolicy="String" | inboundPolicy="String"/>? </customCallout>
+ * [initAxis2ClientOptions="boolean"] [branchTimeout="long"]
+ * [transport="axis2|http"] [memoize="boolean"] [faultMode="full|stackless"]
+ * [encoding="xml|fastinfoset"]> <configuration/>? <connectionPool/>?
+ * <warmUp/>? <responseCache/>? <loadBalance/>? <healthCheck/>?
+ * <slowCallCapture/>? <compression/>? <endpoint/>? <source xpath="expression"
+ * | key="string" | jsonPath="string" | type="envelope">? <!-- key can be a MC
+ * property or entry key --> <target xpath="expression" | key="string" |
+ * jsonPath="string"/>? <enableSec policy="string" | outboundPolicy="String" |
+ * inboundPolicy="String"/>? <branch/>* </customCallout>
  */
 public class CustomCalloutMediator extends AbstractMediator implements ManagedLifecycle {
 
     private ConfigurationContext configCtx = null;
     private String serviceURL = null;
+    private DynamicServiceUrl dynamicServiceUrl = null;
+    private LoadBalancer loadBalancer = null;
+    private HealthCheckConfiguration healthCheckConfiguration = null;
+    private CalloutRouting routing = null;
     private String action = null;
     private String requestKey = null;
     private SynapseXPath requestXPath = null;
     private SynapseXPath targetXPath = null;
     private String targetKey = null;
+    private JsonPath requestJsonPath = null;
+    private JsonPath targetJsonPath = null;
     private String clientRepository = null;
     private String axis2xml = null;
     private String useServerConfig = null;
@@ -74,16 +119,50 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
     private Endpoint endpoint;
     private String endpointKey = null;
     private boolean useEnvelopeAsSource = false;
+    private RequestTemplate requestTemplate = null;
     private boolean securityOn = false; // Should messages be sent using
     // WS-Security?
     private String wsSecPolicyKey = null;
     private String inboundWsSecPolicyKey = null;
     private String outboundWsSecPolicyKey = null;
+    private final SecurityPolicyCache securityPolicyCache = new SecurityPolicyCache();
     public final static String DEFAULT_CLIENT_REPO = "./repository/deployment/client";
     public final static String DEFAULT_AXIS2_XML = "./repository/conf/axis2/axis2_blocking_client.xml";
+    public final static String TRANSPORT_AXIS2 = "axis2";
+    public final static String TRANSPORT_HTTP = "http";
+    public final static String FAULT_MODE_FULL = "full";
+    public final static String FAULT_MODE_STACKLESS = "stackless";
+    public final static String ENCODING_XML = "xml";
+    public final static String ENCODING_FAST_INFOSET = "fastinfoset";
+    public final static String LAZY_INIT_PROPERTY = "fi.mystes.customCallout.lazyInit";
+    final static String RESOLVED_ENDPOINT_PROPERTY = "fi.mystes.customCallout.resolvedEndpoint";
     private boolean isWrappingEndpointCreated = false;
+    private final List<CustomCalloutMediator> branches = new ArrayList<CustomCalloutMediator>();
+    private String branchName = null;
+    private long branchTimeout = 0;
+    private String transport = TRANSPORT_AXIS2;
+    private String faultMode = FAULT_MODE_FULL;
+    private String encoding = ENCODING_XML;
+    private FastInfosetNegotiation fastInfoset = null;
+    private final FaultLog faultLog = new FaultLog(LogFactory.getLog(CustomCalloutMediator.class));
+    private HttpCalloutTransport httpTransport = null;
+    private ConnectionPoolConfiguration connectionPoolConfiguration = null;
+    private String mbeanId = null;
+    private CalloutWarmUp warmUp = null;
+    private ResponseCacheConfiguration responseCacheConfiguration = null;
+    private final StoredResponses storedResponses = new StoredResponses();
+    private SlowCallCaptureConfiguration slowCallCaptureConfiguration = null;
+    private SlowCallCapture slowCallCapture = null;
+    private CompressionConfiguration compressionConfiguration = null;
+    private CalloutCompression compression = null;
+    private AllocationAccounting allocationAccounting = Boolean.getBoolean(AllocationAccounting.PROPERTY)
+            ? new AllocationAccounting() : null;
+    private static final CalloutEvents CALLOUT_EVENTS = CalloutEvents.getInstance();
+    private static final Pattern MBEAN_NAME_PATTERN = Pattern.compile("[^A-Za-z0-9._/-]");
 
     BlockingMsgSender blockingMsgSender = null;
+    private volatile boolean clientStackInitialized = false;
+    private String clientStackKey = null;
 
     /**
      * Invokes the mediator passing the current message for mediation. Each
@@ -102,33 +181,56 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
 
         try {
 
+            ensureClientStackInitialized();
+
             initClientOptionsOnBlockingMsgSender();
 
-            if (endpointKey != null) {
-                endpoint = synCtx.getEndpoint(endpointKey);
-            }
+            if (!branches.isEmpty()) {
+                BranchExecutor.invokeAll(branches, branchTimeout, synCtx, synLog);
+            } else {
+                AllocationAccounting accounting = allocationAccounting;
+                long start = accounting != null ? AllocationAccounting.getAllocatedBytes() : -1;
+                long mark = start;
 
-            debugEndpoint(synLog);
+                MessageContext synapseOutMsgCtx = prepareOutMessageContext(synCtx, synLog);
 
-            enableMtomAtEndpointOnDemand(synCtx);
+                if (accounting != null) {
+                    mark = accounting.record(AllocationAccounting.PHASE_PREPARE, mark);
+                }
 
-            MessageContext synapseOutMsgCtx = MessageHelper.cloneMessageContext(synCtx);
-            handlePayloadAsJsonOnDemand(synCtx, synapseOutMsgCtx);
+                String calloutKey = getCalloutKeyOnDemand(synCtx, synapseOutMsgCtx);
+                MessageContext resultMsgCtx = calloutKey != null
+                        ? storedResponses.get(synCtx, synLog, calloutKey) : null;
 
-            if (action != null) {
-                synapseOutMsgCtx.setWSAAction(action);
-            }
+                if (accounting != null) {
+                    mark = accounting.record(AllocationAccounting.PHASE_LOOKUP, mark);
+                }
+
+                if (resultMsgCtx == null) {
+                    debugServiceInvocationOnDemand(synLog, synapseOutMsgCtx);
 
-            debugServiceInvocationOnDemand(synLog, synapseOutMsgCtx);
+                    resultMsgCtx = invokeService(synCtx, synapseOutMsgCtx);
 
-            MessageContext resultMsgCtx = invokeService(synCtx, synapseOutMsgCtx);
+                    if (calloutKey != null && resultMsgCtx != null) {
+                        storedResponses.put(synCtx, calloutKey, resultMsgCtx);
+                    }
+                }
 
-            traceResponseOnDemand(synLog, resultMsgCtx);
+                if (accounting != null) {
+                    mark = accounting.record(AllocationAccounting.PHASE_SEND, mark);
+                }
 
-            if (resultMsgCtx != null) {
-                processResponseMessageContext(synCtx, resultMsgCtx);
-            } else {
-                synLog.traceOrDebug("Service returned a null response");
+                traceResponseOnDemand(synLog, resultMsgCtx);
+
+                if (resultMsgCtx != null) {
+                    processResponseMessageContext(synCtx, resultMsgCtx);
+                } else {
+                    synLog.traceOrDebug("Service returned a null response");
+                }
+
+                if (accounting != null) {
+                    accounting.recordCall(start, accounting.record(AllocationAccounting.PHASE_RESPONSE, mark));
+                }
             }
 
         } catch (AxisFault e) {
@@ -138,13 +240,96 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
         } catch (JaxenException e) {
             handleException("Error while evaluating the XPath expression: " + targetXPath, e, synCtx);
         } catch (Exception e) {
-            e.printStackTrace();
+            faultLog.log(serviceURL, e);
         }
 
         synLog.traceOrDebug("End : CustomCallout mediator");
         return true;
     }
 
+    /**
+     * Helper method to resolve the endpoint and build the outgoing message
+     * context from given current message context.
+     * 
+     * @param synCtx
+     *            Request/current message context
+     * @param synLog
+     *            To check whether trace/debug is enable and debug the endpoint
+     * @return Cloned message context containing the payload to be sent
+     * @throws AxisFault
+     *             If cloning the message context or payload retrieval fails
+     */
+    MessageContext prepareOutMessageContext(MessageContext synCtx, SynapseLog synLog) throws AxisFault {
+        if (endpointKey != null) {
+            endpoint = synCtx.getEndpoint(endpointKey);
+        }
+
+        debugEndpoint(synLog);
+
+        Endpoint targetEndpoint = endpoint;
+        if (dynamicServiceUrl != null) {
+            targetEndpoint = dynamicServiceUrl.getEndpoint(synCtx);
+            if (synLog.isTraceOrDebugEnabled()) {
+                synLog.traceOrDebug("Resolved the serviceURL : "
+                        + ((AddressEndpoint) targetEndpoint).getDefinition().getAddress());
+            }
+        }
+
+        enableMtomAtEndpointOnDemand(synCtx, targetEndpoint);
+
+        PhaseEvent cloneEvent = CALLOUT_EVENTS.begin(CalloutEvents.PHASE_CLONE);
+        MessageContext synapseOutMsgCtx = MessageHelper.cloneMessageContext(synCtx);
+        if (targetEndpoint != endpoint) {
+            synapseOutMsgCtx.setProperty(RESOLVED_ENDPOINT_PROPERTY, targetEndpoint);
+        }
+        if (cloneEvent != null) {
+            commitPhase(cloneEvent, synapseOutMsgCtx, -1, CalloutEvents.OUTCOME_SUCCESS);
+        }
+
+        PhaseEvent sourceEvent = CALLOUT_EVENTS.begin(CalloutEvents.PHASE_SOURCE);
+        handlePayloadAsJsonOnDemand(synCtx, synapseOutMsgCtx);
+        if (sourceEvent != null) {
+            sourceEvent.end();
+            commitPhase(sourceEvent, synapseOutMsgCtx, getPayloadSize(synapseOutMsgCtx),
+                    CalloutEvents.OUTCOME_SUCCESS);
+        }
+
+        if (action != null) {
+            synapseOutMsgCtx.setWSAAction(action);
+        }
+        if (isWrappingEndpointCreated && securityOn) {
+            securityPolicyCache.apply(synapseOutMsgCtx, wsSecPolicyKey, inboundWsSecPolicyKey,
+                    outboundWsSecPolicyKey);
+        }
+        return synapseOutMsgCtx;
+    }
+
+    /**
+     * Helper method to build key of the outgoing message if responses are
+     * memoized or cached. Out only callouts are never memoized or cached.
+     * 
+     * @param synCtx
+     *            Request/current message context
+     * @param synapseOutMsgCtx
+     *            Message to be sent
+     * @return Callout key or null if responses are not stored
+     * @throws AxisFault
+     *             If serializing JSON payload fails
+     */
+    private String getCalloutKeyOnDemand(MessageContext synCtx, MessageContext synapseOutMsgCtx) throws AxisFault {
+        if (!storedResponses.isEnabled() || "true".equals(synCtx.getProperty(SynapseConstants.OUT_ONLY))) {
+            return null;
+        }
+        String target = loadBalancer != null ? loadBalancer.toString() : getHttpAddress(synapseOutMsgCtx);
+        if (target == null) {
+            Endpoint targetEndpoint = getTargetEndpoint(synapseOutMsgCtx);
+            target = targetEndpoint.getName() != null ? targetEndpoint.getName()
+                    : "endpoint@" + Integer.toHexString(System.identityHashCode(targetEndpoint));
+        }
+        return storedResponses.key(target + "|" + synapseOutMsgCtx.getWSAAction(), synapseOutMsgCtx,
+                securityOn ? wsSecPolicyKey + "|" + inboundWsSecPolicyKey + "|" + outboundWsSecPolicyKey : null);
+    }
+
     /**
      * Helper method to process given response message context.
      * 
@@ -157,11 +342,22 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
      * @throws AxisFault
      *             If setting envelope to current message context fails
      */
-    private void processResponseMessageContext(MessageContext synCtx, MessageContext resultMsgCtx)
+    void processResponseMessageContext(MessageContext synCtx, MessageContext resultMsgCtx)
             throws JaxenException, AxisFault {
+        // Measured before the response is moved into the current message
+        long payloadSize = CALLOUT_EVENTS.isEnabled() ? getPayloadSize(resultMsgCtx) : -1;
+        PhaseEvent responseEvent = CALLOUT_EVENTS.begin(CalloutEvents.PHASE_RESPONSE);
         org.apache.axis2.context.MessageContext mc = ((Axis2MessageContext) resultMsgCtx).getAxis2MessageContext();
-        if (JsonUtil.hasAJsonPayload(mc)) {
-            JsonUtil.cloneJsonPayload(mc, ((Axis2MessageContext) synCtx).getAxis2MessageContext());
+        if (JsonUtil.hasAJsonPayload(mc) && targetJsonPath != null) {
+            mergeJsonResponse(synCtx, mc);
+        } else if (JsonUtil.hasAJsonPayload(mc)) {
+            // Response context is discarded, so its payload is moved instead
+            // of copied
+            org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) synCtx)
+                    .getAxis2MessageContext();
+            if (!JsonPayloads.transfer(mc, axis2Ctx)) {
+                JsonUtil.cloneJsonPayload(mc, axis2Ctx);
+            }
         } else {
             if (targetXPath != null) {
                 Object o = targetXPath.evaluate(synCtx);
@@ -186,6 +382,33 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
                 synCtx.setEnvelope(resultMsgCtx.getEnvelope());
             }
         }
+        if (responseEvent != null) {
+            commitPhase(responseEvent, resultMsgCtx, payloadSize, CalloutEvents.OUTCOME_SUCCESS);
+        }
+    }
+
+    /**
+     * Helper method to merge JSON response into the JSON payload or into the
+     * JSON text of target key property of current message at target JSONPath.
+     * 
+     * @param synCtx
+     *            Request/current message context
+     * @param responseCtx
+     *            Axis2 message context of the response containing JSON
+     *            payload
+     * @throws AxisFault
+     *             If current message has no JSON payload or path does not
+     *             match it
+     */
+    private void mergeJsonResponse(MessageContext synCtx, org.apache.axis2.context.MessageContext responseCtx)
+            throws AxisFault {
+        if (targetKey != null) {
+            Object property = synCtx.getProperty(targetKey);
+            synCtx.setProperty(targetKey,
+                    JsonPayloads.merge(responseCtx, property != null ? property.toString() : "{}", targetJsonPath));
+        } else {
+            JsonPayloads.merge(responseCtx, ((Axis2MessageContext) synCtx).getAxis2MessageContext(), targetJsonPath);
+        }
     }
 
     /**
@@ -198,9 +421,32 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
      * @param resultMsgCtx
      *            Message context to be traced
      */
-    private void traceResponseOnDemand(SynapseLog synLog, MessageContext resultMsgCtx) {
+    void traceResponseOnDemand(SynapseLog synLog, MessageContext resultMsgCtx) {
         if (synLog.isTraceTraceEnabled() && resultMsgCtx != null) {
-            synLog.traceTrace("Response payload received : " + resultMsgCtx.getEnvelope());
+            synLog.traceTrace(getTraceMessage("Response payload received : ", resultMsgCtx.getEnvelope()));
+        }
+    }
+
+    /**
+     * Helper method to serialize given envelope for trace log through a pooled
+     * buffer instead of intermediate writers and builders.
+     * 
+     * @param prefix
+     *            Text preceding the envelope
+     * @param envelope
+     *            Envelope to be traced
+     * @return Trace message
+     */
+    private static String getTraceMessage(String prefix, SOAPEnvelope envelope) {
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream();
+        try {
+            out.write(prefix.getBytes("UTF-8"));
+            envelope.serialize(out);
+            return out.toString("UTF-8");
+        } catch (Exception e) {
+            return prefix + envelope;
+        } finally {
+            out.release();
         }
     }
 
@@ -214,30 +460,259 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
      *            Contains the payload to be sent
      * @return New message context as response
      */
-    private MessageContext invokeService(MessageContext synCtx, MessageContext synapseOutMsgCtx) {
+    MessageContext invokeService(MessageContext synCtx, MessageContext synapseOutMsgCtx) {
         MessageContext resultMsgCtx = null;
+        boolean failed = false;
+        Exception fault = null;
+        long start = slowCallCapture != null ? System.nanoTime() : 0;
+        PhaseEvent sendEvent = CALLOUT_EVENTS.begin(CalloutEvents.PHASE_SEND);
+        InFlightCallout inFlight = InFlightRegistry.begin(synCtx.getMessageID(),
+                mbeanId != null ? mbeanId : branchName, getEndpointDescription(synapseOutMsgCtx));
         try {
             if ("true".equals(synCtx.getProperty(SynapseConstants.OUT_ONLY))) {
-                blockingMsgSender.send(endpoint, synapseOutMsgCtx);
+                send(synapseOutMsgCtx);
             } else {
-                resultMsgCtx = blockingMsgSender.send(endpoint, synapseOutMsgCtx);
-
-                if ("true".equals(resultMsgCtx.getProperty(SynapseConstants.BLOCKING_SENDER_ERROR))) {
-                    handleFault(synCtx, (Exception) synCtx.getProperty(SynapseConstants.ERROR_EXCEPTION));
-                }
-                if (resultMsgCtx.getEnvelope().hasFault()) {
-                    resultMsgCtx.setFaultResponse(true);
-                    Exception e = new AxisFault(resultMsgCtx.getEnvelope().getBody().getFault());
-                    handleFault(synCtx, e);
+                resultMsgCtx = send(synapseOutMsgCtx);
+
+                if (resultMsgCtx != null) {
+                    if ("true".equals(resultMsgCtx.getProperty(SynapseConstants.BLOCKING_SENDER_ERROR))) {
+                        failed = true;
+                        fault = (Exception) synCtx.getProperty(SynapseConstants.ERROR_EXCEPTION);
+                    } else if (resultMsgCtx.getEnvelope().hasFault()) {
+                        resultMsgCtx.setFaultResponse(true);
+                        SOAPFault soapFault = resultMsgCtx.getEnvelope().getBody().getFault();
+                        failed = true;
+                        fault = isStacklessFaults() ? new StacklessAxisFault(soapFault) : new AxisFault(soapFault);
+                    }
                 }
             }
         } catch (Exception ex) {
-            ex.printStackTrace();
-            handleFault(synCtx, ex);
+            failed = true;
+            fault = isStacklessFaults() ? StacklessAxisFault.ofTransportFailure(ex) : ex;
+        } finally {
+            InFlightRegistry.end(inFlight);
+        }
+        if (sendEvent != null) {
+            commitPhase(sendEvent, synapseOutMsgCtx, -1,
+                    failed ? CalloutEvents.OUTCOME_FAULT : CalloutEvents.OUTCOME_SUCCESS);
+        }
+        if (slowCallCapture != null) {
+            captureSlowCallOnDemand(synapseOutMsgCtx, resultMsgCtx, fault, System.nanoTime() - start);
+        }
+        if (failed) {
+            // Handled once, outside of the try block
+            handleFault(synCtx, fault);
         }
         return resultMsgCtx;
     }
 
+    /**
+     * Helper method to record given callout into slow call capture if it was
+     * slow or sampled. Payloads are serialized only when recorded.
+     * 
+     * @param synapseOutMsgCtx
+     *            Message sent
+     * @param resultMsgCtx
+     *            Message received or null
+     * @param fault
+     *            Occurred error or null
+     * @param duration
+     *            Duration of the callout in nanoseconds
+     */
+    private void captureSlowCallOnDemand(MessageContext synapseOutMsgCtx, MessageContext resultMsgCtx,
+            Exception fault, long duration) {
+        String reason = slowCallCapture.getCaptureReason(duration);
+        if (reason != null) {
+            // HTTP transport writes the response into the message sent
+            MessageContext request = resultMsgCtx != synapseOutMsgCtx ? synapseOutMsgCtx : null;
+            slowCallCapture.capture(reason, getEndpointDescription(synapseOutMsgCtx), duration, request,
+                    resultMsgCtx, fault);
+        }
+    }
+
+    /**
+     * Helper method to describe the endpoint given message is sent to for
+     * diagnostics.
+     * 
+     * @param synapseOutMsgCtx
+     *            Outgoing message context or null
+     * @return HTTP address of the target endpoint, or endpoint key, service
+     *         URL or load balanced members of the mediator
+     */
+    private String getEndpointDescription(MessageContext synapseOutMsgCtx) {
+        String address = synapseOutMsgCtx != null ? getHttpAddress(synapseOutMsgCtx) : null;
+        if (address == null) {
+            address = endpointKey != null ? endpointKey : serviceURL;
+        }
+        if (address == null && loadBalancer != null) {
+            address = loadBalancer.toString();
+        }
+        return address;
+    }
+
+    /**
+     * Helper method to commit given callout phase event.
+     * 
+     * @param event
+     *            Started phase event
+     * @param synapseOutMsgCtx
+     *            Message the endpoint is resolved from, or null
+     * @param payloadSize
+     *            Size of the payload in bytes or -1 if not measured
+     * @param outcome
+     *            Either "success" or "fault"
+     */
+    private void commitPhase(PhaseEvent event, MessageContext synapseOutMsgCtx, long payloadSize, String outcome) {
+        event.commit(mbeanId != null ? mbeanId : branchName, getEndpointDescription(synapseOutMsgCtx), action,
+                payloadSize, outcome);
+    }
+
+    /**
+     * Helper method to measure the payload of given message by serializing it
+     * into a pooled buffer. Used only while phase events are recorded.
+     * 
+     * @param msgCtx
+     *            Message to measure
+     * @return Payload size in bytes or -1 if it could not be serialized
+     */
+    private static long getPayloadSize(MessageContext msgCtx) {
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream();
+        try {
+            org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) msgCtx)
+                    .getAxis2MessageContext();
+            if (JsonUtil.hasAJsonPayload(axis2Ctx)) {
+                JsonUtil.writeAsJson(axis2Ctx, out);
+            } else {
+                msgCtx.getEnvelope().serialize(out);
+            }
+            return out.size();
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Helper method to send given message through load balancing and health
+     * checks when configured, otherwise to its target endpoint.
+     * 
+     * @param synapseOutMsgCtx
+     *            Contains the payload to be sent
+     * @return New or given message context as response
+     * @throws Exception
+     *             If sending fails
+     */
+    private MessageContext send(MessageContext synapseOutMsgCtx) throws Exception {
+        CalloutRouting calloutRouting = routing;
+        return calloutRouting != null ? calloutRouting.send(synapseOutMsgCtx) : sendToTarget(synapseOutMsgCtx);
+    }
+
+    /**
+     * Helper method to send given message to its target endpoint with the
+     * lightweight HTTP transport when it is enabled and the payload is JSON,
+     * otherwise with blocking message sender.
+     * 
+     * @param synapseOutMsgCtx
+     *            Contains the payload to be sent
+     * @return New or given message context as response
+     * @throws Exception
+     *             If sending fails
+     */
+    private MessageContext sendToTarget(MessageContext synapseOutMsgCtx) throws Exception {
+        if (httpTransport != null
+                && JsonUtil.hasAJsonPayload(((Axis2MessageContext) synapseOutMsgCtx).getAxis2MessageContext())) {
+            String address = getHttpAddress(synapseOutMsgCtx);
+            if (address != null) {
+                return httpTransport.send(address, synapseOutMsgCtx, getReadTimeout(synapseOutMsgCtx), compression);
+            }
+        }
+        return sendWithBlockingSender(synapseOutMsgCtx);
+    }
+
+    /**
+     * Helper method to send given message with blocking message sender,
+     * compressed by the Axis2 transport and encoded as Fast Infoset when
+     * enabled.
+     * 
+     * @param synapseOutMsgCtx
+     *            Contains the payload to be sent
+     * @return New message context as response
+     * @throws Exception
+     *             If sending fails
+     */
+    private MessageContext sendWithBlockingSender(MessageContext synapseOutMsgCtx) throws Exception {
+        Endpoint targetEndpoint = getTargetEndpoint(synapseOutMsgCtx);
+        CalloutCompression calloutCompression = compression;
+        FastInfosetNegotiation negotiation = fastInfoset;
+        if (calloutCompression == null && negotiation == null) {
+            return blockingMsgSender.send(targetEndpoint, synapseOutMsgCtx);
+        }
+
+        org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) synapseOutMsgCtx)
+                .getAxis2MessageContext();
+        String endpoint = getEndpointDescription(synapseOutMsgCtx);
+        if (calloutCompression != null) {
+            calloutCompression.applyToAxis2Transport(axis2Ctx, endpoint);
+        }
+        if (negotiation != null && !JsonUtil.hasAJsonPayload(axis2Ctx)) {
+            return negotiation.send(blockingMsgSender, targetEndpoint, synapseOutMsgCtx, endpoint);
+        }
+        return blockingMsgSender.send(targetEndpoint, synapseOutMsgCtx);
+    }
+
+    /**
+     * Helper method to get the endpoint given message is sent to, i.e. the
+     * endpoint resolved for a dynamic service URL or the mediator endpoint.
+     * 
+     * @param synapseOutMsgCtx
+     *            Outgoing message context
+     * @return Target endpoint
+     */
+    private Endpoint getTargetEndpoint(MessageContext synapseOutMsgCtx) {
+        Object resolved = synapseOutMsgCtx.getProperty(RESOLVED_ENDPOINT_PROPERTY);
+        return resolved instanceof Endpoint ? (Endpoint) resolved : endpoint;
+    }
+
+    /**
+     * Helper method to resolve HTTP address of the current endpoint.
+     * 
+     * @param synapseOutMsgCtx
+     *            Contains the To header used by default endpoint
+     * @return HTTP or HTTPS address or null if endpoint is not address based
+     */
+    private String getHttpAddress(MessageContext synapseOutMsgCtx) {
+        Endpoint targetEndpoint = getTargetEndpoint(synapseOutMsgCtx);
+        String address = null;
+        if (targetEndpoint instanceof AddressEndpoint) {
+            address = ((AddressEndpoint) targetEndpoint).getDefinition().getAddress();
+        } else if (targetEndpoint instanceof DefaultEndpoint && synapseOutMsgCtx.getTo() != null) {
+            address = synapseOutMsgCtx.getTo().getAddress();
+        }
+        if (address != null && address.toLowerCase().startsWith("http")) {
+            return address;
+        }
+        return null;
+    }
+
+    /**
+     * Helper method to resolve read timeout of the current endpoint.
+     * 
+     * @param synapseOutMsgCtx
+     *            Outgoing message context
+     * @return Timeout in milliseconds or 0 if not defined
+     */
+    private int getReadTimeout(MessageContext synapseOutMsgCtx) {
+        Endpoint targetEndpoint = getTargetEndpoint(synapseOutMsgCtx);
+        if (targetEndpoint instanceof AbstractEndpoint) {
+            EndpointDefinition definition = ((AbstractEndpoint) targetEndpoint).getDefinition();
+            if (definition != null && definition.getTimeoutDuration() > 0) {
+                return (int) definition.getTimeoutDuration();
+            }
+        }
+        return 0;
+    }
+
     /**
      * Helper method to debug service invocation if trace/debug enabled.
      * 
@@ -247,18 +722,19 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
      * @param synapseOutMsgCtx
      *            Contains SOAP envelop to trace
      */
-    private void debugServiceInvocationOnDemand(SynapseLog synLog, MessageContext synapseOutMsgCtx) {
+    void debugServiceInvocationOnDemand(SynapseLog synLog, MessageContext synapseOutMsgCtx) {
         if (synLog.isTraceOrDebugEnabled()) {
             synLog.traceOrDebug("About to invoke the service");
             if (synLog.isTraceTraceEnabled()) {
-                synLog.traceTrace("Request message payload : " + synapseOutMsgCtx.getEnvelope());
+                synLog.traceTrace(getTraceMessage("Request message payload : ", synapseOutMsgCtx.getEnvelope()));
             }
         }
     }
 
     /**
-     * Helper method to check and process payload as JSON if message context
-     * contains JSON payload.
+     * Helper method to render the request template if defined, otherwise to
+     * check and process payload as JSON if message context contains JSON
+     * payload.
      * 
      * @param synCtx
      *            To retrieve payload from
@@ -268,7 +744,11 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
      *             If payload retrieval fails
      */
     private void handlePayloadAsJsonOnDemand(MessageContext synCtx, MessageContext synapseOutMsgCtx) throws AxisFault {
-        if (!useEnvelopeAsSource
+        if (requestTemplate != null) {
+            requestTemplate.writeTo(synCtx, synapseOutMsgCtx);
+        } else if (requestJsonPath != null) {
+            JsonPayloads.select(((Axis2MessageContext) synapseOutMsgCtx).getAxis2MessageContext(), requestJsonPath);
+        } else if (!useEnvelopeAsSource
                 // if the payload is JSON, we do not consider the request
                 // (ie. source) path. Instead, we use the complete payload.
                 && !JsonUtil.hasAJsonPayload(((Axis2MessageContext) synapseOutMsgCtx).getAxis2MessageContext())) {
@@ -287,13 +767,20 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
      * 
      * @param synCtx
      *            Message context contains properties to be checked
+     * @param targetEndpoint
+     *            Wrapping endpoint the message is sent to
      */
-    private void enableMtomAtEndpointOnDemand(MessageContext synCtx) {
+    private void enableMtomAtEndpointOnDemand(MessageContext synCtx, Endpoint targetEndpoint) {
         if (isWrappingEndpointCreated) {
             org.apache.axis2.context.MessageContext axis2MsgCtx = ((Axis2MessageContext) synCtx)
                     .getAxis2MessageContext();
             if (Constants.VALUE_TRUE.equals(axis2MsgCtx.getProperty(Constants.Configuration.ENABLE_MTOM))) {
-                ((AbstractEndpoint) endpoint).getDefinition().setUseMTOM(true);
+                ((AbstractEndpoint) targetEndpoint).getDefinition().setUseMTOM(true);
+                if (loadBalancer != null) {
+                    for (LoadBalancer.Member member : loadBalancer.getMembers()) {
+                        ((AbstractEndpoint) member.getEndpoint()).getDefinition().setUseMTOM(true);
+                    }
+                }
             }
         }
     }
@@ -369,36 +856,62 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
      *            Occurred exception
      */
     private void handleFault(MessageContext synCtx, Exception ex) {
+        PhaseEvent faultEvent = CALLOUT_EVENTS.begin(CalloutEvents.PHASE_FAULT);
         synCtx.setProperty(SynapseConstants.SENDING_FAULT, Boolean.TRUE);
+        setFaultProperties(synCtx, "", ex);
+        if (faultEvent != null) {
+            commitPhase(faultEvent, null, -1, CalloutEvents.OUTCOME_FAULT);
+        }
+        if (isStacklessFaults()) {
+            throw new StacklessSynapseException("Error while performing the CustomCallout operation", ex);
+        }
+        throw new SynapseException("Error while performing the CustomCallout operation", ex);
+    }
 
+    /**
+     * Helper method to set error properties of given exception to message
+     * context.
+     * 
+     * @param synCtx
+     *            Message context to set error properties to
+     * @param prefix
+     *            Prefix for the error property names
+     * @param ex
+     *            Occurred exception
+     */
+    void setFaultProperties(MessageContext synCtx, String prefix, Exception ex) {
         if (ex instanceof AxisFault) {
             AxisFault axisFault = (AxisFault) ex;
 
             if (axisFault.getFaultCodeElement() != null) {
-                synCtx.setProperty(SynapseConstants.ERROR_CODE, axisFault.getFaultCodeElement().getText());
+                synCtx.setProperty(prefix + SynapseConstants.ERROR_CODE, axisFault.getFaultCodeElement().getText());
             } else {
-                synCtx.setProperty(SynapseConstants.ERROR_CODE, SynapseConstants.CALLOUT_OPERATION_FAILED);
+                synCtx.setProperty(prefix + SynapseConstants.ERROR_CODE, SynapseConstants.CALLOUT_OPERATION_FAILED);
             }
 
             if (axisFault.getMessage() != null) {
-                synCtx.setProperty(SynapseConstants.ERROR_MESSAGE, axisFault.getMessage());
+                synCtx.setProperty(prefix + SynapseConstants.ERROR_MESSAGE, axisFault.getMessage());
             } else {
-                synCtx.setProperty(SynapseConstants.ERROR_MESSAGE,
+                synCtx.setProperty(prefix + SynapseConstants.ERROR_MESSAGE,
                         "Error while performing " + "the CustomCallout operation");
             }
 
             if (axisFault.getFaultDetailElement() != null) {
                 if (axisFault.getFaultDetailElement().getFirstElement() != null) {
-                    synCtx.setProperty(SynapseConstants.ERROR_DETAIL,
+                    synCtx.setProperty(prefix + SynapseConstants.ERROR_DETAIL,
                             axisFault.getFaultDetailElement().getFirstElement());
                 } else {
-                    synCtx.setProperty(SynapseConstants.ERROR_DETAIL, axisFault.getFaultDetailElement().getText());
+                    synCtx.setProperty(prefix + SynapseConstants.ERROR_DETAIL,
+                            axisFault.getFaultDetailElement().getText());
                 }
             }
+        } else if (prefix.length() > 0) {
+            // Branch faults are not rethrown, so keep at least the message
+            synCtx.setProperty(prefix + SynapseConstants.ERROR_CODE, SynapseConstants.CALLOUT_OPERATION_FAILED);
+            synCtx.setProperty(prefix + SynapseConstants.ERROR_MESSAGE, ex.getMessage());
         }
 
-        synCtx.setProperty(SynapseConstants.ERROR_EXCEPTION, ex);
-        throw new SynapseException("Error while performing the CustomCallout operation", ex);
+        synCtx.setProperty(prefix + SynapseConstants.ERROR_EXCEPTION, ex);
     }
 
     /**
@@ -449,63 +962,302 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
     @Override
     public void init(SynapseEnvironment synEnv) {
         try {
-            configCtx = ConfigurationContextFactory.createConfigurationContextFromFileSystem(
-                    clientRepository != null ? clientRepository : DEFAULT_CLIENT_REPO,
-                    axis2xml != null ? axis2xml : DEFAULT_AXIS2_XML);
-            if (serviceURL != null) {
-                serviceURL = changeEndPointReference(serviceURL);
-            }
-
-            initBlockingMsgSender(new BlockingMsgSender());
-
-            EndpointDefinition endpointDefinition = null;
-
-            if (serviceURL != null) {
-                // If Service URL is specified, it is given the highest priority
-                endpoint = new AddressEndpoint();
-                endpointDefinition = new EndpointDefinition();
-                endpointDefinition.setAddress(serviceURL);
-                ((AddressEndpoint) endpoint).setDefinition(endpointDefinition);
-                isWrappingEndpointCreated = true;
-            } else if (endpoint == null && endpointKey == null) {
-                // Use a default endpoint in this case - i.e. the To header
-                endpoint = new DefaultEndpoint();
-                endpointDefinition = new EndpointDefinition();
-                ((DefaultEndpoint) endpoint).setDefinition(endpointDefinition);
-                isWrappingEndpointCreated = true;
-            }
-            // If the endpoint is specified, we'll look it up at mediation time.
-
-            if (endpointDefinition != null && isSecurityOn()) {
-                endpointDefinition.setSecurityOn(true);
-                if (wsSecPolicyKey != null) {
-                    endpointDefinition.setWsSecPolicyKey(wsSecPolicyKey);
-                } else {
-                    if (inboundWsSecPolicyKey != null) {
-                        endpointDefinition.setInboundWsSecPolicyKey(inboundWsSecPolicyKey);
-                    }
-                    if (outboundWsSecPolicyKey != null) {
-                        endpointDefinition.setOutboundWsSecPolicyKey(outboundWsSecPolicyKey);
-                    }
+            boolean lazy = Boolean.getBoolean(LAZY_INIT_PROPERTY);
+            if (lazy && warmUp != null && warmUp.getConnections() > 0 && TRANSPORT_HTTP.equals(transport)) {
+                // Connections can only be opened by an existing transport
+                log.warn("CustomCallout warm-up of " + serviceURL + " opens connections, its client stack is "
+                        + "created at initiation although " + LAZY_INIT_PROPERTY + " is set");
+                lazy = false;
+            }
+            if (!lazy) {
+                initClientStack();
+            }
+
+            initEndpoint();
+
+            for (CustomCalloutMediator branch : branches) {
+                branch.initEndpoint();
+            }
+
+            initRoutingOnDemand();
+
+            if (responseCacheConfiguration != null) {
+                storedResponses.open(responseCacheConfiguration);
+            }
+
+            if (slowCallCaptureConfiguration != null) {
+                slowCallCapture = new SlowCallCapture(slowCallCaptureConfiguration);
+            }
+
+            if (compressionConfiguration != null) {
+                compression = new CalloutCompression(compressionConfiguration);
+            }
+
+            registerMBean();
+
+            if (warmUp != null) {
+                String address = dynamicServiceUrl == null ? serviceURL : null;
+                if (address == null && endpoint instanceof AddressEndpoint) {
+                    address = ((AddressEndpoint) endpoint).getDefinition().getAddress();
                 }
+                warmUp.run(address, httpTransport, synEnv, requestXPath, targetXPath);
             }
-        } catch (AxisFault e) {
+        } catch (IOException e) {
             String msg = "Error initializing CustomCallout mediator : " + e.getMessage();
             log.error(msg, e);
             throw new SynapseException(msg, e);
         }
     }
 
+    /**
+     * Helper method to take the Axis2 configuration context, blocking message
+     * sender and HTTP transport into use. A live stack with identical
+     * transport configuration, e.g. one of the instance being redeployed, is
+     * reused instead of creating a new one.
+     * 
+     * @throws AxisFault
+     *             If creating the configuration context fails
+     */
+    private void initClientStack() throws AxisFault {
+        long start = System.currentTimeMillis();
+        String key = getClientStackKey();
+        ClientStack stack = ClientStackRegistry.acquire(key, new ClientStackRegistry.Factory() {
+            @Override
+            public ClientStack create() throws AxisFault {
+                ConfigurationContext ctx = ConfigurationContextFactory.createConfigurationContextFromFileSystem(
+                        clientRepository != null ? clientRepository : DEFAULT_CLIENT_REPO,
+                        axis2xml != null ? axis2xml : DEFAULT_AXIS2_XML);
+                BlockingMsgSender sender = new BlockingMsgSender();
+                sender.setConfigurationContext(ctx);
+                sender.init();
+                HttpCalloutTransport transport = null;
+                if (TRANSPORT_HTTP.equals(CustomCalloutMediator.this.transport)) {
+                    transport = new HttpCalloutTransport(connectionPoolConfiguration != null
+                            ? connectionPoolConfiguration : new ConnectionPoolConfiguration());
+                }
+                return new ClientStack(ctx, sender, transport);
+            }
+        });
+        clientStackKey = key;
+        configCtx = stack.configCtx;
+        httpTransport = stack.httpTransport;
+        useBlockingMsgSender(stack.blockingMsgSender);
+        initFastInfosetOnDemand();
+
+        if (log.isDebugEnabled()) {
+            log.debug("CustomCallout client stack initiated in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Helper method to register Fast Infoset to the client stack when the
+     * encoding is requested. Falls back to text XML if the Axis2 fastinfoset
+     * module is not available.
+     */
+    private void initFastInfosetOnDemand() {
+        if (!ENCODING_FAST_INFOSET.equals(encoding) || fastInfoset != null) {
+            return;
+        }
+        if (FastInfosetNegotiation.register(configCtx != null ? configCtx.getAxisConfiguration() : null)) {
+            fastInfoset = new FastInfosetNegotiation();
+        } else {
+            log.warn("Fast Infoset encoding is not available in the class path, CustomCallout uses text XML");
+        }
+    }
+
+    /**
+     * Helper method to build the key of transport relevant configuration,
+     * mediators with equal keys can share a client stack.
+     * 
+     * @return Client stack key
+     */
+    private String getClientStackKey() {
+        return (clientRepository != null ? clientRepository : DEFAULT_CLIENT_REPO) + "|"
+                + (axis2xml != null ? axis2xml : DEFAULT_AXIS2_XML) + "|" + initClientOptions + "|" + transport + "|"
+                + connectionPoolConfiguration;
+    }
+
+    /**
+     * Helper method to create the client stack on first mediation when lazy
+     * initiation is enabled. Concurrent first calls create it only once and
+     * after that only a volatile flag is read.
+     */
+    private void ensureClientStackInitialized() {
+        if (!clientStackInitialized) {
+            synchronized (this) {
+                if (!clientStackInitialized) {
+                    try {
+                        initClientStack();
+                    } catch (AxisFault e) {
+                        String msg = "Error initializing CustomCallout mediator : " + e.getMessage();
+                        log.error(msg, e);
+                        throw new SynapseException(msg, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Helper method to create the wrapping endpoint for service URL or To
+     * header and to enable WS-Security on it. Expressions of a dynamic service
+     * URL are compiled here and resolved per message.
+     */
+    private void initEndpoint() {
+        if (serviceURL != null) {
+            serviceURL = changeEndPointReference(serviceURL);
+        }
+
+        if (loadBalancer != null && !loadBalancer.getMembers().isEmpty()) {
+            // Members are chosen per message, the first one names the endpoint
+            for (LoadBalancer.Member member : loadBalancer.getMembers()) {
+                member.setEndpoint(createAddressEndpoint(changeEndPointReference(member.getAddress())));
+            }
+            endpoint = loadBalancer.getMembers().get(0).getEndpoint();
+            isWrappingEndpointCreated = true;
+        } else if (serviceURL != null) {
+            // If Service URL is specified, it is given the highest priority
+            endpoint = createAddressEndpoint(serviceURL);
+            isWrappingEndpointCreated = true;
+            if (DynamicServiceUrl.isDynamic(serviceURL)) {
+                try {
+                    dynamicServiceUrl = new DynamicServiceUrl(serviceURL, new DynamicServiceUrl.EndpointFactory() {
+                        @Override
+                        public AddressEndpoint create(String address) {
+                            return createAddressEndpoint(address);
+                        }
+                    });
+                } catch (JaxenException e) {
+                    String msg = "Invalid expression in serviceURL : " + serviceURL;
+                    log.error(msg, e);
+                    throw new SynapseException(msg, e);
+                }
+            }
+        } else if (endpoint == null && endpointKey == null) {
+            // Use a default endpoint in this case - i.e. the To header
+            endpoint = new DefaultEndpoint();
+            EndpointDefinition endpointDefinition = new EndpointDefinition();
+            configureSecurityOnDemand(endpointDefinition);
+            ((DefaultEndpoint) endpoint).setDefinition(endpointDefinition);
+            isWrappingEndpointCreated = true;
+        }
+        // If the endpoint is specified, we'll look it up at mediation time.
+    }
+
+    /**
+     * Helper method to route callouts through the load balancer and health
+     * checks when configured. Dynamic service URLs and endpoints looked up by
+     * key are not checked.
+     */
+    private void initRoutingOnDemand() {
+        if (loadBalancer == null && healthCheckConfiguration == null) {
+            return;
+        }
+        CalloutRouting calloutRouting = new CalloutRouting(loadBalancer, isStacklessFaults(),
+                new CalloutRouting.Sender() {
+                    @Override
+                    public MessageContext send(MessageContext synapseOutMsgCtx) throws Exception {
+                        return sendToTarget(synapseOutMsgCtx);
+                    }
+                });
+        if (healthCheckConfiguration != null) {
+            String address = null;
+            if (dynamicServiceUrl == null && endpointKey == null && endpoint instanceof AddressEndpoint) {
+                address = ((AddressEndpoint) endpoint).getDefinition().getAddress();
+            }
+            calloutRouting.startHealthChecks(healthCheckConfiguration, address);
+        }
+        routing = calloutRouting;
+    }
+
+    /**
+     * Helper method to create a wrapping endpoint of given service URL.
+     * 
+     * @param address
+     *            Service URL
+     * @return Address endpoint with security enabled if configured
+     */
+    private AddressEndpoint createAddressEndpoint(String address) {
+        AddressEndpoint addressEndpoint = new AddressEndpoint();
+        EndpointDefinition endpointDefinition = new EndpointDefinition();
+        endpointDefinition.setAddress(address);
+        configureSecurityOnDemand(endpointDefinition);
+        addressEndpoint.setDefinition(endpointDefinition);
+        return addressEndpoint;
+    }
+
+    /**
+     * Helper method to enable WS-Security on given endpoint definition if
+     * security is on.
+     * 
+     * @param endpointDefinition
+     *            Definition of a wrapping endpoint
+     */
+    private void configureSecurityOnDemand(EndpointDefinition endpointDefinition) {
+        if (isSecurityOn()) {
+            endpointDefinition.setSecurityOn(true);
+            if (wsSecPolicyKey != null) {
+                endpointDefinition.setWsSecPolicyKey(wsSecPolicyKey);
+            } else {
+                if (inboundWsSecPolicyKey != null) {
+                    endpointDefinition.setInboundWsSecPolicyKey(inboundWsSecPolicyKey);
+                }
+                if (outboundWsSecPolicyKey != null) {
+                    endpointDefinition.setOutboundWsSecPolicyKey(outboundWsSecPolicyKey);
+                }
+            }
+        }
+    }
+
     /**
      * Helper method to initiate blocking message sender. Used also in tests.
+     * Branches share the configuration context and blocking message sender of
+     * their parent.
      * 
      * @param bmsgs
      *            Blocking message sender to be set and initiate
      */
     public void initBlockingMsgSender(BlockingMsgSender bmsgs) {
+        bmsgs.setConfigurationContext(configCtx);
+        bmsgs.init();
+        useBlockingMsgSender(bmsgs);
+    }
+
+    /**
+     * Helper method to take given initiated blocking message sender into use
+     * by this mediator and its branches.
+     * 
+     * @param bmsgs
+     *            Initiated blocking message sender
+     */
+    private void useBlockingMsgSender(BlockingMsgSender bmsgs) {
         blockingMsgSender = bmsgs;
-        blockingMsgSender.setConfigurationContext(configCtx);
-        blockingMsgSender.init();
+        for (CustomCalloutMediator branch : branches) {
+            branch.configCtx = configCtx;
+            branch.blockingMsgSender = blockingMsgSender;
+            branch.httpTransport = httpTransport;
+        }
+        clientStackInitialized = true;
+    }
+
+    /**
+     * @return True if the client stack has been taken into use
+     */
+    boolean isClientStackInitialized() {
+        return clientStackInitialized;
+    }
+
+    /**
+     * Helper method to publish statistics of this mediator over JMX. The MBean
+     * is named after the service URL or endpoint key and instance.
+     */
+    private void registerMBean() {
+        String name = serviceURL != null ? serviceURL : endpointKey != null ? endpointKey : "customCallout";
+        mbeanId = MBEAN_NAME_PATTERN.matcher(name).replaceAll("_") + "@"
+                + Integer.toHexString(System.identityHashCode(this));
+        MBeanRegistrar.getInstance().registerMBean(new CustomCalloutView(this),
+                CustomCalloutView.MBEAN_CATEGORY, mbeanId);
+        InFlightCalloutsView.registerOnDemand();
     }
 
     /**
@@ -513,9 +1265,19 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
      */
     @Override
     public void destroy() {
-        try {
-            configCtx.terminate();
-        } catch (AxisFault ignore) {
+        if (mbeanId != null) {
+            MBeanRegistrar.getInstance().unRegisterMBean(CustomCalloutView.MBEAN_CATEGORY, mbeanId);
+            mbeanId = null;
+        }
+        if (clientStackKey != null) {
+            // Terminated by the registry once no mediator uses it
+            ClientStackRegistry.release(clientStackKey);
+            clientStackKey = null;
+        }
+        storedResponses.close();
+        if (routing != null) {
+            // Stopped by the registry once no mediator uses them
+            routing.release();
         }
     }
 
@@ -615,6 +1377,45 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
         this.targetXPath = targetXPath;
     }
 
+    /**
+     * Getter for request JSONPath.
+     * 
+     * @return JSONPath selecting the request from JSON payload
+     */
+    public JsonPath getRequestJsonPath() {
+        return requestJsonPath;
+    }
+
+    /**
+     * Setter for request JSONPath.
+     * 
+     * @param requestJsonPath
+     *            JSONPath selecting the request from JSON payload
+     */
+    public void setRequestJsonPath(JsonPath requestJsonPath) {
+        this.requestJsonPath = requestJsonPath;
+    }
+
+    /**
+     * Getter for target JSONPath.
+     * 
+     * @return JSONPath where JSON response is merged into
+     */
+    public JsonPath getTargetJsonPath() {
+        return targetJsonPath;
+    }
+
+    /**
+     * Setter for target JSONPath. JSON response is merged into the JSON
+     * payload or, if target key is set, into the JSON text of the property.
+     * 
+     * @param targetJsonPath
+     *            JSONPath where JSON response is merged into
+     */
+    public void setTargetJsonPath(JsonPath targetJsonPath) {
+        this.targetJsonPath = targetJsonPath;
+    }
+
     /**
      * Getter for target key.
      * 
@@ -746,6 +1547,74 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
         this.useEnvelopeAsSource = useEnvelopeAsSource;
     }
 
+    /**
+     * Getter for load balancer of the service nodes.
+     * 
+     * @return Load balancer or null if not load balanced
+     */
+    public LoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    /**
+     * Setter for load balancer of the service nodes. Takes precedence over
+     * serviceURL.
+     * 
+     * @param loadBalancer
+     *            Load balancer with members
+     */
+    public void setLoadBalancer(LoadBalancer loadBalancer) {
+        this.loadBalancer = loadBalancer;
+    }
+
+    /**
+     * Getter for active health check settings.
+     * 
+     * @return Health check settings or null if endpoints are not probed
+     */
+    public HealthCheckConfiguration getHealthCheckConfiguration() {
+        return healthCheckConfiguration;
+    }
+
+    /**
+     * Setter for active health check settings.
+     * 
+     * @param healthCheckConfiguration
+     *            Probe request, interval and thresholds
+     */
+    public void setHealthCheckConfiguration(HealthCheckConfiguration healthCheckConfiguration) {
+        this.healthCheckConfiguration = healthCheckConfiguration;
+    }
+
+    /**
+     * Getter for health probes of the endpoints of this mediator. Used by JMX
+     * view.
+     * 
+     * @return Health probes, empty until initiated or if not probed
+     */
+    public List<HealthProbe> getHealthProbes() {
+        return routing != null ? routing.getHealthProbes() : Collections.<HealthProbe> emptyList();
+    }
+
+    /**
+     * Getter for request template used as source.
+     * 
+     * @return Compiled request template or null if not used
+     */
+    public RequestTemplate getRequestTemplate() {
+        return requestTemplate;
+    }
+
+    /**
+     * Setter for request template used as source.
+     * 
+     * @param requestTemplate
+     *            Compiled request template
+     */
+    public void setRequestTemplate(RequestTemplate requestTemplate) {
+        this.requestTemplate = requestTemplate;
+    }
+
     /**
      * Is WS-Security turned on on this endpoint?
      * 
@@ -832,7 +1701,8 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
     /**
      * This method checks for dynamic url in CustomCallout mediator and replace
      * it with given system properties. properties has to given as
-     * -D{parameter}={value}
+     * -D{parameter}={value}. Other expressions in curly braces are left to be
+     * resolved per message.
      * 
      * @param epr
      *            end point url
@@ -841,11 +1711,12 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
     private String changeEndPointReference(String epr) {
 
         if (epr.toLowerCase().contains("system.prop")) {
-            Pattern p = Pattern.compile("\\{(.*?)\\}");
-            Matcher m = p.matcher(epr);
-            Map<String, String> result = new HashMap<String, String>();
+            Matcher m = DynamicServiceUrl.EXPRESSION_PATTERN.matcher(epr);
             while (m.find()) {
-                result.put(m.group(1), "");
+                if (!DynamicServiceUrl.isSystemProperty(m.group(1))) {
+                    // Other expressions are resolved per message
+                    continue;
+                }
                 String propName = System.getProperty(m.group(1).replace("system.prop.", ""));
                 if (propName != null) {
                     epr = epr.replace("{" + m.group(1) + "}", propName);
@@ -881,4 +1752,321 @@ public class CustomCalloutMediator extends AbstractMediator implements ManagedLi
         this.endpoint = endpoint;
     }
 
+    /**
+     * Getter for branches invoked concurrently instead of a single service.
+     * 
+     * @return Branch mediators, empty if not defined
+     */
+    public List<CustomCalloutMediator> getBranches() {
+        return branches;
+    }
+
+    /**
+     * Add branch to be invoked concurrently with other branches.
+     * 
+     * @param branch
+     *            Branch mediator to be added
+     */
+    public void addBranch(CustomCalloutMediator branch) {
+        branches.add(branch);
+    }
+
+    /**
+     * Getter for branch name.
+     * 
+     * @return Name of the branch, used as prefix of fault properties
+     */
+    public String getBranchName() {
+        return branchName;
+    }
+
+    /**
+     * Setter for branch name.
+     * 
+     * @param branchName
+     *            Name of the branch to be set
+     */
+    public void setBranchName(String branchName) {
+        this.branchName = branchName;
+    }
+
+    /**
+     * Getter for shared timeout of all branches.
+     * 
+     * @return Timeout in milliseconds, 0 if branches are waited without limit
+     */
+    public long getBranchTimeout() {
+        return branchTimeout;
+    }
+
+    /**
+     * Setter for shared timeout of all branches.
+     * 
+     * @param branchTimeout
+     *            Timeout in milliseconds, 0 for no limit
+     */
+    public void setBranchTimeout(long branchTimeout) {
+        this.branchTimeout = branchTimeout;
+    }
+
+    /**
+     * Getter for transport used for JSON payloads.
+     * 
+     * @return Either "axis2" or "http"
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    /**
+     * Setter for transport used for JSON payloads.
+     * 
+     * @param transport
+     *            Either "axis2" or "http"
+     */
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Getter for encoding of XML callouts.
+     * 
+     * @return Either "xml" or "fastinfoset"
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Setter for encoding of XML callouts.
+     * 
+     * @param encoding
+     *            "fastinfoset" to negotiate Fast Infoset with the endpoint,
+     *            "xml" for text XML
+     */
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Getter for Fast Infoset negotiation. Used by JMX view.
+     * 
+     * @return Negotiation or null if Fast Infoset is not used
+     */
+    public FastInfosetNegotiation getFastInfoset() {
+        return fastInfoset;
+    }
+
+    /**
+     * Getter for fault mode.
+     * 
+     * @return Either "full" or "stackless"
+     */
+    public String getFaultMode() {
+        return faultMode;
+    }
+
+    /**
+     * Setter for fault mode.
+     * 
+     * @param faultMode
+     *            Either "full" or "stackless"
+     */
+    public void setFaultMode(String faultMode) {
+        this.faultMode = faultMode;
+    }
+
+    /**
+     * Whether faults are thrown without stack traces.
+     * 
+     * @return True if fault mode is "stackless"
+     */
+    private boolean isStacklessFaults() {
+        return FAULT_MODE_STACKLESS.equals(faultMode);
+    }
+
+    /**
+     * Getter for the rate limited log of faults.
+     * 
+     * @return Fault log
+     */
+    public FaultLog getFaultLog() {
+        return faultLog;
+    }
+
+    /**
+     * Getter for connection pool settings of HTTP transport.
+     * 
+     * @return Connection pool settings or null if not configured
+     */
+    public ConnectionPoolConfiguration getConnectionPoolConfiguration() {
+        return connectionPoolConfiguration;
+    }
+
+    /**
+     * Setter for connection pool settings of HTTP transport.
+     * 
+     * @param connectionPoolConfiguration
+     *            Connection pool settings to be set
+     */
+    public void setConnectionPoolConfiguration(ConnectionPoolConfiguration connectionPoolConfiguration) {
+        this.connectionPoolConfiguration = connectionPoolConfiguration;
+    }
+
+    /**
+     * Getter for warm-up run at initiation.
+     * 
+     * @return Warm-up settings or null if warm-up is disabled
+     */
+    public CalloutWarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Setter for warm-up run at initiation.
+     * 
+     * @param warmUp
+     *            Warm-up settings or null to disable warm-up
+     */
+    public void setWarmUp(CalloutWarmUp warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * Whether responses are memoized within a message flow.
+     * 
+     * @return True if identical callouts of the same message reuse the
+     *         response
+     */
+    public boolean isMemoize() {
+        return storedResponses.isMemoize();
+    }
+
+    /**
+     * Setter for memoize flag.
+     * 
+     * @param memoize
+     *            True to reuse the response for identical callouts of the
+     *            same message
+     */
+    public void setMemoize(boolean memoize) {
+        storedResponses.setMemoize(memoize);
+    }
+
+    /**
+     * Getter for response cache settings.
+     * 
+     * @return Response cache settings or null if responses are not cached
+     */
+    public ResponseCacheConfiguration getResponseCacheConfiguration() {
+        return responseCacheConfiguration;
+    }
+
+    /**
+     * Setter for response cache settings.
+     * 
+     * @param responseCacheConfiguration
+     *            Response cache settings or null to not cache responses
+     */
+    public void setResponseCacheConfiguration(ResponseCacheConfiguration responseCacheConfiguration) {
+        this.responseCacheConfiguration = responseCacheConfiguration;
+    }
+
+    /**
+     * Getter for slow call capture settings.
+     * 
+     * @return Capture settings or null if callouts are not captured
+     */
+    public SlowCallCaptureConfiguration getSlowCallCaptureConfiguration() {
+        return slowCallCaptureConfiguration;
+    }
+
+    /**
+     * Setter for slow call capture settings.
+     * 
+     * @param slowCallCaptureConfiguration
+     *            Capture settings or null if callouts are not captured
+     */
+    public void setSlowCallCaptureConfiguration(SlowCallCaptureConfiguration slowCallCaptureConfiguration) {
+        this.slowCallCaptureConfiguration = slowCallCaptureConfiguration;
+    }
+
+    /**
+     * Getter for slow call capture.
+     * 
+     * @return Capture created at initiation or null if callouts are not
+     *         captured
+     */
+    public SlowCallCapture getSlowCallCapture() {
+        return slowCallCapture;
+    }
+
+    /**
+     * Getter for compression settings.
+     * 
+     * @return Compression settings or null if callouts are not compressed
+     */
+    public CompressionConfiguration getCompressionConfiguration() {
+        return compressionConfiguration;
+    }
+
+    /**
+     * Setter for compression settings.
+     * 
+     * @param compressionConfiguration
+     *            Compression settings or null if callouts are not compressed
+     */
+    public void setCompressionConfiguration(CompressionConfiguration compressionConfiguration) {
+        this.compressionConfiguration = compressionConfiguration;
+    }
+
+    /**
+     * Getter for compression.
+     * 
+     * @return Compression created at initiation or null if callouts are not
+     *         compressed
+     */
+    public CalloutCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Getter for allocation accounting.
+     * 
+     * @return Accounting of bytes allocated per call or null if not enabled
+     */
+    public AllocationAccounting getAllocationAccounting() {
+        return allocationAccounting;
+    }
+
+    /**
+     * Enables or disables accounting of bytes allocated per call and phase.
+     * Enabled by default if system property
+     * fi.mystes.customCallout.allocationAccounting is true.
+     * 
+     * @param enabled
+     *            True to account allocations, resets previous figures
+     */
+    public void setAllocationAccountingEnabled(boolean enabled) {
+        this.allocationAccounting = enabled ? new AllocationAccounting() : null;
+    }
+
+    /**
+     * Getter for response cache. Used by JMX view.
+     * 
+     * @return Response cache or null if not used
+     */
+    public OffHeapResponseStore getResponseStore() {
+        return storedResponses.getStore();
+    }
+
+    /**
+     * Getter for HTTP transport. Used by JMX view.
+     * 
+     * @return HTTP transport or null if not used or not yet initiated
+     */
+    public HttpCalloutTransport getHttpTransport() {
+        return httpTransport;
+    }
+
 }
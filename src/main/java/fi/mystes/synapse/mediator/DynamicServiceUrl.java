@@ -0,0 +1,209 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.axis2.AxisFault;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.endpoints.AddressEndpoint;
+import org.apache.synapse.util.xpath.SynapseXPath;
+import org.jaxen.JaxenException;
+
+/**
+ * Service URL containing expressions in curly braces, e.g.
+ * http://host/{$ctx:tenant}/service or http://host/{//customer/@region}. The
+ * URL is split into literals and XPath expressions once at deploy time and
+ * resolved per message. Each value is percent-encoded as a path segment, so
+ * a message cannot inject separators redirecting the callout to another host
+ * or path. Address endpoints of resolved URLs are kept in a bounded LRU cache,
+ * so that an endpoint and its definition are not created for every message.
+ */
+class DynamicServiceUrl {
+
+    public static final String ENDPOINT_CACHE_SIZE_PROPERTY = "fi.mystes.customCallout.endpointCacheSize";
+    public static final int DEFAULT_ENDPOINT_CACHE_SIZE = 128;
+
+    static final Pattern EXPRESSION_PATTERN = Pattern.compile("\\{(.*?)\\}");
+
+    private final String url;
+    private final String[] literals;
+    private final SynapseXPath[] expressions;
+    private final EndpointFactory factory;
+    private final Map<String, AddressEndpoint> endpoints;
+
+    /**
+     * Factory of address endpoints for resolved URLs.
+     */
+    interface EndpointFactory {
+
+        /**
+         * @param address
+         *            Resolved service URL
+         * @return New endpoint sending to given address
+         */
+        AddressEndpoint create(String address);
+    }
+
+    /**
+     * Constructor compiling given URL.
+     * 
+     * @param url
+     *            Service URL with expressions in curly braces
+     * @param factory
+     *            Creates endpoints of resolved URLs
+     * @throws JaxenException
+     *             If an expression is not valid XPath
+     */
+    DynamicServiceUrl(String url, EndpointFactory factory) throws JaxenException {
+        this.url = url;
+        this.factory = factory;
+        List<String> literalList = new ArrayList<String>();
+        List<SynapseXPath> expressionList = new ArrayList<SynapseXPath>();
+        Matcher m = EXPRESSION_PATTERN.matcher(url);
+        StringBuilder literal = new StringBuilder();
+        int start = 0;
+        while (m.find()) {
+            literal.append(url, start, m.start());
+            if (isSystemProperty(m.group(1))) {
+                literal.append(m.group());
+            } else {
+                literalList.add(literal.toString());
+                literal.setLength(0);
+                expressionList.add(new SynapseXPath(m.group(1)));
+            }
+            start = m.end();
+        }
+        literalList.add(literal.append(url, start, url.length()).toString());
+        literals = literalList.toArray(new String[literalList.size()]);
+        expressions = expressionList.toArray(new SynapseXPath[expressionList.size()]);
+
+        final int maxSize = Math.max(1, Integer.getInteger(ENDPOINT_CACHE_SIZE_PROPERTY, DEFAULT_ENDPOINT_CACHE_SIZE));
+        endpoints = new LinkedHashMap<String, AddressEndpoint>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AddressEndpoint> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Checks whether given URL contains expressions.
+     * 
+     * @param url
+     *            Service URL
+     * @return True if URL has to be resolved per message
+     */
+    static boolean isDynamic(String url) {
+        if (url == null) {
+            return false;
+        }
+        Matcher m = EXPRESSION_PATTERN.matcher(url);
+        while (m.find()) {
+            if (!isSystemProperty(m.group(1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether given expression refers to a system property, which are
+     * substituted once at deploy time and left as is when not set.
+     * 
+     * @param expression
+     *            Content of curly braces
+     * @return True for system.prop.* expressions
+     */
+    static boolean isSystemProperty(String expression) {
+        return expression.startsWith("system.prop.");
+    }
+
+    /**
+     * Resolves the URL against given message.
+     * 
+     * @param synCtx
+     *            Message context expressions are evaluated against
+     * @return Service URL with expressions replaced by their encoded string
+     *         values
+     * @throws AxisFault
+     *             If an expression evaluates to an empty value
+     */
+    String resolve(MessageContext synCtx) throws AxisFault {
+        StringBuilder sb = new StringBuilder(url.length() + 32).append(literals[0]);
+        for (int i = 0; i < expressions.length; i++) {
+            String value = expressions[i].stringValueOf(synCtx);
+            if (value == null || value.length() == 0) {
+                throw new AxisFault("Expression " + expressions[i] + " of serviceURL " + url
+                        + " evaluated to an empty value");
+            }
+            sb.append(encode(value)).append(literals[i + 1]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Percent-encodes given value as a path segment. Unlike in form encoding
+     * spaces are encoded as %20.
+     */
+    static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Resolves the URL against given message and returns the cached or a new
+     * endpoint of the resolved URL.
+     * 
+     * @param synCtx
+     *            Message context expressions are evaluated against
+     * @return Endpoint sending to the resolved URL
+     * @throws AxisFault
+     *             If an expression evaluates to an empty value
+     */
+    AddressEndpoint getEndpoint(MessageContext synCtx) throws AxisFault {
+        String address = resolve(synCtx);
+        synchronized (endpoints) {
+            AddressEndpoint endpoint = endpoints.get(address);
+            if (endpoint == null) {
+                endpoint = factory.create(address);
+                endpoints.put(address, endpoint);
+            }
+            return endpoint;
+        }
+    }
+
+    /**
+     * @return Number of cached endpoints
+     */
+    int getCachedEndpoints() {
+        synchronized (endpoints) {
+            return endpoints.size();
+        }
+    }
+}
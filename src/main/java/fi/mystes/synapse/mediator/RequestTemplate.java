@@ -0,0 +1,326 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMFactory;
+import org.apache.axiom.om.OMNamespace;
+import org.apache.axiom.om.ds.ByteArrayDataSource;
+import org.apache.axiom.om.util.AXIOMUtil;
+import org.apache.axiom.soap.SOAPBody;
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.Constants;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.util.xpath.SynapseXPath;
+
+import fi.mystes.synapse.mediator.transport.HttpCalloutTransport;
+import fi.mystes.synapse.mediator.transport.PooledByteArrayOutputStream;
+
+/**
+ * Inline request template of {@link CustomCalloutMediator}. The template is
+ * compiled once at deploy time into static UTF-8 byte segments separated by
+ * argument slots $1..$n, which are filled per call with escaped string values
+ * of the arguments. The request is thus written as bytes without building and
+ * serializing an OM tree of the payload, XML requests are handed to the sender
+ * as a sourced element serialized straight from the rendered bytes.
+ * 
+ * <pre>
+ * &lt;source&gt;
+ *      &lt;template [mediaType="xml|json"]&gt;payload with $1..$n&lt;/template&gt;
+ *      &lt;args&gt;
+ *           &lt;arg expression="xpath" | value="string"/&gt;*
+ *      &lt;/args&gt;?
+ * &lt;/source&gt;
+ * </pre>
+ */
+public class RequestTemplate {
+
+    public static final String MEDIA_TYPE_XML = "xml";
+    public static final String MEDIA_TYPE_JSON = "json";
+
+    private static final Pattern SLOT = Pattern.compile("\\$(\\d+)");
+    private static final String UTF_8 = "UTF-8";
+
+    private final String template;
+    private final String mediaType;
+    private final QName rootName;
+    private final byte[][] segments;
+    private final int[] slots;
+    private final List<Object> arguments = new ArrayList<Object>();
+
+    /**
+     * Constructor compiling given template.
+     * 
+     * @param template
+     *            Serialized XML element or JSON text with argument slots
+     * @param mediaType
+     *            {@link #MEDIA_TYPE_XML} or {@link #MEDIA_TYPE_JSON}
+     * @throws IllegalArgumentException
+     *             If media type is unknown or XML template is not well-formed
+     */
+    public RequestTemplate(String template, String mediaType) {
+        if (!MEDIA_TYPE_XML.equals(mediaType) && !MEDIA_TYPE_JSON.equals(mediaType)) {
+            throw new IllegalArgumentException("Unknown template media type : " + mediaType);
+        }
+        this.template = template;
+        this.mediaType = mediaType;
+        if (MEDIA_TYPE_XML.equals(mediaType)) {
+            try {
+                rootName = AXIOMUtil.stringToOM(template).getQName();
+            } catch (XMLStreamException e) {
+                throw new IllegalArgumentException("Template is not well-formed XML : " + e.getMessage(), e);
+            }
+        } else {
+            rootName = null;
+        }
+
+        List<byte[]> segmentList = new ArrayList<byte[]>();
+        List<Integer> slotList = new ArrayList<Integer>();
+        Matcher matcher = SLOT.matcher(template);
+        int start = 0;
+        while (matcher.find()) {
+            segmentList.add(getBytes(template.substring(start, matcher.start())));
+            slotList.add(Integer.parseInt(matcher.group(1)) - 1);
+            start = matcher.end();
+        }
+        segmentList.add(getBytes(template.substring(start)));
+
+        segments = segmentList.toArray(new byte[segmentList.size()][]);
+        slots = new int[slotList.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = slotList.get(i);
+        }
+    }
+
+    /**
+     * Adds an argument evaluated per call.
+     * 
+     * @param expression
+     *            Expression whose string value fills the next slot
+     */
+    public void addExpression(SynapseXPath expression) {
+        arguments.add(expression);
+    }
+
+    /**
+     * Adds a constant argument.
+     * 
+     * @param value
+     *            Value filling the next slot
+     */
+    public void addValue(String value) {
+        arguments.add(value);
+    }
+
+    /**
+     * Getter for arguments in slot order.
+     * 
+     * @return Unmodifiable list of {@link SynapseXPath} and String values
+     */
+    public List<Object> getArguments() {
+        return Collections.unmodifiableList(arguments);
+    }
+
+    /**
+     * Getter for number of arguments referred by the template.
+     * 
+     * @return Highest slot number or 0 if template has no slots
+     */
+    public int getRequiredArguments() {
+        int required = 0;
+        for (int slot : slots) {
+            required = Math.max(required, slot + 1);
+        }
+        return required;
+    }
+
+    /**
+     * Getter for the template source.
+     * 
+     * @return Template as configured
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * Getter for media type of the template.
+     * 
+     * @return {@link #MEDIA_TYPE_XML} or {@link #MEDIA_TYPE_JSON}
+     */
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * Writes the template filled with arguments evaluated against given
+     * message context.
+     * 
+     * @param synCtx
+     *            Message context arguments are evaluated against
+     * @param out
+     *            Stream to write the request to
+     * @throws IOException
+     *             If writing fails
+     */
+    public void render(MessageContext synCtx, OutputStream out) throws IOException {
+        String[] values = new String[arguments.size()];
+        Iterator<Object> itr = arguments.iterator();
+        for (int i = 0; itr.hasNext(); i++) {
+            Object argument = itr.next();
+            String value = argument instanceof SynapseXPath ? ((SynapseXPath) argument).stringValueOf(synCtx)
+                    : (String) argument;
+            values[i] = escape(value != null ? value : "");
+        }
+        out.write(segments[0]);
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] >= 0 && slots[i] < values.length) {
+                out.write(getBytes(values[slots[i]]));
+            }
+            out.write(segments[i + 1]);
+        }
+    }
+
+    /**
+     * Replaces the payload of given outgoing message with the rendered
+     * template.
+     * 
+     * @param synCtx
+     *            Request/current message context arguments are evaluated
+     *            against
+     * @param synapseOutMsgCtx
+     *            Outgoing message context
+     * @throws AxisFault
+     *             If rendering or setting JSON payload fails
+     */
+    public void writeTo(MessageContext synCtx, MessageContext synapseOutMsgCtx) throws AxisFault {
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream();
+        try {
+            render(synCtx, out);
+            if (MEDIA_TYPE_JSON.equals(mediaType)) {
+                org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) synapseOutMsgCtx)
+                        .getAxis2MessageContext();
+                // JsonUtil reads the stream lazily, so it gets a copy that
+                // outlives the pooled buffer
+                JsonUtil.newJsonPayload(axis2Ctx, new ByteArrayInputStream(out.toByteArray()), true, true);
+                axis2Ctx.setProperty(Constants.Configuration.MESSAGE_TYPE, HttpCalloutTransport.JSON_CONTENT_TYPE);
+                axis2Ctx.setProperty(Constants.Configuration.CONTENT_TYPE, HttpCalloutTransport.JSON_CONTENT_TYPE);
+            } else {
+                SOAPBody soapBody = synapseOutMsgCtx.getEnvelope().getBody();
+                for (Iterator<?> itr = soapBody.getChildElements(); itr.hasNext();) {
+                    ((OMElement) itr.next()).detach();
+                }
+                soapBody.addChild(createSourcedElement(out.toByteArray()));
+            }
+        } catch (IOException e) {
+            throw AxisFault.makeFault(e);
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Helper method to create an element whose content is serialized straight
+     * from given bytes and only parsed if navigated.
+     */
+    private OMElement createSourcedElement(byte[] bytes) {
+        OMFactory fac = OMAbstractFactory.getOMFactory();
+        OMNamespace ns = rootName.getNamespaceURI().length() > 0
+                ? fac.createOMNamespace(rootName.getNamespaceURI(), rootName.getPrefix()) : null;
+        return fac.createOMElement(new ByteArrayDataSource(bytes, UTF_8), rootName.getLocalPart(), ns);
+    }
+
+    /**
+     * Helper method to escape given argument value for the media type.
+     */
+    private String escape(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement = MEDIA_TYPE_JSON.equals(mediaType) ? escapeJson(c) : escapeXml(c);
+            if (replacement != null && sb == null) {
+                sb = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            if (sb != null) {
+                if (replacement != null) {
+                    sb.append(replacement);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb != null ? sb.toString() : value;
+    }
+
+    private static String escapeXml(char c) {
+        switch (c) {
+        case '&':
+            return "&amp;";
+        case '<':
+            return "&lt;";
+        case '>':
+            return "&gt;";
+        case '"':
+            return "&quot;";
+        case '\'':
+            return "&apos;";
+        default:
+            return null;
+        }
+    }
+
+    private static String escapeJson(char c) {
+        switch (c) {
+        case '"':
+            return "\\\"";
+        case '\\':
+            return "\\\\";
+        case '\n':
+            return "\\n";
+        case '\r':
+            return "\\r";
+        case '\t':
+            return "\\t";
+        default:
+            return c < 0x20 ? String.format("\\u%04x", (int) c) : null;
+        }
+    }
+
+    private static byte[] getBytes(String text) {
+        try {
+            return text.getBytes(UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+}
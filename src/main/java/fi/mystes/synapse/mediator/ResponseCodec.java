@@ -0,0 +1,111 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.util.StAXUtils;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.impl.builder.StAXSOAPModelBuilder;
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.Constants;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+
+import fi.mystes.synapse.mediator.transport.HttpCalloutTransport;
+import fi.mystes.synapse.mediator.transport.PooledByteArrayOutputStream;
+
+/**
+ * Converts callout responses to bytes for a response store and back. The first
+ * byte tells whether the rest is a JSON payload or a serialized envelope.
+ */
+final class ResponseCodec {
+
+    private static final byte TYPE_XML = 'X';
+    private static final byte TYPE_JSON = 'J';
+
+    private ResponseCodec() {
+    }
+
+    /**
+     * Serializes given response into a pooled buffer.
+     * 
+     * @param response
+     *            Response message context
+     * @return Response bytes which must be released after use
+     * @throws AxisFault
+     *             If serializing fails
+     */
+    static PooledByteArrayOutputStream encode(MessageContext response) throws AxisFault {
+        org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) response).getAxis2MessageContext();
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream();
+        boolean encoded = false;
+        try {
+            if (JsonUtil.hasAJsonPayload(axis2Ctx)) {
+                out.write(TYPE_JSON);
+                JsonUtil.writeAsJson(axis2Ctx, out);
+            } else {
+                out.write(TYPE_XML);
+                response.getEnvelope().serialize(out);
+            }
+            encoded = true;
+            return out;
+        } catch (XMLStreamException e) {
+            throw AxisFault.makeFault(e);
+        } finally {
+            if (!encoded) {
+                out.release();
+            }
+        }
+    }
+
+    /**
+     * Rehydrates a response into a new message context.
+     * 
+     * @param bytes
+     *            Response bytes
+     * @param synCtx
+     *            Current message context creating the new one
+     * @return Response message context
+     * @throws AxisFault
+     *             If parsing fails
+     */
+    static MessageContext decode(byte[] bytes, MessageContext synCtx) throws AxisFault {
+        MessageContext response = synCtx.getEnvironment().createMessageContext();
+        org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) response).getAxis2MessageContext();
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes, 1, bytes.length - 1);
+        if (bytes[0] == TYPE_JSON) {
+            response.setEnvelope(OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope());
+            JsonUtil.newJsonPayload(axis2Ctx, in, true, true);
+            axis2Ctx.setProperty(Constants.Configuration.MESSAGE_TYPE, HttpCalloutTransport.JSON_CONTENT_TYPE);
+            axis2Ctx.setProperty(Constants.Configuration.CONTENT_TYPE, HttpCalloutTransport.JSON_CONTENT_TYPE);
+        } else {
+            try {
+                SOAPEnvelope envelope = new StAXSOAPModelBuilder(StAXUtils.createXMLStreamReader(in))
+                        .getSOAPEnvelope();
+                envelope.build();
+                response.setEnvelope(envelope);
+            } catch (XMLStreamException e) {
+                throw AxisFault.makeFault(e);
+            }
+        }
+        return response;
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.namespace.QName;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.config.Entry;
+
+/**
+ * Per mediator cache of WS-Security policies. The policy entry is resolved
+ * through the message context, which is cheap for registry entries within
+ * their cache period, and compared to the cached one, so that a changed
+ * registry resource invalidates the cache. The cached policy is prepared
+ * once: Rampart crypto configurations without a cryptoKey get the keystore
+ * file as key, which lets Rampart cache the loaded keystores instead of
+ * reading them for every message. The prepared policy is handed to the
+ * blocking message sender as a message context local entry.
+ */
+class SecurityPolicyCache {
+
+    static final String RAMPART_NS = "http://ws.apache.org/rampart/policy";
+    static final QName Q_CRYPTO = new QName(RAMPART_NS, "crypto");
+    static final QName Q_PROPERTY = new QName(RAMPART_NS, "property");
+    static final QName ATT_NAME = new QName("name");
+    static final QName ATT_CRYPTO_KEY = new QName("cryptoKey");
+    static final String MERLIN_FILE = "org.apache.ws.security.crypto.merlin.file";
+
+    private final Map<String, CachedPolicy> policies = new ConcurrentHashMap<String, CachedPolicy>();
+
+    /**
+     * Sets prepared policies of given keys to the message context.
+     * 
+     * @param synCtx
+     *            Message context to be sent
+     * @param keys
+     *            Policy keys, null keys are ignored
+     */
+    void apply(MessageContext synCtx, String... keys) {
+        for (String key : keys) {
+            if (key == null) {
+                continue;
+            }
+            Object source = synCtx.getEntry(key);
+            if (!(source instanceof OMElement)) {
+                // Let the sender report the missing policy
+                continue;
+            }
+            CachedPolicy cached = policies.get(key);
+            if (cached == null || (cached.source != source && cached.policy != source)) {
+                cached = new CachedPolicy((OMElement) source, prepare((OMElement) source));
+                policies.put(key, cached);
+            }
+            Entry entry = new Entry(key);
+            entry.setType(Entry.INLINE_XML);
+            entry.setValue(cached.policy);
+            synCtx.getContextEntries().put(key, entry);
+        }
+    }
+
+    /**
+     * @return Number of cached policies
+     */
+    int size() {
+        return policies.size();
+    }
+
+    /**
+     * Helper method to copy given policy and enable crypto caching on it.
+     */
+    private static OMElement prepare(OMElement source) {
+        OMElement policy = source.cloneOMElement();
+        enableCryptoCaching(policy);
+        return policy;
+    }
+
+    /**
+     * Helper method to set the keystore file as cryptoKey of every crypto
+     * element not having one.
+     */
+    private static void enableCryptoCaching(OMElement element) {
+        if (Q_CRYPTO.equals(element.getQName()) && element.getAttribute(ATT_CRYPTO_KEY) == null) {
+            Iterator<?> properties = element.getChildrenWithName(Q_PROPERTY);
+            while (properties.hasNext()) {
+                if (MERLIN_FILE.equals(((OMElement) properties.next()).getAttributeValue(ATT_NAME))) {
+                    element.addAttribute(ATT_CRYPTO_KEY.getLocalPart(), MERLIN_FILE, null);
+                    break;
+                }
+            }
+            return;
+        }
+        Iterator<?> children = element.getChildElements();
+        while (children.hasNext()) {
+            enableCryptoCaching((OMElement) children.next());
+        }
+    }
+
+    /**
+     * Policy entry and its prepared copy.
+     */
+    private static class CachedPolicy {
+
+        final Object source;
+        final OMElement policy;
+
+        CachedPolicy(Object source, OMElement policy) {
+            this.source = source;
+            this.policy = policy;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.axis2.AxisFault;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseLog;
+
+import fi.mystes.synapse.mediator.cache.OffHeapResponseStore;
+import fi.mystes.synapse.mediator.cache.ResponseCacheConfiguration;
+import fi.mystes.synapse.mediator.transport.PooledByteArrayOutputStream;
+
+/**
+ * Responses of identical callouts stored by a mediator, in the message memo
+ * within a message flow and in the off-heap response cache between messages.
+ * The memo is looked up first, a response found in neither is stored into
+ * both after the service has been invoked.
+ */
+final class StoredResponses {
+
+    private static final Log log = LogFactory.getLog(StoredResponses.class);
+
+    private boolean memoize = false;
+    private OffHeapResponseStore store = null;
+    private List<String> varyHeaders = null;
+
+    /**
+     * @return True if responses are memoized or cached
+     */
+    boolean isEnabled() {
+        return memoize || store != null;
+    }
+
+    /**
+     * @return True if responses are memoized within a message flow
+     */
+    boolean isMemoize() {
+        return memoize;
+    }
+
+    /**
+     * @param memoize
+     *            True to memoize responses within a message flow
+     */
+    void setMemoize(boolean memoize) {
+        this.memoize = memoize;
+    }
+
+    /**
+     * Opens the response cache of given configuration.
+     * 
+     * @param configuration
+     *            Response cache configuration
+     * @throws IOException
+     *             If mapping the cache file fails
+     */
+    void open(ResponseCacheConfiguration configuration) throws IOException {
+        store = OffHeapResponseStore.open(configuration);
+        varyHeaders = configuration.getVaryHeaders();
+    }
+
+    /**
+     * @return Response cache or null if not opened
+     */
+    OffHeapResponseStore getStore() {
+        return store;
+    }
+
+    /**
+     * Builds key of given outgoing message. Responses cached between messages
+     * are also keyed by the security policy, SOAP header and configured
+     * transport headers, so callers with different credentials do not get
+     * each other's responses.
+     * 
+     * @param target
+     *            Identifies the invoked service, e.g. address and action
+     * @param synapseOutMsgCtx
+     *            Message to be sent
+     * @param securityPolicy
+     *            Keys of the security policies or null if security is off
+     * @return Callout key
+     * @throws AxisFault
+     *             If serializing JSON payload fails
+     */
+    String key(String target, MessageContext synapseOutMsgCtx, String securityPolicy) throws AxisFault {
+        if (store == null) {
+            return CalloutMemo.key(target, synapseOutMsgCtx);
+        }
+        if (securityPolicy != null) {
+            target = target + "|" + securityPolicy;
+        }
+        return CalloutMemo.key(target, synapseOutMsgCtx, varyHeaders);
+    }
+
+    /**
+     * Looks up response of an identical callout from the message memo and
+     * then from the response cache.
+     * 
+     * @param synCtx
+     *            Request/current message context
+     * @param synLog
+     *            To debug where the response was found
+     * @param calloutKey
+     *            Key of the outgoing message
+     * @return Stored response or null if none found
+     * @throws AxisFault
+     *             If rehydrating the response fails
+     */
+    MessageContext get(MessageContext synCtx, SynapseLog synLog, String calloutKey) throws AxisFault {
+        if (memoize) {
+            MessageContext memoized = CalloutMemo.get(synCtx, calloutKey);
+            if (memoized != null) {
+                synLog.traceOrDebug("Using memoized response of an identical callout");
+                return memoized;
+            }
+        }
+        OffHeapResponseStore responseStore = store;
+        if (responseStore != null) {
+            byte[] cached = responseStore.get(calloutKey);
+            if (cached != null) {
+                synLog.traceOrDebug("Using cached response of an identical callout");
+                return ResponseCodec.decode(cached, synCtx);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores given response to the message memo and the response cache before
+     * it is merged into the current message. Failing to cache a response does
+     * not fail the callout.
+     * 
+     * @param synCtx
+     *            Request/current message context
+     * @param calloutKey
+     *            Key of the outgoing message
+     * @param resultMsgCtx
+     *            Response message context
+     * @throws AxisFault
+     *             If copying the response to the memo fails
+     */
+    void put(MessageContext synCtx, String calloutKey, MessageContext resultMsgCtx) throws AxisFault {
+        if (memoize) {
+            CalloutMemo.put(synCtx, calloutKey, resultMsgCtx);
+        }
+        OffHeapResponseStore responseStore = store;
+        if (responseStore != null) {
+            try {
+                PooledByteArrayOutputStream encoded = ResponseCodec.encode(resultMsgCtx);
+                try {
+                    responseStore.put(calloutKey, encoded.getBuffer(), encoded.size());
+                } finally {
+                    encoded.release();
+                }
+            } catch (AxisFault e) {
+                log.warn("Could not cache CustomCallout response", e);
+            }
+        }
+    }
+
+    /**
+     * Closes the response cache if opened.
+     */
+    void close() {
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.balancer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.synapse.endpoints.Endpoint;
+
+import fi.mystes.synapse.mediator.health.HealthProbe;
+
+/**
+ * Client side load balancer of identical service nodes. With the default
+ * least latency algorithm two members are picked at random and the one with
+ * lower cost, i.e. exponentially weighted moving average of observed latency
+ * multiplied by requests in flight, is chosen (power of two choices). Round
+ * robin is available for comparison. A member failing a request is demoted
+ * for the demotion time and chosen only when every member is demoted or
+ * unhealthy, as are members whose health probe reports them unhealthy.
+ * 
+ * <pre>
+ * &lt;loadBalance [algorithm="leastLatency|roundRobin"] [demotionTime="long"]&gt;
+ *      &lt;member serviceURL="string"/&gt;+
+ * &lt;/loadBalance&gt;
+ * </pre>
+ */
+public class LoadBalancer {
+
+    public static final String ALGORITHM_LEAST_LATENCY = "leastLatency";
+    public static final String ALGORITHM_ROUND_ROBIN = "roundRobin";
+    public static final long DEFAULT_DEMOTION_TIME = 30000;
+
+    /**
+     * Weight of the latest sample in the moving average.
+     */
+    static final double EWMA_WEIGHT = 0.3;
+
+    private final List<Member> members = new ArrayList<Member>();
+    private final Random random;
+    private final AtomicInteger next = new AtomicInteger();
+    private String algorithm = ALGORITHM_LEAST_LATENCY;
+    private long demotionTime = DEFAULT_DEMOTION_TIME;
+
+    /**
+     * Constructor for load balancer without members.
+     */
+    public LoadBalancer() {
+        this(new Random());
+    }
+
+    /**
+     * Constructor for load balancer with given random source. Used in tests.
+     * 
+     * @param random
+     *            Picks the members compared
+     */
+    LoadBalancer(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Adds a member. Members are added when the mediator is deployed.
+     * 
+     * @param address
+     *            Service URL of the member
+     * @return Added member
+     */
+    public Member addMember(String address) {
+        Member member = new Member(address);
+        members.add(member);
+        return member;
+    }
+
+    /**
+     * Getter for members.
+     * 
+     * @return Unmodifiable list of members in configuration order
+     */
+    public List<Member> getMembers() {
+        return Collections.unmodifiableList(members);
+    }
+
+    /**
+     * Chooses the member for a request and counts the request in flight on it.
+     * Every chosen member has to be completed.
+     * 
+     * @return Chosen member
+     */
+    public Member select() {
+        long now = System.currentTimeMillis();
+        Member chosen;
+        if (members.size() == 1) {
+            chosen = members.get(0);
+        } else if (ALGORITHM_ROUND_ROBIN.equals(algorithm)) {
+            chosen = selectRoundRobin(now);
+        } else {
+            chosen = selectLeastLatency(now);
+        }
+        chosen.inFlight.incrementAndGet();
+        chosen.requests.incrementAndGet();
+        return chosen;
+    }
+
+    /**
+     * Records the outcome of a request sent to given member.
+     * 
+     * @param member
+     *            Member returned by {@link #select()}
+     * @param latencyNanos
+     *            Time the request took
+     * @param success
+     *            False if the member failed or returned a fault
+     */
+    public void complete(Member member, long latencyNanos, boolean success) {
+        member.inFlight.decrementAndGet();
+        if (success) {
+            member.addSample(latencyNanos);
+        } else {
+            member.failures.incrementAndGet();
+            member.demotedUntil = System.currentTimeMillis() + demotionTime;
+        }
+    }
+
+    /**
+     * Abandons a request to given member without recording an outcome, e.g.
+     * when the request is not sent because the member is unhealthy.
+     * 
+     * @param member
+     *            Member returned by {@link #select()}
+     */
+    public void abandon(Member member) {
+        member.inFlight.decrementAndGet();
+    }
+
+    /**
+     * Helper method to pick two distinct members at random and choose the
+     * available one of lower cost.
+     */
+    private Member selectLeastLatency(long now) {
+        int size = members.size();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        Member a = members.get(first);
+        Member b = members.get(second);
+        boolean aAvailable = a.isAvailable(now);
+        boolean bAvailable = b.isAvailable(now);
+        if (aAvailable != bAvailable) {
+            return aAvailable ? a : b;
+        }
+        if (!aAvailable) {
+            return selectCheapest(now);
+        }
+        return a.getCost() <= b.getCost() ? a : b;
+    }
+
+    /**
+     * Helper method to choose the next available member in turn, or the next
+     * healthy one when every member is demoted.
+     */
+    private Member selectRoundRobin(long now) {
+        int size = members.size();
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        Member fallback = null;
+        for (int i = 0; i < size; i++) {
+            Member member = members.get((start + i) % size);
+            if (member.isAvailable(now)) {
+                return member;
+            }
+            if (fallback == null && member.isHealthy()) {
+                fallback = member;
+            }
+        }
+        return fallback != null ? fallback : members.get(start);
+    }
+
+    /**
+     * Helper method to choose the available member of lowest cost. When every
+     * member is demoted or unhealthy, healthy members are preferred, so that a
+     * demoted member is retried before the callout fails as unhealthy.
+     */
+    private Member selectCheapest(long now) {
+        Member cheapest = null;
+        int cheapestRank = -1;
+        for (Member member : members) {
+            int rank = member.isAvailable(now) ? 2 : member.isHealthy() ? 1 : 0;
+            if (rank > cheapestRank || (rank == cheapestRank && member.getCost() < cheapest.getCost())) {
+                cheapest = member;
+                cheapestRank = rank;
+            }
+        }
+        return cheapest;
+    }
+
+    /**
+     * Getter for the selection algorithm.
+     * 
+     * @return {@link #ALGORITHM_LEAST_LATENCY} or {@link #ALGORITHM_ROUND_ROBIN}
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Setter for the selection algorithm.
+     * 
+     * @param algorithm
+     *            {@link #ALGORITHM_LEAST_LATENCY} or
+     *            {@link #ALGORITHM_ROUND_ROBIN}
+     */
+    public void setAlgorithm(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Getter for time a failed member is demoted.
+     * 
+     * @return Demotion time in milliseconds
+     */
+    public long getDemotionTime() {
+        return demotionTime;
+    }
+
+    /**
+     * Setter for time a failed member is demoted.
+     * 
+     * @param demotionTime
+     *            Demotion time in milliseconds, 0 to not demote
+     */
+    public void setDemotionTime(long demotionTime) {
+        this.demotionTime = demotionTime;
+    }
+
+    /**
+     * Key identifying the balanced service, i.e. the member addresses.
+     * 
+     * @return Member addresses separated by commas
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Member member : members) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(member.getAddress());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Service node of the load balancer and its observed latency.
+     */
+    public static class Member {
+
+        private final String address;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private volatile long demotedUntil = 0;
+        private double averageLatency = 0;
+        private Endpoint endpoint;
+        private HealthProbe healthProbe;
+
+        Member(String address) {
+            this.address = address;
+        }
+
+        /**
+         * Helper method to add a latency sample to the moving average.
+         */
+        private synchronized void addSample(long latencyNanos) {
+            averageLatency = averageLatency == 0 ? latencyNanos
+                    : averageLatency + EWMA_WEIGHT * (latencyNanos - averageLatency);
+        }
+
+        /**
+         * Cost of sending the next request to this member. Members without
+         * samples cost nothing, so that every member gets probed.
+         * 
+         * @return Average latency multiplied by requests in flight plus one
+         */
+        synchronized double getCost() {
+            return averageLatency * (inFlight.get() + 1);
+        }
+
+        /**
+         * @param now
+         *            Current time in milliseconds
+         * @return False while the member is demoted after a failure or
+         *         unhealthy
+         */
+        boolean isAvailable(long now) {
+            return demotedUntil <= now && isHealthy();
+        }
+
+        /**
+         * @return False if the health probe of the member reports it unhealthy
+         */
+        public boolean isHealthy() {
+            return healthProbe == null || healthProbe.isHealthy();
+        }
+
+        /**
+         * @return Health probe of the member or null if not checked
+         */
+        public HealthProbe getHealthProbe() {
+            return healthProbe;
+        }
+
+        /**
+         * @param healthProbe
+         *            Health probe of the member
+         */
+        public void setHealthProbe(HealthProbe healthProbe) {
+            this.healthProbe = healthProbe;
+        }
+
+        /**
+         * @return Service URL of the member
+         */
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @return Endpoint sending to the member, set when the mediator is
+         *         initiated
+         */
+        public Endpoint getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * @param endpoint
+         *            Endpoint sending to the member
+         */
+        public void setEndpoint(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * @return Moving average of latency in milliseconds
+         */
+        public synchronized double getAverageLatency() {
+            return averageLatency / 1000000d;
+        }
+
+        /**
+         * @return Requests currently in flight
+         */
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * @return Requests sent to the member
+         */
+        public long getRequests() {
+            return requests.get();
+        }
+
+        /**
+         * @return Requests failed by the member
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return True while the member is demoted after a failure
+         */
+        public boolean isDemoted() {
+            return demotedUntil > System.currentTimeMillis();
+        }
+
+        /**
+         * Summary of the member published over JMX.
+         * 
+         * @return Address and statistics
+         */
+        @Override
+        public String toString() {
+            return address + " averageLatency=" + String.format("%.2f", getAverageLatency()) + "ms inFlight="
+                    + getInFlight() + " requests=" + getRequests() + " failures=" + getFailures()
+                    + (isDemoted() ? " demoted" : "") + (isHealthy() ? "" : " unhealthy");
+        }
+    }
+}
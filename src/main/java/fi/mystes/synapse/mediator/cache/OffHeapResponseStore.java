@@ -0,0 +1,389 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Store of serialized responses outside the Java heap. Responses are written
+ * one after another into a direct buffer or a memory mapped file, which wraps
+ * around when full and evicts the responses being overwritten. Only the compact
+ * index of keys, offsets and expiry times lives on heap. A file backed store
+ * writes its index next to the file when closed and loads it when opened, so
+ * the responses survive a restart. File backed stores are shared by all
+ * mediators using the same file, which must then use the same settings.
+ */
+public class OffHeapResponseStore {
+
+    private static final Log log = LogFactory.getLog(OffHeapResponseStore.class);
+
+    private static final int INDEX_MAGIC = 0x43435253;
+    private static final String INDEX_SUFFIX = ".index";
+
+    private static final Map<String, OffHeapResponseStore> fileStores = new HashMap<String, OffHeapResponseStore>();
+
+    private final ByteBuffer buffer;
+    private final File file;
+    private final int capacity;
+    private final long timeToLive;
+    private final Map<String, Slot> index = new HashMap<String, Slot>();
+    private final TreeMap<Integer, String> keysByOffset = new TreeMap<Integer, String>();
+    private int position = 0;
+    private int references = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Constructor for store of given buffer.
+     */
+    private OffHeapResponseStore(ByteBuffer buffer, File file, long timeToLive) {
+        this.buffer = buffer;
+        this.file = file;
+        this.capacity = buffer.capacity();
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Opens a store of given settings. A file backed store already open is
+     * shared, otherwise its index is loaded from a previous run.
+     * 
+     * @param configuration
+     *            Store settings
+     * @return Opened store which must be closed with {@link #close()}
+     * @throws IOException
+     *             If mapping the file fails or the file is already open with
+     *             other size or time to live
+     */
+    public static OffHeapResponseStore open(ResponseCacheConfiguration configuration) throws IOException {
+        if (configuration.getMaxSize() <= 0 || configuration.getMaxSize() > Integer.MAX_VALUE) {
+            throw new IOException("Response cache size must be between 1 and " + Integer.MAX_VALUE + " bytes");
+        }
+        int capacity = (int) configuration.getMaxSize();
+        if (configuration.getFile() == null) {
+            OffHeapResponseStore store = new OffHeapResponseStore(ByteBuffer.allocateDirect(capacity), null,
+                    configuration.getTimeToLive());
+            store.references++;
+            return store;
+        }
+        File file = new File(configuration.getFile()).getCanonicalFile();
+        synchronized (fileStores) {
+            OffHeapResponseStore store = fileStores.get(file.getPath());
+            if (store == null) {
+                store = new OffHeapResponseStore(map(file, capacity), file, configuration.getTimeToLive());
+                store.loadIndex();
+                fileStores.put(file.getPath(), store);
+            } else if (store.capacity != capacity || store.timeToLive != configuration.getTimeToLive()) {
+                throw new IOException("Response cache file " + file + " is already open with maxSize "
+                        + store.capacity + " and timeToLive " + store.timeToLive);
+            }
+            store.references++;
+            return store;
+        }
+    }
+
+    /**
+     * Helper method to memory map given file.
+     */
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != capacity) {
+                raf.setLength(capacity);
+            }
+            // Mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Releases the store. When the last user of a file backed store closes
+     * it, the file is flushed and the index written next to it.
+     */
+    public void close() {
+        if (file == null) {
+            synchronized (this) {
+                index.clear();
+                keysByOffset.clear();
+            }
+            return;
+        }
+        synchronized (fileStores) {
+            if (--references > 0) {
+                return;
+            }
+            fileStores.remove(file.getPath());
+        }
+        synchronized (this) {
+            ((MappedByteBuffer) buffer).force();
+            try {
+                saveIndex();
+            } catch (IOException e) {
+                log.warn("Could not write response cache index of " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the stored response of given key.
+     * 
+     * @param key
+     *            Response key
+     * @return Response bytes or null if not stored or expired
+     */
+    public synchronized byte[] get(String key) {
+        Slot slot = index.get(key);
+        if (slot == null || slot.isExpired(System.currentTimeMillis())) {
+            if (slot != null) {
+                remove(key);
+            }
+            misses++;
+            return null;
+        }
+        byte[] value = new byte[slot.length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(slot.offset);
+        source.get(value);
+        hits++;
+        return value;
+    }
+
+    /**
+     * Stores given response, evicting the oldest responses its bytes
+     * overwrite.
+     * 
+     * @param key
+     *            Response key
+     * @param value
+     *            Response bytes
+     * @return False if the response is larger than the store
+     */
+    public boolean put(String key, byte[] value) {
+        return put(key, value, value.length);
+    }
+
+    /**
+     * Stores given part of a response array.
+     * 
+     * @param key
+     *            Response key
+     * @param value
+     *            Array containing response bytes
+     * @param length
+     *            Number of bytes to store from the start of the array
+     * @return False if the response is larger than the store
+     */
+    public synchronized boolean put(String key, byte[] value, int length) {
+        if (length > capacity) {
+            return false;
+        }
+        remove(key);
+        if (position + length > capacity) {
+            position = 0;
+        }
+        evictOverlapping(position, position + length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(position);
+        target.put(value, 0, length);
+        add(key, new Slot(position, length,
+                timeToLive > 0 ? System.currentTimeMillis() + timeToLive : Long.MAX_VALUE));
+        position += length;
+        return true;
+    }
+
+    /**
+     * Helper method to evict responses stored within given range. Slots never
+     * overlap each other, so only the slot starting before the range and the
+     * slots starting within it are visited. An empty range still evicts a
+     * slot starting at its offset, since each offset holds one slot.
+     */
+    private void evictOverlapping(int start, int end) {
+        Map.Entry<Integer, String> before = keysByOffset.lowerEntry(start);
+        if (before != null) {
+            Slot slot = index.get(before.getValue());
+            if (slot.offset + slot.length > start) {
+                evict(before.getValue(), slot);
+            }
+        }
+        Map<Integer, String> within = keysByOffset.subMap(start, true, Math.max(start, end - 1), true);
+        while (!within.isEmpty()) {
+            String key = within.values().iterator().next();
+            evict(key, index.get(key));
+        }
+    }
+
+    /**
+     * Helper method to evict given slot, counting it only if not yet expired.
+     */
+    private void evict(String key, Slot slot) {
+        remove(key);
+        if (!slot.isExpired(System.currentTimeMillis())) {
+            evictions++;
+        }
+    }
+
+    /**
+     * Helper method to add given slot to both indexes.
+     */
+    private void add(String key, Slot slot) {
+        index.put(key, slot);
+        keysByOffset.put(slot.offset, key);
+    }
+
+    /**
+     * Helper method to remove slot of given key from both indexes.
+     */
+    private void remove(String key) {
+        Slot slot = index.remove(key);
+        if (slot != null) {
+            keysByOffset.remove(slot.offset);
+        }
+    }
+
+    /**
+     * Helper method to load index of a previous run. The index file is
+     * removed once loaded, so that a crash never leaves an index describing
+     * overwritten data.
+     */
+    private void loadIndex() {
+        File indexFile = new File(file.getPath() + INDEX_SUFFIX);
+        if (!indexFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != capacity) {
+                    log.info("Ignoring response cache index of other format or size " + indexFile);
+                    return;
+                }
+                position = Math.min(Math.max(in.readInt(), 0), capacity);
+                int count = in.readInt();
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    Slot slot = new Slot(in.readInt(), in.readInt(), in.readLong());
+                    if (slot.offset >= 0 && slot.length >= 0 && slot.offset <= capacity - slot.length
+                            && !slot.isExpired(now)) {
+                        evictOverlapping(slot.offset, slot.offset + slot.length);
+                        add(key, slot);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            index.clear();
+            keysByOffset.clear();
+            position = 0;
+            log.warn("Could not read response cache index " + indexFile, e);
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Helper method to write index of stored responses next to the file.
+     */
+    private void saveIndex() throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file.getPath() + INDEX_SUFFIX)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(capacity);
+            out.writeInt(position);
+            out.writeInt(index.size());
+            for (Map.Entry<String, Slot> entry : index.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().offset);
+                out.writeInt(entry.getValue().length);
+                out.writeLong(entry.getValue().expiresAt);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return Number of stored responses
+     */
+    public synchronized int getEntries() {
+        return index.size();
+    }
+
+    /**
+     * @return Number of responses found
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of responses not found or expired
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Number of responses overwritten by newer ones
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Location of one stored response.
+     */
+    private static class Slot {
+
+        final int offset;
+        final int length;
+        final long expiresAt;
+
+        Slot(int offset, int length, long expiresAt) {
+            this.offset = offset;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
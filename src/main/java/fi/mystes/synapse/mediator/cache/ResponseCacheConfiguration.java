@@ -0,0 +1,119 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.cache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Settings of {@link OffHeapResponseStore}.
+ * 
+ * <pre>
+ * &lt;responseCache [maxSize="long"] [timeToLive="long"] [file="string"] [varyHeaders="string"]/&gt;
+ * </pre>
+ */
+public class ResponseCacheConfiguration {
+
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    public static final List<String> DEFAULT_VARY_HEADERS = Collections
+            .unmodifiableList(Arrays.asList("Authorization", "Cookie"));
+
+    private long maxSize = DEFAULT_MAX_SIZE;
+    private long timeToLive = 0;
+    private String file = null;
+    private List<String> varyHeaders = DEFAULT_VARY_HEADERS;
+
+    /**
+     * Getter for maximum size of stored responses. Oldest responses are
+     * evicted when the store is full.
+     * 
+     * @return Maximum size in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Setter for maximum size of stored responses.
+     * 
+     * @param maxSize
+     *            Maximum size in bytes
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Getter for time a stored response is used.
+     * 
+     * @return Time to live in milliseconds, 0 until evicted
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Setter for time a stored response is used.
+     * 
+     * @param timeToLive
+     *            Time to live in milliseconds, 0 until evicted
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Getter for file the responses are memory mapped to.
+     * 
+     * @return File path or null to store responses into direct memory
+     */
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * Setter for file the responses are memory mapped to. A file backed store
+     * keeps its responses over restarts.
+     * 
+     * @param file
+     *            File path or null to store responses into direct memory
+     */
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    /**
+     * Getter for transport headers that are part of the cache key, so that
+     * callers with different credentials or tenants do not share responses.
+     * 
+     * @return Header names
+     */
+    public List<String> getVaryHeaders() {
+        return varyHeaders;
+    }
+
+    /**
+     * Setter for transport headers that are part of the cache key.
+     * 
+     * @param varyHeaders
+     *            Header names
+     */
+    public void setVaryHeaders(List<String> varyHeaders) {
+        this.varyHeaders = varyHeaders;
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.capture;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * One callout recorded by {@link SlowCallCapture}. Payloads are truncated
+ * serializations of the request and response taken after the callout.
+ */
+public class CapturedCall {
+
+    public static final String REASON_SLOW = "slow";
+    public static final String REASON_SAMPLED = "sampled";
+
+    private final long timestamp;
+    private final String reason;
+    private final String endpoint;
+    private final long duration;
+    private final String fault;
+    private final String request;
+    private final String response;
+
+    /**
+     * Creates a new captured callout.
+     * 
+     * @param timestamp
+     *            Time the callout completed in milliseconds since epoch
+     * @param reason
+     *            Either "slow" or "sampled"
+     * @param endpoint
+     *            Address or description of the endpoint called
+     * @param duration
+     *            Duration of the callout in nanoseconds
+     * @param fault
+     *            Description of the fault or null if the callout succeeded
+     * @param request
+     *            Truncated request payload or null
+     * @param response
+     *            Truncated response payload or null
+     */
+    public CapturedCall(long timestamp, String reason, String endpoint, long duration, String fault, String request,
+            String response) {
+        this.timestamp = timestamp;
+        this.reason = reason;
+        this.endpoint = endpoint;
+        this.duration = duration;
+        this.fault = fault;
+        this.request = request;
+        this.response = response;
+    }
+
+    /**
+     * @return Time the callout completed in milliseconds since epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return Either "slow" or "sampled"
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * @return Address or description of the endpoint called
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return Duration of the callout in nanoseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return Description of the fault or null if the callout succeeded
+     */
+    public String getFault() {
+        return fault;
+    }
+
+    /**
+     * @return Truncated request payload or null
+     */
+    public String getRequest() {
+        return request;
+    }
+
+    /**
+     * @return Truncated response payload or null
+     */
+    public String getResponse() {
+        return response;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(timestamp)));
+        sb.append(" reason=").append(reason);
+        sb.append(" endpoint=").append(endpoint);
+        sb.append(" duration=").append(duration / 1000000.0).append("ms");
+        if (fault != null) {
+            sb.append(" fault=\"").append(fault).append('"');
+        }
+        sb.append(" request=").append(request);
+        sb.append(" response=").append(response);
+        return sb.toString();
+    }
+}
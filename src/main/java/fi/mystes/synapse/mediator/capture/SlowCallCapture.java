@@ -0,0 +1,299 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.capture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+
+/**
+ * Capture of slow and sampled callouts. A callout exceeding the latency
+ * threshold, or every n:th callout given by the sample rate, is recorded with
+ * its endpoint, duration, fault and truncated payloads into a fixed size ring
+ * buffer overwriting the oldest entries. Recording takes no locks, and
+ * payloads are serialized only for captured callouts and only up to the
+ * maximum payload size.
+ */
+public class SlowCallCapture {
+
+    private final SlowCallCaptureConfiguration configuration;
+    private final long thresholdNanos;
+    private final long sampleInterval;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicReferenceArray<CapturedCall> ring;
+
+    /**
+     * Creates a new capture.
+     * 
+     * @param configuration
+     *            Capture settings
+     */
+    public SlowCallCapture(SlowCallCaptureConfiguration configuration) {
+        this.configuration = configuration;
+        this.thresholdNanos = configuration.getThreshold() > 0 ? configuration.getThreshold() * 1000000L
+                : Long.MAX_VALUE;
+        this.sampleInterval = configuration.getSampleRate() > 0
+                ? Math.max(1, Math.round(1 / Math.min(1, configuration.getSampleRate()))) : 0;
+        this.ring = new AtomicReferenceArray<CapturedCall>(Math.max(1, configuration.getCapacity()));
+    }
+
+    /**
+     * Decides whether a completed callout is captured. Called for every
+     * callout, so does nothing but compare and count.
+     * 
+     * @param duration
+     *            Duration of the callout in nanoseconds
+     * @return Either "slow" or "sampled", or null if the callout is not
+     *         captured
+     */
+    public String getCaptureReason(long duration) {
+        long call = calls.incrementAndGet();
+        if (duration > thresholdNanos) {
+            return CapturedCall.REASON_SLOW;
+        }
+        if (sampleInterval > 0 && call % sampleInterval == 0) {
+            return CapturedCall.REASON_SAMPLED;
+        }
+        return null;
+    }
+
+    /**
+     * Records a callout chosen by {@link #getCaptureReason(long)}, serializing
+     * its payloads up to the maximum payload size.
+     * 
+     * @param reason
+     *            Either "slow" or "sampled"
+     * @param endpoint
+     *            Address or description of the endpoint called
+     * @param duration
+     *            Duration of the callout in nanoseconds
+     * @param request
+     *            Message sent, or null
+     * @param response
+     *            Message received, or null
+     * @param fault
+     *            Occurred error or null if the callout succeeded
+     */
+    public void capture(String reason, String endpoint, long duration, MessageContext request,
+            MessageContext response, Throwable fault) {
+        record(new CapturedCall(System.currentTimeMillis(), reason, endpoint, duration, describe(fault),
+                getPayload(request), getPayload(response)));
+    }
+
+    /**
+     * Stores given callout into the ring buffer, overwriting the oldest one
+     * when full.
+     * 
+     * @param call
+     *            Captured callout
+     */
+    public void record(CapturedCall call) {
+        long slot = sequence.getAndIncrement();
+        ring.set((int) (slot % ring.length()), call);
+    }
+
+    /**
+     * Returns the callouts in the ring buffer from oldest to newest.
+     * 
+     * @return Snapshot of captured callouts
+     */
+    public List<CapturedCall> getCalls() {
+        long last = sequence.get();
+        long first = Math.max(0, last - ring.length());
+        List<CapturedCall> result = new ArrayList<CapturedCall>((int) (last - first));
+        for (long slot = first; slot < last; slot++) {
+            CapturedCall call = ring.get((int) (slot % ring.length()));
+            if (call != null) {
+                result.add(call);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Number of callouts captured since creation, including
+     *         overwritten ones
+     */
+    public long getCaptured() {
+        return sequence.get();
+    }
+
+    /**
+     * @return Capture settings
+     */
+    public SlowCallCaptureConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Writes the captured callouts, one per line, from oldest to newest.
+     * 
+     * @param writer
+     *            Writer to write to
+     * @return Number of callouts written
+     * @throws IOException
+     *             If writing fails
+     */
+    public int dump(Writer writer) throws IOException {
+        List<CapturedCall> captured = getCalls();
+        for (CapturedCall call : captured) {
+            writer.write(call.toString());
+            writer.write('\n');
+        }
+        writer.flush();
+        return captured.size();
+    }
+
+    /**
+     * Writes the captured callouts into given file, replacing its content.
+     * 
+     * @param file
+     *            File to write to
+     * @return Number of callouts written
+     * @throws IOException
+     *             If writing fails
+     */
+    public int dump(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            return dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Helper method to serialize the payload of given message up to the
+     * maximum payload size.
+     * 
+     * @param synCtx
+     *            Message to serialize
+     * @return Truncated payload, ending with "..." if truncated, or null
+     */
+    private String getPayload(MessageContext synCtx) {
+        if (synCtx == null) {
+            return null;
+        }
+        BoundedOutputStream out = new BoundedOutputStream(configuration.getMaxPayloadSize());
+        try {
+            org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) synCtx)
+                    .getAxis2MessageContext();
+            if (JsonUtil.hasAJsonPayload(axis2Ctx)) {
+                JsonUtil.writeAsJson(axis2Ctx, out);
+            } else if (synCtx.getEnvelope() != null) {
+                synCtx.getEnvelope().serialize(out);
+            }
+        } catch (Exception e) {
+            // Serialization is aborted when the limit is reached
+            if (!out.isTruncated()) {
+                return "<unavailable: " + e.getMessage() + ">";
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Helper method to describe given fault.
+     * 
+     * @param fault
+     *            Occurred error or null
+     * @return Exception class and message of the fault or null
+     */
+    private static String describe(Throwable fault) {
+        return fault != null ? fault.getClass().getName() + ": " + fault.getMessage() : null;
+    }
+
+    /**
+     * Output stream keeping up to a limit of bytes and aborting the writer by
+     * throwing when the limit is exceeded.
+     */
+    static class BoundedOutputStream extends OutputStream {
+
+        private final byte[] buffer;
+        private int count = 0;
+        private boolean truncated = false;
+
+        BoundedOutputStream(int limit) {
+            buffer = new byte[Math.max(0, limit)];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                truncate();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int copied = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, copied);
+            count += copied;
+            if (copied < len) {
+                truncate();
+            }
+        }
+
+        private void truncate() throws IOException {
+            truncated = true;
+            throw new LimitReachedException();
+        }
+
+        boolean isTruncated() {
+            return truncated;
+        }
+
+        @Override
+        public String toString() {
+            try {
+                return new String(buffer, 0, count, "UTF-8") + (truncated ? "..." : "");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Thrown to stop serialization at the limit, without stack trace.
+     */
+    private static class LimitReachedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        LimitReachedException() {
+            super("Maximum payload size reached");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.capture;
+
+/**
+ * Settings of {@link SlowCallCapture}.
+ * 
+ * <pre>
+ * &lt;slowCallCapture [threshold="long"] [sampleRate="double"] [maxPayloadSize="int"] [capacity="int"]/&gt;
+ * </pre>
+ */
+public class SlowCallCaptureConfiguration {
+
+    public static final long DEFAULT_THRESHOLD = 1000;
+    public static final double DEFAULT_SAMPLE_RATE = 0;
+    public static final int DEFAULT_MAX_PAYLOAD_SIZE = 2048;
+    public static final int DEFAULT_CAPACITY = 100;
+
+    private long threshold = DEFAULT_THRESHOLD;
+    private double sampleRate = DEFAULT_SAMPLE_RATE;
+    private int maxPayloadSize = DEFAULT_MAX_PAYLOAD_SIZE;
+    private int capacity = DEFAULT_CAPACITY;
+
+    /**
+     * Getter for latency above which a callout is captured.
+     * 
+     * @return Threshold in milliseconds, 0 to capture only sampled callouts
+     */
+    public long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Setter for latency above which a callout is captured.
+     * 
+     * @param threshold
+     *            Threshold in milliseconds, 0 to capture only sampled callouts
+     */
+    public void setThreshold(long threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Getter for share of callouts captured regardless of their latency.
+     * 
+     * @return Rate between 0 and 1, 0 to capture only slow callouts
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Setter for share of callouts captured regardless of their latency.
+     * 
+     * @param sampleRate
+     *            Rate between 0 and 1, 0 to capture only slow callouts
+     */
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Getter for size request and response payloads are truncated to.
+     * 
+     * @return Maximum size in bytes
+     */
+    public int getMaxPayloadSize() {
+        return maxPayloadSize;
+    }
+
+    /**
+     * Setter for size request and response payloads are truncated to.
+     * 
+     * @param maxPayloadSize
+     *            Maximum size in bytes
+     */
+    public void setMaxPayloadSize(int maxPayloadSize) {
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    /**
+     * Getter for number of captured callouts kept, older ones are overwritten.
+     * 
+     * @return Capacity of the ring buffer
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Setter for number of captured callouts kept.
+     * 
+     * @param capacity
+     *            Capacity of the ring buffer
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+}
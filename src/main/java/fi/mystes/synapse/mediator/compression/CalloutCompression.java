@@ -0,0 +1,281 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.compression;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.axis2.context.MessageContext;
+import org.apache.axis2.transport.http.HTTPConstants;
+
+import fi.mystes.synapse.mediator.transport.BufferPool;
+import fi.mystes.synapse.mediator.transport.PooledByteArrayOutputStream;
+
+/**
+ * Compression of callout requests above a size threshold and decompression of
+ * compressed responses, with compression ratios and CPU time recorded per
+ * endpoint. Requests are compressed into pooled buffers and responses are
+ * decompressed while they are read.
+ */
+public class CalloutCompression {
+
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported();
+    private static final int BUFFER_SIZE = 8192;
+
+    private final CompressionConfiguration configuration;
+    private final ConcurrentMap<String, CompressionStatistics> statistics =
+            new ConcurrentHashMap<String, CompressionStatistics>();
+
+    /**
+     * Creates compression with given settings.
+     * 
+     * @param configuration
+     *            Compression settings
+     */
+    public CalloutCompression(CompressionConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * @return Compression settings
+     */
+    public CompressionConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @param size
+     *            Payload size in bytes
+     * @return True if payload of given size should be compressed
+     */
+    public boolean shouldCompress(long size) {
+        return size >= 0 && size >= configuration.getThreshold();
+    }
+
+    /**
+     * @return Value of Accept-Encoding header or null if compressed responses
+     *         are not asked for
+     */
+    public String getAcceptEncoding() {
+        return configuration.isAcceptEncoding() ? ACCEPT_ENCODING : null;
+    }
+
+    /**
+     * Compresses given request body with the configured algorithm and level.
+     * 
+     * @param endpoint
+     *            Address of the endpoint the request is sent to
+     * @param body
+     *            Array containing the body
+     * @param length
+     *            Number of bytes to compress from the start of the array
+     * @return Pooled compressed body, to be released after sending
+     * @throws IOException
+     *             If compressing fails
+     */
+    public PooledByteArrayOutputStream compress(String endpoint, byte[] body, int length) throws IOException {
+        long start = getCpuTime();
+        PooledByteArrayOutputStream compressed = new PooledByteArrayOutputStream(BufferPool.getDefault(),
+                Math.max(256, length / 4));
+        final int level = configuration.getLevel();
+        Deflater deflater = null;
+        boolean done = false;
+        try {
+            DeflaterOutputStream out;
+            if (CompressionConfiguration.ALGORITHM_GZIP.equals(configuration.getAlgorithm())) {
+                out = new GZIPOutputStream(compressed, BUFFER_SIZE) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            } else {
+                deflater = new Deflater(level);
+                out = new DeflaterOutputStream(compressed, deflater, BUFFER_SIZE);
+            }
+            out.write(body, 0, length);
+            out.close();
+            done = true;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            if (!done) {
+                compressed.release();
+            }
+        }
+        getStatistics(endpoint).recordRequest(length, compressed.size(), getCpuTime() - start);
+        return compressed;
+    }
+
+    /**
+     * Lets the Axis2 HTTP transport gzip given request and accept gzipped
+     * responses. The payload size is not known before Axis2 serializes it, and
+     * measuring it would serialize it twice, so the threshold is not applied
+     * and every request is compressed. Axis2 transport supports only gzip and
+     * does not report compressed sizes, so only compressed requests are
+     * counted.
+     * 
+     * @param axis2Ctx
+     *            Message to be sent
+     * @param endpoint
+     *            Address of the endpoint the request is sent to
+     */
+    public void applyToAxis2Transport(MessageContext axis2Ctx, String endpoint) {
+        if (getAcceptEncoding() != null) {
+            axis2Ctx.setProperty(HTTPConstants.MC_ACCEPT_GZIP, Boolean.TRUE);
+        }
+        axis2Ctx.setProperty(HTTPConstants.MC_GZIP_REQUEST, Boolean.TRUE);
+        recordTransportCompressedRequest(endpoint);
+    }
+
+    /**
+     * Records a request compressed by the transport, whose sizes and CPU time
+     * are not known.
+     * 
+     * @param endpoint
+     *            Address of the endpoint the request is sent to
+     */
+    public void recordTransportCompressedRequest(String endpoint) {
+        getStatistics(endpoint).recordRequest(-1, -1, -1);
+    }
+
+    /**
+     * Records a decompressed response.
+     * 
+     * @param endpoint
+     *            Address of the endpoint the response came from
+     * @param compressedSize
+     *            Received size in bytes
+     * @param size
+     *            Decompressed size in bytes
+     * @param cpuNanos
+     *            CPU time spent decompressing and reading the payload
+     */
+    public void recordResponse(String endpoint, long compressedSize, long size, long cpuNanos) {
+        getStatistics(endpoint).recordResponse(compressedSize, size, cpuNanos);
+    }
+
+    /**
+     * Wraps given response body into a stream decompressing it while read.
+     * 
+     * @param in
+     *            Response body
+     * @param contentEncoding
+     *            Value of Content-Encoding header or null
+     * @return Decompressing stream, or given stream if body is not encoded
+     * @throws IOException
+     *             If encoding is not supported or gzip header is invalid
+     */
+    public static InputStream decompress(InputStream in, String contentEncoding) throws IOException {
+        String encoding = contentEncoding != null ? contentEncoding.trim().toLowerCase() : "identity";
+        if (encoding.length() == 0 || "identity".equals(encoding)) {
+            return in;
+        }
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        if ("deflate".equals(encoding)) {
+            // Some servers send raw deflate instead of zlib format
+            BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+            buffered.mark(2);
+            int cmf = buffered.read();
+            int flg = buffered.read();
+            buffered.reset();
+            boolean zlib = cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            return new InflaterInputStream(buffered, new Inflater(!zlib), BUFFER_SIZE);
+        }
+        throw new IOException("Unsupported Content-Encoding : " + contentEncoding);
+    }
+
+    /**
+     * Decompresses given response body into a heap array.
+     * 
+     * @param in
+     *            Response body
+     * @param contentEncoding
+     *            Value of Content-Encoding header or null
+     * @param maxSize
+     *            Maximum decompressed size in bytes
+     * @return Decompressed body
+     * @throws IOException
+     *             If decompressing fails or decompressed body exceeds the
+     *             maximum size
+     */
+    public static byte[] decompress(InputStream in, String contentEncoding, int maxSize) throws IOException {
+        InputStream decompressed = decompress(in, contentEncoding);
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream();
+        try {
+            while (out.readFrom(decompressed, BUFFER_SIZE) >= 0) {
+                if (out.size() > maxSize) {
+                    throw new IOException("Decompressed response exceeds " + maxSize + " bytes");
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * @return CPU time of the current thread in nanoseconds, or wall clock
+     *         time if CPU time is not supported
+     */
+    public static long getCpuTime() {
+        return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Helper method to get or create statistics of given endpoint.
+     */
+    private CompressionStatistics getStatistics(String endpoint) {
+        String key = endpoint != null ? endpoint : "unknown";
+        CompressionStatistics endpointStatistics = statistics.get(key);
+        if (endpointStatistics == null) {
+            CompressionStatistics created = new CompressionStatistics(key);
+            endpointStatistics = statistics.putIfAbsent(key, created);
+            if (endpointStatistics == null) {
+                endpointStatistics = created;
+            }
+        }
+        return endpointStatistics;
+    }
+
+    /**
+     * @return Statistics of each endpoint ordered by address
+     */
+    public List<CompressionStatistics> getStatistics() {
+        Map<String, CompressionStatistics> sorted = new TreeMap<String, CompressionStatistics>(statistics);
+        return new ArrayList<CompressionStatistics>(sorted.values());
+    }
+}
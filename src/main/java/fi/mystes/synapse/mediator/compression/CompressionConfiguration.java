@@ -0,0 +1,139 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.compression;
+
+/**
+ * Settings of {@link CalloutCompression}.
+ * 
+ * <pre>
+ * &lt;compression [algorithm="gzip|deflate"] [threshold="int"] [level="int"] [acceptEncoding="boolean"]
+ *              [maxResponseSize="int"]/&gt;
+ * </pre>
+ */
+public class CompressionConfiguration {
+
+    public static final String ALGORITHM_GZIP = "gzip";
+    public static final String ALGORITHM_DEFLATE = "deflate";
+
+    public static final String DEFAULT_ALGORITHM = ALGORITHM_GZIP;
+    public static final int DEFAULT_THRESHOLD = 1024;
+    public static final int DEFAULT_LEVEL = 6;
+    public static final boolean DEFAULT_ACCEPT_ENCODING = true;
+    public static final int DEFAULT_MAX_RESPONSE_SIZE = 64 * 1024 * 1024;
+
+    private String algorithm = DEFAULT_ALGORITHM;
+    private int threshold = DEFAULT_THRESHOLD;
+    private int level = DEFAULT_LEVEL;
+    private boolean acceptEncoding = DEFAULT_ACCEPT_ENCODING;
+    private int maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+
+    /**
+     * Getter for algorithm of compressed requests.
+     * 
+     * @return Either "gzip" or "deflate"
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Setter for algorithm of compressed requests.
+     * 
+     * @param algorithm
+     *            Either "gzip" or "deflate"
+     */
+    public void setAlgorithm(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Getter for payload size from which requests are compressed. Applied
+     * with the lightweight HTTP transport only, Axis2 transport compresses
+     * every request.
+     * 
+     * @return Threshold in bytes, 0 to compress every request
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Setter for payload size from which requests are compressed.
+     * 
+     * @param threshold
+     *            Threshold in bytes, 0 to compress every request
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Getter for compression level.
+     * 
+     * @return Level from 1 (fastest) to 9 (smallest)
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Setter for compression level.
+     * 
+     * @param level
+     *            Level from 1 (fastest) to 9 (smallest)
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Getter for whether compressed responses are asked for.
+     * 
+     * @return True if Accept-Encoding is sent
+     */
+    public boolean isAcceptEncoding() {
+        return acceptEncoding;
+    }
+
+    /**
+     * Setter for whether compressed responses are asked for.
+     * 
+     * @param acceptEncoding
+     *            True to send Accept-Encoding with gzip and deflate
+     */
+    public void setAcceptEncoding(boolean acceptEncoding) {
+        this.acceptEncoding = acceptEncoding;
+    }
+
+    /**
+     * Getter for maximum decompressed size of a response.
+     * 
+     * @return Maximum size in bytes
+     */
+    public int getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * Setter for maximum decompressed size of a response.
+     * 
+     * @param maxResponseSize
+     *            Maximum size in bytes
+     */
+    public void setMaxResponseSize(int maxResponseSize) {
+        this.maxResponseSize = maxResponseSize;
+    }
+}
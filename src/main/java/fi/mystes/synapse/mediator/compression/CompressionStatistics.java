@@ -0,0 +1,157 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.compression;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compression statistics of one endpoint.
+ */
+public class CompressionStatistics {
+
+    private final String endpoint;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong compressedRequestBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong compressedResponseBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    /**
+     * Creates statistics of given endpoint.
+     * 
+     * @param endpoint
+     *            Address of the endpoint
+     */
+    public CompressionStatistics(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Records a compressed request.
+     * 
+     * @param size
+     *            Payload size in bytes
+     * @param compressedSize
+     *            Compressed size in bytes, -1 if compressed by the transport
+     * @param cpuNanos
+     *            CPU time spent compressing, -1 if not measured
+     */
+    void recordRequest(long size, long compressedSize, long cpuNanos) {
+        requests.incrementAndGet();
+        if (compressedSize >= 0) {
+            requestBytes.addAndGet(size);
+            compressedRequestBytes.addAndGet(compressedSize);
+        }
+        if (cpuNanos > 0) {
+            compressNanos.addAndGet(cpuNanos);
+        }
+    }
+
+    /**
+     * Records a decompressed response.
+     * 
+     * @param compressedSize
+     *            Received size in bytes
+     * @param size
+     *            Decompressed payload size in bytes
+     * @param cpuNanos
+     *            CPU time spent decompressing and reading the payload
+     */
+    void recordResponse(long compressedSize, long size, long cpuNanos) {
+        responses.incrementAndGet();
+        compressedResponseBytes.addAndGet(compressedSize);
+        responseBytes.addAndGet(size);
+        if (cpuNanos > 0) {
+            decompressNanos.addAndGet(cpuNanos);
+        }
+    }
+
+    /**
+     * @return Address of the endpoint
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return Number of compressed requests
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return Compressed size of measured requests divided by their payload
+     *         size, 1 if nothing is measured
+     */
+    public double getRequestRatio() {
+        return ratio(compressedRequestBytes.get(), requestBytes.get());
+    }
+
+    /**
+     * @return CPU time spent compressing requests in nanoseconds
+     */
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    /**
+     * @return Number of decompressed responses
+     */
+    public long getResponses() {
+        return responses.get();
+    }
+
+    /**
+     * @return Received size of compressed responses divided by their payload
+     *         size, 1 if nothing is measured
+     */
+    public double getResponseRatio() {
+        return ratio(compressedResponseBytes.get(), responseBytes.get());
+    }
+
+    /**
+     * @return CPU time spent decompressing responses in nanoseconds
+     */
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    /**
+     * @return Bytes not sent or received thanks to compression
+     */
+    public long getSavedBytes() {
+        return requestBytes.get() - compressedRequestBytes.get() + responseBytes.get()
+                - compressedResponseBytes.get();
+    }
+
+    private static double ratio(long compressed, long size) {
+        return size > 0 ? (double) compressed / size : 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "%s requests=%d requestRatio=%.3f compressCpu=%.1fms responses=%d responseRatio=%.3f"
+                        + " decompressCpu=%.1fms savedBytes=%d", endpoint, getRequests(), getRequestRatio(),
+                getCompressNanos() / 1000000.0, getResponses(), getResponseRatio(),
+                getDecompressNanos() / 1000000.0, getSavedBytes());
+    }
+}
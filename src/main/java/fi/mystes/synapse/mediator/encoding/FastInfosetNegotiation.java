@@ -0,0 +1,330 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.encoding;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.Constants;
+import org.apache.axis2.builder.Builder;
+import org.apache.axis2.engine.AxisConfiguration;
+import org.apache.axis2.transport.MessageFormatter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseConstants;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.endpoints.Endpoint;
+import org.apache.synapse.message.senders.blocking.BlockingMsgSender;
+
+/**
+ * Negotiation of Fast Infoset encoding with a callout endpoint. Requests are
+ * sent as binary XML and Fast Infoset responses are accepted next to text
+ * XML. When an endpoint rejects the encoding with HTTP 415 Unsupported Media
+ * Type, callouts to that endpoint fall back to text XML until the retry
+ * interval has elapsed. The fallback is shared by all mediators calling the
+ * endpoint. Other errors and SOAP faults are never taken as a rejection, so a
+ * request the endpoint may have processed is not sent again. The interval is read from system
+ * property fi.mystes.customCallout.fastInfosetRetryInterval in milliseconds.
+ * Encoding is done by the message builders and formatters of the Axis2
+ * fastinfoset module, which are registered to the client stack when found in
+ * the class path.
+ */
+public class FastInfosetNegotiation {
+
+    private static final Log log = LogFactory.getLog(FastInfosetNegotiation.class);
+
+    public static final String CONTENT_TYPE_SOAP = "application/soap+fastinfoset";
+    public static final String CONTENT_TYPE_POX = "application/fastinfoset";
+
+    public static final String RETRY_INTERVAL_PROPERTY = "fi.mystes.customCallout.fastInfosetRetryInterval";
+
+    public static final long DEFAULT_RETRY_INTERVAL = 300000;
+
+    private static final String ACCEPT = CONTENT_TYPE_SOAP + ", " + CONTENT_TYPE_POX
+            + ", text/xml;q=0.9, application/soap+xml;q=0.9, application/xml;q=0.9";
+
+    private static final String[][] HANDLERS = {
+            { CONTENT_TYPE_SOAP, "org.apache.axis2.fastinfoset.FastInfosetBuilder",
+                    "org.apache.axis2.fastinfoset.FastInfosetMessageFormatter" },
+            { CONTENT_TYPE_POX, "org.apache.axis2.fastinfoset.FastInfosetPOXBuilder",
+                    "org.apache.axis2.fastinfoset.FastInfosetPOXMessageFormatter" } };
+
+    /**
+     * Message of the fault the Axis2 HTTP sender raises on status 415 before
+     * reading any response body.
+     */
+    private static final Pattern REJECTED = Pattern.compile("^Transport error: 415\\b");
+
+    private static final Map<String, Long> fallbackUntil = new ConcurrentHashMap<String, Long>();
+
+    private final long retryInterval;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * Creates a new negotiation with the retry interval of the system
+     * property.
+     */
+    public FastInfosetNegotiation() {
+        this(Long.getLong(RETRY_INTERVAL_PROPERTY, DEFAULT_RETRY_INTERVAL));
+    }
+
+    /**
+     * Creates a new negotiation.
+     * 
+     * @param retryInterval
+     *            Time in milliseconds text XML is used after the endpoint
+     *            rejected Fast Infoset
+     */
+    public FastInfosetNegotiation(long retryInterval) {
+        this.retryInterval = Math.max(0, retryInterval);
+    }
+
+    /**
+     * Registers Fast Infoset message builders and formatters of the Axis2
+     * fastinfoset module to given configuration unless already configured,
+     * e.g. in axis2.xml.
+     * 
+     * @param axisConfig
+     *            Configuration of the client stack
+     * @return True if Fast Infoset can be sent and received
+     */
+    public static boolean register(AxisConfiguration axisConfig) {
+        if (axisConfig == null) {
+            return false;
+        }
+        try {
+            for (String[] handler : HANDLERS) {
+                if (axisConfig.getMessageBuilder(handler[0]) == null) {
+                    axisConfig.addMessageBuilder(handler[0], (Builder) newInstance(handler[1]));
+                }
+                if (axisConfig.getMessageFormatter(handler[0]) == null) {
+                    axisConfig.addMessageFormatter(handler[0], (MessageFormatter) newInstance(handler[2]));
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        } catch (LinkageError e) {
+            // Fast Infoset library itself is missing
+            return false;
+        }
+    }
+
+    /**
+     * Helper method to instantiate given class with the class loader of Axis2.
+     */
+    private static Object newInstance(String className) throws Exception {
+        return Class.forName(className, true, AxisConfiguration.class.getClassLoader()).newInstance();
+    }
+
+    /**
+     * @param endpoint
+     *            Address or name of the endpoint
+     * @param now
+     *            Current time in milliseconds
+     * @return True if Fast Infoset should be used, false during fallback
+     */
+    public boolean isActive(String endpoint, long now) {
+        Long until = fallbackUntil.get(String.valueOf(endpoint));
+        if (until == null) {
+            return true;
+        }
+        if (now >= until.longValue()) {
+            fallbackUntil.remove(String.valueOf(endpoint));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets given outgoing message to be sent as Fast Infoset and to accept a
+     * Fast Infoset response.
+     * 
+     * @param axis2Ctx
+     *            Outgoing message
+     */
+    public void apply(org.apache.axis2.context.MessageContext axis2Ctx) {
+        String contentType = axis2Ctx.isDoingREST() ? CONTENT_TYPE_POX : CONTENT_TYPE_SOAP;
+        axis2Ctx.setProperty(Constants.Configuration.MESSAGE_TYPE, contentType);
+        axis2Ctx.setProperty(Constants.Configuration.CONTENT_TYPE, contentType);
+
+        Map<String, Object> headers = new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER);
+        Object current = axis2Ctx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+        if (current instanceof Map) {
+            for (Map.Entry<?, ?> header : ((Map<?, ?>) current).entrySet()) {
+                headers.put(String.valueOf(header.getKey()), header.getValue());
+            }
+        }
+        headers.put("Accept", ACCEPT);
+        axis2Ctx.setProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS, headers);
+        requests.incrementAndGet();
+    }
+
+    /**
+     * Sends given message with given sender as Fast Infoset unless the
+     * endpoint is falling back to text XML. If the endpoint rejects Fast
+     * Infoset, the message is sent again as text XML and the endpoint falls
+     * back for the retry interval.
+     * 
+     * @param sender
+     *            Blocking message sender
+     * @param target
+     *            Endpoint the message is sent to
+     * @param synapseOutMsgCtx
+     *            Message to be sent
+     * @param endpoint
+     *            Address or name of the endpoint
+     * @return Response message context
+     * @throws Exception
+     *             If sending fails
+     */
+    public MessageContext send(BlockingMsgSender sender, Endpoint target, MessageContext synapseOutMsgCtx,
+            String endpoint) throws Exception {
+        if (!isActive(endpoint, System.currentTimeMillis())) {
+            return sender.send(target, synapseOutMsgCtx);
+        }
+        org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) synapseOutMsgCtx)
+                .getAxis2MessageContext();
+        Object messageType = axis2Ctx.getProperty(Constants.Configuration.MESSAGE_TYPE);
+        Object contentType = axis2Ctx.getProperty(Constants.Configuration.CONTENT_TYPE);
+        Object headers = axis2Ctx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+        apply(axis2Ctx);
+        try {
+            MessageContext resultMsgCtx = sender.send(target, synapseOutMsgCtx);
+            if (!isRejected(synapseOutMsgCtx, resultMsgCtx)) {
+                return resultMsgCtx;
+            }
+        } catch (AxisFault e) {
+            if (!isRejected(e)) {
+                throw e;
+            }
+        }
+
+        fallback(endpoint, System.currentTimeMillis());
+        log.warn("Endpoint " + endpoint + " does not accept Fast Infoset, CustomCallout falls back to text XML");
+        restoreProperty(axis2Ctx, Constants.Configuration.MESSAGE_TYPE, messageType);
+        restoreProperty(axis2Ctx, Constants.Configuration.CONTENT_TYPE, contentType);
+        restoreProperty(axis2Ctx, org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS, headers);
+        synapseOutMsgCtx.getPropertyKeySet().remove(SynapseConstants.BLOCKING_SENDER_ERROR);
+        synapseOutMsgCtx.getPropertyKeySet().remove(SynapseConstants.ERROR_EXCEPTION);
+        return sender.send(target, synapseOutMsgCtx);
+    }
+
+    /**
+     * Helper method to set given property back to its previous value.
+     * 
+     * @param axis2Ctx
+     *            Message context to set the property to
+     * @param name
+     *            Name of the property
+     * @param value
+     *            Previous value or null if the property was not set
+     */
+    private static void restoreProperty(org.apache.axis2.context.MessageContext axis2Ctx, String name,
+            Object value) {
+        if (value != null) {
+            axis2Ctx.setProperty(name, value);
+        } else {
+            axis2Ctx.removeProperty(name);
+        }
+    }
+
+    /**
+     * Switches given endpoint to text XML for the retry interval.
+     * 
+     * @param endpoint
+     *            Address or name of the endpoint
+     * @param now
+     *            Current time in milliseconds
+     */
+    public void fallback(String endpoint, long now) {
+        fallbackUntil.put(String.valueOf(endpoint), Long.valueOf(now + retryInterval));
+        fallbacks.incrementAndGet();
+    }
+
+    /**
+     * Checks whether given error tells that the endpoint does not accept
+     * Fast Infoset, i.e. the transport failed on HTTP 415 Unsupported Media
+     * Type. Other errors may have been raised after the endpoint accepted the
+     * request.
+     * 
+     * @param t
+     *            Error of the callout or null
+     * @return True if Fast Infoset was rejected
+     */
+    public static boolean isRejected(Throwable t) {
+        Throwable cause = t;
+        for (int depth = 0; cause != null && depth < 10; depth++) {
+            if (cause.getMessage() != null && REJECTED.matcher(cause.getMessage().trim()).find()) {
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether given response tells that the endpoint does not accept
+     * Fast Infoset. A response with a SOAP fault body is never a rejection,
+     * since the fault may come from processing the request.
+     * 
+     * @param request
+     *            Message sent
+     * @param response
+     *            Message received or null
+     * @return True if Fast Infoset was rejected
+     */
+    public static boolean isRejected(MessageContext request, MessageContext response) {
+        if (response == null || response.getEnvelope() != null && response.getEnvelope().hasFault()) {
+            return false;
+        }
+        Object status = ((Axis2MessageContext) response).getAxis2MessageContext().getProperty(
+                SynapseConstants.HTTP_SC);
+        if (status != null && "415".equals(status.toString())) {
+            return true;
+        }
+        if ("true".equals(response.getProperty(SynapseConstants.BLOCKING_SENDER_ERROR))) {
+            Object error = response.getProperty(SynapseConstants.ERROR_EXCEPTION);
+            if (error == null) {
+                error = request.getProperty(SynapseConstants.ERROR_EXCEPTION);
+            }
+            return error instanceof Throwable && isRejected((Throwable) error);
+        }
+        return false;
+    }
+
+    /**
+     * @return Number of requests sent as Fast Infoset
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return Number of times the endpoint rejected Fast Infoset
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+}
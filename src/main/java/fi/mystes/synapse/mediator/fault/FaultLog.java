@@ -0,0 +1,144 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.fault;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * Rate limited log of callout faults. At most one fault per interval is logged
+ * as a single structured line, the rest are counted and the count is reported
+ * with the next logged fault. Stack trace is logged only on debug level. The
+ * interval is read from system property
+ * fi.mystes.customCallout.faultLogInterval in milliseconds, 0 logs every fault.
+ */
+public class FaultLog {
+
+    public static final String INTERVAL_PROPERTY = "fi.mystes.customCallout.faultLogInterval";
+
+    public static final long DEFAULT_INTERVAL = 5000;
+
+    private final Log log;
+
+    private final long interval;
+
+    private final AtomicLong nextLogTime = new AtomicLong();
+
+    private final AtomicLong suppressed = new AtomicLong();
+
+    private final AtomicLong faults = new AtomicLong();
+
+    /**
+     * Creates a new fault log with the interval of the system property.
+     * 
+     * @param log
+     *            Log to write the faults to
+     */
+    public FaultLog(Log log) {
+        this(log, Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL));
+    }
+
+    /**
+     * Creates a new fault log.
+     * 
+     * @param log
+     *            Log to write the faults to
+     * @param interval
+     *            Minimum time between logged faults in milliseconds
+     */
+    public FaultLog(Log log, long interval) {
+        this.log = log;
+        this.interval = Math.max(0, interval);
+    }
+
+    /**
+     * Logs given fault unless another fault was logged within the interval.
+     * 
+     * @param endpoint
+     *            Address or description of the endpoint called
+     * @param t
+     *            Occurred error
+     * @return True if the fault was logged, false if it was only counted
+     */
+    public boolean log(String endpoint, Throwable t) {
+        return log(endpoint, t, System.currentTimeMillis());
+    }
+
+    /**
+     * Logs given fault unless another fault was logged within the interval.
+     * 
+     * @param endpoint
+     *            Address or description of the endpoint called
+     * @param t
+     *            Occurred error
+     * @param now
+     *            Current time in milliseconds
+     * @return True if the fault was logged, false if it was only counted
+     */
+    boolean log(String endpoint, Throwable t, long now) {
+        faults.incrementAndGet();
+        long next = nextLogTime.get();
+        if (now < next || !nextLogTime.compareAndSet(next, now + interval)) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+        String message = format(endpoint, t, suppressed.getAndSet(0));
+        if (log.isDebugEnabled()) {
+            log.debug(message, t);
+        } else {
+            log.warn(message);
+        }
+        return true;
+    }
+
+    /**
+     * Formats a structured log line of given fault.
+     * 
+     * @param endpoint
+     *            Address or description of the endpoint called
+     * @param t
+     *            Occurred error
+     * @param suppressedFaults
+     *            Faults not logged since the previous logged one
+     * @return Log line
+     */
+    private static String format(String endpoint, Throwable t, long suppressedFaults) {
+        Throwable cause = t;
+        while (cause.getCause() != null && cause.getCause() != cause) {
+            cause = cause.getCause();
+        }
+        StringBuilder sb = new StringBuilder("CustomCallout fault endpoint=").append(endpoint);
+        sb.append(" exception=").append(cause.getClass().getName());
+        sb.append(" message=\"").append(cause.getMessage()).append('"');
+        sb.append(" suppressed=").append(suppressedFaults);
+        return sb.toString();
+    }
+
+    /**
+     * @return Number of faults, logged or not
+     */
+    public long getFaults() {
+        return faults.get();
+    }
+
+    /**
+     * @return Number of faults not logged since the previous logged one
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.fault;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import org.apache.axiom.soap.SOAPFault;
+import org.apache.axis2.AxisFault;
+
+/**
+ * Axis2 fault without stack trace. Filling in the stack of a deep mediation
+ * flow costs far more than the fault itself, and for known transport failures
+ * the stack tells nothing the message does not. Instances created from a
+ * message carry no cause and are not modified after creation, so they can be
+ * preallocated and thrown repeatedly.
+ */
+public class StacklessAxisFault extends AxisFault {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new fault with given message.
+     * 
+     * @param message
+     *            Fault message
+     */
+    public StacklessAxisFault(String message) {
+        super(message);
+    }
+
+    /**
+     * Creates a new fault of given SOAP fault received from the service.
+     * 
+     * @param fault
+     *            SOAP fault of the response
+     */
+    public StacklessAxisFault(SOAPFault fault) {
+        super(fault);
+    }
+
+    /**
+     * Leaves the stack trace empty.
+     * 
+     * @return This fault
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+    /**
+     * Replaces given exception with a stackless fault when it is, or is caused
+     * by, a known transport failure: refused or unroutable connection, unknown
+     * host or timeout. SOAP faults and other exceptions are returned as such.
+     * 
+     * @param ex
+     *            Occurred exception
+     * @return Stackless fault carrying the message of given exception or given
+     *         exception
+     */
+    public static Exception ofTransportFailure(Exception ex) {
+        if (ex instanceof StacklessAxisFault
+                || (ex instanceof AxisFault && ((AxisFault) ex).getFaultCodeElement() != null)) {
+            return ex;
+        }
+        for (Throwable t = ex; t != null; t = t.getCause()) {
+            if (isTransportFailure(t)) {
+                return new StacklessAxisFault(ex.getMessage() != null ? ex.getMessage() : t.toString());
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return ex;
+    }
+
+    /**
+     * Checks whether given error is a known transport failure.
+     * 
+     * @param t
+     *            Error to check
+     * @return True if the error is a connection, host lookup or timeout failure
+     */
+    private static boolean isTransportFailure(Throwable t) {
+        return t instanceof ConnectException || t instanceof NoRouteToHostException
+                || t instanceof UnknownHostException || t instanceof SocketTimeoutException;
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.fault;
+
+import org.apache.synapse.SynapseException;
+
+/**
+ * Synapse exception without stack trace, thrown in place of
+ * {@link SynapseException} when the callout fails and the mediator is in
+ * stackless fault mode. The cause is kept so fault sequences see the original
+ * error.
+ */
+public class StacklessSynapseException extends SynapseException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new exception with given message and cause.
+     * 
+     * @param message
+     *            Exception message
+     * @param cause
+     *            Original error
+     */
+    public StacklessSynapseException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * Leaves the stack trace empty.
+     * 
+     * @return This exception
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.health;
+
+/**
+ * Settings of active health checks of callout endpoints.
+ * 
+ * <pre>
+ * &lt;healthCheck [interval="long"] [timeout="long"] [method="string"] [path="string"]
+ *              [healthyThreshold="int"] [unhealthyThreshold="int"]/&gt;
+ * </pre>
+ */
+public class HealthCheckConfiguration {
+
+    public static final long DEFAULT_INTERVAL = 10000;
+    public static final long DEFAULT_TIMEOUT = 2000;
+    public static final String DEFAULT_METHOD = "GET";
+    public static final int DEFAULT_HEALTHY_THRESHOLD = 2;
+    public static final int DEFAULT_UNHEALTHY_THRESHOLD = 3;
+
+    private long interval = DEFAULT_INTERVAL;
+    private long timeout = DEFAULT_TIMEOUT;
+    private String method = DEFAULT_METHOD;
+    private String path = null;
+    private int healthyThreshold = DEFAULT_HEALTHY_THRESHOLD;
+    private int unhealthyThreshold = DEFAULT_UNHEALTHY_THRESHOLD;
+
+    /**
+     * Getter for time between probes.
+     * 
+     * @return Interval in milliseconds
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Setter for time between probes.
+     * 
+     * @param interval
+     *            Interval in milliseconds
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Getter for connect and read timeout of a probe.
+     * 
+     * @return Timeout in milliseconds
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Setter for connect and read timeout of a probe.
+     * 
+     * @param timeout
+     *            Timeout in milliseconds
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Getter for HTTP method of the probe request.
+     * 
+     * @return HTTP method
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Setter for HTTP method of the probe request, e.g. GET, HEAD or OPTIONS.
+     * 
+     * @param method
+     *            HTTP method
+     */
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    /**
+     * Getter for path of the probe request.
+     * 
+     * @return Path or URL resolved against the endpoint address, null to probe
+     *         the address itself
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Setter for path of the probe request, e.g. /health.
+     * 
+     * @param path
+     *            Path or URL resolved against the endpoint address
+     */
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Getter for successful probes in a row marking an endpoint healthy.
+     * 
+     * @return Healthy threshold
+     */
+    public int getHealthyThreshold() {
+        return healthyThreshold;
+    }
+
+    /**
+     * Setter for successful probes in a row marking an endpoint healthy.
+     * 
+     * @param healthyThreshold
+     *            Healthy threshold
+     */
+    public void setHealthyThreshold(int healthyThreshold) {
+        this.healthyThreshold = healthyThreshold;
+    }
+
+    /**
+     * Getter for failed probes in a row marking an endpoint unhealthy.
+     * 
+     * @return Unhealthy threshold
+     */
+    public int getUnhealthyThreshold() {
+        return unhealthyThreshold;
+    }
+
+    /**
+     * Setter for failed probes in a row marking an endpoint unhealthy.
+     * 
+     * @param unhealthyThreshold
+     *            Unhealthy threshold
+     */
+    public void setUnhealthyThreshold(int unhealthyThreshold) {
+        this.unhealthyThreshold = unhealthyThreshold;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.health;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of health probes shared by all mediators targeting the same
+ * address. A probe is reference counted, scheduled on a small shared
+ * scheduler when first acquired and cancelled when the last mediator releases
+ * it. The settings of the first mediator acquiring an address are used.
+ */
+public class HealthCheckRegistry {
+
+    public static final int SCHEDULER_THREADS = 2;
+
+    private static final Map<String, HealthProbe> probes = new HashMap<String, HealthProbe>();
+
+    private HealthCheckRegistry() {
+    }
+
+    /**
+     * Takes a reference to the probe of given address, scheduling a new probe
+     * if none exists.
+     * 
+     * @param address
+     *            HTTP or HTTPS address of the endpoint
+     * @param configuration
+     *            Settings used if the probe is created
+     * @return Referenced probe
+     */
+    public static synchronized HealthProbe acquire(String address, HealthCheckConfiguration configuration) {
+        HealthProbe probe = probes.get(address);
+        if (probe == null) {
+            probe = new HealthProbe(address, configuration);
+            long interval = Math.max(1, configuration.getInterval());
+            probe.scheduled = SchedulerHolder.EXECUTOR.scheduleWithFixedDelay(probe, 0, interval,
+                    TimeUnit.MILLISECONDS);
+            probes.put(address, probe);
+        }
+        probe.references++;
+        return probe;
+    }
+
+    /**
+     * Releases a reference to given probe, cancelling it when unreferenced.
+     * 
+     * @param probe
+     *            Probe returned by {@link #acquire(String, HealthCheckConfiguration)}
+     */
+    public static synchronized void release(HealthProbe probe) {
+        if (--probe.references > 0) {
+            return;
+        }
+        probe.scheduled.cancel(false);
+        if (probes.get(probe.getAddress()) == probe) {
+            probes.remove(probe.getAddress());
+        }
+    }
+
+    /**
+     * Lazy holder of the threads running the probes.
+     */
+    private static class SchedulerHolder {
+
+        static final ScheduledExecutorService EXECUTOR = Executors.newScheduledThreadPool(SCHEDULER_THREADS,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "CustomCalloutHealthCheck");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.health;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Health state of one endpoint address, updated by periodic probe requests.
+ * An endpoint is healthy until the unhealthy threshold of probes in a row
+ * fail, i.e. do not connect, time out or respond with an error status, and
+ * becomes healthy again after the healthy threshold of successful probes in a
+ * row. Probes are shared by all mediators targeting the same address, see
+ * {@link HealthCheckRegistry}.
+ */
+public class HealthProbe implements Runnable {
+
+    private static final Log log = LogFactory.getLog(HealthProbe.class);
+
+    private final String address;
+    private final HealthCheckConfiguration configuration;
+    private volatile boolean healthy = true;
+    private int successesInRow = 0;
+    private int failuresInRow = 0;
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicLong failedProbes = new AtomicLong();
+
+    int references = 0;
+    ScheduledFuture<?> scheduled;
+
+    /**
+     * Constructor for probe of given address.
+     * 
+     * @param address
+     *            HTTP or HTTPS address of the endpoint
+     * @param configuration
+     *            Probe request, interval and thresholds
+     */
+    HealthProbe(String address, HealthCheckConfiguration configuration) {
+        this.address = address;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Sends one probe request and updates the health state.
+     */
+    @Override
+    public void run() {
+        record(probe());
+    }
+
+    /**
+     * Helper method to send the probe request.
+     * 
+     * @return True if the endpoint responded with a success or redirect status
+     */
+    boolean probe() {
+        HttpURLConnection connection = null;
+        try {
+            URL base = new URL(address);
+            URL url = configuration.getPath() != null ? new URL(base, configuration.getPath()) : base;
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod(configuration.getMethod());
+            connection.setConnectTimeout((int) configuration.getTimeout());
+            connection.setReadTimeout((int) configuration.getTimeout());
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+            int status = connection.getResponseCode();
+            drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            return status > 0 && status < 400;
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Health probe of " + address + " failed : " + e.getMessage());
+            }
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Helper method to read and close given response stream so that the
+     * connection may be kept alive.
+     */
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) >= 0) {
+                // Discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Records the outcome of a probe and changes the state once a threshold
+     * is reached.
+     * 
+     * @param success
+     *            Whether the probe succeeded
+     */
+    synchronized void record(boolean success) {
+        probes.incrementAndGet();
+        if (success) {
+            failuresInRow = 0;
+            successesInRow++;
+            if (!healthy && successesInRow >= configuration.getHealthyThreshold()) {
+                healthy = true;
+                log.info("CustomCallout endpoint " + address + " is healthy again");
+            }
+        } else {
+            failedProbes.incrementAndGet();
+            successesInRow = 0;
+            failuresInRow++;
+            if (healthy && failuresInRow >= configuration.getUnhealthyThreshold()) {
+                healthy = false;
+                log.warn("CustomCallout endpoint " + address + " is unhealthy after " + failuresInRow
+                        + " failed health probes");
+            }
+        }
+    }
+
+    /**
+     * @return False while the endpoint is considered unhealthy
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return Probed address
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return Probe settings
+     */
+    public HealthCheckConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @return Probes sent
+     */
+    public long getProbes() {
+        return probes.get();
+    }
+
+    /**
+     * @return Probes failed
+     */
+    public long getFailedProbes() {
+        return failedProbes.get();
+    }
+
+    /**
+     * Summary of the probe published over JMX.
+     * 
+     * @return Address, state and statistics
+     */
+    @Override
+    public String toString() {
+        return address + (healthy ? " healthy" : " unhealthy") + " probes=" + getProbes() + " failed="
+                + getFailedProbes();
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.inflight;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Callout currently waiting for its endpoint, tracked by
+ * {@link InFlightRegistry}.
+ */
+public class InFlightCallout {
+
+    private final long id;
+    private final String messageId;
+    private final String mediator;
+    private volatile String endpoint;
+    private final Thread thread;
+    private final long startTime;
+    private final long startNanos;
+    private volatile long bytesSent = -1;
+    private Closeable connection = null;
+    private boolean completed = false;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates a new callout started by the current thread.
+     * 
+     * @param id
+     *            Identifier of the callout within the registry
+     * @param messageId
+     *            Message ID of the message being mediated
+     * @param mediator
+     *            Name of the mediator
+     * @param endpoint
+     *            Address or description of the endpoint called
+     */
+    InFlightCallout(long id, String messageId, String mediator, String endpoint) {
+        this.id = id;
+        this.messageId = messageId;
+        this.mediator = mediator;
+        this.endpoint = endpoint;
+        this.thread = Thread.currentThread();
+        this.startTime = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Sets the connection closed to abort the callout when cancelled. The
+     * connection must be cleared before it is returned to a pool.
+     * 
+     * @param connection
+     *            Connection of the request or null
+     * @return False if the callout has already been cancelled
+     */
+    public synchronized boolean setConnection(Closeable connection) {
+        this.connection = connection;
+        return !cancelled;
+    }
+
+    /**
+     * Cancels the callout: closes its connection when the lightweight HTTP
+     * transport is used and interrupts the waiting thread, which stops waiting
+     * for a pooled connection or a branch but not a socket read of the Axis2
+     * blocking client.
+     * 
+     * @return False if the callout had already completed or been cancelled
+     */
+    public synchronized boolean cancel() {
+        if (completed || cancelled) {
+            return false;
+        }
+        cancelled = true;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ignore) {
+            }
+        }
+        thread.interrupt();
+        return true;
+    }
+
+    /**
+     * Marks the callout completed, clearing the interrupt of a cancellation
+     * so it does not leak to the next message of the thread.
+     */
+    synchronized void complete() {
+        completed = true;
+        connection = null;
+        if (cancelled && thread == Thread.currentThread()) {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * @return Identifier of the callout within the registry
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return Message ID of the message being mediated
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * @return Name of the mediator
+     */
+    public String getMediator() {
+        return mediator;
+    }
+
+    /**
+     * @return Address or description of the endpoint called
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Setter for endpoint once it is known, e.g. the load balanced member
+     * chosen.
+     * 
+     * @param endpoint
+     *            Address of the endpoint called
+     */
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @return Name of the thread waiting for the callout
+     */
+    public String getThreadName() {
+        return thread.getName();
+    }
+
+    /**
+     * @return Time the callout started in milliseconds since epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return Time the callout has been in flight in milliseconds
+     */
+    public long getAge() {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+
+    /**
+     * @return Bytes of request payload sent or -1 if not known
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Setter for bytes of request payload sent.
+     * 
+     * @param bytesSent
+     *            Payload size in bytes
+     */
+    public void setBytesSent(long bytesSent) {
+        this.bytesSent = bytesSent;
+    }
+
+    /**
+     * @return True if an operator has cancelled the callout
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "id=" + id + " age=" + getAge() + "ms started="
+                + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(startTime)) + " endpoint="
+                + endpoint + " messageId=" + messageId + " mediator=" + mediator + " thread=" + getThreadName()
+                + " bytesSent=" + bytesSent + (cancelled ? " cancelled" : "");
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.inflight;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of callouts in flight in this JVM, i.e. sent and waiting for the
+ * response. Tracking a callout costs an insert and a removal in a concurrent
+ * map, listing and counting are done only when asked. The callout of the
+ * current thread is also available to the transport, which attaches its
+ * connection and request size to it.
+ */
+public class InFlightRegistry {
+
+    private static final ConcurrentMap<Long, InFlightCallout> callouts = new ConcurrentHashMap<Long, InFlightCallout>();
+
+    private static final AtomicLong ids = new AtomicLong();
+
+    private static final ThreadLocal<InFlightCallout> current = new ThreadLocal<InFlightCallout>();
+
+    private static final Comparator<InFlightCallout> OLDEST_FIRST = new Comparator<InFlightCallout>() {
+        @Override
+        public int compare(InFlightCallout a, InFlightCallout b) {
+            long diff = a.getStartNanos() - b.getStartNanos();
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+    };
+
+    private InFlightRegistry() {
+    }
+
+    /**
+     * Registers a callout started by the current thread.
+     * 
+     * @param messageId
+     *            Message ID of the message being mediated
+     * @param mediator
+     *            Name of the mediator
+     * @param endpoint
+     *            Address or description of the endpoint called
+     * @return Registered callout, to be passed to
+     *         {@link #end(InFlightCallout)}
+     */
+    public static InFlightCallout begin(String messageId, String mediator, String endpoint) {
+        InFlightCallout callout = new InFlightCallout(ids.incrementAndGet(), messageId, mediator, endpoint);
+        callouts.put(callout.getId(), callout);
+        current.set(callout);
+        return callout;
+    }
+
+    /**
+     * Removes given callout once it has completed or failed.
+     * 
+     * @param callout
+     *            Callout returned by
+     *            {@link #begin(String, String, String)}
+     */
+    public static void end(InFlightCallout callout) {
+        callouts.remove(callout.getId());
+        current.set(null);
+        callout.complete();
+    }
+
+    /**
+     * @return Callout in flight of the current thread or null
+     */
+    public static InFlightCallout current() {
+        return current.get();
+    }
+
+    /**
+     * Returns callouts in flight, the one waiting longest first.
+     * 
+     * @param max
+     *            Maximum number of callouts returned
+     * @return Snapshot of callouts in flight
+     */
+    public static List<InFlightCallout> getOldest(int max) {
+        List<InFlightCallout> result = new ArrayList<InFlightCallout>(callouts.values());
+        Collections.sort(result, OLDEST_FIRST);
+        return max < result.size() ? new ArrayList<InFlightCallout>(result.subList(0, Math.max(0, max))) : result;
+    }
+
+    /**
+     * @return Number of callouts in flight per endpoint, sorted by endpoint
+     */
+    public static Map<String, Integer> getCountsByEndpoint() {
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (InFlightCallout callout : callouts.values()) {
+            String endpoint = String.valueOf(callout.getEndpoint());
+            Integer count = counts.get(endpoint);
+            counts.put(endpoint, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    /**
+     * @return Number of callouts in flight
+     */
+    public static int size() {
+        return callouts.size();
+    }
+
+    /**
+     * Cancels the callout of given identifier.
+     * 
+     * @param id
+     *            Identifier of the callout
+     * @return False if no such callout is in flight or it could not be
+     *         cancelled
+     */
+    public static boolean cancel(long id) {
+        InFlightCallout callout = callouts.get(id);
+        return callout != null && callout.cancel();
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.jfr;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * JDK Flight Recorder events of callout phases. The event type is created at
+ * runtime with jdk.jfr.EventFactory through reflection, so the mediator still
+ * runs on JVMs without Flight Recorder, where no events are emitted. The event
+ * is enabled and its threshold set with the usual JFR settings using the name
+ * {@link #EVENT_NAME}. While the event is disabled, beginning a phase costs one
+ * check and allocates nothing. System property
+ * fi.mystes.customCallout.jfrEvents=false disables the events altogether.
+ */
+public class CalloutEvents {
+
+    public static final String EVENT_NAME = "fi.mystes.CustomCalloutPhase";
+    public static final String ENABLED_PROPERTY = "fi.mystes.customCallout.jfrEvents";
+
+    public static final String PHASE_CLONE = "clone";
+    public static final String PHASE_SOURCE = "source";
+    public static final String PHASE_SEND = "send";
+    public static final String PHASE_RESPONSE = "response";
+    public static final String PHASE_FAULT = "fault";
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_FAULT = "fault";
+
+    private static final Log log = LogFactory.getLog(CalloutEvents.class);
+
+    private static final String[] FIELD_NAMES = { "phase", "mediator", "endpoint", "action", "payloadSize",
+            "outcome" };
+    private static final Class<?>[] FIELD_TYPES = { String.class, String.class, String.class, String.class,
+            long.class, String.class };
+
+    private static final CalloutEvents INSTANCE = create();
+
+    private final Object factory;
+    private final Object eventType;
+    private final Method isEnabled;
+    private final Method newEvent;
+    private final Method begin;
+    private final Method end;
+    private final Method set;
+    private final Method commit;
+
+    private CalloutEvents(Object factory, Object eventType, Method isEnabled, Method newEvent, Method begin,
+            Method end, Method set, Method commit) {
+        this.factory = factory;
+        this.eventType = eventType;
+        this.isEnabled = isEnabled;
+        this.newEvent = newEvent;
+        this.begin = begin;
+        this.end = end;
+        this.set = set;
+        this.commit = commit;
+    }
+
+    /**
+     * @return Callout events of this JVM
+     */
+    public static CalloutEvents getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Helper method to create the event type, or events emitting nothing if
+     * Flight Recorder is not available or the events are disabled.
+     * 
+     * @return Callout events
+     */
+    private static CalloutEvents create() {
+        if (!Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"))) {
+            return new CalloutEvents(null, null, null, null, null, null, null, null);
+        }
+        try {
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Constructor<?> annotation = annotationElementClass.getConstructor(Class.class, Object.class);
+            Constructor<?> field = valueDescriptorClass.getConstructor(Class.class, String.class);
+
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), EVENT_NAME));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), "CustomCallout Phase"));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Description"),
+                    "Phase of a callout made by CustomCallout mediator"));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"),
+                    new String[] { "Mystes", "CustomCallout" }));
+            List<Object> fields = new ArrayList<Object>();
+            for (int i = 0; i < FIELD_NAMES.length; i++) {
+                fields.add(field.newInstance(FIELD_TYPES[i], FIELD_NAMES[i]));
+            }
+
+            Object factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations,
+                    fields);
+            Object eventType = factoryClass.getMethod("getEventType").invoke(factory);
+            return new CalloutEvents(factory, eventType, eventType.getClass().getMethod("isEnabled"),
+                    factoryClass.getMethod("newEvent"), eventClass.getMethod("begin"), eventClass.getMethod("end"),
+                    eventClass.getMethod("set", int.class, Object.class), eventClass.getMethod("commit"));
+        } catch (ClassNotFoundException e) {
+            log.debug("Flight Recorder is not available, CustomCallout events are not emitted");
+        } catch (Exception e) {
+            log.warn("Could not create CustomCallout Flight Recorder events : " + e.getMessage());
+        }
+        return new CalloutEvents(null, null, null, null, null, null, null, null);
+    }
+
+    /**
+     * Checks whether the event is enabled in a running recording.
+     * 
+     * @return True if phases are recorded
+     */
+    public boolean isEnabled() {
+        if (eventType == null) {
+            return false;
+        }
+        try {
+            return (Boolean) isEnabled.invoke(eventType);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Begins timing a callout phase.
+     * 
+     * @param phase
+     *            One of the phase constants
+     * @return Started event, or null if the event is disabled
+     */
+    public PhaseEvent begin(String phase) {
+        if (!isEnabled()) {
+            return null;
+        }
+        try {
+            Object event = newEvent.invoke(factory);
+            begin.invoke(event);
+            return new PhaseEvent(this, event, phase);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Helper method to end timing of given event.
+     * 
+     * @param event
+     *            Event created by the factory
+     */
+    void end(Object event) {
+        try {
+            end.invoke(event);
+        } catch (Exception e) {
+            log.debug("Could not end CustomCallout event : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Helper method to commit given event, ending it unless already ended.
+     * 
+     * @param event
+     *            Event created by the factory
+     * @param values
+     *            Field values in the order of the fields
+     */
+    void commit(Object event, Object[] values) {
+        try {
+            for (int i = 0; i < values.length; i++) {
+                set.invoke(event, i, values[i]);
+            }
+            commit.invoke(event);
+        } catch (Exception e) {
+            log.debug("Could not commit CustomCallout event : " + e.getMessage());
+        }
+    }
+
+    /**
+     * One timed phase of a callout, committed once the phase has completed.
+     */
+    public static class PhaseEvent {
+
+        private final CalloutEvents events;
+        private final Object event;
+        private final String phase;
+        private boolean ended = false;
+
+        PhaseEvent(CalloutEvents events, Object event, String phase) {
+            this.events = events;
+            this.event = event;
+            this.phase = phase;
+        }
+
+        /**
+         * Ends the phase, so that work done before committing, e.g. measuring
+         * the payload, is not included in its duration.
+         */
+        public void end() {
+            events.end(event);
+            ended = true;
+        }
+
+        /**
+         * Ends the phase unless already ended and commits the event.
+         * 
+         * @param mediator
+         *            Name of the mediator
+         * @param endpoint
+         *            Address of the endpoint called
+         * @param action
+         *            SOAP action or null
+         * @param payloadSize
+         *            Size of the payload in bytes or -1 if not known
+         * @param outcome
+         *            Either "success" or "fault"
+         */
+        public void commit(String mediator, String endpoint, String action, long payloadSize, String outcome) {
+            if (!ended) {
+                end();
+            }
+            events.commit(event, new Object[] { phase, mediator, endpoint, action, payloadSize, outcome });
+        }
+
+        /**
+         * @return Name of the phase
+         */
+        public String getPhase() {
+            return phase;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.jmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import fi.mystes.synapse.mediator.AllocationAccounting;
+import fi.mystes.synapse.mediator.CustomCalloutMediator;
+import fi.mystes.synapse.mediator.balancer.LoadBalancer;
+import fi.mystes.synapse.mediator.cache.OffHeapResponseStore;
+import fi.mystes.synapse.mediator.capture.CapturedCall;
+import fi.mystes.synapse.mediator.capture.SlowCallCapture;
+import fi.mystes.synapse.mediator.compression.CalloutCompression;
+import fi.mystes.synapse.mediator.compression.CompressionStatistics;
+import fi.mystes.synapse.mediator.encoding.FastInfosetNegotiation;
+import fi.mystes.synapse.mediator.health.HealthProbe;
+import fi.mystes.synapse.mediator.transport.BufferPool;
+import fi.mystes.synapse.mediator.transport.ConnectionPoolStatistics;
+import fi.mystes.synapse.mediator.transport.HttpCalloutTransport;
+import fi.mystes.synapse.mediator.transport.HttpConnectionPool;
+import fi.mystes.synapse.mediator.transport.TlsSessionCache;
+
+/**
+ * Statistics of one {@link fi.mystes.synapse.mediator.CustomCalloutMediator}
+ * published over JMX.
+ */
+public class CustomCalloutView implements CustomCalloutViewMBean {
+
+    public static final String MBEAN_CATEGORY = "CustomCallout";
+
+    private final CustomCalloutMediator mediator;
+
+    /**
+     * Constructor for view of given mediator.
+     * 
+     * @param mediator
+     *            Mediator to publish statistics of
+     */
+    public CustomCalloutView(CustomCalloutMediator mediator) {
+        this.mediator = mediator;
+    }
+
+    /**
+     * Helper method to get connection pool of the mediator, which is created
+     * on first mediation when initiation is lazy.
+     * 
+     * @return Connection pool or null if HTTP transport is not in use
+     */
+    private HttpConnectionPool getConnectionPool() {
+        HttpCalloutTransport httpTransport = mediator.getHttpTransport();
+        return httpTransport != null ? httpTransport.getConnectionPool() : null;
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        HttpConnectionPool connectionPool = getConnectionPool();
+        return connectionPool != null ? connectionPool.getLeasedConnections() : 0;
+    }
+
+    @Override
+    public int getAvailableConnections() {
+        HttpConnectionPool connectionPool = getConnectionPool();
+        return connectionPool != null ? connectionPool.getAvailableConnections() : 0;
+    }
+
+    @Override
+    public int getPendingConnectionLeases() {
+        HttpConnectionPool connectionPool = getConnectionPool();
+        return connectionPool != null ? connectionPool.getPendingLeases() : 0;
+    }
+
+    @Override
+    public long[] getConnectionLeaseWaitBuckets() {
+        return ConnectionPoolStatistics.LEASE_WAIT_BUCKETS.clone();
+    }
+
+    @Override
+    public long[] getConnectionLeaseWaitHistogram() {
+        HttpConnectionPool connectionPool = getConnectionPool();
+        return connectionPool != null ? connectionPool.getLeaseWaitHistogram()
+                : new long[ConnectionPoolStatistics.LEASE_WAIT_BUCKETS.length + 1];
+    }
+
+    @Override
+    public String[] getConnectionPoolRouteStatistics() {
+        HttpConnectionPool connectionPool = getConnectionPool();
+        if (connectionPool == null) {
+            return new String[0];
+        }
+        Map<String, ConnectionPoolStatistics> routes = connectionPool.getRouteStatistics();
+        String[] lines = new String[routes.size()];
+        int i = 0;
+        for (Map.Entry<String, ConnectionPoolStatistics> route : routes.entrySet()) {
+            ConnectionPoolStatistics statistics = route.getValue();
+            lines[i++] = route.getKey() + " leased=" + statistics.getLeased() + " available="
+                    + connectionPool.getAvailableConnections(route.getKey()) + " pending=" + statistics.getPending()
+                    + " leases=" + statistics.getLeases() + " failed=" + statistics.getFailedLeases();
+        }
+        return lines;
+    }
+
+    @Override
+    public long getFullTlsHandshakes() {
+        TlsSessionCache tls = getTlsSessionCache();
+        return tls != null ? tls.getFullHandshakes() : 0;
+    }
+
+    @Override
+    public long getResumedTlsHandshakes() {
+        TlsSessionCache tls = getTlsSessionCache();
+        return tls != null ? tls.getResumedHandshakes() : 0;
+    }
+
+    @Override
+    public long getFailedTlsHandshakes() {
+        TlsSessionCache tls = getTlsSessionCache();
+        return tls != null ? tls.getFailedHandshakes() : 0;
+    }
+
+    @Override
+    public double getAverageTlsHandshakeTime() {
+        TlsSessionCache tls = getTlsSessionCache();
+        long handshakes = tls != null ? tls.getFullHandshakes() + tls.getResumedHandshakes() : 0;
+        return handshakes > 0 ? (double) tls.getHandshakeTime() / handshakes : 0;
+    }
+
+    @Override
+    public long getResponseCacheHits() {
+        OffHeapResponseStore store = mediator.getResponseStore();
+        return store != null ? store.getHits() : 0;
+    }
+
+    @Override
+    public long getResponseCacheMisses() {
+        OffHeapResponseStore store = mediator.getResponseStore();
+        return store != null ? store.getMisses() : 0;
+    }
+
+    @Override
+    public long getResponseCacheEvictions() {
+        OffHeapResponseStore store = mediator.getResponseStore();
+        return store != null ? store.getEvictions() : 0;
+    }
+
+    @Override
+    public int getResponseCacheEntries() {
+        OffHeapResponseStore store = mediator.getResponseStore();
+        return store != null ? store.getEntries() : 0;
+    }
+
+    @Override
+    public String[] getLoadBalanceMembers() {
+        LoadBalancer balancer = mediator.getLoadBalancer();
+        if (balancer == null) {
+            return new String[0];
+        }
+        List<LoadBalancer.Member> members = balancer.getMembers();
+        String[] result = new String[members.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = members.get(i).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public String[] getHealthProbes() {
+        List<HealthProbe> probes = mediator.getHealthProbes();
+        String[] result = new String[probes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = probes.get(i).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public long getFaults() {
+        return mediator.getFaultLog().getFaults();
+    }
+
+    @Override
+    public long getSuppressedFaultLogs() {
+        return mediator.getFaultLog().getSuppressed();
+    }
+
+    @Override
+    public long getCapturedCallCount() {
+        SlowCallCapture capture = mediator.getSlowCallCapture();
+        return capture != null ? capture.getCaptured() : 0;
+    }
+
+    @Override
+    public String[] getCapturedCalls() {
+        SlowCallCapture capture = mediator.getSlowCallCapture();
+        if (capture == null) {
+            return new String[0];
+        }
+        List<CapturedCall> calls = capture.getCalls();
+        String[] result = new String[calls.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = calls.get(i).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public int dumpCapturedCalls(String file) throws IOException {
+        SlowCallCapture capture = mediator.getSlowCallCapture();
+        if (capture == null) {
+            return 0;
+        }
+        return capture.dump(new File(file));
+    }
+
+    @Override
+    public long getAllocatedBytesPerCall() {
+        AllocationAccounting accounting = mediator.getAllocationAccounting();
+        return accounting != null ? accounting.getAverageBytesPerCall() : 0;
+    }
+
+    @Override
+    public String[] getAllocatedBytesPerPhase() {
+        AllocationAccounting accounting = mediator.getAllocationAccounting();
+        return accounting != null ? accounting.getPhaseSummary() : new String[0];
+    }
+
+    @Override
+    public long getFastInfosetRequests() {
+        FastInfosetNegotiation fastInfoset = mediator.getFastInfoset();
+        return fastInfoset != null ? fastInfoset.getRequests() : 0;
+    }
+
+    @Override
+    public long getFastInfosetFallbacks() {
+        FastInfosetNegotiation fastInfoset = mediator.getFastInfoset();
+        return fastInfoset != null ? fastInfoset.getFallbacks() : 0;
+    }
+
+    @Override
+    public String[] getCompressionStatistics() {
+        CalloutCompression compression = mediator.getCompression();
+        if (compression == null) {
+            return new String[0];
+        }
+        List<CompressionStatistics> statistics = compression.getStatistics();
+        String[] summary = new String[statistics.size()];
+        for (int i = 0; i < summary.length; i++) {
+            summary[i] = statistics.get(i).toString();
+        }
+        return summary;
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        CalloutCompression compression = mediator.getCompression();
+        long saved = 0;
+        if (compression != null) {
+            for (CompressionStatistics statistics : compression.getStatistics()) {
+                saved += statistics.getSavedBytes();
+            }
+        }
+        return saved;
+    }
+
+    @Override
+    public double getBufferPoolHitRate() {
+        return BufferPool.getDefault().getHitRate();
+    }
+
+    @Override
+    public long getBufferPoolRetainedBytes() {
+        return BufferPool.getDefault().getRetainedBytes();
+    }
+
+    @Override
+    public long getBufferPoolDiscarded() {
+        return BufferPool.getDefault().getDiscarded();
+    }
+
+    /**
+     * Helper method to get TLS session cache of the mediator.
+     * 
+     * @return TLS session cache or null if no https callout is made yet
+     */
+    private TlsSessionCache getTlsSessionCache() {
+        HttpConnectionPool connectionPool = getConnectionPool();
+        return connectionPool != null ? connectionPool.peekTlsSessionCache() : null;
+    }
+}
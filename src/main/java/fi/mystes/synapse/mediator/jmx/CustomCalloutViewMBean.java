@@ -0,0 +1,188 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.jmx;
+
+import java.io.IOException;
+
+/**
+ * Management interface of one {@link fi.mystes.synapse.mediator.CustomCalloutMediator}.
+ */
+public interface CustomCalloutViewMBean {
+
+    /**
+     * @return Number of HTTP transport connections currently leased
+     */
+    int getLeasedConnections();
+
+    /**
+     * @return Number of idle HTTP transport connections kept alive
+     */
+    int getAvailableConnections();
+
+    /**
+     * @return Number of callouts waiting for an HTTP transport connection
+     */
+    int getPendingConnectionLeases();
+
+    /**
+     * @return Upper bounds in milliseconds of the lease wait time buckets
+     */
+    long[] getConnectionLeaseWaitBuckets();
+
+    /**
+     * @return Lease counts per wait time bucket, the last bucket counts waits
+     *         exceeding the last bound
+     */
+    long[] getConnectionLeaseWaitHistogram();
+
+    /**
+     * @return Lease statistics of each route, one line per route
+     */
+    String[] getConnectionPoolRouteStatistics();
+
+    /**
+     * @return Number of TLS handshakes negotiating a new session
+     */
+    long getFullTlsHandshakes();
+
+    /**
+     * @return Number of TLS handshakes resuming a cached session
+     */
+    long getResumedTlsHandshakes();
+
+    /**
+     * @return Number of failed TLS handshakes
+     */
+    long getFailedTlsHandshakes();
+
+    /**
+     * @return Average time of successful TLS handshakes in milliseconds
+     */
+    double getAverageTlsHandshakeTime();
+
+    /**
+     * @return Number of responses found from the response cache
+     */
+    long getResponseCacheHits();
+
+    /**
+     * @return Number of responses not found from the response cache
+     */
+    long getResponseCacheMisses();
+
+    /**
+     * @return Number of cached responses overwritten by newer ones
+     */
+    long getResponseCacheEvictions();
+
+    /**
+     * @return Number of responses in the response cache
+     */
+    int getResponseCacheEntries();
+
+    /**
+     * @return Share of serialization buffers taken from the shared pool
+     */
+    double getBufferPoolHitRate();
+
+    /**
+     * @return Bytes retained by idle buffers of the shared pool
+     */
+    long getBufferPoolRetainedBytes();
+
+    /**
+     * @return Number of buffers dropped because of the pool retention cap
+     */
+    long getBufferPoolDiscarded();
+
+    /**
+     * @return Load balanced members with their latency, requests in flight,
+     *         requests and failures, empty if not load balanced
+     */
+    String[] getLoadBalanceMembers();
+
+    /**
+     * @return Health probes of the endpoints with their state, empty if not
+     *         checked
+     */
+    String[] getHealthProbes();
+
+    /**
+     * @return Number of failed callouts
+     */
+    long getFaults();
+
+    /**
+     * @return Number of faults not logged since the previous logged one
+     */
+    long getSuppressedFaultLogs();
+
+    /**
+     * @return Number of slow or sampled callouts captured, including ones
+     *         already overwritten
+     */
+    long getCapturedCallCount();
+
+    /**
+     * @return Captured callouts from oldest to newest, empty if slow call
+     *         capture is not configured
+     */
+    String[] getCapturedCalls();
+
+    /**
+     * Writes the captured callouts into given file, one per line.
+     * 
+     * @param file
+     *            Path of the file to write
+     * @return Number of callouts written
+     * @throws IOException
+     *             If writing fails
+     */
+    int dumpCapturedCalls(String file) throws IOException;
+
+    /**
+     * @return Average bytes allocated per call, 0 if allocation accounting is
+     *         not enabled
+     */
+    long getAllocatedBytesPerCall();
+
+    /**
+     * @return Average bytes allocated per call in each phase, empty if
+     *         allocation accounting is not enabled
+     */
+    String[] getAllocatedBytesPerPhase();
+
+    /**
+     * @return Number of requests sent as Fast Infoset
+     */
+    long getFastInfosetRequests();
+
+    /**
+     * @return Number of times the endpoint rejected Fast Infoset and callouts
+     *         fell back to text XML
+     */
+    long getFastInfosetFallbacks();
+
+    /**
+     * @return Compression ratios and CPU time per endpoint
+     */
+    String[] getCompressionStatistics();
+
+    /**
+     * @return Bytes not sent or received thanks to compression
+     */
+    long getCompressionSavedBytes();
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.jmx;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.synapse.commons.jmx.MBeanRegistrar;
+
+import fi.mystes.synapse.mediator.inflight.InFlightCallout;
+import fi.mystes.synapse.mediator.inflight.InFlightRegistry;
+
+/**
+ * Callouts in flight of all
+ * {@link fi.mystes.synapse.mediator.CustomCalloutMediator} instances published
+ * over JMX. Registered once per JVM, when the first mediator is initiated.
+ */
+public class InFlightCalloutsView implements InFlightCalloutsViewMBean {
+
+    public static final String MBEAN_ID = "InFlightCallouts";
+
+    private static boolean registered = false;
+
+    /**
+     * Registers the view unless already registered.
+     */
+    public static synchronized void registerOnDemand() {
+        if (!registered) {
+            MBeanRegistrar.getInstance().registerMBean(new InFlightCalloutsView(),
+                    CustomCalloutView.MBEAN_CATEGORY, MBEAN_ID);
+            registered = true;
+        }
+    }
+
+    @Override
+    public int getInFlightCount() {
+        return InFlightRegistry.size();
+    }
+
+    @Override
+    public String[] getInFlightCountsByEndpoint() {
+        Map<String, Integer> counts = InFlightRegistry.getCountsByEndpoint();
+        String[] result = new String[counts.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            result[i++] = entry.getKey() + " " + entry.getValue();
+        }
+        return result;
+    }
+
+    @Override
+    public String[] getInFlightCallouts() {
+        return listOldestCallouts(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public String[] listOldestCallouts(int max) {
+        List<InFlightCallout> callouts = InFlightRegistry.getOldest(max);
+        String[] result = new String[callouts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = callouts.get(i).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean cancelCallout(long id) {
+        return InFlightRegistry.cancel(id);
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.jmx;
+
+/**
+ * Management interface of callouts in flight of all
+ * {@link fi.mystes.synapse.mediator.CustomCalloutMediator} instances.
+ */
+public interface InFlightCalloutsViewMBean {
+
+    /**
+     * @return Number of callouts waiting for their endpoint
+     */
+    int getInFlightCount();
+
+    /**
+     * @return Number of callouts in flight per endpoint, one line per endpoint
+     */
+    String[] getInFlightCountsByEndpoint();
+
+    /**
+     * @return Callouts in flight, the one waiting longest first
+     */
+    String[] getInFlightCallouts();
+
+    /**
+     * Lists callouts waiting longest.
+     * 
+     * @param max
+     *            Maximum number of callouts listed
+     * @return Callouts in flight, the one waiting longest first
+     */
+    String[] listOldestCallouts(int max);
+
+    /**
+     * Cancels a stuck callout by closing its connection when the lightweight
+     * HTTP transport is used and interrupting the waiting thread.
+     * 
+     * @param id
+     *            Identifier of the callout as listed
+     * @return True if the callout was cancelled
+     */
+    boolean cancelCallout(long id);
+}
@@ -0,0 +1,530 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiled JSONPath expression selecting a single value of a JSON text. The
+ * supported subset is the root $ followed by member names .name or ['name']
+ * and array indexes [n]. Values are located by scanning the UTF-8 bytes of
+ * the text once without decoding them, building an object model or converting
+ * the message to XML, skipped values are only scanned for their end. The
+ * selected or modified text is written to a stream as slices of the original
+ * bytes.
+ */
+public class JsonPath {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final String expression;
+    private final Object[] steps;
+    private final byte[][] names;
+
+    /**
+     * Constructor compiling given expression.
+     * 
+     * @param expression
+     *            JSONPath expression, e.g. $.order.lines[0]
+     * @throws IllegalArgumentException
+     *             If expression is not supported
+     */
+    public JsonPath(String expression) {
+        this.expression = expression;
+        if (expression == null || !expression.startsWith("$")) {
+            throw new IllegalArgumentException("JSONPath must start with $ : " + expression);
+        }
+        List<Object> stepList = new ArrayList<Object>();
+        int i = 1;
+        while (i < expression.length()) {
+            char c = expression.charAt(i);
+            if (c == '.') {
+                int end = i + 1;
+                while (end < expression.length() && expression.charAt(end) != '.' && expression.charAt(end) != '[') {
+                    end++;
+                }
+                String name = expression.substring(i + 1, end);
+                if (name.length() == 0 || name.equals("*") || name.startsWith(".")) {
+                    throw new IllegalArgumentException("Unsupported JSONPath member : " + expression);
+                }
+                stepList.add(name);
+                i = end;
+            } else if (c == '[') {
+                int end = expression.indexOf(']', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed [ in JSONPath : " + expression);
+                }
+                String selector = expression.substring(i + 1, end).trim();
+                if (selector.length() > 1 && (selector.charAt(0) == '\'' || selector.charAt(0) == '"')
+                        && selector.charAt(selector.length() - 1) == selector.charAt(0)) {
+                    stepList.add(selector.substring(1, selector.length() - 1));
+                } else {
+                    try {
+                        stepList.add(Integer.valueOf(selector));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Unsupported JSONPath selector [" + selector + "] : "
+                                + expression);
+                    }
+                    if ((Integer) stepList.get(stepList.size() - 1) < 0) {
+                        throw new IllegalArgumentException("Negative JSONPath index : " + expression);
+                    }
+                }
+                i = end + 1;
+            } else {
+                throw new IllegalArgumentException("Unexpected '" + c + "' in JSONPath : " + expression);
+            }
+        }
+        steps = stepList.toArray();
+        names = new byte[steps.length][];
+        for (int j = 0; j < steps.length; j++) {
+            if (steps[j] instanceof String) {
+                names[j] = getBytes((String) steps[j]);
+            }
+        }
+    }
+
+    /**
+     * @return Expression of this path
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * Writes the value of this path to given stream.
+     * 
+     * @param json
+     *            UTF-8 bytes of JSON text
+     * @param length
+     *            Number of bytes in the array
+     * @param out
+     *            Stream to write the UTF-8 bytes of the selected value to
+     * @return False if the path does not match and nothing was written
+     * @throws IllegalArgumentException
+     *             If JSON text is malformed
+     * @throws IOException
+     *             If writing fails
+     */
+    public boolean select(byte[] json, int length, OutputStream out) throws IOException {
+        Scanner scanner = new Scanner(json, length);
+        scanner.skipWhitespace();
+        for (int i = 0; i < steps.length; i++) {
+            if (!scanner.descend(steps[i], names[i])) {
+                return false;
+            }
+        }
+        int start = scanner.pos;
+        scanner.skipValue();
+        out.write(json, start, scanner.pos - start);
+        return true;
+    }
+
+    /**
+     * Writes given JSON text with given value set to this path to given
+     * stream. The last member of the path is added to its object if missing,
+     * and index equal to the length of its array appends the value. Other
+     * parts of the path must exist.
+     * 
+     * @param json
+     *            UTF-8 bytes of JSON text to modify
+     * @param length
+     *            Number of bytes in the array
+     * @param value
+     *            UTF-8 bytes of JSON text of the value
+     * @param valueLength
+     *            Number of bytes in the value array
+     * @param out
+     *            Stream to write the UTF-8 bytes of the modified text to
+     * @throws IllegalArgumentException
+     *             If JSON text is malformed or the path does not match
+     * @throws IOException
+     *             If writing fails
+     */
+    public void set(byte[] json, int length, byte[] value, int valueLength, OutputStream out) throws IOException {
+        if (steps.length == 0) {
+            out.write(value, 0, valueLength);
+            return;
+        }
+        Scanner scanner = new Scanner(json, length);
+        scanner.skipWhitespace();
+        int last = steps.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (!scanner.descend(steps[i], names[i])) {
+                throw new IllegalArgumentException("JSONPath " + expression + " does not match the message");
+            }
+        }
+        if (scanner.descend(steps[last], names[last])) {
+            int start = scanner.pos;
+            scanner.skipValue();
+            out.write(json, 0, start);
+            out.write(value, 0, valueLength);
+            out.write(json, scanner.pos, length - scanner.pos);
+            return;
+        }
+        if (scanner.closing < 0 || (names[last] == null && (Integer) steps[last] != scanner.count)) {
+            throw new IllegalArgumentException("JSONPath " + expression + " does not match the message");
+        }
+        out.write(json, 0, scanner.closing);
+        if (scanner.count > 0) {
+            out.write(',');
+        }
+        if (names[last] != null) {
+            writeQuoted(out, (String) steps[last]);
+            out.write(':');
+        }
+        out.write(value, 0, valueLength);
+        out.write(json, scanner.closing, length - scanner.closing);
+    }
+
+    /**
+     * Selects the value of this path.
+     * 
+     * @param json
+     *            JSON text
+     * @return JSON text of the selected value or null if the path does not
+     *         match
+     * @throws IllegalArgumentException
+     *             If JSON text is malformed
+     */
+    public String select(String json) {
+        byte[] bytes = getBytes(json);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            return select(bytes, bytes.length, out) ? out.toString(UTF_8) : null;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sets given value to this path.
+     * 
+     * @param json
+     *            JSON text to modify
+     * @param value
+     *            JSON text of the value
+     * @return Modified JSON text
+     * @throws IllegalArgumentException
+     *             If JSON text is malformed or the path does not match
+     * @see #set(byte[], int, byte[], int, OutputStream)
+     */
+    public String set(String json, String value) {
+        byte[] bytes = getBytes(json);
+        byte[] valueBytes = getBytes(value);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + valueBytes.length + 16);
+        try {
+            set(bytes, bytes.length, valueBytes, valueBytes.length, out);
+            return out.toString(UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Helper method to write given string as JSON string.
+     * 
+     * @param out
+     *            To write to
+     * @param value
+     *            String to quote and escape
+     */
+    private static void writeQuoted(OutputStream out, String value) throws IOException {
+        StringBuilder result = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        out.write(getBytes(result.append('"').toString()));
+    }
+
+    private static byte[] getBytes(String text) {
+        try {
+            return text.getBytes(UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * Cursor scanning UTF-8 bytes of JSON text. Bytes of multi-byte characters
+     * never equal the ASCII bytes of JSON syntax, so they need no decoding.
+     */
+    private static class Scanner {
+
+        private final byte[] json;
+        private final int length;
+        private int pos = 0;
+        private int closing = -1;
+        private int count = 0;
+
+        private Scanner(byte[] json, int length) {
+            this.json = json;
+            this.length = length;
+        }
+
+        /**
+         * Moves from the start of an object or array to the start of the
+         * value of given member or index. If not found, position of the
+         * closing bracket and number of members are left for insertion.
+         * 
+         * @param step
+         *            Member name or array index
+         * @param name
+         *            UTF-8 bytes of member name or null for index
+         * @return True if value was found
+         */
+        private boolean descend(Object step, byte[] name) {
+            closing = -1;
+            count = 0;
+            boolean member = name != null;
+            if (pos >= length || json[pos] != (member ? '{' : '[')) {
+                return false;
+            }
+            byte close = (byte) (member ? '}' : ']');
+            pos++;
+            skipWhitespace();
+            if (peek() == close) {
+                closing = pos;
+                return false;
+            }
+            while (true) {
+                boolean found;
+                if (member) {
+                    found = matchString((String) step, name);
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                } else {
+                    found = (Integer) step == count;
+                }
+                if (found) {
+                    return true;
+                }
+                skipValue();
+                count++;
+                skipWhitespace();
+                byte c = peek();
+                if (c == close) {
+                    closing = pos;
+                    return false;
+                }
+                expect(',');
+                skipWhitespace();
+            }
+        }
+
+        /**
+         * Moves past the value starting at current position.
+         */
+        private void skipValue() {
+            byte c = peek();
+            if (c == '"') {
+                skipString();
+            } else if (c == '{' || c == '[') {
+                int depth = 0;
+                do {
+                    c = peek();
+                    if (c == '"') {
+                        skipString();
+                        continue;
+                    }
+                    if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                    pos++;
+                } while (depth > 0);
+            } else {
+                int start = pos;
+                while (pos < length && !isDelimiter(json[pos])) {
+                    pos++;
+                }
+                if (pos == start) {
+                    throw malformed();
+                }
+            }
+        }
+
+        /**
+         * Moves past the string starting at current position.
+         */
+        private void skipString() {
+            pos++;
+            while (true) {
+                byte c = peek();
+                pos++;
+                if (c == '\\') {
+                    pos++;
+                } else if (c == '"') {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Moves past the string starting at current position and compares it
+         * to given name. Strings without escapes are compared byte by byte,
+         * only escaped strings are decoded.
+         * 
+         * @param name
+         *            Member name
+         * @param bytes
+         *            UTF-8 bytes of the member name
+         * @return True if the unescaped string equals the name
+         */
+        private boolean matchString(String name, byte[] bytes) {
+            expect('"');
+            int start = pos;
+            boolean escaped = false;
+            while (true) {
+                byte c = peek();
+                if (c == '"') {
+                    break;
+                }
+                if (c == '\\') {
+                    escaped = true;
+                    pos++;
+                }
+                pos++;
+            }
+            int end = pos++;
+            if (escaped) {
+                return name.equals(unescape(start, end));
+            }
+            if (end - start != bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (json[start + i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Decodes the escaped string content between given positions.
+         * 
+         * @return Unescaped string
+         */
+        private String unescape(int start, int end) {
+            StringBuilder unescaped = new StringBuilder(end - start);
+            int i = start;
+            while (i < end) {
+                int run = i;
+                while (run < end && json[run] != '\\') {
+                    run++;
+                }
+                unescaped.append(decode(i, run));
+                if (run == end) {
+                    break;
+                }
+                i = run + 1;
+                char c = (char) json[i];
+                switch (c) {
+                case 'b':
+                    c = '\b';
+                    break;
+                case 'f':
+                    c = '\f';
+                    break;
+                case 'n':
+                    c = '\n';
+                    break;
+                case 'r':
+                    c = '\r';
+                    break;
+                case 't':
+                    c = '\t';
+                    break;
+                case 'u':
+                    if (i + 4 >= end) {
+                        throw malformed();
+                    }
+                    try {
+                        c = (char) Integer.parseInt(decode(i + 1, i + 5), 16);
+                    } catch (NumberFormatException e) {
+                        throw malformed();
+                    }
+                    i += 4;
+                    break;
+                default:
+                    break;
+                }
+                unescaped.append(c);
+                i++;
+            }
+            return unescaped.toString();
+        }
+
+        private String decode(int start, int end) {
+            try {
+                return new String(json, start, end - start, UTF_8);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 is not supported", e);
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < length && isWhitespace(json[pos])) {
+                pos++;
+            }
+        }
+
+        private static boolean isWhitespace(byte c) {
+            return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+        }
+
+        private static boolean isDelimiter(byte c) {
+            return c == ',' || c == '}' || c == ']' || isWhitespace(c);
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw malformed();
+            }
+            pos++;
+        }
+
+        private byte peek() {
+            if (pos >= length) {
+                throw malformed();
+            }
+            return json[pos];
+        }
+
+        private IllegalArgumentException malformed() {
+            return new IllegalArgumentException("Malformed JSON at offset " + pos);
+        }
+    }
+}
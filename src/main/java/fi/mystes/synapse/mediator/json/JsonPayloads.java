@@ -0,0 +1,244 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.json;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.axiom.om.OMNode;
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.context.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+
+import fi.mystes.synapse.mediator.transport.PooledByteArrayOutputStream;
+
+/**
+ * Hand-off of JSON payloads between Axis2 message contexts. JsonUtil keeps
+ * the buffered JSON stream in message context properties next to a
+ * placeholder element in the SOAP body, so a payload can be moved to another
+ * context by moving the envelope and those properties instead of copying the
+ * stream like {@link JsonUtil#cloneJsonPayload} does. Payloads are selected
+ * from and merged into at {@link JsonPath} as UTF-8 bytes in pooled buffers.
+ */
+public class JsonPayloads {
+
+    private static final String JSON_PROPERTY_PREFIX = "org.apache.synapse.commons.json.";
+
+    private JsonPayloads() {
+    }
+
+    /**
+     * Moves the JSON payload of given source context to given target context
+     * without copying it. Source context shares the payload afterwards, so it
+     * must be discarded.
+     * 
+     * @param source
+     *            Context containing JSON payload, e.g. a discarded response
+     * @param target
+     *            Context receiving the payload
+     * @return True if target now has the JSON payload, false if payload
+     *         could not be moved and should be cloned instead
+     * @throws AxisFault
+     *             If setting the envelope fails
+     */
+    public static boolean transfer(MessageContext source, MessageContext target) throws AxisFault {
+        if (source == target) {
+            return JsonUtil.hasAJsonPayload(target);
+        }
+        List<String> names = getJsonPropertyNames(source);
+        if (names.isEmpty() || !JsonUtil.hasAJsonPayload(source)) {
+            // Payload is not held the way JsonUtil is known to hold it
+            return false;
+        }
+        for (String name : getJsonPropertyNames(target)) {
+            target.removeProperty(name);
+        }
+        for (String name : names) {
+            target.setProperty(name, source.getProperty(name));
+        }
+        target.setEnvelope(source.getEnvelope());
+        return JsonUtil.hasAJsonPayload(target);
+    }
+
+    /**
+     * Removes the JSON payload of given context and the elements of its SOAP
+     * body, leaving the empty body an Axis2 client sets for a response
+     * without entity.
+     * 
+     * @param axis2Ctx
+     *            Context whose payload is removed
+     */
+    public static void remove(MessageContext axis2Ctx) {
+        for (String name : getJsonPropertyNames(axis2Ctx)) {
+            axis2Ctx.removeProperty(name);
+        }
+        if (axis2Ctx.getEnvelope() != null && axis2Ctx.getEnvelope().getBody() != null) {
+            for (Iterator<?> itr = axis2Ctx.getEnvelope().getBody().getChildElements(); itr.hasNext();) {
+                ((OMNode) itr.next()).detach();
+            }
+        }
+    }
+
+    /**
+     * Replaces the JSON payload of given context with the value selected by
+     * given path.
+     * 
+     * @param axis2Ctx
+     *            Context containing JSON payload
+     * @param path
+     *            Path of the value to keep
+     * @throws AxisFault
+     *             If context has no JSON payload or path does not match it
+     */
+    public static void select(MessageContext axis2Ctx, JsonPath path) throws AxisFault {
+        if (!JsonUtil.hasAJsonPayload(axis2Ctx)) {
+            throw new AxisFault("Source JSONPath " + path + " requires a JSON payload");
+        }
+        PooledByteArrayOutputStream payload = write(axis2Ctx);
+        PooledByteArrayOutputStream selected = new PooledByteArrayOutputStream();
+        try {
+            if (!path.select(payload.getBuffer(), payload.size(), selected)) {
+                throw new AxisFault("Source JSONPath " + path + " did not match the payload");
+            }
+            // JsonUtil reads the payload lazily, so it is detached from the
+            // pool
+            JsonUtil.newJsonPayload(axis2Ctx, selected.detach(), true, true);
+        } catch (IllegalArgumentException e) {
+            throw new AxisFault("Error evaluating source JSONPath " + path + " : " + e.getMessage(), e);
+        } catch (AxisFault e) {
+            throw e;
+        } catch (IOException e) {
+            throw new AxisFault("Error evaluating source JSONPath " + path + " : " + e.getMessage(), e);
+        } finally {
+            payload.release();
+            selected.release();
+        }
+    }
+
+    /**
+     * Merges the JSON payload of given response into the JSON payload of
+     * given context at given path.
+     * 
+     * @param response
+     *            Context containing JSON response
+     * @param axis2Ctx
+     *            Context whose JSON payload is modified
+     * @param path
+     *            Path to set the response to
+     * @throws AxisFault
+     *             If context has no JSON payload or path does not match it
+     */
+    public static void merge(MessageContext response, MessageContext axis2Ctx, JsonPath path) throws AxisFault {
+        if (!JsonUtil.hasAJsonPayload(axis2Ctx)) {
+            throw new AxisFault("Target JSONPath " + path + " requires a JSON payload");
+        }
+        PooledByteArrayOutputStream value = write(response);
+        PooledByteArrayOutputStream current = null;
+        PooledByteArrayOutputStream merged = new PooledByteArrayOutputStream();
+        try {
+            current = write(axis2Ctx);
+            path.set(current.getBuffer(), current.size(), value.getBuffer(), value.size(), merged);
+            // JsonUtil reads the payload lazily, so it is detached from the
+            // pool
+            JsonUtil.newJsonPayload(axis2Ctx, merged.detach(), true, true);
+        } catch (IllegalArgumentException e) {
+            throw new AxisFault("Error merging JSON response at " + path + " : " + e.getMessage(), e);
+        } catch (AxisFault e) {
+            throw e;
+        } catch (IOException e) {
+            throw new AxisFault("Error merging JSON response at " + path + " : " + e.getMessage(), e);
+        } finally {
+            value.release();
+            if (current != null) {
+                current.release();
+            }
+            merged.release();
+        }
+    }
+
+    /**
+     * Merges the JSON payload of given response into given JSON text at given
+     * path.
+     * 
+     * @param response
+     *            Context containing JSON response
+     * @param json
+     *            JSON text to modify, e.g. of a message property
+     * @param path
+     *            Path to set the response to
+     * @return Modified JSON text
+     * @throws AxisFault
+     *             If path does not match the text
+     */
+    public static String merge(MessageContext response, String json, JsonPath path) throws AxisFault {
+        PooledByteArrayOutputStream value = write(response);
+        PooledByteArrayOutputStream merged = new PooledByteArrayOutputStream();
+        try {
+            byte[] text = json.getBytes("UTF-8");
+            path.set(text, text.length, value.getBuffer(), value.size(), merged);
+            return merged.toString("UTF-8");
+        } catch (IllegalArgumentException e) {
+            throw new AxisFault("Error merging JSON response at " + path + " : " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new AxisFault("Error merging JSON response at " + path + " : " + e.getMessage(), e);
+        } finally {
+            value.release();
+            merged.release();
+        }
+    }
+
+    /**
+     * Helper method to write JSON payload of given context as UTF-8 bytes into
+     * a pooled buffer without converting it to XML. The caller releases the
+     * buffer.
+     * 
+     * @param axis2Ctx
+     *            Context containing JSON payload
+     * @return Buffer containing the JSON text
+     * @throws AxisFault
+     *             If writing the payload fails
+     */
+    private static PooledByteArrayOutputStream write(MessageContext axis2Ctx) throws AxisFault {
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream();
+        try {
+            JsonUtil.writeAsJson(axis2Ctx, out);
+            return out;
+        } catch (IOException e) {
+            out.release();
+            throw new AxisFault("Error reading JSON payload : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Helper method to list JSON payload properties of given context.
+     * 
+     * @param msgCtx
+     *            Context to list properties of
+     * @return Names of the properties
+     */
+    private static List<String> getJsonPropertyNames(MessageContext msgCtx) {
+        List<String> names = new ArrayList<String>();
+        for (Iterator<String> itr = msgCtx.getPropertyNames(); itr.hasNext();) {
+            String name = itr.next();
+            if (name.startsWith(JSON_PROPERTY_PREFIX)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+}
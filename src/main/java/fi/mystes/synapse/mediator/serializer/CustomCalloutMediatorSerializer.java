@@ -15,27 +15,62 @@
  */
 package fi.mystes.synapse.mediator.serializer;
 
+import javax.xml.stream.XMLStreamException;
+
 import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.util.AXIOMUtil;
 import org.apache.synapse.Mediator;
 import org.apache.synapse.config.xml.AbstractMediatorSerializer;
 import org.apache.synapse.config.xml.SynapseXPathSerializer;
 import org.apache.synapse.config.xml.endpoints.EndpointSerializer;
 import org.apache.synapse.endpoints.Endpoint;
+import org.apache.synapse.util.xpath.SynapseXPath;
 import org.kohsuke.MetaInfServices;
 
+import fi.mystes.synapse.mediator.CalloutWarmUp;
 import fi.mystes.synapse.mediator.CustomCalloutMediator;
+import fi.mystes.synapse.mediator.RequestTemplate;
+import fi.mystes.synapse.mediator.balancer.LoadBalancer;
+import fi.mystes.synapse.mediator.cache.ResponseCacheConfiguration;
+import fi.mystes.synapse.mediator.capture.SlowCallCaptureConfiguration;
+import fi.mystes.synapse.mediator.compression.CompressionConfiguration;
+import fi.mystes.synapse.mediator.health.HealthCheckConfiguration;
+import fi.mystes.synapse.mediator.transport.ConnectionPoolConfiguration;
 
 /**
  * Mediator serializer class to transform mediator instance to OMElement
  * instance.
  * 
  * <pre>
- * &lt;customCallout serviceURL="string" | endpointKey="string" [action="string"] [initAxis2ClientOptions="boolean"]&gt;
+ * &lt;customCallout serviceURL="string" | endpointKey="string" [action="string"] [initAxis2ClientOptions="boolean"] [branchTimeout="long"] [transport="axis2|http"] [memoize="boolean"] [faultMode="full|stackless"] [encoding="xml|fastinfoset"]&gt;
  *      &lt;configuration [axis2xml="string"] [repository="string"]/&gt;?
+ *      &lt;connectionPool [maxConnectionsPerRoute="int"] [maxConnectionsTotal="int"] [leaseTimeout="long"]
+ *                      [idleTimeout="long"] [keepAlive="boolean"] [validateAfterInactivity="long"]
+ *                      [tlsSessionCacheSize="int"] [tlsSessionTimeout="long"] [protocol="http/1.1|h2c"]
+ *                      [maxConcurrentStreams="int"] [initialWindowSize="int"] [connectionWindowSize="int"]/&gt;?
+ *      &lt;warmUp [connections="int"] [pingMethod="string"] [iterations="int"] [timeout="long"]/&gt;?
+ *      &lt;responseCache [maxSize="long"] [timeToLive="long"] [file="string"] [varyHeaders="string"]/&gt;?
+ *      &lt;loadBalance [algorithm="leastLatency|roundRobin"] [demotionTime="long"]&gt;
+ *           &lt;member serviceURL="string"/&gt;+
+ *      &lt;/loadBalance&gt;?
+ *      &lt;healthCheck [interval="long"] [timeout="long"] [method="string"] [path="string"]
+ *                   [healthyThreshold="int"] [unhealthyThreshold="int"]/&gt;?
+ *      &lt;slowCallCapture [threshold="long"] [sampleRate="double"] [maxPayloadSize="int"] [capacity="int"]/&gt;?
+ *      &lt;compression [algorithm="gzip|deflate"] [threshold="int"] [level="int"] [acceptEncoding="boolean"]
+ *                   [maxResponseSize="int"]/&gt;?
  *      &lt;endpoint/&gt;?
- *      &lt;source xpath="expression" | key="string" | type="envelope" &gt;?
- *      &lt;target xpath="expression" | key="string"/&gt;?
+ *      &lt;source xpath="expression" | key="string" | jsonPath="string" | type="envelope" &gt;?
+ *           &lt;template [mediaType="xml|json"]&gt;payload with $1..$n&lt;/template&gt;?
+ *           &lt;args&gt;&lt;arg expression="xpath" | value="string"/&gt;*&lt;/args&gt;?
+ *      &lt;/source&gt;?
+ *      &lt;target xpath="expression" | key="string" | jsonPath="string" [key="string"]/&gt;?
  *      &lt;enableSec policy="string" | outboundPolicy="String" | inboundPolicy="String" /&gt;?
+ *      &lt;branch name="string" serviceURL="string" | endpointKey="string" [action="string"]&gt;
+ *           &lt;endpoint/&gt;?
+ *           &lt;source xpath="expression" | key="string" | jsonPath="string" | type="envelope" &gt;?
+ *           &lt;target xpath="expression" | key="string" | jsonPath="string" [key="string"]/&gt;?
+ *           &lt;enableSec policy="string" | outboundPolicy="String" | inboundPolicy="String" /&gt;?
+ *      &lt;/branch&gt;*
  * &lt;/customCallout&gt;
  * </pre>
  */
@@ -75,17 +110,70 @@ public class CustomCalloutMediatorSerializer extends AbstractMediatorSerializer
 
         setInitAxis2ClientOptionsToCalloutOnDemand(mediator, callout);
 
+        setTransportToCalloutOnDemand(mediator, callout);
+
+        setFaultModeToCalloutOnDemand(mediator, callout);
+        setEncodingToCalloutOnDemand(mediator, callout);
+
+        if (mediator.isMemoize()) {
+            callout.addAttribute(fac.createOMAttribute("memoize", nullNS, Boolean.toString(mediator.isMemoize())));
+        }
+
         setClientRepositoryToCalloutOnDemand(mediator, callout);
 
+        setConnectionPoolToCalloutOnDemand(mediator, callout);
+
+        setWarmUpToCalloutOnDemand(mediator, callout);
+
+        setResponseCacheToCalloutOnDemand(mediator, callout);
+
+        setLoadBalancerToCalloutOnDemand(mediator, callout);
+
+        setHealthCheckToCalloutOnDemand(mediator, callout);
+
+        setSlowCallCaptureToCalloutOnDemand(mediator, callout);
+
+        setCompressionToCalloutOnDemand(mediator, callout);
+
         setSourceToCalloutOnDemand(mediator, callout);
 
         setTargetToCalloutOnDemand(mediator, callout);
 
         enableSecurityAtCalloutOnDemand(mediator, callout);
 
+        setBranchesToCalloutOnDemand(mediator, callout);
+
         return callout;
     }
 
+    /**
+     * Helper method to set branches and their shared timeout to given
+     * OMElement callout.
+     * 
+     * @param mediator
+     *            Contains information about branches
+     * @param callout
+     *            To set branches to
+     */
+    private void setBranchesToCalloutOnDemand(CustomCalloutMediator mediator, OMElement callout) {
+        if (mediator.getBranchTimeout() > 0) {
+            callout.addAttribute(
+                    fac.createOMAttribute("branchTimeout", nullNS, Long.toString(mediator.getBranchTimeout())));
+        }
+        for (CustomCalloutMediator branch : mediator.getBranches()) {
+            OMElement branchElt = fac.createOMElement("branch", synNS, callout);
+            if (branch.getBranchName() != null) {
+                branchElt.addAttribute(fac.createOMAttribute("name", nullNS, branch.getBranchName()));
+            }
+            setEndpointKeyOrServiceUrlToCalloutOnDemand(branch, branchElt);
+            setEndpointToCalloutOnDemand(branch, branchElt);
+            setActionToCalloutOnDemand(branch, branchElt);
+            setSourceToCalloutOnDemand(branch, branchElt);
+            setTargetToCalloutOnDemand(branch, branchElt);
+            enableSecurityAtCalloutOnDemand(branch, branchElt);
+        }
+    }
+
     /**
      * Helper method to enable WS security on given OMElement callout.
      * 
@@ -123,7 +211,14 @@ public class CustomCalloutMediatorSerializer extends AbstractMediatorSerializer
      *            To set target to
      */
     private void setTargetToCalloutOnDemand(CustomCalloutMediator mediator, OMElement callout) {
-        if (mediator.getTargetXPath() != null) {
+        if (mediator.getTargetJsonPath() != null) {
+            OMElement target = fac.createOMElement("target", synNS, callout);
+            target.addAttribute(
+                    fac.createOMAttribute("jsonPath", nullNS, mediator.getTargetJsonPath().getExpression()));
+            if (mediator.getTargetKey() != null) {
+                target.addAttribute(fac.createOMAttribute("key", nullNS, mediator.getTargetKey()));
+            }
+        } else if (mediator.getTargetXPath() != null) {
             OMElement target = fac.createOMElement("target", synNS, callout);
             SynapseXPathSerializer.serializeXPath(mediator.getTargetXPath(), target, "xpath");
         } else if (mediator.getTargetKey() != null) {
@@ -144,6 +239,13 @@ public class CustomCalloutMediatorSerializer extends AbstractMediatorSerializer
         if (mediator.isUseEnvelopeAsSource()) {
             OMElement source = fac.createOMElement("source", synNS, callout);
             source.addAttribute(fac.createOMAttribute("type", nullNS, "envelope"));
+        } else if (mediator.getRequestTemplate() != null) {
+            OMElement source = fac.createOMElement("source", synNS, callout);
+            setRequestTemplateToSource(mediator.getRequestTemplate(), source);
+        } else if (mediator.getRequestJsonPath() != null) {
+            OMElement source = fac.createOMElement("source", synNS, callout);
+            source.addAttribute(
+                    fac.createOMAttribute("jsonPath", nullNS, mediator.getRequestJsonPath().getExpression()));
         } else if (mediator.getRequestXPath() != null) {
             OMElement source = fac.createOMElement("source", synNS, callout);
             SynapseXPathSerializer.serializeXPath(mediator.getRequestXPath(), source, "xpath");
@@ -153,6 +255,40 @@ public class CustomCalloutMediatorSerializer extends AbstractMediatorSerializer
         }
     }
 
+    /**
+     * Helper method to set request template and its arguments to given
+     * OMElement source.
+     * 
+     * @param template
+     *            Contains the template and arguments
+     * @param source
+     *            To set template to
+     */
+    private void setRequestTemplateToSource(RequestTemplate template, OMElement source) {
+        OMElement templateElt = fac.createOMElement("template", synNS, source);
+        templateElt.addAttribute(fac.createOMAttribute("mediaType", nullNS, template.getMediaType()));
+        if (RequestTemplate.MEDIA_TYPE_XML.equals(template.getMediaType())) {
+            try {
+                templateElt.addChild(AXIOMUtil.stringToOM(template.getTemplate()));
+            } catch (XMLStreamException e) {
+                handleException("Invalid Callout 'source' template : " + e.getMessage());
+            }
+        } else {
+            templateElt.setText(template.getTemplate());
+        }
+        if (!template.getArguments().isEmpty()) {
+            OMElement args = fac.createOMElement("args", synNS, source);
+            for (Object argument : template.getArguments()) {
+                OMElement arg = fac.createOMElement("arg", synNS, args);
+                if (argument instanceof SynapseXPath) {
+                    SynapseXPathSerializer.serializeXPath((SynapseXPath) argument, arg, "expression");
+                } else {
+                    arg.addAttribute(fac.createOMAttribute("value", nullNS, (String) argument));
+                }
+            }
+        }
+    }
+
     /**
      * Helper method to set client repository to given OMElement callout.
      * 
@@ -174,6 +310,212 @@ public class CustomCalloutMediatorSerializer extends AbstractMediatorSerializer
         }
     }
 
+    /**
+     * Helper method to set connection pool settings to given OMElement
+     * callout.
+     * 
+     * @param mediator
+     *            Contains information about connection pool
+     * @param callout
+     *            To set connection pool settings to
+     */
+    private void setConnectionPoolToCalloutOnDemand(CustomCalloutMediator mediator, OMElement callout) {
+        ConnectionPoolConfiguration pool = mediator.getConnectionPoolConfiguration();
+        if (pool != null) {
+            OMElement poolElt = fac.createOMElement("connectionPool", synNS, callout);
+            if (pool.getMaxConnectionsPerRoute() > 0) {
+                poolElt.addAttribute(fac.createOMAttribute("maxConnectionsPerRoute", nullNS,
+                        Integer.toString(pool.getMaxConnectionsPerRoute())));
+            }
+            if (pool.getMaxConnectionsTotal() > 0) {
+                poolElt.addAttribute(fac.createOMAttribute("maxConnectionsTotal", nullNS,
+                        Integer.toString(pool.getMaxConnectionsTotal())));
+            }
+            if (pool.getLeaseTimeout() > 0) {
+                poolElt.addAttribute(
+                        fac.createOMAttribute("leaseTimeout", nullNS, Long.toString(pool.getLeaseTimeout())));
+            }
+            if (pool.getIdleTimeout() > 0) {
+                poolElt.addAttribute(
+                        fac.createOMAttribute("idleTimeout", nullNS, Long.toString(pool.getIdleTimeout())));
+            }
+            if (!pool.isKeepAlive()) {
+                poolElt.addAttribute(fac.createOMAttribute("keepAlive", nullNS, Boolean.toString(pool.isKeepAlive())));
+            }
+            if (pool.getValidateAfterInactivity() > 0) {
+                poolElt.addAttribute(fac.createOMAttribute("validateAfterInactivity", nullNS,
+                        Long.toString(pool.getValidateAfterInactivity())));
+            }
+            if (pool.getTlsSessionCacheSize() > 0) {
+                poolElt.addAttribute(fac.createOMAttribute("tlsSessionCacheSize", nullNS,
+                        Integer.toString(pool.getTlsSessionCacheSize())));
+            }
+            if (pool.getTlsSessionTimeout() > 0) {
+                poolElt.addAttribute(fac.createOMAttribute("tlsSessionTimeout", nullNS,
+                        Long.toString(pool.getTlsSessionTimeout())));
+            }
+            if (!ConnectionPoolConfiguration.PROTOCOL_HTTP_1_1.equals(pool.getProtocol())) {
+                poolElt.addAttribute(fac.createOMAttribute("protocol", nullNS, pool.getProtocol()));
+            }
+            if (pool.getMaxConcurrentStreams() != ConnectionPoolConfiguration.DEFAULT_MAX_CONCURRENT_STREAMS) {
+                poolElt.addAttribute(fac.createOMAttribute("maxConcurrentStreams", nullNS,
+                        Integer.toString(pool.getMaxConcurrentStreams())));
+            }
+            if (pool.getInitialWindowSize() != ConnectionPoolConfiguration.DEFAULT_INITIAL_WINDOW_SIZE) {
+                poolElt.addAttribute(fac.createOMAttribute("initialWindowSize", nullNS,
+                        Integer.toString(pool.getInitialWindowSize())));
+            }
+            if (pool.getConnectionWindowSize() != ConnectionPoolConfiguration.DEFAULT_CONNECTION_WINDOW_SIZE) {
+                poolElt.addAttribute(fac.createOMAttribute("connectionWindowSize", nullNS,
+                        Integer.toString(pool.getConnectionWindowSize())));
+            }
+        }
+    }
+
+    /**
+     * Helper method to set warm-up settings to given OMElement callout.
+     * 
+     * @param mediator
+     *            Contains information about warm-up
+     * @param callout
+     *            To set warm-up settings to
+     */
+    private void setWarmUpToCalloutOnDemand(CustomCalloutMediator mediator, OMElement callout) {
+        CalloutWarmUp warmUp = mediator.getWarmUp();
+        if (warmUp != null) {
+            OMElement warmUpElt = fac.createOMElement("warmUp", synNS, callout);
+            warmUpElt.addAttribute(
+                    fac.createOMAttribute("connections", nullNS, Integer.toString(warmUp.getConnections())));
+            if (warmUp.getPingMethod() != null) {
+                warmUpElt.addAttribute(fac.createOMAttribute("pingMethod", nullNS, warmUp.getPingMethod()));
+            }
+            warmUpElt.addAttribute(
+                    fac.createOMAttribute("iterations", nullNS, Integer.toString(warmUp.getIterations())));
+            warmUpElt.addAttribute(fac.createOMAttribute("timeout", nullNS, Long.toString(warmUp.getTimeout())));
+        }
+    }
+
+    /**
+     * Helper method to set response cache settings to given OMElement callout.
+     * 
+     * @param mediator
+     *            Contains information about response cache
+     * @param callout
+     *            To set response cache settings to
+     */
+    private void setResponseCacheToCalloutOnDemand(CustomCalloutMediator mediator, OMElement callout) {
+        ResponseCacheConfiguration cache = mediator.getResponseCacheConfiguration();
+        if (cache != null) {
+            OMElement cacheElt = fac.createOMElement("responseCache", synNS, callout);
+            cacheElt.addAttribute(fac.createOMAttribute("maxSize", nullNS, Long.toString(cache.getMaxSize())));
+            if (cache.getTimeToLive() > 0) {
+                cacheElt.addAttribute(
+                        fac.createOMAttribute("timeToLive", nullNS, Long.toString(cache.getTimeToLive())));
+            }
+            if (cache.getFile() != null) {
+                cacheElt.addAttribute(fac.createOMAttribute("file", nullNS, cache.getFile()));
+            }
+            StringBuilder varyHeaders = new StringBuilder();
+            for (String name : cache.getVaryHeaders()) {
+                varyHeaders.append(varyHeaders.length() > 0 ? "," : "").append(name);
+            }
+            cacheElt.addAttribute(fac.createOMAttribute("varyHeaders", nullNS, varyHeaders.toString()));
+        }
+    }
+
+    /**
+     * Helper method to set load balancer to given OMElement callout.
+     * 
+     * @param mediator
+     *            Contains information about load balancer
+     * @param callout
+     *            To set load balancer to
+     */
+    private void setLoadBalancerToCalloutOnDemand(CustomCalloutMediator mediator, OMElement callout) {
+        LoadBalancer balancer = mediator.getLoadBalancer();
+        if (balancer != null) {
+            OMElement balanceElt = fac.createOMElement("loadBalance", synNS, callout);
+            balanceElt.addAttribute(fac.createOMAttribute("algorithm", nullNS, balancer.getAlgorithm()));
+            balanceElt.addAttribute(
+                    fac.createOMAttribute("demotionTime", nullNS, Long.toString(balancer.getDemotionTime())));
+            for (LoadBalancer.Member member : balancer.getMembers()) {
+                OMElement memberElt = fac.createOMElement("member", synNS, balanceElt);
+                memberElt.addAttribute(fac.createOMAttribute("serviceURL", nullNS, member.getAddress()));
+            }
+        }
+    }
+
+    /**
+     * Helper method to set health check settings to given OMElement callout.
+     * 
+     * @param mediator
+     *            Contains information about health check
+     * @param callout
+     *            To set health check settings to
+     */
+    private void setHealthCheckToCalloutOnDemand(CustomCalloutMediator mediator, OMElement callout) {
+        HealthCheckConfiguration health = mediator.getHealthCheckConfiguration();
+        if (health != null) {
+            OMElement healthElt = fac.createOMElement("healthCheck", synNS, callout);
+            healthElt.addAttribute(fac.createOMAttribute("interval", nullNS, Long.toString(health.getInterval())));
+            healthElt.addAttribute(fac.createOMAttribute("timeout", nullNS, Long.toString(health.getTimeout())));
+            healthElt.addAttribute(fac.createOMAttribute("method", nullNS, health.getMethod()));
+            if (health.getPath() != null) {
+                healthElt.addAttribute(fac.createOMAttribute("path", nullNS, health.getPath()));
+            }
+            healthElt.addAttribute(fac.createOMAttribute("healthyThreshold", nullNS,
+                    Integer.toString(health.getHealthyThreshold())));
+            healthElt.addAttribute(fac.createOMAttribute("unhealthyThreshold", nullNS,
+                    Integer.toString(health.getUnhealthyThreshold())));
+        }
+    }
+
+    /**
+     * Helper method to set slow call capture to given OMElement callout.
+     * 
+     * @param mediator
+     *            Contains information about slow call capture
+     * @param callout
+     *            To set slow call capture to
+     */
+    private void setSlowCallCaptureToCalloutOnDemand(CustomCalloutMediator mediator, OMElement callout) {
+        SlowCallCaptureConfiguration capture = mediator.getSlowCallCaptureConfiguration();
+        if (capture != null) {
+            OMElement captureElt = fac.createOMElement("slowCallCapture", synNS, callout);
+            captureElt.addAttribute(fac.createOMAttribute("threshold", nullNS, Long.toString(capture.getThreshold())));
+            captureElt.addAttribute(
+                    fac.createOMAttribute("sampleRate", nullNS, Double.toString(capture.getSampleRate())));
+            captureElt.addAttribute(fac.createOMAttribute("maxPayloadSize", nullNS,
+                    Integer.toString(capture.getMaxPayloadSize())));
+            captureElt.addAttribute(
+                    fac.createOMAttribute("capacity", nullNS, Integer.toString(capture.getCapacity())));
+        }
+    }
+
+    /**
+     * Helper method to set compression to given OMElement callout.
+     * 
+     * @param mediator
+     *            Contains information about compression
+     * @param callout
+     *            To set compression to
+     */
+    private void setCompressionToCalloutOnDemand(CustomCalloutMediator mediator, OMElement callout) {
+        CompressionConfiguration compression = mediator.getCompressionConfiguration();
+        if (compression != null) {
+            OMElement compressionElt = fac.createOMElement("compression", synNS, callout);
+            compressionElt.addAttribute(fac.createOMAttribute("algorithm", nullNS, compression.getAlgorithm()));
+            compressionElt.addAttribute(
+                    fac.createOMAttribute("threshold", nullNS, Integer.toString(compression.getThreshold())));
+            compressionElt.addAttribute(
+                    fac.createOMAttribute("level", nullNS, Integer.toString(compression.getLevel())));
+            compressionElt.addAttribute(fac.createOMAttribute("acceptEncoding", nullNS,
+                    Boolean.toString(compression.isAcceptEncoding())));
+            compressionElt.addAttribute(fac.createOMAttribute("maxResponseSize", nullNS,
+                    Integer.toString(compression.getMaxResponseSize())));
+        }
+    }
+
     /**
      * Helper method to set Axis2 client options to given OMElement callout.
      * 
@@ -189,6 +531,48 @@ public class CustomCalloutMediatorSerializer extends AbstractMediatorSerializer
         }
     }
 
+    /**
+     * Helper method to set transport to given OMElement callout.
+     * 
+     * @param mediator
+     *            Contains information about transport
+     * @param callout
+     *            To set transport to
+     */
+    private void setTransportToCalloutOnDemand(CustomCalloutMediator mediator, OMElement callout) {
+        if (!CustomCalloutMediator.TRANSPORT_AXIS2.equals(mediator.getTransport())) {
+            callout.addAttribute(fac.createOMAttribute("transport", nullNS, mediator.getTransport()));
+        }
+    }
+
+    /**
+     * Helper method to set fault mode to given OMElement callout.
+     * 
+     * @param mediator
+     *            Contains information about fault mode
+     * @param callout
+     *            To set fault mode to
+     */
+    private void setFaultModeToCalloutOnDemand(CustomCalloutMediator mediator, OMElement callout) {
+        if (!CustomCalloutMediator.FAULT_MODE_FULL.equals(mediator.getFaultMode())) {
+            callout.addAttribute(fac.createOMAttribute("faultMode", nullNS, mediator.getFaultMode()));
+        }
+    }
+
+    /**
+     * Helper method to set encoding to given OMElement callout.
+     * 
+     * @param mediator
+     *            Contains information about encoding
+     * @param callout
+     *            To set encoding to
+     */
+    private void setEncodingToCalloutOnDemand(CustomCalloutMediator mediator, OMElement callout) {
+        if (!CustomCalloutMediator.ENCODING_XML.equals(mediator.getEncoding())) {
+            callout.addAttribute(fac.createOMAttribute("encoding", nullNS, mediator.getEncoding()));
+        }
+    }
+
     /**
      * Helper method to set use server configuration to given OMElement callout.
      * 
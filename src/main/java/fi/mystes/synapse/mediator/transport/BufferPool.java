@@ -0,0 +1,161 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays in power of four size classes from 4 KB to 1 MB, used
+ * for serializing outgoing payloads and reading responses without allocating
+ * new arrays for every callout. Arrays larger than the largest class are not
+ * pooled. Memory retained by idle arrays is capped, arrays released beyond the
+ * cap are left to the garbage collector.
+ */
+public class BufferPool {
+
+    public static final String MAX_RETAINED_PROPERTY = "fi.mystes.customCallout.bufferPool.maxRetained";
+    public static final long DEFAULT_MAX_RETAINED = 16L * 1024 * 1024;
+
+    static final int[] SIZE_CLASSES = { 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024 };
+
+    private static final BufferPool DEFAULT = new BufferPool(
+            Long.getLong(MAX_RETAINED_PROPERTY, DEFAULT_MAX_RETAINED));
+
+    private final Queue<byte[]>[] pools;
+    private final long maxRetained;
+    private final AtomicLong retained = new AtomicLong();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * Constructor for pool retaining at most given amount of idle memory.
+     * 
+     * @param maxRetained
+     *            Maximum bytes in idle arrays, 0 to disable pooling
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public BufferPool(long maxRetained) {
+        this.maxRetained = maxRetained;
+        pools = new Queue[SIZE_CLASSES.length];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ConcurrentLinkedQueue<byte[]>();
+        }
+    }
+
+    /**
+     * Getter for the pool shared by all mediators.
+     * 
+     * @return Shared pool
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Takes an array of at least given size.
+     * 
+     * @param minSize
+     *            Minimum length of the array
+     * @return Pooled or new array which should be given back with
+     *         {@link #release(byte[])}
+     */
+    public byte[] acquire(int minSize) {
+        acquisitions.incrementAndGet();
+        int sizeClass = getSizeClass(minSize);
+        if (sizeClass < 0) {
+            return new byte[minSize];
+        }
+        byte[] buffer = pools[sizeClass].poll();
+        if (buffer != null) {
+            retained.addAndGet(-buffer.length);
+            hits.incrementAndGet();
+            return buffer;
+        }
+        return new byte[SIZE_CLASSES[sizeClass]];
+    }
+
+    /**
+     * Gives an array back to the pool.
+     * 
+     * @param buffer
+     *            Array taken with {@link #acquire(int)}
+     */
+    public void release(byte[] buffer) {
+        int sizeClass = getSizeClass(buffer.length);
+        if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != buffer.length) {
+            return;
+        }
+        if (retained.addAndGet(buffer.length) > maxRetained) {
+            retained.addAndGet(-buffer.length);
+            discarded.incrementAndGet();
+            return;
+        }
+        pools[sizeClass].offer(buffer);
+    }
+
+    /**
+     * Helper method to find smallest size class fitting given size.
+     * 
+     * @return Index of the size class or -1 if size is not pooled
+     */
+    private static int getSizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Number of arrays taken
+     */
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    /**
+     * @return Number of arrays taken from the pool instead of allocated
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Share of arrays taken from the pool, 0 if none taken yet
+     */
+    public double getHitRate() {
+        long total = acquisitions.get();
+        return total > 0 ? (double) hits.get() / total : 0;
+    }
+
+    /**
+     * @return Bytes currently retained in idle arrays
+     */
+    public long getRetainedBytes() {
+        return retained.get();
+    }
+
+    /**
+     * @return Number of released arrays dropped because of the retention cap
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+}
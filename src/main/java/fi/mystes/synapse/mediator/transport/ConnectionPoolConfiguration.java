@@ -0,0 +1,297 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+/**
+ * Settings of {@link HttpConnectionPool}.
+ * 
+ * <pre>
+ * &lt;connectionPool [maxConnectionsPerRoute="int"] [maxConnectionsTotal="int"] [leaseTimeout="long"]
+ *      [idleTimeout="long"] [keepAlive="boolean"] [validateAfterInactivity="long"]
+ *      [tlsSessionCacheSize="int"] [tlsSessionTimeout="long"] [protocol="http/1.1|h2c"]
+ *      [maxConcurrentStreams="int"] [initialWindowSize="int"] [connectionWindowSize="int"]/&gt;
+ * </pre>
+ */
+public class ConnectionPoolConfiguration {
+
+    public static final String PROTOCOL_HTTP_1_1 = "http/1.1";
+    public static final String PROTOCOL_H2C = "h2c";
+
+    public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+    public static final int DEFAULT_INITIAL_WINDOW_SIZE = 65535;
+    public static final int DEFAULT_CONNECTION_WINDOW_SIZE = 1024 * 1024;
+
+    private int maxConnectionsPerRoute = 0;
+    private int maxConnectionsTotal = 0;
+    private long leaseTimeout = 0;
+    private long idleTimeout = 0;
+    private boolean keepAlive = true;
+    private long validateAfterInactivity = 0;
+    private int tlsSessionCacheSize = 0;
+    private long tlsSessionTimeout = 0;
+    private String protocol = PROTOCOL_HTTP_1_1;
+    private int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+    private int initialWindowSize = DEFAULT_INITIAL_WINDOW_SIZE;
+    private int connectionWindowSize = DEFAULT_CONNECTION_WINDOW_SIZE;
+
+    /**
+     * Getter for maximum number of connections to one route. Concurrent
+     * callouts exceeding the limit wait for a connection to be released.
+     * 
+     * @return Maximum connections per route, 0 for unlimited
+     */
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * Setter for maximum number of connections to one route.
+     * 
+     * @param maxConnectionsPerRoute
+     *            Maximum connections per route, 0 for unlimited
+     */
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * Getter for maximum number of leased connections over all routes.
+     * 
+     * @return Maximum connections in total, 0 for unlimited
+     */
+    public int getMaxConnectionsTotal() {
+        return maxConnectionsTotal;
+    }
+
+    /**
+     * Setter for maximum number of leased connections over all routes.
+     * 
+     * @param maxConnectionsTotal
+     *            Maximum connections in total, 0 for unlimited
+     */
+    public void setMaxConnectionsTotal(int maxConnectionsTotal) {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
+    /**
+     * Getter for time waited for a free connection when limit is reached.
+     * 
+     * @return Lease timeout in milliseconds, 0 for connect timeout
+     */
+    public long getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    /**
+     * Setter for time waited for a free connection when limit is reached.
+     * 
+     * @param leaseTimeout
+     *            Lease timeout in milliseconds, 0 for connect timeout
+     */
+    public void setLeaseTimeout(long leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     * Getter for time after which an idle connection is evicted.
+     * 
+     * @return Idle timeout in milliseconds, 0 to keep idle connections
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Setter for time after which an idle connection is evicted.
+     * 
+     * @param idleTimeout
+     *            Idle timeout in milliseconds, 0 to keep idle connections
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Whether connections are kept alive between callouts.
+     * 
+     * @return True if connections are reused
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Setter for keep alive flag.
+     * 
+     * @param keepAlive
+     *            False to close connection after each callout
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Getter for idle time after which a pooled connection is checked for
+     * being closed by the server before reuse.
+     * 
+     * @return Inactivity in milliseconds, 0 to check always
+     */
+    public long getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    /**
+     * Setter for idle time after which a pooled connection is checked before
+     * reuse.
+     * 
+     * @param validateAfterInactivity
+     *            Inactivity in milliseconds, 0 to check always
+     */
+    public void setValidateAfterInactivity(long validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+    }
+
+    /**
+     * Getter for maximum number of TLS sessions cached for resumption.
+     * 
+     * @return Session cache size, 0 for JSSE default
+     */
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    /**
+     * Setter for maximum number of TLS sessions cached for resumption.
+     * 
+     * @param tlsSessionCacheSize
+     *            Session cache size, 0 for JSSE default
+     */
+    public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+    }
+
+    /**
+     * Getter for time a cached TLS session can be resumed.
+     * 
+     * @return Session timeout in milliseconds, 0 for JSSE default
+     */
+    public long getTlsSessionTimeout() {
+        return tlsSessionTimeout;
+    }
+
+    /**
+     * Setter for time a cached TLS session can be resumed.
+     * 
+     * @param tlsSessionTimeout
+     *            Session timeout in milliseconds, 0 for JSSE default
+     */
+    public void setTlsSessionTimeout(long tlsSessionTimeout) {
+        this.tlsSessionTimeout = tlsSessionTimeout;
+    }
+
+    /**
+     * Getter for protocol of plain http routes. With "h2c" concurrent callouts
+     * are multiplexed over HTTP/2 connections opened with prior knowledge,
+     * falling back to HTTP/1.1 if the server does not speak HTTP/2.
+     * 
+     * @return Either "http/1.1" or "h2c"
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Setter for protocol of plain http routes.
+     * 
+     * @param protocol
+     *            Either "http/1.1" or "h2c"
+     */
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Getter for maximum number of concurrent streams opened on one HTTP/2
+     * connection. The lower limit of this and the server setting applies.
+     * 
+     * @return Maximum concurrent streams per connection
+     */
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * Setter for maximum number of concurrent streams on one HTTP/2
+     * connection.
+     * 
+     * @param maxConcurrentStreams
+     *            Maximum concurrent streams per connection
+     */
+    public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    /**
+     * Getter for HTTP/2 flow control window of each response stream, i.e.
+     * bytes the server may send on a stream before it is given more credit.
+     * 
+     * @return Stream receive window in bytes
+     */
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+    /**
+     * Setter for HTTP/2 flow control window of each response stream.
+     * 
+     * @param initialWindowSize
+     *            Stream receive window in bytes
+     */
+    public void setInitialWindowSize(int initialWindowSize) {
+        this.initialWindowSize = initialWindowSize;
+    }
+
+    /**
+     * Getter for HTTP/2 flow control window shared by all response streams of
+     * a connection.
+     * 
+     * @return Connection receive window in bytes
+     */
+    public int getConnectionWindowSize() {
+        return connectionWindowSize;
+    }
+
+    /**
+     * Setter for HTTP/2 flow control window shared by all response streams
+     * of a connection.
+     * 
+     * @param connectionWindowSize
+     *            Connection receive window in bytes
+     */
+    public void setConnectionWindowSize(int connectionWindowSize) {
+        this.connectionWindowSize = connectionWindowSize;
+    }
+
+    @Override
+    public String toString() {
+        return "maxConnectionsPerRoute=" + maxConnectionsPerRoute + ",maxConnectionsTotal=" + maxConnectionsTotal
+                + ",leaseTimeout=" + leaseTimeout + ",idleTimeout=" + idleTimeout + ",keepAlive=" + keepAlive
+                + ",validateAfterInactivity=" + validateAfterInactivity + ",tlsSessionCacheSize=" + tlsSessionCacheSize
+                + ",tlsSessionTimeout=" + tlsSessionTimeout + ",protocol=" + protocol + ",maxConcurrentStreams="
+                + maxConcurrentStreams + ",initialWindowSize=" + initialWindowSize + ",connectionWindowSize="
+                + connectionWindowSize;
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lease statistics of one route of {@link HttpConnectionPool}.
+ */
+public class ConnectionPoolStatistics {
+
+    /**
+     * Upper bounds in milliseconds of lease wait time histogram buckets. The
+     * last histogram bucket counts waits of at least the last bound.
+     */
+    public static final long[] LEASE_WAIT_BUCKETS = { 1, 5, 10, 50, 100, 500, 1000 };
+
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong failedLeases = new AtomicLong();
+    private final AtomicLongArray leaseWaitHistogram = new AtomicLongArray(LEASE_WAIT_BUCKETS.length + 1);
+
+    void leaseRequested() {
+        pending.incrementAndGet();
+    }
+
+    void leaseCompleted(long waitMillis) {
+        pending.decrementAndGet();
+        leased.incrementAndGet();
+        leases.incrementAndGet();
+        leaseWaitHistogram.incrementAndGet(getBucket(waitMillis));
+    }
+
+    void leaseFailed() {
+        pending.decrementAndGet();
+        failedLeases.incrementAndGet();
+    }
+
+    void leaseCancelled() {
+        pending.decrementAndGet();
+    }
+
+    void released() {
+        leased.decrementAndGet();
+    }
+
+    /**
+     * Helper method to find histogram bucket of given wait time.
+     * 
+     * @param waitMillis
+     *            Wait time in milliseconds
+     * @return Index of the bucket
+     */
+    static int getBucket(long waitMillis) {
+        for (int i = 0; i < LEASE_WAIT_BUCKETS.length; i++) {
+            if (waitMillis < LEASE_WAIT_BUCKETS[i]) {
+                return i;
+            }
+        }
+        return LEASE_WAIT_BUCKETS.length;
+    }
+
+    /**
+     * Getter for number of connections currently leased.
+     * 
+     * @return Leased connections
+     */
+    public int getLeased() {
+        return leased.get();
+    }
+
+    /**
+     * Getter for number of callers currently waiting for a connection.
+     * 
+     * @return Pending leases
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Getter for total number of successful leases.
+     * 
+     * @return Lease count
+     */
+    public long getLeases() {
+        return leases.get();
+    }
+
+    /**
+     * Getter for total number of leases failed by timeout or connect error.
+     * 
+     * @return Failed lease count
+     */
+    public long getFailedLeases() {
+        return failedLeases.get();
+    }
+
+    /**
+     * Getter for lease wait time histogram.
+     * 
+     * @return Counts per bucket of {@link #LEASE_WAIT_BUCKETS}
+     */
+    public long[] getLeaseWaitHistogram() {
+        long[] histogram = new long[leaseWaitHistogram.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = leaseWaitHistogram.get(i);
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Decoder of HPACK header blocks (RFC 7541) received on an HTTP/2 connection,
+ * supporting the static and dynamic tables and Huffman coded strings. Header
+ * blocks of one connection share the dynamic table and must be decoded in the
+ * order they were received, so a decoder is used by the reader thread of its
+ * connection only.
+ */
+class HpackDecoder {
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    static final String[][] STATIC_TABLE = { { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" },
+            { ":path", "/" }, { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" },
+            { ":status", "200" }, { ":status", "204" }, { ":status", "206" }, { ":status", "304" },
+            { ":status", "400" }, { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+            { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+            { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+            { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+            { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+            { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" },
+            { "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" },
+            { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" }, { "location", "" },
+            { "max-forwards", "" }, { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+            { "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+            { "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" },
+            { "vary", "" }, { "via", "" }, { "www-authenticate", "" } };
+
+    static final String CHARSET = "ISO-8859-1";
+
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final int EOS = 256;
+
+    /**
+     * Code lengths of the canonical Huffman code of RFC 7541 Appendix B per
+     * octet, followed by end of string.
+     */
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    /**
+     * Huffman decoding tree, children of node n at 2n and 2n + 1. Positive
+     * values are inner nodes, negative values symbols as -1 - symbol and 0
+     * is a missing child.
+     */
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+    private final LinkedList<String[]> dynamicTable = new LinkedList<String[]>();
+    private final int maxTableSize;
+    private final int maxHeaderListSize;
+    private int tableSizeLimit;
+    private int tableSize = 0;
+
+    /**
+     * Constructor for decoder of given table and header list limits.
+     * 
+     * @param maxTableSize
+     *            Maximum dynamic table size advertised to the peer
+     * @param maxHeaderListSize
+     *            Maximum decoded size of one header block
+     */
+    HpackDecoder(int maxTableSize, int maxHeaderListSize) {
+        this.maxTableSize = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+        this.tableSizeLimit = maxTableSize;
+    }
+
+    /**
+     * Helper method to build the decoding tree of the canonical Huffman code,
+     * where codes of equal length are consecutive in symbol order.
+     */
+    private static int[] buildHuffmanTree() {
+        int[] tree = new int[2 * 2 * (EOS + 1)];
+        int nodes = 1;
+        int code = 0;
+        int previousLength = 0;
+        for (int length = 1; length <= 30; length++) {
+            for (int symbol = 0; symbol <= EOS; symbol++) {
+                if (HUFFMAN_LENGTHS[symbol] != length) {
+                    continue;
+                }
+                if (previousLength > 0) {
+                    code = (code + 1) << (length - previousLength);
+                }
+                previousLength = length;
+                int node = 0;
+                for (int bit = length - 1; bit > 0; bit--) {
+                    int child = 2 * node + ((code >>> bit) & 1);
+                    if (tree[child] == 0) {
+                        tree[child] = nodes++;
+                    }
+                    node = tree[child];
+                }
+                tree[2 * node + (code & 1)] = -1 - symbol;
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Decodes given header block.
+     * 
+     * @param block
+     *            Array containing the header block
+     * @param length
+     *            Length of the block from the start of the array
+     * @return Header names and values in the order received
+     * @throws IOException
+     *             If the block is malformed or exceeds the header list limit
+     */
+    List<String[]> decode(byte[] block, int length) throws IOException {
+        List<String[]> headers = new ArrayList<String[]>();
+        int[] position = { 0 };
+        int listSize = 0;
+        while (position[0] < length) {
+            int b = block[position[0]] & 0xff;
+            String[] header;
+            if ((b & 0x80) != 0) {
+                header = getEntry(decodeInteger(block, length, position, 7));
+            } else if ((b & 0x40) != 0) {
+                header = decodeLiteral(block, length, position, 6);
+                addEntry(header);
+            } else if ((b & 0x20) != 0) {
+                if (!headers.isEmpty()) {
+                    throw new IOException("HPACK table size update after header field");
+                }
+                int size = decodeInteger(block, length, position, 5);
+                if (size > maxTableSize) {
+                    throw new IOException("HPACK table size " + size + " exceeds " + maxTableSize);
+                }
+                tableSizeLimit = size;
+                evict(0);
+                continue;
+            } else {
+                // Literal without indexing or never indexed
+                header = decodeLiteral(block, length, position, 4);
+            }
+            listSize += header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+            if (listSize > maxHeaderListSize) {
+                throw new IOException("HTTP/2 header list exceeds " + maxHeaderListSize + " bytes");
+            }
+            headers.add(header);
+        }
+        return headers;
+    }
+
+    /**
+     * Helper method to decode a literal header field whose name is either
+     * indexed with given prefix or follows as a string.
+     */
+    private String[] decodeLiteral(byte[] block, int length, int[] position, int prefix) throws IOException {
+        int index = decodeInteger(block, length, position, prefix);
+        String name = index > 0 ? getEntry(index)[0] : decodeString(block, length, position);
+        return new String[] { name, decodeString(block, length, position) };
+    }
+
+    /**
+     * Helper method to decode an integer of given prefix bits starting at
+     * given position, which is advanced past it.
+     */
+    static int decodeInteger(byte[] block, int length, int[] position, int prefix) throws IOException {
+        int max = (1 << prefix) - 1;
+        int value = block[position[0]++] & max;
+        if (value < max) {
+            return value;
+        }
+        for (int shift = 0; shift <= 28; shift += 7) {
+            if (position[0] >= length) {
+                throw new IOException("Truncated HPACK integer");
+            }
+            int b = block[position[0]++] & 0xff;
+            long result = value + ((long) (b & 0x7f) << shift);
+            if (result > Integer.MAX_VALUE) {
+                break;
+            }
+            value = (int) result;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("HPACK integer overflow");
+    }
+
+    /**
+     * Helper method to decode a string literal, Huffman coded or raw.
+     */
+    private static String decodeString(byte[] block, int length, int[] position) throws IOException {
+        if (position[0] >= length) {
+            throw new IOException("Truncated HPACK string");
+        }
+        boolean huffman = (block[position[0]] & 0x80) != 0;
+        int stringLength = decodeInteger(block, length, position, 7);
+        if (stringLength > length - position[0]) {
+            throw new IOException("Truncated HPACK string");
+        }
+        int start = position[0];
+        position[0] += stringLength;
+        return huffman ? decodeHuffman(block, start, stringLength) : new String(block, start, stringLength, CHARSET);
+    }
+
+    /**
+     * Helper method to decode a Huffman coded string. Padding must be the
+     * most significant bits of end of string, i.e. at most seven 1 bits.
+     */
+    static String decodeHuffman(byte[] data, int offset, int length) throws IOException {
+        StringBuilder decoded = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0;
+        boolean ones = true;
+        for (int i = offset; i < offset + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                int value = (data[i] >>> bit) & 1;
+                int child = HUFFMAN_TREE[2 * node + value];
+                depth++;
+                ones &= value == 1;
+                if (child < 0) {
+                    int symbol = -1 - child;
+                    if (symbol == EOS) {
+                        throw new IOException("Huffman coded end of string in HPACK string");
+                    }
+                    decoded.append((char) symbol);
+                    node = 0;
+                    depth = 0;
+                    ones = true;
+                } else if (child == 0) {
+                    throw new IOException("Invalid Huffman code in HPACK string");
+                } else {
+                    node = child;
+                }
+            }
+        }
+        if (depth > 7 || !ones) {
+            throw new IOException("Invalid Huffman padding in HPACK string");
+        }
+        return decoded.toString();
+    }
+
+    /**
+     * Helper method to look up an entry of the static or dynamic table.
+     */
+    private String[] getEntry(int index) throws IOException {
+        if (index <= 0 || index > STATIC_TABLE.length + dynamicTable.size()) {
+            throw new IOException("Invalid HPACK table index " + index);
+        }
+        return index <= STATIC_TABLE.length ? STATIC_TABLE[index - 1]
+                : dynamicTable.get(index - STATIC_TABLE.length - 1);
+    }
+
+    /**
+     * Helper method to insert given header to the dynamic table, evicting
+     * the oldest entries that no longer fit.
+     */
+    private void addEntry(String[] header) {
+        int size = header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+        evict(size);
+        if (size <= tableSizeLimit) {
+            dynamicTable.addFirst(header);
+            tableSize += size;
+        }
+    }
+
+    /**
+     * Helper method to evict oldest entries until given space is free.
+     */
+    private void evict(int space) {
+        while (!dynamicTable.isEmpty() && tableSize + space > tableSizeLimit) {
+            String[] oldest = dynamicTable.removeLast();
+            tableSize -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Getter for current size of the dynamic table.
+     * 
+     * @return Size in octets as defined by HPACK
+     */
+    int getTableSize() {
+        return tableSize;
+    }
+}
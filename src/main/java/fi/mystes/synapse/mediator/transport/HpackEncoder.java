@@ -0,0 +1,89 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encoder of HPACK header blocks (RFC 7541) sent on an HTTP/2 connection.
+ * Every header is sent as a literal without indexing and strings are not
+ * Huffman coded, so the encoder keeps no state and the dynamic table of the
+ * peer is never used. Names found in the static table are sent as indexes.
+ */
+class HpackEncoder {
+
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+
+    static {
+        for (int i = HpackDecoder.STATIC_TABLE.length; i > 0; i--) {
+            STATIC_NAMES.put(HpackDecoder.STATIC_TABLE[i - 1][0], Integer.valueOf(i));
+        }
+    }
+
+    /**
+     * Appends given header as a literal without indexing to given block.
+     * 
+     * @param name
+     *            Lower case header name
+     * @param value
+     *            Header value
+     * @param block
+     *            Header block being encoded
+     * @throws IOException
+     *             If encoding the strings fails
+     */
+    void encode(String name, String value, ByteArrayOutputStream block) throws IOException {
+        Integer index = STATIC_NAMES.get(name);
+        if (index != null) {
+            encodeInteger(index.intValue(), 4, 0x00, block);
+        } else {
+            block.write(0x00);
+            encodeString(name, block);
+        }
+        encodeString(value, block);
+    }
+
+    /**
+     * Helper method to append an integer of given prefix bits, the remaining
+     * high bits of the first octet taken from given pattern.
+     */
+    static void encodeInteger(int value, int prefix, int pattern, ByteArrayOutputStream block) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            block.write(pattern | value);
+            return;
+        }
+        block.write(pattern | max);
+        value -= max;
+        while (value >= 0x80) {
+            block.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        block.write(value);
+    }
+
+    /**
+     * Helper method to append a raw string literal.
+     */
+    private static void encodeString(String value, ByteArrayOutputStream block) throws IOException {
+        byte[] bytes = value.getBytes(HpackDecoder.CHARSET);
+        encodeInteger(bytes.length, 7, 0x00, block);
+        block.write(bytes);
+    }
+}
@@ -0,0 +1,1148 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * HTTP/2 client connection over plain TCP with prior knowledge (h2c, RFC 7540
+ * section 3.4). Concurrent requests are multiplexed as streams over one
+ * socket, limited by the maximum concurrent streams of both ends, and bodies
+ * are flow controlled in both directions with WINDOW_UPDATE frames. A reader
+ * thread dispatches received frames to the waiting requests and a writer
+ * thread sends queued frames, so that neither a request nor the reader ever
+ * holds a lock while the socket is blocked in a write. When a request times
+ * out, the connection is checked with a PING and failed unless the server
+ * acknowledges it in time, so that a half-open connection is not reused.
+ * Thread safe,
+ * streams are reserved with {@link #tryReserveStream()} via
+ * {@link HttpConnectionPool}.
+ */
+public class Http2Connection implements Closeable {
+
+    private static final Log log = LogFactory.getLog(Http2Connection.class);
+
+    public static final String PING_TIMEOUT_PROPERTY = "fi.mystes.customCallout.http2PingTimeout";
+    public static final long DEFAULT_PING_TIMEOUT = 5000;
+
+    static final byte[] PREFACE = { 'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+            '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n' };
+
+    static final int TYPE_DATA = 0x0;
+    static final int TYPE_HEADERS = 0x1;
+    static final int TYPE_PRIORITY = 0x2;
+    static final int TYPE_RST_STREAM = 0x3;
+    static final int TYPE_SETTINGS = 0x4;
+    static final int TYPE_PUSH_PROMISE = 0x5;
+    static final int TYPE_PING = 0x6;
+    static final int TYPE_GOAWAY = 0x7;
+    static final int TYPE_WINDOW_UPDATE = 0x8;
+    static final int TYPE_CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    static final int ERROR_NO_ERROR = 0x0;
+    static final int ERROR_PROTOCOL = 0x1;
+    static final int ERROR_FLOW_CONTROL = 0x3;
+    static final int ERROR_FRAME_SIZE = 0x6;
+    static final int ERROR_CANCEL = 0x8;
+
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    static final int MAX_HEADER_LIST_SIZE = 65536;
+
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    private static final int LAST_STREAM_ID = Integer.MAX_VALUE;
+    private static final long GOAWAY_TIMEOUT = 1000;
+
+    private final String route;
+    private final String authority;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final int socketTimeout;
+    private final int maxConcurrentStreams;
+    private final int streamWindowSize;
+    private final int connectionWindowSize;
+    private final long pingTimeout;
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final HpackDecoder decoder = new HpackDecoder(HpackDecoder.DEFAULT_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+    // Guarded by this
+    private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+    // Frames sent in order by the writer thread, guarded by this
+    private final Deque<Frame> frames = new ArrayDeque<Frame>();
+    // Connection control frames sent ahead of queued frames outside a header
+    // block, guarded by this
+    private final Deque<Frame> controlFrames = new ArrayDeque<Frame>();
+    private int remoteMaxStreams = Integer.MAX_VALUE;
+    private int remoteWindowSize = DEFAULT_WINDOW_SIZE;
+    private int remoteMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private int nextStreamId = 1;
+    private int reservedStreams = 0;
+    private int goAwayStreamId = LAST_STREAM_ID;
+    private IOException failure = null;
+    private long lastUsed;
+    private int pings = 0;
+    private byte[] unacknowledgedPing = null;
+    // Used by the reader thread only
+    private final byte[] frame = new byte[DEFAULT_MAX_FRAME_SIZE];
+    private int connectionUnacknowledged = 0;
+
+    /**
+     * Opens a new connection to the host of given plain http URL, sends the
+     * connection preface and waits for the settings of the server.
+     * 
+     * @param url
+     *            URL containing host and port
+     * @param route
+     *            Pool route key of the connection
+     * @param connectTimeout
+     *            Connect timeout in milliseconds, also used for the server
+     *            preface
+     * @param socketTimeout
+     *            Default read timeout of a request in milliseconds
+     * @param configuration
+     *            Stream and flow control settings
+     * @throws UnsupportedProtocolException
+     *             If the server does not respond with HTTP/2 settings
+     * @throws IOException
+     *             If connecting fails
+     */
+    Http2Connection(URL url, String route, int connectTimeout, int socketTimeout,
+            ConnectionPoolConfiguration configuration) throws IOException {
+        this.route = route;
+        this.authority = url.getPort() != -1 ? url.getHost() + ":" + url.getPort() : url.getHost();
+        this.socketTimeout = socketTimeout;
+        this.maxConcurrentStreams = configuration.getMaxConcurrentStreams();
+        this.streamWindowSize = configuration.getInitialWindowSize();
+        this.connectionWindowSize = configuration.getConnectionWindowSize();
+        this.pingTimeout = Long.getLong(PING_TIMEOUT_PROPERTY, DEFAULT_PING_TIMEOUT);
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(url.getHost(), HttpConnection.getPort(url)), connectTimeout);
+            socket.setSoTimeout(connectTimeout);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+            sendPreface();
+            receivePreface();
+            // Requests wait for their responses with their own timeouts
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        lastUsed = System.currentTimeMillis();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readFrames();
+            }
+        }, "CustomCallout-HTTP2-" + route);
+        reader.setDaemon(true);
+        reader.start();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeFrames();
+            }
+        }, "CustomCallout-HTTP2-writer-" + route);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Helper method to send the client preface, settings and the initial
+     * connection window.
+     */
+    private void sendPreface() throws IOException {
+        out.write(PREFACE);
+        byte[] settings = new byte[18];
+        putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, streamWindowSize);
+        putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        writeFrame(TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+        if (connectionWindowSize > DEFAULT_WINDOW_SIZE) {
+            writeFrame(TYPE_WINDOW_UPDATE, 0, 0, toBytes(connectionWindowSize - DEFAULT_WINDOW_SIZE), 0, 4);
+        }
+        out.flush();
+    }
+
+    /**
+     * Helper method to read the server preface, which must be a settings
+     * frame. Anything else, e.g. an HTTP/1.1 error response, means that the
+     * server does not support HTTP/2 with prior knowledge.
+     */
+    private void receivePreface() throws IOException {
+        int[] header = new int[4];
+        try {
+            readFrameHeader(header);
+        } catch (IOException e) {
+            UnsupportedProtocolException unsupported = new UnsupportedProtocolException(
+                    "No HTTP/2 preface received from " + route + " : " + e.getMessage());
+            unsupported.initCause(e);
+            throw unsupported;
+        }
+        if (header[1] != TYPE_SETTINGS || (header[2] & FLAG_ACK) != 0 || header[3] != 0
+                || header[0] % 6 != 0 || header[0] > DEFAULT_MAX_FRAME_SIZE) {
+            throw new UnsupportedProtocolException("No HTTP/2 preface received from " + route);
+        }
+        in.readFully(frame, 0, header[0]);
+        onSettings(header[2], header[0]);
+    }
+
+    /**
+     * Creates a stream for one request. The stream is opened by
+     * {@link #execute(Stream, String, URL, Map, byte[], int, int)} and can be
+     * cancelled by closing it from another thread.
+     * 
+     * @return New stream
+     */
+    public Stream newStream() {
+        return new Stream();
+    }
+
+    /**
+     * Sends given request on given stream and waits for the complete
+     * response, which is read into a pooled buffer given back with
+     * {@link HttpResponse#release()}. A stream must have been reserved.
+     * 
+     * @param stream
+     *            New stream of this connection
+     * @param method
+     *            HTTP method
+     * @param url
+     *            Target URL
+     * @param headers
+     *            Request headers, connection specific headers are not sent
+     * @param body
+     *            Request body or null
+     * @param bodyLength
+     *            Number of bytes to send from the start of body
+     * @param readTimeout
+     *            Time in milliseconds to wait for flow control credit and the
+     *            response, 0 for the connection default
+     * @return Read response
+     * @throws IOException
+     *             If sending fails, the stream is reset or the response does
+     *             not arrive in time
+     */
+    public HttpResponse execute(Stream stream, String method, URL url, Map<String, String> headers, byte[] body,
+            int bodyLength, int readTimeout) throws IOException {
+        long timeout = readTimeout > 0 ? readTimeout : socketTimeout;
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        int length = body != null ? bodyLength : 0;
+        try {
+            sendHeaders(stream, method, url, headers, body != null ? bodyLength : -1, length == 0);
+            if (length > 0) {
+                sendData(stream, body, length, deadline);
+            }
+            HttpResponse response = stream.await(deadline);
+            synchronized (this) {
+                lastUsed = System.currentTimeMillis();
+            }
+            return response;
+        } catch (IOException e) {
+            // Tells the server to stop unless the stream already ended
+            stream.reset(ERROR_CANCEL, e);
+            if (e instanceof SocketTimeoutException) {
+                checkLiveness();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Helper method to send a PING unless one is already unacknowledged and
+     * fail the connection if the acknowledgement does not arrive within the
+     * ping timeout.
+     */
+    private void checkLiveness() {
+        final byte[] payload = new byte[8];
+        synchronized (this) {
+            if (failure != null || unacknowledgedPing != null) {
+                return;
+            }
+            System.arraycopy(toBytes(++pings), 0, payload, 4, 4);
+            unacknowledgedPing = payload;
+            sendControl(TYPE_PING, 0, 0, payload);
+        }
+        LivenessCheckHolder.EXECUTOR.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Http2Connection.this) {
+                    if (unacknowledgedPing != payload) {
+                        return;
+                    }
+                }
+                fail(new SocketTimeoutException("HTTP/2 PING not acknowledged by " + route + " within "
+                        + pingTimeout + " ms"));
+            }
+        }, pingTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Helper method to open given stream by queueing the request header
+     * block. Stream identifiers must increase in the order streams are
+     * opened, so the identifier is assigned while queueing the block.
+     */
+    private void sendHeaders(Stream stream, String method, URL url, Map<String, String> headers, int contentLength,
+            boolean endStream) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+        String path = url.getFile();
+        encoder.encode(":method", method, block);
+        encoder.encode(":scheme", "http", block);
+        encoder.encode(":authority", authority, block);
+        encoder.encode(":path", path.length() > 0 ? path : "/", block);
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                String name = header.getKey().toLowerCase();
+                if (!isConnectionHeader(name)) {
+                    encoder.encode(name, header.getValue(), block);
+                }
+            }
+        }
+        if (contentLength >= 0) {
+            encoder.encode("content-length", Integer.toString(contentLength), block);
+        }
+        byte[] bytes = block.toByteArray();
+
+        synchronized (this) {
+            if (failure != null) {
+                throw new IOException("HTTP/2 connection to " + route + " failed : " + failure.getMessage());
+            }
+            if (stream.done) {
+                throw new IOException("Callout cancelled");
+            }
+            if (nextStreamId > goAwayStreamId || nextStreamId < 0) {
+                throw new IOException("HTTP/2 connection to " + route + " accepts no new streams");
+            }
+            stream.id = nextStreamId;
+            nextStreamId += 2;
+            stream.sendWindow = remoteWindowSize;
+            streams.put(Integer.valueOf(stream.id), stream);
+            int offset = 0;
+            int type = TYPE_HEADERS;
+            do {
+                int chunk = Math.min(bytes.length - offset, remoteMaxFrameSize);
+                int flags = offset + chunk == bytes.length ? FLAG_END_HEADERS : 0;
+                if (type == TYPE_HEADERS && endStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                frames.add(new Frame(type, flags, stream.id, bytes, offset, chunk));
+                offset += chunk;
+                type = TYPE_CONTINUATION;
+            } while (offset < bytes.length);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Helper method to check whether given header is specific to an HTTP/1.1
+     * connection and must not be sent over HTTP/2.
+     */
+    private static boolean isConnectionHeader(String name) {
+        return "connection".equals(name) || "keep-alive".equals(name) || "proxy-connection".equals(name)
+                || "transfer-encoding".equals(name) || "upgrade".equals(name) || "host".equals(name)
+                || "content-length".equals(name) || "te".equals(name);
+    }
+
+    /**
+     * Helper method to send request body in DATA frames as flow control
+     * windows of the stream and the connection allow. The caller may reuse
+     * the body once this returns, so each frame is written before the next
+     * one is queued.
+     */
+    private void sendData(Stream stream, byte[] body, int length, long deadline) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            synchronized (this) {
+                while (!stream.done && failure == null && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+                    waitUntil(deadline, "flow control window");
+                }
+                if (stream.done || failure != null) {
+                    // Response or reset arrived before the whole body was sent
+                    return;
+                }
+                int chunk = (int) Math.min(Math.min(length - offset, remoteMaxFrameSize),
+                        Math.min(sendWindow, stream.sendWindow));
+                sendWindow -= chunk;
+                stream.sendWindow -= chunk;
+                Frame data = new Frame(TYPE_DATA, offset + chunk == length ? FLAG_END_STREAM : 0, stream.id, body,
+                        offset, chunk);
+                frames.add(data);
+                notifyAll();
+                try {
+                    while (!data.written && !stream.done && failure == null) {
+                        waitUntil(deadline, "request data to be sent");
+                    }
+                } finally {
+                    // Not sent at all if the exchange ended meanwhile
+                    frames.remove(data);
+                }
+                offset += chunk;
+            }
+        }
+    }
+
+    /**
+     * Helper method to wait on this connection until notified or given
+     * deadline has passed. Called while holding the lock of this connection.
+     */
+    private void waitUntil(long deadline, String what) throws IOException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Timeout waiting for HTTP/2 " + what + " from " + route);
+        }
+        try {
+            wait(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for HTTP/2 " + what + " from " + route);
+        }
+    }
+
+    /**
+     * Helper method run by the reader thread until the connection fails or
+     * is closed.
+     */
+    private void readFrames() {
+        int[] header = new int[4];
+        ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+        int headerStreamId = 0;
+        int headerFlags = 0;
+        try {
+            while (true) {
+                readFrameHeader(header);
+                int length = header[0];
+                int type = header[1];
+                int flags = header[2];
+                int streamId = header[3];
+                if (length > frame.length) {
+                    throw new Http2Exception(ERROR_FRAME_SIZE, "HTTP/2 frame of " + length + " bytes");
+                }
+                in.readFully(frame, 0, length);
+                if (headerStreamId != 0 && (type != TYPE_CONTINUATION || streamId != headerStreamId)) {
+                    throw new Http2Exception(ERROR_PROTOCOL, "HTTP/2 header block interrupted");
+                }
+                switch (type) {
+                case TYPE_DATA:
+                    onData(flags, streamId, length);
+                    break;
+                case TYPE_HEADERS:
+                    headerBlock.reset();
+                    int start = 0;
+                    int padding = 0;
+                    if ((flags & FLAG_PADDED) != 0) {
+                        padding = frame[0] & 0xff;
+                        start = 1;
+                    }
+                    if ((flags & FLAG_PRIORITY) != 0) {
+                        start += 5;
+                    }
+                    if (start + padding > length) {
+                        throw new Http2Exception(ERROR_PROTOCOL, "HTTP/2 padding exceeds frame");
+                    }
+                    headerBlock.write(frame, start, length - start - padding);
+                    headerFlags = flags;
+                    headerStreamId = streamId;
+                    break;
+                case TYPE_CONTINUATION:
+                    if (headerStreamId == 0) {
+                        throw new Http2Exception(ERROR_PROTOCOL, "HTTP/2 continuation without headers");
+                    }
+                    headerBlock.write(frame, 0, length);
+                    headerFlags |= flags & FLAG_END_HEADERS;
+                    break;
+                case TYPE_RST_STREAM:
+                    onReset(streamId, length);
+                    break;
+                case TYPE_SETTINGS:
+                    if (streamId != 0 || length % 6 != 0) {
+                        throw new Http2Exception(ERROR_PROTOCOL, "Invalid HTTP/2 settings frame");
+                    }
+                    onSettings(flags, length);
+                    break;
+                case TYPE_PUSH_PROMISE:
+                    throw new Http2Exception(ERROR_PROTOCOL, "HTTP/2 server push was not enabled");
+                case TYPE_PING:
+                    if ((flags & FLAG_ACK) == 0) {
+                        sendControl(TYPE_PING, FLAG_ACK, 0, Arrays.copyOf(frame, length));
+                    } else {
+                        onPingAck(length);
+                    }
+                    break;
+                case TYPE_GOAWAY:
+                    onGoAway(length);
+                    break;
+                case TYPE_WINDOW_UPDATE:
+                    onWindowUpdate(streamId, length);
+                    break;
+                default:
+                    // Priority and unknown frames are ignored
+                    break;
+                }
+                if (headerStreamId != 0 && (headerFlags & FLAG_END_HEADERS) != 0) {
+                    List<String[]> headers = decoder.decode(headerBlock.toByteArray(), headerBlock.size());
+                    onHeaders(headerStreamId, headers, (headerFlags & FLAG_END_STREAM) != 0);
+                    headerStreamId = 0;
+                }
+            }
+        } catch (Http2Exception e) {
+            goAway(e.errorCode);
+            fail(e);
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            IOException failure = new IOException("HTTP/2 connection to " + route + " failed : " + e);
+            failure.initCause(e);
+            fail(failure);
+        }
+    }
+
+    /**
+     * Helper method to read the length, type, flags and stream identifier of
+     * the next frame.
+     */
+    private void readFrameHeader(int[] header) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            throw new EOFException("HTTP/2 connection closed by " + route);
+        }
+        header[0] = (first << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        header[1] = in.readUnsignedByte();
+        header[2] = in.readUnsignedByte();
+        header[3] = in.readInt() & LAST_STREAM_ID;
+    }
+
+    /**
+     * Helper method to append received data to its stream and give flow
+     * control credit back once half of a window has been consumed. Data of
+     * streams already closed still counts against the connection window.
+     */
+    private void onData(int flags, int streamId, int length) throws IOException {
+        int start = 0;
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0 && length > 0) {
+            padding = frame[0] & 0xff;
+            start = 1;
+        }
+        if (start + padding > length) {
+            throw new Http2Exception(ERROR_PROTOCOL, "HTTP/2 padding exceeds frame");
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        int streamCredit = 0;
+        synchronized (this) {
+            Stream stream = streams.get(Integer.valueOf(streamId));
+            if (stream != null) {
+                stream.receiveData(frame, start, length - start - padding);
+                stream.unacknowledged += length;
+                if (endStream) {
+                    stream.complete();
+                } else if (stream.unacknowledged >= streamWindowSize / 2) {
+                    streamCredit = stream.unacknowledged;
+                    stream.unacknowledged = 0;
+                }
+            }
+        }
+        connectionUnacknowledged += length;
+        int connectionCredit = 0;
+        if (connectionUnacknowledged >= connectionWindowSize / 2) {
+            connectionCredit = connectionUnacknowledged;
+            connectionUnacknowledged = 0;
+        }
+        if (connectionCredit > 0) {
+            sendControl(TYPE_WINDOW_UPDATE, 0, 0, toBytes(connectionCredit));
+        }
+        if (streamCredit > 0) {
+            sendControl(TYPE_WINDOW_UPDATE, 0, streamId, toBytes(streamCredit));
+        }
+    }
+
+    /**
+     * Helper method to apply a decoded header block to its stream. The first
+     * final block is the response head, a block after data carries trailers
+     * and informational 1xx responses are skipped.
+     */
+    private synchronized void onHeaders(int streamId, List<String[]> headers, boolean endStream) throws IOException {
+        Stream stream = streams.get(Integer.valueOf(streamId));
+        if (stream == null) {
+            // Decoded anyway to keep the dynamic table in sync
+            return;
+        }
+        if (stream.response == null) {
+            String status = null;
+            for (String[] header : headers) {
+                if (":status".equals(header[0])) {
+                    status = header[1];
+                }
+            }
+            int statusCode;
+            try {
+                statusCode = Integer.parseInt(status);
+            } catch (NumberFormatException e) {
+                throw new Http2Exception(ERROR_PROTOCOL, "Invalid HTTP/2 status : " + status);
+            }
+            if (statusCode >= 100 && statusCode < 200 && !endStream) {
+                return;
+            }
+            stream.response = new HttpResponse(statusCode, "");
+        }
+        for (String[] header : headers) {
+            if (!header[0].startsWith(":")) {
+                stream.response.addHeader(header[0], header[1]);
+            }
+        }
+        if (endStream) {
+            stream.complete();
+        }
+    }
+
+    /**
+     * Helper method to fail the stream reset by the server.
+     */
+    private void onReset(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(ERROR_FRAME_SIZE, "Invalid HTTP/2 reset frame");
+        }
+        synchronized (this) {
+            Stream stream = streams.get(Integer.valueOf(streamId));
+            if (stream != null) {
+                stream.fail(new IOException("HTTP/2 stream reset by " + route + " with error code " + getInt(0)));
+            }
+        }
+    }
+
+    /**
+     * Helper method to clear the unacknowledged PING the server acknowledged.
+     */
+    private synchronized void onPingAck(int length) throws IOException {
+        if (length != 8) {
+            throw new Http2Exception(ERROR_FRAME_SIZE, "Invalid HTTP/2 ping frame");
+        }
+        if (unacknowledgedPing != null && Arrays.equals(unacknowledgedPing, Arrays.copyOf(frame, 8))) {
+            unacknowledgedPing = null;
+        }
+    }
+
+    /**
+     * Helper method to apply server settings and acknowledge them. A change
+     * of the initial window size adjusts the send windows of open streams.
+     */
+    private void onSettings(int flags, int length) throws IOException {
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+        synchronized (this) {
+            for (int offset = 0; offset < length; offset += 6) {
+                int id = ((frame[offset] & 0xff) << 8) | (frame[offset + 1] & 0xff);
+                int value = getInt(offset + 2);
+                switch (id) {
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    remoteMaxStreams = value < 0 ? Integer.MAX_VALUE : value;
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(ERROR_FLOW_CONTROL, "HTTP/2 window size " + (value & 0xffffffffL));
+                    }
+                    int delta = value - remoteWindowSize;
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                    }
+                    remoteWindowSize = value;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new Http2Exception(ERROR_PROTOCOL, "HTTP/2 max frame size " + value);
+                    }
+                    remoteMaxFrameSize = value;
+                    break;
+                default:
+                    // Header table size does not matter as nothing is
+                    // indexed, other settings are not used by a client
+                    break;
+                }
+            }
+            notifyAll();
+        }
+        sendControl(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0]);
+    }
+
+    /**
+     * Helper method to stop opening streams after the server has announced
+     * shutdown. Streams above the last processed one were not processed and
+     * are failed, the others may still complete.
+     */
+    private synchronized void onGoAway(int length) throws IOException {
+        if (length < 8) {
+            throw new Http2Exception(ERROR_FRAME_SIZE, "Invalid HTTP/2 goaway frame");
+        }
+        goAwayStreamId = getInt(0) & LAST_STREAM_ID;
+        IOException notProcessed = new IOException("HTTP/2 stream not processed, " + route
+                + " is going away with error code " + getInt(4));
+        for (Stream stream : new ArrayList<Stream>(streams.values())) {
+            if (stream.id > goAwayStreamId) {
+                stream.fail(notProcessed);
+            }
+        }
+    }
+
+    /**
+     * Helper method to add flow control credit given by the server.
+     */
+    private synchronized void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(ERROR_FRAME_SIZE, "Invalid HTTP/2 window update frame");
+        }
+        int increment = getInt(0) & LAST_STREAM_ID;
+        if (streamId == 0) {
+            if (sendWindow + increment > MAX_WINDOW_SIZE) {
+                throw new Http2Exception(ERROR_FLOW_CONTROL, "HTTP/2 connection window overflow");
+            }
+            sendWindow += increment;
+        } else {
+            Stream stream = streams.get(Integer.valueOf(streamId));
+            if (stream != null) {
+                stream.sendWindow += increment;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Helper method to tell the server that the connection is closed because
+     * of given error. Waits for the frame to be written for a moment at most.
+     */
+    private void goAway(int errorCode) {
+        byte[] payload = new byte[8];
+        System.arraycopy(toBytes(0), 0, payload, 0, 4);
+        System.arraycopy(toBytes(errorCode), 0, payload, 4, 4);
+        synchronized (this) {
+            Frame goAway = sendControl(TYPE_GOAWAY, 0, 0, payload);
+            long deadline = System.currentTimeMillis() + GOAWAY_TIMEOUT;
+            try {
+                while (!goAway.written && failure == null) {
+                    waitUntil(deadline, "goaway to be sent");
+                }
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Helper method to queue a connection control frame. Never waits for the
+     * writer, so the reader thread keeps reading while a write is blocked.
+     */
+    private synchronized Frame sendControl(int type, int flags, int streamId, byte[] payload) {
+        Frame control = new Frame(type, flags, streamId, payload, 0, payload.length);
+        controlFrames.add(control);
+        notifyAll();
+        return control;
+    }
+
+    /**
+     * Helper method run by the writer thread until the connection fails or
+     * is closed. Control frames go first unless a header block is being
+     * written, as it must not be interleaved with other frames. The socket
+     * is flushed once the queues are empty.
+     */
+    private void writeFrames() {
+        boolean inHeaderBlock = false;
+        try {
+            while (true) {
+                Frame next;
+                boolean flush;
+                synchronized (this) {
+                    while (failure == null && frames.isEmpty() && controlFrames.isEmpty()) {
+                        wait();
+                    }
+                    if (failure != null) {
+                        return;
+                    }
+                    next = !inHeaderBlock && !controlFrames.isEmpty() ? controlFrames.poll() : frames.poll();
+                    flush = frames.isEmpty() && controlFrames.isEmpty();
+                }
+                try {
+                    writeFrame(next.type, next.flags, next.streamId, next.payload, next.offset, next.length);
+                    if (flush) {
+                        out.flush();
+                    }
+                } finally {
+                    synchronized (this) {
+                        next.written = true;
+                        notifyAll();
+                    }
+                }
+                inHeaderBlock = (next.type == TYPE_HEADERS || next.type == TYPE_CONTINUATION)
+                        && (next.flags & FLAG_END_HEADERS) == 0;
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException("HTTP/2 writer to " + route + " interrupted"));
+        }
+    }
+
+    /**
+     * Helper method to fail all open streams and close the socket.
+     */
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = e;
+            }
+            for (Stream stream : new ArrayList<Stream>(streams.values())) {
+                stream.fail(e);
+            }
+            frames.clear();
+            controlFrames.clear();
+            notifyAll();
+        }
+        if (log.isDebugEnabled() && !socket.isClosed()) {
+            log.debug("HTTP/2 connection to " + route + " closed : " + e.getMessage());
+        }
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Helper method to write one frame. Called by the writer thread, or
+     * before it is started.
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(toBytes(streamId));
+        out.write(payload, offset, length);
+    }
+
+    /**
+     * Helper method to read a 32 bit integer of the current frame.
+     */
+    private int getInt(int offset) {
+        return ((frame[offset] & 0xff) << 24) | ((frame[offset + 1] & 0xff) << 16)
+                | ((frame[offset + 2] & 0xff) << 8) | (frame[offset + 3] & 0xff);
+    }
+
+    /**
+     * Helper method to write a setting entry into given array.
+     */
+    private static void putSetting(byte[] settings, int offset, int id, int value) {
+        settings[offset] = (byte) (id >>> 8);
+        settings[offset + 1] = (byte) id;
+        System.arraycopy(toBytes(value), 0, settings, offset + 2, 4);
+    }
+
+    private static byte[] toBytes(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+
+    /**
+     * Reserves a stream if the connection is open and below the maximum
+     * concurrent streams of both ends.
+     * 
+     * @return True if a stream was reserved, to be given back with
+     *         {@link #releaseStream()}
+     */
+    synchronized boolean tryReserveStream() {
+        if (!isOpen() || reservedStreams >= Math.min(maxConcurrentStreams, remoteMaxStreams)) {
+            return false;
+        }
+        reservedStreams++;
+        return true;
+    }
+
+    /**
+     * Gives a reserved stream back.
+     */
+    synchronized void releaseStream() {
+        reservedStreams--;
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Whether new streams can be opened on this connection.
+     * 
+     * @return False if the connection failed, is closed or going away
+     */
+    synchronized boolean isOpen() {
+        return failure == null && nextStreamId > 0 && nextStreamId <= goAwayStreamId;
+    }
+
+    /**
+     * Getter for number of reserved streams.
+     * 
+     * @return Streams in use
+     */
+    synchronized int getReservedStreams() {
+        return reservedStreams;
+    }
+
+    /**
+     * Getter for time a stream was last completed.
+     * 
+     * @return Time in milliseconds
+     */
+    synchronized long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Getter for pool route key of this connection.
+     * 
+     * @return Route key
+     */
+    String getRoute() {
+        return route;
+    }
+
+    /**
+     * Sends GOAWAY and closes the socket, failing open streams.
+     */
+    public void close() {
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+        }
+        goAway(ERROR_NO_ERROR);
+        fail(new IOException("HTTP/2 connection to " + route + " closed"));
+    }
+
+    /**
+     * One request and response exchange of the connection. Closing a stream
+     * cancels the exchange without closing the connection.
+     */
+    public class Stream implements Closeable {
+
+        private int id = 0;
+        // Guarded by the connection
+        private long sendWindow;
+        private int unacknowledged = 0;
+        private HttpResponse response = null;
+        private PooledByteArrayOutputStream body = null;
+        private IOException failure = null;
+        private boolean done = false;
+
+        /**
+         * Helper method to append received response data.
+         */
+        private void receiveData(byte[] data, int offset, int length) {
+            if (done) {
+                return;
+            }
+            if (body == null) {
+                String contentLength = response != null ? response.getHeader("content-length") : null;
+                int size = BufferPool.SIZE_CLASSES[0];
+                try {
+                    size = contentLength != null ? Integer.parseInt(contentLength.trim()) : size;
+                } catch (NumberFormatException ignore) {
+                }
+                body = new PooledByteArrayOutputStream(BufferPool.getDefault(), Math.max(size, length));
+            }
+            body.write(data, offset, length);
+        }
+
+        /**
+         * Helper method to complete the exchange once the server ended the
+         * stream.
+         */
+        private void complete() {
+            if (done) {
+                return;
+            }
+            done = true;
+            streams.remove(Integer.valueOf(id));
+            if (response == null) {
+                fail(new IOException("HTTP/2 stream ended by " + route + " without response"));
+                return;
+            }
+            if (body != null) {
+                response.setBody(body);
+                body = null;
+            }
+            response.setKeepAlive(true);
+            Http2Connection.this.notifyAll();
+        }
+
+        /**
+         * Helper method to fail the exchange with given error.
+         */
+        private void fail(IOException e) {
+            done = true;
+            failure = e;
+            streams.remove(Integer.valueOf(id));
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+            Http2Connection.this.notifyAll();
+        }
+
+        /**
+         * Helper method to wait for the response until given deadline.
+         */
+        private HttpResponse await(long deadline) throws IOException {
+            synchronized (Http2Connection.this) {
+                while (!done) {
+                    waitUntil(deadline, "response");
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                return response;
+            }
+        }
+
+        /**
+         * Helper method to fail the exchange and tell the server to stop
+         * sending it.
+         */
+        private void reset(int errorCode, IOException e) {
+            synchronized (Http2Connection.this) {
+                if (done) {
+                    return;
+                }
+                fail(e);
+                if (id > 0 && Http2Connection.this.failure == null) {
+                    // Queued after the header block of the stream
+                    frames.add(new Frame(TYPE_RST_STREAM, 0, id, toBytes(errorCode), 0, 4));
+                    Http2Connection.this.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Cancels the exchange, e.g. when an operator cancels a stuck callout.
+         */
+        public void close() {
+            reset(ERROR_CANCEL, new IOException("Callout cancelled"));
+        }
+    }
+
+    /**
+     * Lazy holder of the thread failing connections whose PING is not
+     * acknowledged in time.
+     */
+    private static class LivenessCheckHolder {
+
+        static final ScheduledExecutorService EXECUTOR = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "CustomCallout-HTTP2-liveness");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Frame queued for the writer thread.
+     */
+    private static class Frame {
+
+        final int type;
+        final int flags;
+        final int streamId;
+        final byte[] payload;
+        final int offset;
+        final int length;
+        // Guarded by the connection
+        boolean written = false;
+
+        Frame(int type, int flags, int streamId, byte[] payload, int offset, int length) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Connection error to be reported to the server with GOAWAY.
+     */
+    private static class Http2Exception extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        final int errorCode;
+
+        Http2Exception(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * Thrown when the server does not speak HTTP/2 with prior knowledge, so
+     * that the route falls back to HTTP/1.1.
+     */
+    static class UnsupportedProtocolException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedProtocolException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.Constants;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+
+import fi.mystes.synapse.mediator.compression.CalloutCompression;
+import fi.mystes.synapse.mediator.compression.CompressionConfiguration;
+import fi.mystes.synapse.mediator.inflight.InFlightCallout;
+import fi.mystes.synapse.mediator.inflight.InFlightRegistry;
+import fi.mystes.synapse.mediator.json.JsonPayloads;
+
+/**
+ * Lightweight transport for plain HTTP/JSON callouts. Posts the JSON stream and
+ * the end-to-end transport headers of the outgoing message over a pooled
+ * keep-alive connection and writes the response stream back into the same
+ * message context, bypassing SOAP envelope building and Axis2 operation
+ * clients. With protocol h2c plain http requests are sent as streams of shared
+ * HTTP/2 connections.
+ */
+public class HttpCalloutTransport {
+
+    public static final String JSON_CONTENT_TYPE = "application/json";
+
+    /**
+     * Lower case names of outgoing transport headers not forwarded to the
+     * service.
+     */
+    private static final Set<String> EXCLUDED_HEADERS = new HashSet<String>(Arrays.asList("connection",
+            "keep-alive", "proxy-authenticate", "proxy-authorization", "proxy-connection", "te", "trailer",
+            "transfer-encoding", "upgrade", "host", "content-length", "content-type", "content-encoding", "accept",
+            "accept-encoding"));
+
+    private final HttpConnectionPool connectionPool;
+
+    /**
+     * Constructor for transport with default connection pool settings.
+     */
+    public HttpCalloutTransport() {
+        this(new ConnectionPoolConfiguration());
+    }
+
+    /**
+     * Constructor for transport with given connection pool settings.
+     * 
+     * @param configuration
+     *            Connection pool settings
+     */
+    public HttpCalloutTransport(ConnectionPoolConfiguration configuration) {
+        connectionPool = new HttpConnectionPool(configuration);
+    }
+
+    /**
+     * Sends the JSON payload of given message context and replaces it with the
+     * JSON response.
+     * 
+     * @param address
+     *            HTTP or HTTPS address of the service
+     * @param synapseOutMsgCtx
+     *            Message context containing JSON payload to be sent
+     * @param readTimeout
+     *            Read timeout in milliseconds, 0 for pool default
+     * @return Given message context containing the response payload
+     * @throws AxisFault
+     *             If sending fails or service responds with an error status
+     */
+    public MessageContext send(String address, MessageContext synapseOutMsgCtx, int readTimeout) throws AxisFault {
+        return send(address, synapseOutMsgCtx, readTimeout, null);
+    }
+
+    /**
+     * Sends the JSON payload of given message context and replaces it with the
+     * JSON response, compressing the request and decompressing the response
+     * as configured.
+     * 
+     * @param address
+     *            HTTP or HTTPS address of the service
+     * @param synapseOutMsgCtx
+     *            Message context containing JSON payload to be sent
+     * @param readTimeout
+     *            Read timeout in milliseconds, 0 for pool default
+     * @param compression
+     *            Compression of request and response or null for none
+     * @return Given message context containing the response payload
+     * @throws AxisFault
+     *             If sending fails or service responds with an error status
+     */
+    public MessageContext send(String address, MessageContext synapseOutMsgCtx, int readTimeout,
+            CalloutCompression compression) throws AxisFault {
+        org.apache.axis2.context.MessageContext axis2Ctx = ((Axis2MessageContext) synapseOutMsgCtx)
+                .getAxis2MessageContext();
+
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        copyTransportHeaders(axis2Ctx, headers);
+        headers.put("Content-Type", JSON_CONTENT_TYPE);
+        headers.put("Accept", JSON_CONTENT_TYPE);
+        if (compression != null && compression.getAcceptEncoding() != null) {
+            headers.put("Accept-Encoding", compression.getAcceptEncoding());
+        }
+
+        PooledByteArrayOutputStream request = new PooledByteArrayOutputStream();
+        PooledByteArrayOutputStream compressed = null;
+        HttpResponse response;
+        try {
+            JsonUtil.writeAsJson(axis2Ctx, request);
+            PooledByteArrayOutputStream body = request;
+            if (compression != null && compression.shouldCompress(request.size())) {
+                try {
+                    compressed = compression.compress(address, request.getBuffer(), request.size());
+                } catch (IOException e) {
+                    throw new AxisFault("Error compressing JSON request to " + address + " : " + e.getMessage(), e);
+                }
+                headers.put("Content-Encoding", compression.getConfiguration().getAlgorithm());
+                body = compressed;
+            }
+            InFlightCallout inFlight = InFlightRegistry.current();
+            if (inFlight != null) {
+                inFlight.setBytesSent(body.size());
+            }
+            try {
+                response = post(address, headers, body.getBuffer(), body.size(), readTimeout);
+            } catch (IOException e) {
+                throw new AxisFault("Error sending JSON request to " + address + " : " + e.getMessage(), e);
+            }
+        } finally {
+            request.release();
+            if (compressed != null) {
+                compressed.release();
+            }
+        }
+
+        try {
+            if (response.getStatusCode() >= 400) {
+                throw new AxisFault("HTTP " + response.getStatusCode() + " " + response.getReasonPhrase()
+                        + " returned by " + address);
+            }
+
+            if (response.getBodyLength() > 0) {
+                // JsonUtil reads the payload lazily, so the body is detached
+                // from the pool before the response is released
+                String contentEncoding = response.getHeader("Content-Encoding");
+                if (contentEncoding != null) {
+                    readCompressedPayload(address, axis2Ctx, response, contentEncoding, compression);
+                } else {
+                    JsonUtil.newJsonPayload(axis2Ctx, response.detachBody(), true, true);
+                }
+            } else {
+                // The request payload must not be mistaken for the response
+                // of e.g. 204 No Content
+                JsonPayloads.remove(axis2Ctx);
+            }
+            String contentType = response.getHeader("Content-Type");
+            axis2Ctx.setProperty(Constants.Configuration.MESSAGE_TYPE, JSON_CONTENT_TYPE);
+            axis2Ctx.setProperty(Constants.Configuration.CONTENT_TYPE,
+                    contentType != null ? contentType : JSON_CONTENT_TYPE);
+        } finally {
+            response.release();
+        }
+        return synapseOutMsgCtx;
+    }
+
+    /**
+     * Helper method to copy the transport headers of given outgoing message,
+     * e.g. Authorization and correlation identifiers, leaving out hop-by-hop
+     * headers, including those listed in Connection, and headers the
+     * transport sets itself.
+     */
+    private static void copyTransportHeaders(org.apache.axis2.context.MessageContext axis2Ctx,
+            Map<String, String> headers) {
+        Object transportHeaders = axis2Ctx.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+        if (!(transportHeaders instanceof Map)) {
+            return;
+        }
+        Set<String> excluded = new HashSet<String>(EXCLUDED_HEADERS);
+        for (Map.Entry<?, ?> header : ((Map<?, ?>) transportHeaders).entrySet()) {
+            if ("Connection".equalsIgnoreCase(String.valueOf(header.getKey())) && header.getValue() != null) {
+                for (String name : String.valueOf(header.getValue()).split(",")) {
+                    excluded.add(name.trim().toLowerCase());
+                }
+            }
+        }
+        for (Map.Entry<?, ?> header : ((Map<?, ?>) transportHeaders).entrySet()) {
+            if (header.getKey() != null && header.getValue() != null
+                    && !excluded.contains(String.valueOf(header.getKey()).toLowerCase())) {
+                headers.put(String.valueOf(header.getKey()), String.valueOf(header.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Helper method to decompress response body into a heap array limited to
+     * the maximum response size. JsonUtil reads the payload lazily, so it
+     * cannot be given a stream over the pooled body.
+     */
+    private void readCompressedPayload(String address, org.apache.axis2.context.MessageContext axis2Ctx,
+            HttpResponse response, String contentEncoding, CalloutCompression compression) throws AxisFault {
+        int maxSize = compression != null ? compression.getConfiguration().getMaxResponseSize()
+                : CompressionConfiguration.DEFAULT_MAX_RESPONSE_SIZE;
+        long start = CalloutCompression.getCpuTime();
+        byte[] payload;
+        try {
+            payload = CalloutCompression.decompress(response.getBodyAsStream(), contentEncoding, maxSize);
+        } catch (IOException e) {
+            throw new AxisFault("Error decompressing JSON response from " + address + " : " + e.getMessage(), e);
+        }
+        if (compression != null) {
+            compression.recordResponse(address, response.getBodyLength(), payload.length,
+                    CalloutCompression.getCpuTime() - start);
+        }
+        JsonUtil.newJsonPayload(axis2Ctx, new ByteArrayInputStream(payload), true, true);
+    }
+
+    /**
+     * Posts given body to given address.
+     * 
+     * @param address
+     *            HTTP or HTTPS address
+     * @param contentType
+     *            Content type of the body
+     * @param body
+     *            Body bytes
+     * @param readTimeout
+     *            Read timeout in milliseconds, 0 for pool default
+     * @return Complete response
+     * @throws IOException
+     *             If connecting, sending or reading fails
+     */
+    public HttpResponse post(String address, String contentType, byte[] body, int readTimeout) throws IOException {
+        return post(address, contentType, body, body.length, readTimeout);
+    }
+
+    /**
+     * Posts given part of body to given address. The returned response should
+     * be released when its body is not needed anymore.
+     * 
+     * @param address
+     *            HTTP or HTTPS address
+     * @param contentType
+     *            Content type of the body
+     * @param body
+     *            Array containing the body
+     * @param bodyLength
+     *            Number of bytes to send from the start of the array
+     * @param readTimeout
+     *            Read timeout in milliseconds, 0 for pool default
+     * @return Complete response
+     * @throws IOException
+     *             If connecting, sending or reading fails
+     */
+    public HttpResponse post(String address, String contentType, byte[] body, int bodyLength, int readTimeout)
+            throws IOException {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", contentType);
+        headers.put("Accept", contentType);
+        return post(address, headers, body, bodyLength, readTimeout);
+    }
+
+    /**
+     * Posts given part of body with given headers to given address. The
+     * returned response should be released when its body is not needed
+     * anymore.
+     * 
+     * @param address
+     *            HTTP or HTTPS address
+     * @param headers
+     *            Request headers, Host, Content-Length and Connection are
+     *            added by the connection
+     * @param body
+     *            Array containing the body
+     * @param bodyLength
+     *            Number of bytes to send from the start of the array
+     * @param readTimeout
+     *            Read timeout in milliseconds, 0 for pool default
+     * @return Complete response
+     * @throws IOException
+     *             If connecting, sending or reading fails
+     */
+    public HttpResponse post(String address, Map<String, String> headers, byte[] body, int bodyLength,
+            int readTimeout) throws IOException {
+        URL url = new URL(address);
+        Http2Connection http2 = isHttp2(url) ? connectionPool.leaseStream(url) : null;
+        if (http2 != null) {
+            return execute(http2, "POST", url, headers, body, bodyLength, readTimeout);
+        }
+        HttpConnection connection = connectionPool.lease(url);
+        boolean reusable = false;
+        // Lets an operator cancel a stuck callout by closing the connection
+        InFlightCallout inFlight = InFlightRegistry.current();
+        try {
+            if (inFlight != null && !inFlight.setConnection(connection)) {
+                throw new IOException("Callout cancelled");
+            }
+            HttpResponse response = connection.execute("POST", url, headers, body, bodyLength, readTimeout);
+            reusable = response.isKeepAlive();
+            return response;
+        } finally {
+            if (inFlight != null) {
+                reusable = inFlight.setConnection(null) && reusable;
+            }
+            connectionPool.release(connection, reusable);
+        }
+    }
+
+    /**
+     * Helper method to check whether given URL is sent over HTTP/2. Only
+     * plain http is supported, as Java offers no ALPN to negotiate HTTP/2
+     * over TLS.
+     */
+    private boolean isHttp2(URL url) {
+        return ConnectionPoolConfiguration.PROTOCOL_H2C.equals(connectionPool.getConfiguration().getProtocol())
+                && "http".equalsIgnoreCase(url.getProtocol());
+    }
+
+    /**
+     * Helper method to send given request on a reserved stream of given
+     * HTTP/2 connection and give the stream back.
+     */
+    private HttpResponse execute(Http2Connection connection, String method, URL url, Map<String, String> headers,
+            byte[] body, int bodyLength, int readTimeout) throws IOException {
+        Http2Connection.Stream stream = connection.newStream();
+        // Lets an operator cancel a stuck callout by resetting its stream
+        InFlightCallout inFlight = InFlightRegistry.current();
+        try {
+            if (inFlight != null && !inFlight.setConnection(stream)) {
+                throw new IOException("Callout cancelled");
+            }
+            return connection.execute(stream, method, url, headers, body, bodyLength, readTimeout);
+        } finally {
+            if (inFlight != null) {
+                inFlight.setConnection(null);
+            }
+            connectionPool.releaseStream(connection);
+        }
+    }
+
+    /**
+     * Opens given number of pooled connections to given address, limited by
+     * the maximum connections per route, and optionally sends a request
+     * without body over each of them. An HTTP/2 route opens one connection
+     * and sends the request once.
+     * 
+     * @param address
+     *            HTTP or HTTPS address
+     * @param connections
+     *            Number of connections to open
+     * @param pingMethod
+     *            HTTP method of the ping request or null to only connect
+     * @throws IOException
+     *             If connecting or pinging fails
+     */
+    public void warmUp(String address, int connections, String pingMethod) throws IOException {
+        URL url = new URL(address);
+        Http2Connection http2 = isHttp2(url) ? connectionPool.leaseStream(url) : null;
+        if (http2 != null) {
+            if (pingMethod != null) {
+                execute(http2, pingMethod, url, null, null, 0, 0).release();
+            } else {
+                connectionPool.releaseStream(http2);
+            }
+            return;
+        }
+        int maxPerRoute = connectionPool.getConfiguration().getMaxConnectionsPerRoute();
+        int count = maxPerRoute > 0 ? Math.min(connections, maxPerRoute) : connections;
+
+        List<HttpConnection> leased = new ArrayList<HttpConnection>(count);
+        List<Boolean> reusable = new ArrayList<Boolean>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                HttpConnection connection = connectionPool.lease(url);
+                leased.add(connection);
+                reusable.add(Boolean.FALSE);
+                if (pingMethod != null) {
+                    HttpResponse response = connection.execute(pingMethod, url, null, null, 0);
+                    reusable.set(i, response.isKeepAlive());
+                    response.release();
+                } else {
+                    reusable.set(i, Boolean.TRUE);
+                }
+            }
+        } finally {
+            for (int i = 0; i < leased.size(); i++) {
+                connectionPool.release(leased.get(i), reusable.get(i));
+            }
+        }
+    }
+
+    /**
+     * Getter for connection pool of this transport.
+     * 
+     * @return Connection pool
+     */
+    public HttpConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Closes pooled connections.
+     */
+    public void destroy() {
+        connectionPool.shutdown();
+    }
+}
@@ -0,0 +1,432 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Minimal HTTP/1.1 client connection which can be kept alive and reused for
+ * several request/response exchanges. Not thread safe, a connection is used by
+ * one thread at a time via {@link HttpConnectionPool}.
+ */
+public class HttpConnection implements Closeable {
+
+    public static final String MAX_RESPONSE_SIZE_PROPERTY = "fi.mystes.customCallout.maxResponseSize";
+    public static final int DEFAULT_MAX_RESPONSE_SIZE = 64 * 1024 * 1024;
+
+    private static final String HEADER_CHARSET = "ISO-8859-1";
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int READ_CHUNK = 8192;
+
+    private final String route;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final boolean keepAlive;
+    private final int maxResponseSize;
+    private long lastUsed;
+    // Reused by the one thread using the connection at a time
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(128);
+
+    /**
+     * Opens a new connection to the host of given URL.
+     * 
+     * @param url
+     *            URL containing scheme, host and port
+     * @param route
+     *            Pool route key of the connection
+     * @param connectTimeout
+     *            Connect timeout in milliseconds
+     * @param socketTimeout
+     *            Read timeout in milliseconds
+     * @param keepAlive
+     *            False to ask the server to close the connection after the
+     *            response
+     * @param tls
+     *            TLS session cache used for https URLs
+     * @throws IOException
+     *             If connecting fails
+     */
+    HttpConnection(URL url, String route, int connectTimeout, int socketTimeout, boolean keepAlive,
+            TlsSessionCache tls) throws IOException {
+        this.route = route;
+        this.keepAlive = keepAlive;
+        this.maxResponseSize = Integer.getInteger(MAX_RESPONSE_SIZE_PROPERTY, DEFAULT_MAX_RESPONSE_SIZE);
+        boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+        Socket plain = new Socket();
+        try {
+            plain.connect(new InetSocketAddress(url.getHost(), getPort(url)), connectTimeout);
+            plain.setSoTimeout(socketTimeout);
+            plain.setTcpNoDelay(true);
+            socket = secure ? tls.handshake(plain, url.getHost(), getPort(url)) : plain;
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Helper method to resolve port of given URL.
+     * 
+     * @param url
+     *            URL to resolve port of
+     * @return Explicit port or scheme default
+     */
+    static int getPort(URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    /**
+     * Sends given request and reads the complete response.
+     * 
+     * @param method
+     *            HTTP method
+     * @param url
+     *            Target URL
+     * @param headers
+     *            Request headers, Host, Content-Length and Connection are
+     *            added automatically
+     * @param body
+     *            Request body or null
+     * @param readTimeout
+     *            Read timeout in milliseconds for this exchange, 0 to keep the
+     *            connection default
+     * @return Read response
+     * @throws IOException
+     *             If sending or reading fails
+     */
+    public HttpResponse execute(String method, URL url, Map<String, String> headers, byte[] body, int readTimeout)
+            throws IOException {
+        return execute(method, url, headers, body, body != null ? body.length : 0, readTimeout);
+    }
+
+    /**
+     * Sends given request and reads the complete response into a pooled
+     * buffer, which is given back with {@link HttpResponse#release()}. The
+     * connection is closed if the exchange fails, as the position of the
+     * stream is not known anymore.
+     * 
+     * @param method
+     *            HTTP method
+     * @param url
+     *            Target URL
+     * @param headers
+     *            Request headers, Host, Content-Length and Connection are
+     *            added automatically
+     * @param body
+     *            Request body or null
+     * @param bodyLength
+     *            Number of bytes to send from the start of body
+     * @param readTimeout
+     *            Read timeout in milliseconds for this exchange, 0 to keep the
+     *            connection default
+     * @return Read response
+     * @throws IOException
+     *             If sending or reading fails, the response is malformed or
+     *             exceeds the maximum response size
+     */
+    public HttpResponse execute(String method, URL url, Map<String, String> headers, byte[] body, int bodyLength,
+            int readTimeout) throws IOException {
+        int defaultTimeout = socket.getSoTimeout();
+        if (readTimeout > 0) {
+            socket.setSoTimeout(readTimeout);
+        }
+        try {
+            writeRequest(method, url, headers, body, bodyLength);
+            HttpResponse response = readResponse(method);
+            lastUsed = System.currentTimeMillis();
+            return response;
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            if (readTimeout > 0 && !socket.isClosed()) {
+                socket.setSoTimeout(defaultTimeout);
+            }
+        }
+    }
+
+    /**
+     * Helper method to write request line, headers and body.
+     */
+    private void writeRequest(String method, URL url, Map<String, String> headers, byte[] body, int bodyLength)
+            throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        String path = url.getFile();
+        head.append(method).append(' ').append(path.length() > 0 ? path : "/").append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        head.append("Content-Length: ").append(body != null ? bodyLength : 0).append("\r\n");
+        head.append(keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n");
+
+        out.write(head.toString().getBytes(HEADER_CHARSET));
+        if (body != null) {
+            out.write(body, 0, bodyLength);
+        }
+        out.flush();
+    }
+
+    /**
+     * Helper method to read status line, headers and body.
+     */
+    private HttpResponse readResponse(String method) throws IOException {
+        HttpResponse response;
+        boolean http11;
+        do {
+            String statusLine = readLine();
+            if (statusLine == null) {
+                throw new EOFException("Connection closed by server before response");
+            }
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid HTTP status line : " + statusLine);
+            }
+            http11 = "HTTP/1.1".equals(parts[0]);
+            try {
+                response = new HttpResponse(Integer.parseInt(parts[1]), parts.length > 2 ? parts[2] : "");
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid HTTP status line : " + statusLine);
+            }
+            readHeaders(response);
+            // Skip interim 1xx responses
+        } while (response.getStatusCode() >= 100 && response.getStatusCode() < 200);
+
+        String connection = response.getHeader("Connection");
+        boolean keepAlive = http11 ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+
+        int status = response.getStatusCode();
+        if ("HEAD".equals(method) || status == 204 || status == 304) {
+            response.setKeepAlive(keepAlive);
+            return response;
+        }
+
+        String transferEncoding = response.getHeader("Transfer-Encoding");
+        String contentLength = response.getHeader("Content-Length");
+        int length = contentLength != null ? parseLength(contentLength.trim(), 10, "Content-Length")
+                : BufferPool.SIZE_CLASSES[0];
+        if (length > maxResponseSize) {
+            throw new IOException("HTTP response of " + length + " bytes exceeds maximum size " + maxResponseSize);
+        }
+        PooledByteArrayOutputStream body = new PooledByteArrayOutputStream(BufferPool.getDefault(), length);
+        boolean read = false;
+        try {
+            if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+                readChunkedBody(response, body);
+            } else if (contentLength != null) {
+                readFully(body, length);
+            } else {
+                // Body is delimited by connection close
+                readUntilClose(body);
+                keepAlive = false;
+            }
+            read = true;
+        } finally {
+            if (!read) {
+                body.release();
+            }
+        }
+        response.setBody(body);
+        response.setKeepAlive(keepAlive);
+        return response;
+    }
+
+    /**
+     * Helper method to read header lines until empty line.
+     */
+    private void readHeaders(HttpResponse response) throws IOException {
+        String line;
+        while ((line = readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                response.addHeader(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+    }
+
+    /**
+     * Helper method to read chunked transfer encoded body and trailers.
+     */
+    private void readChunkedBody(HttpResponse response, PooledByteArrayOutputStream body) throws IOException {
+        while (true) {
+            String sizeLine = readLine();
+            if (sizeLine == null) {
+                throw new EOFException("Connection closed within chunked body");
+            }
+            int extension = sizeLine.indexOf(';');
+            int size = parseLength((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16,
+                    "chunk size");
+            if (size == 0) {
+                readHeaders(response);
+                return;
+            }
+            if (size > maxResponseSize - body.size()) {
+                throw new IOException("HTTP response exceeds maximum size " + maxResponseSize);
+            }
+            readFully(body, size);
+            readLine();
+        }
+    }
+
+    /**
+     * Helper method to read exactly given amount of bytes.
+     */
+    private void readFully(PooledByteArrayOutputStream body, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = body.readFrom(in, length - read);
+            if (count < 0) {
+                throw new EOFException("Connection closed after " + read + " of " + length + " bytes");
+            }
+            read += count;
+        }
+    }
+
+    /**
+     * Helper method to read until the server closes the connection.
+     */
+    private void readUntilClose(PooledByteArrayOutputStream body) throws IOException {
+        while (body.readFrom(in, READ_CHUNK) != -1) {
+            if (body.size() > maxResponseSize) {
+                throw new IOException("HTTP response exceeds maximum size " + maxResponseSize);
+            }
+        }
+    }
+
+    /**
+     * Helper method to parse non-negative length of given radix.
+     * 
+     * @throws IOException
+     *             If value is not a valid length
+     */
+    private static int parseLength(String value, int radix, String name) throws IOException {
+        try {
+            int length = Integer.parseInt(value, radix);
+            if (length >= 0) {
+                return length;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IOException("Invalid HTTP " + name + " : " + value);
+    }
+
+    /**
+     * Helper method to read CRLF terminated line.
+     * 
+     * @return Read line without line terminator or null if stream ended
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = lineBuffer;
+        line.reset();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return toLine(line);
+            }
+            if (b != '\r') {
+                if (line.size() >= MAX_LINE_LENGTH) {
+                    throw new IOException("HTTP line exceeds " + MAX_LINE_LENGTH + " bytes");
+                }
+                line.write(b);
+            }
+        }
+        return line.size() > 0 ? toLine(line) : null;
+    }
+
+    private String toLine(ByteArrayOutputStream line) throws UnsupportedEncodingException {
+        return line.toString(HEADER_CHARSET);
+    }
+
+    /**
+     * Checks whether the server has closed this idle connection.
+     * 
+     * @return True if connection cannot be used anymore
+     */
+    boolean isStale() {
+        if (socket.isClosed() || !socket.isConnected()) {
+            return true;
+        }
+        try {
+            int timeout = socket.getSoTimeout();
+            try {
+                socket.setSoTimeout(1);
+                // Both end of stream and unexpected data on an idle
+                // connection make it unusable
+                in.read();
+                return true;
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (SocketTimeoutException e) {
+            // Nothing to read, connection is alive
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Getter for pool route key of this connection.
+     * 
+     * @return Route key
+     */
+    String getRoute() {
+        return route;
+    }
+
+    /**
+     * Getter for time of last completed exchange.
+     * 
+     * @return Time in milliseconds
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Closes the underlying socket.
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
@@ -0,0 +1,617 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Pool of keep-alive {@link HttpConnection}s grouped by route, i.e. scheme,
+ * host and port of the target URL. When the number of connections per route is
+ * limited, concurrent callouts to the same endpoint queue fairly for a small
+ * set of reused connections instead of each opening a socket of its own.
+ * Expired idle connections are evicted lazily whenever the route is used.
+ * With protocol h2c, plain http routes use shared {@link Http2Connection}s
+ * instead, each carrying many concurrent callouts as streams.
+ */
+public class HttpConnectionPool {
+
+    private static final Log log = LogFactory.getLog(HttpConnectionPool.class);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 60000;
+
+    /**
+     * Time in milliseconds a route not speaking HTTP/2 uses HTTP/1.1 before
+     * HTTP/2 is tried again.
+     */
+    public static final long HTTP2_RETRY_INTERVAL = 300000;
+
+    private static final long STREAM_WAIT_INTERVAL = 100;
+
+    private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+    private final ConnectionPoolConfiguration configuration;
+    private final Semaphore totalLimit;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private volatile boolean shutdown = false;
+    private volatile TlsSessionCache tlsSessionCache;
+
+    /**
+     * Constructor for pool with default settings.
+     */
+    public HttpConnectionPool() {
+        this(new ConnectionPoolConfiguration());
+    }
+
+    /**
+     * Constructor for pool with given settings.
+     * 
+     * @param configuration
+     *            Pool settings
+     */
+    public HttpConnectionPool(ConnectionPoolConfiguration configuration) {
+        this.configuration = configuration;
+        totalLimit = configuration.getMaxConnectionsTotal() > 0
+                ? new Semaphore(configuration.getMaxConnectionsTotal(), true) : null;
+    }
+
+    /**
+     * Leases an idle connection to the route of given URL or opens a new one.
+     * 
+     * @param url
+     *            Target URL
+     * @return Connection which must be given back with
+     *         {@link #release(HttpConnection, boolean)}
+     * @throws IOException
+     *             If opening new connection fails or no connection is
+     *             released within lease timeout
+     */
+    public HttpConnection lease(URL url) throws IOException {
+        if (shutdown) {
+            throw new IOException("Connection pool is shut down");
+        }
+        Route route = getRoute(getRouteKey(url));
+        long start = System.currentTimeMillis();
+        long timeout = configuration.getLeaseTimeout() > 0 ? configuration.getLeaseTimeout() : connectTimeout;
+        boolean routePermit = false;
+        boolean totalPermit = false;
+        boolean leased = false;
+
+        route.statistics.leaseRequested();
+        try {
+            routePermit = acquire(route.limit, timeout, route.key);
+            totalPermit = acquire(totalLimit, timeout - (System.currentTimeMillis() - start), route.key);
+
+            HttpConnection connection = pollIdleConnection(route);
+            if (connection == null) {
+                TlsSessionCache tls = "https".equalsIgnoreCase(url.getProtocol()) ? getTlsSessionCache() : null;
+                connection = new HttpConnection(url, route.key, connectTimeout, socketTimeout,
+                        configuration.isKeepAlive(), tls);
+            }
+            route.statistics.leaseCompleted(System.currentTimeMillis() - start);
+            leased = true;
+            return connection;
+        } finally {
+            if (!leased) {
+                route.statistics.leaseFailed();
+                if (routePermit) {
+                    route.limit.release();
+                }
+                if (totalPermit) {
+                    totalLimit.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves a stream of a shared HTTP/2 connection to the route of given
+     * plain http URL. A connection with a free stream is preferred, then a
+     * new connection if the route has less than maximum connections per
+     * route, otherwise the caller waits for a stream to be released.
+     * 
+     * @param url
+     *            Target URL
+     * @return Connection with a reserved stream, to be given back with
+     *         {@link #releaseStream(Http2Connection)}, or null if the server
+     *         does not speak HTTP/2 and HTTP/1.1 should be used
+     * @throws IOException
+     *             If connecting fails or no stream is released within lease
+     *             timeout
+     */
+    public Http2Connection leaseStream(URL url) throws IOException {
+        if (shutdown) {
+            throw new IOException("Connection pool is shut down");
+        }
+        Route route = getRoute(getRouteKey(url));
+        if (System.currentTimeMillis() < route.http1Until) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        long timeout = configuration.getLeaseTimeout() > 0 ? configuration.getLeaseTimeout() : connectTimeout;
+        boolean leased = false;
+
+        route.statistics.leaseRequested();
+        try {
+            synchronized (route) {
+                while (true) {
+                    Http2Connection connection = reserveStream(route);
+                    if (connection != null) {
+                        route.statistics.leaseCompleted(System.currentTimeMillis() - start);
+                        leased = true;
+                        return connection;
+                    }
+                    int limit = configuration.getMaxConnectionsPerRoute();
+                    if (limit <= 0 || route.http2.size() + route.opening < limit) {
+                        break;
+                    }
+                    long remaining = timeout - (System.currentTimeMillis() - start);
+                    if (remaining <= 0) {
+                        throw new IOException("Timeout waiting for HTTP/2 stream to " + route.key);
+                    }
+                    try {
+                        // Also woken up to notice closed connections and
+                        // changed server settings
+                        route.wait(Math.min(remaining, STREAM_WAIT_INTERVAL));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for stream to " + route.key);
+                    }
+                }
+                route.opening++;
+            }
+            Http2Connection connection;
+            try {
+                connection = new Http2Connection(url, route.key, connectTimeout, socketTimeout, configuration);
+            } catch (Http2Connection.UnsupportedProtocolException e) {
+                route.http1Until = System.currentTimeMillis() + HTTP2_RETRY_INTERVAL;
+                log.info(e.getMessage() + ", using HTTP/1.1 for " + HTTP2_RETRY_INTERVAL + " ms");
+                // Not a failed lease, the caller leases an HTTP/1.1 connection
+                route.statistics.leaseCancelled();
+                leased = true;
+                return null;
+            } finally {
+                synchronized (route) {
+                    route.opening--;
+                }
+            }
+            connection.tryReserveStream();
+            route.http2.add(connection);
+            route.statistics.leaseCompleted(System.currentTimeMillis() - start);
+            leased = true;
+            return connection;
+        } finally {
+            if (!leased) {
+                route.statistics.leaseFailed();
+            }
+        }
+    }
+
+    /**
+     * Helper method to reserve a stream of an open connection of given route,
+     * dropping connections that can take no new streams once idle.
+     */
+    private Http2Connection reserveStream(Route route) {
+        for (Http2Connection connection : route.http2) {
+            if (connection.tryReserveStream()) {
+                return connection;
+            }
+            if (!connection.isOpen() && connection.getReservedStreams() == 0) {
+                route.http2.remove(connection);
+                connection.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives a stream reserved with {@link #leaseStream(URL)} back and closes
+     * HTTP/2 connections of the route idle longer than idle timeout.
+     * 
+     * @param connection
+     *            Connection of the reserved stream
+     */
+    public void releaseStream(Http2Connection connection) {
+        Route route = getRoute(connection.getRoute());
+        connection.releaseStream();
+        route.statistics.released();
+        synchronized (route) {
+            if (configuration.getIdleTimeout() > 0) {
+                long now = System.currentTimeMillis();
+                for (Http2Connection idle : route.http2) {
+                    if (idle.getReservedStreams() == 0
+                            && now - idle.getLastUsed() > configuration.getIdleTimeout()) {
+                        route.http2.remove(idle);
+                        idle.close();
+                    }
+                }
+            }
+            route.notifyAll();
+        }
+    }
+
+    /**
+     * Helper method to wait for a permit of given limit.
+     * 
+     * @param limit
+     *            Semaphore to acquire or null if not limited
+     * @param timeout
+     *            Maximum wait in milliseconds
+     * @param route
+     *            Route key for error message
+     * @return True if permit was acquired, false if not limited
+     * @throws IOException
+     *             If no permit is released within timeout
+     */
+    private boolean acquire(Semaphore limit, long timeout, String route) throws IOException {
+        if (limit == null) {
+            return false;
+        }
+        try {
+            if (!limit.tryAcquire(Math.max(0, timeout), TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timeout waiting for connection to " + route);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for connection to " + route);
+        }
+        return true;
+    }
+
+    /**
+     * Helper method to take most recently used idle connection which is not
+     * expired nor closed by the server.
+     * 
+     * @param route
+     *            Route to take connection from
+     * @return Reusable connection or null if none is available
+     */
+    private HttpConnection pollIdleConnection(Route route) {
+        HttpConnection connection;
+        while ((connection = route.idle.pollFirst()) != null) {
+            long idleTime = System.currentTimeMillis() - connection.getLastUsed();
+            if (isExpired(connection)
+                    || (idleTime >= configuration.getValidateAfterInactivity() && connection.isStale())) {
+                connection.close();
+            } else {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives leased connection back to the pool.
+     * 
+     * @param connection
+     *            Leased connection
+     * @param reusable
+     *            False if connection must be closed instead of kept alive
+     */
+    public void release(HttpConnection connection, boolean reusable) {
+        Route route = getRoute(connection.getRoute());
+        try {
+            if (!reusable || shutdown || !configuration.isKeepAlive()) {
+                connection.close();
+            } else {
+                route.idle.offerFirst(connection);
+                closeExpiredConnections(route);
+            }
+        } finally {
+            route.statistics.released();
+            if (route.limit != null) {
+                route.limit.release();
+            }
+            if (totalLimit != null) {
+                totalLimit.release();
+            }
+        }
+    }
+
+    /**
+     * Helper method to evict least recently used idle connections exceeding
+     * idle timeout.
+     * 
+     * @param route
+     *            Route to evict connections from
+     */
+    private void closeExpiredConnections(Route route) {
+        HttpConnection oldest;
+        while ((oldest = route.idle.peekLast()) != null && isExpired(oldest)) {
+            if (route.idle.removeLastOccurrence(oldest)) {
+                oldest.close();
+            }
+        }
+    }
+
+    /**
+     * Helper method to check whether given idle connection exceeds idle
+     * timeout.
+     */
+    private boolean isExpired(HttpConnection connection) {
+        return configuration.getIdleTimeout() > 0
+                && System.currentTimeMillis() - connection.getLastUsed() > configuration.getIdleTimeout();
+    }
+
+    /**
+     * Closes all idle connections and refuses further leases.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Route route : routes.values()) {
+            HttpConnection connection;
+            while ((connection = route.idle.pollFirst()) != null) {
+                connection.close();
+            }
+            for (Http2Connection http2 : route.http2) {
+                route.http2.remove(http2);
+                http2.close();
+            }
+        }
+    }
+
+    /**
+     * Helper method to get or create route of given key.
+     * 
+     * @param key
+     *            Route key
+     * @return Route state
+     */
+    private Route getRoute(String key) {
+        Route route = routes.get(key);
+        if (route == null) {
+            Route created = new Route(key, configuration.getMaxConnectionsPerRoute());
+            route = routes.putIfAbsent(key, created);
+            if (route == null) {
+                route = created;
+            }
+        }
+        return route;
+    }
+
+    /**
+     * Helper method to build route key of given URL.
+     * 
+     * @param url
+     *            Target URL
+     * @return Route key in form scheme://host:port
+     */
+    static String getRouteKey(URL url) {
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":"
+                + HttpConnection.getPort(url);
+    }
+
+    /**
+     * Getter for lease statistics per route.
+     * 
+     * @return Statistics keyed by route in form scheme://host:port
+     */
+    public Map<String, ConnectionPoolStatistics> getRouteStatistics() {
+        Map<String, ConnectionPoolStatistics> statistics = new TreeMap<String, ConnectionPoolStatistics>();
+        for (Route route : routes.values()) {
+            statistics.put(route.key, route.statistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * Getter for number of idle connections of given route.
+     * 
+     * @param key
+     *            Route key in form scheme://host:port
+     * @return Available connections
+     */
+    public int getAvailableConnections(String key) {
+        Route route = routes.get(key);
+        return route != null ? route.idle.size() : 0;
+    }
+
+    /**
+     * Getter for number of leased connections over all routes.
+     * 
+     * @return Leased connections
+     */
+    public int getLeasedConnections() {
+        int leased = 0;
+        for (Route route : routes.values()) {
+            leased += route.statistics.getLeased();
+        }
+        return leased;
+    }
+
+    /**
+     * Getter for number of HTTP/2 connections of given route.
+     * 
+     * @param key
+     *            Route key in form scheme://host:port
+     * @return Open HTTP/2 connections
+     */
+    public int getHttp2Connections(String key) {
+        Route route = routes.get(key);
+        return route != null ? route.http2.size() : 0;
+    }
+
+    /**
+     * Getter for number of idle connections over all routes.
+     * 
+     * @return Available connections
+     */
+    public int getAvailableConnections() {
+        int available = 0;
+        for (Route route : routes.values()) {
+            available += route.idle.size();
+        }
+        return available;
+    }
+
+    /**
+     * Getter for number of callers waiting for a connection over all routes.
+     * 
+     * @return Pending leases
+     */
+    public int getPendingLeases() {
+        int pending = 0;
+        for (Route route : routes.values()) {
+            pending += route.statistics.getPending();
+        }
+        return pending;
+    }
+
+    /**
+     * Getter for lease wait time histogram over all routes.
+     * 
+     * @return Counts per bucket of
+     *         {@link ConnectionPoolStatistics#LEASE_WAIT_BUCKETS}
+     */
+    public long[] getLeaseWaitHistogram() {
+        long[] histogram = new long[ConnectionPoolStatistics.LEASE_WAIT_BUCKETS.length + 1];
+        for (Route route : routes.values()) {
+            long[] routeHistogram = route.statistics.getLeaseWaitHistogram();
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] += routeHistogram[i];
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Getter for pool settings.
+     * 
+     * @return Pool settings
+     */
+    public ConnectionPoolConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Getter for TLS session cache of https routes. Created on first use.
+     * 
+     * @return TLS session cache
+     * @throws IOException
+     *             If TLS context cannot be created
+     */
+    public TlsSessionCache getTlsSessionCache() throws IOException {
+        TlsSessionCache cache = tlsSessionCache;
+        if (cache == null) {
+            synchronized (this) {
+                if (tlsSessionCache == null) {
+                    try {
+                        tlsSessionCache = new TlsSessionCache(configuration);
+                    } catch (GeneralSecurityException e) {
+                        IOException ioe = new IOException("Could not create TLS context");
+                        ioe.initCause(e);
+                        throw ioe;
+                    }
+                }
+                cache = tlsSessionCache;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Getter for TLS session cache without creating it.
+     * 
+     * @return TLS session cache or null if no https route is used yet
+     */
+    public TlsSessionCache peekTlsSessionCache() {
+        return tlsSessionCache;
+    }
+
+    /**
+     * Setter for TLS session cache, e.g. for custom trust material.
+     * 
+     * @param tlsSessionCache
+     *            TLS session cache of https routes
+     */
+    void setTlsSessionCache(TlsSessionCache tlsSessionCache) {
+        this.tlsSessionCache = tlsSessionCache;
+    }
+
+    /**
+     * Getter for connect timeout.
+     * 
+     * @return Connect timeout in milliseconds
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Setter for connect timeout.
+     * 
+     * @param connectTimeout
+     *            Connect timeout in milliseconds
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Getter for default socket read timeout.
+     * 
+     * @return Read timeout in milliseconds
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Setter for default socket read timeout.
+     * 
+     * @param socketTimeout
+     *            Read timeout in milliseconds
+     */
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Idle connections, connection limit and statistics of one route.
+     */
+    private static class Route {
+
+        final String key;
+        final BlockingDeque<HttpConnection> idle = new LinkedBlockingDeque<HttpConnection>();
+        final Semaphore limit;
+        final ConnectionPoolStatistics statistics = new ConnectionPoolStatistics();
+        final List<Http2Connection> http2 = new CopyOnWriteArrayList<Http2Connection>();
+        // Guarded by the route
+        int opening = 0;
+        volatile long http1Until = 0;
+
+        Route(String key, int maxConnections) {
+            this.key = key;
+            limit = maxConnections > 0 ? new Semaphore(maxConnections, true) : null;
+        }
+    }
+}
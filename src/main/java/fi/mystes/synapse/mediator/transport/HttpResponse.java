@@ -0,0 +1,174 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fully read HTTP response returned by {@link HttpConnection}.
+ */
+public class HttpResponse {
+
+    private final int statusCode;
+    private final String reasonPhrase;
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private PooledByteArrayOutputStream body = null;
+    private boolean keepAlive = false;
+
+    /**
+     * Constructor for response with given status.
+     * 
+     * @param statusCode
+     *            HTTP status code
+     * @param reasonPhrase
+     *            HTTP reason phrase
+     */
+    public HttpResponse(int statusCode, String reasonPhrase) {
+        this.statusCode = statusCode;
+        this.reasonPhrase = reasonPhrase;
+    }
+
+    /**
+     * Getter for status code.
+     * 
+     * @return HTTP status code
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Getter for reason phrase.
+     * 
+     * @return HTTP reason phrase
+     */
+    public String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    /**
+     * Getter for header value.
+     * 
+     * @param name
+     *            Case insensitive header name
+     * @return Header value or null if header is not available
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Setter for header value. Repeated headers are joined with comma.
+     * 
+     * @param name
+     *            Case insensitive header name
+     * @param value
+     *            Header value
+     */
+    void addHeader(String name, String value) {
+        String key = name.toLowerCase();
+        String previous = headers.get(key);
+        headers.put(key, previous != null ? previous + "," + value : value);
+    }
+
+    /**
+     * Getter for copy of response body.
+     * 
+     * @return Body bytes, empty if response has no body
+     */
+    public byte[] getBody() {
+        return body != null ? body.toByteArray() : new byte[0];
+    }
+
+    /**
+     * Getter for response body length.
+     * 
+     * @return Body length in bytes
+     */
+    public int getBodyLength() {
+        return body != null ? body.size() : 0;
+    }
+
+    /**
+     * Getter for stream reading the pooled body without copying, valid until
+     * the response is released.
+     * 
+     * @return Body stream
+     */
+    public InputStream getBodyAsStream() {
+        return body != null ? body.toInputStream() : new ByteArrayInputStream(new byte[0]);
+    }
+
+    /**
+     * Takes the body buffer out of the pool, so that the returned stream stays
+     * valid after the response is released. Used when the body is handed to a
+     * reader that may read it later, e.g. JsonUtil reading the JSON payload
+     * lazily. The buffer is left to the garbage collector instead of being
+     * reused.
+     * 
+     * @return Body stream not backed by a pooled buffer
+     */
+    public InputStream detachBody() {
+        if (body == null) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        InputStream in = new ByteArrayInputStream(body.getBuffer(), 0, body.size());
+        body = null;
+        return in;
+    }
+
+    /**
+     * Setter for response body.
+     * 
+     * @param body
+     *            Pooled body bytes to be set
+     */
+    void setBody(PooledByteArrayOutputStream body) {
+        this.body = body;
+    }
+
+    /**
+     * Gives the pooled body buffer back to the pool.
+     */
+    public void release() {
+        if (body != null) {
+            body.release();
+            body = null;
+        }
+    }
+
+    /**
+     * Whether the connection can be reused after this response.
+     * 
+     * @return True if connection can be kept alive
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Setter for keep alive flag.
+     * 
+     * @param keepAlive
+     *            True if connection can be kept alive
+     */
+    void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Byte array output stream writing into arrays taken from a
+ * {@link BufferPool}. The array is given back only when the stream is
+ * released, closing it has no effect as with ByteArrayOutputStream, so writers
+ * closing their target do not lose the bytes. Written bytes must not be used
+ * after release.
+ */
+public class PooledByteArrayOutputStream extends OutputStream {
+
+    private final BufferPool pool;
+    private byte[] buffer;
+    private int count = 0;
+
+    /**
+     * Constructor for stream using the shared pool.
+     */
+    public PooledByteArrayOutputStream() {
+        this(BufferPool.getDefault(), BufferPool.SIZE_CLASSES[0]);
+    }
+
+    /**
+     * Constructor for stream using given pool.
+     * 
+     * @param pool
+     *            Pool to take arrays from
+     * @param initialSize
+     *            Expected size of written data
+     */
+    public PooledByteArrayOutputStream(BufferPool pool, int initialSize) {
+        this.pool = pool;
+        this.buffer = pool.acquire(initialSize);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    /**
+     * Reads bytes from given stream directly into the array.
+     * 
+     * @param in
+     *            Stream to read from
+     * @param maxLength
+     *            Maximum number of bytes to read
+     * @return Number of bytes read or -1 if the stream has ended
+     * @throws IOException
+     *             If reading fails
+     */
+    public int readFrom(InputStream in, int maxLength) throws IOException {
+        ensureCapacity(count + maxLength);
+        int read = in.read(buffer, count, maxLength);
+        if (read > 0) {
+            count += read;
+        }
+        return read;
+    }
+
+    /**
+     * Helper method to move written bytes into a larger pooled array.
+     */
+    private void ensureCapacity(int size) {
+        if (buffer == null) {
+            throw new IllegalStateException("Stream is already released");
+        }
+        if (size > buffer.length) {
+            byte[] larger = pool.acquire(Math.max(size, buffer.length * 2));
+            System.arraycopy(buffer, 0, larger, 0, count);
+            pool.release(buffer);
+            buffer = larger;
+        }
+    }
+
+    /**
+     * @return Number of written bytes
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Getter for the underlying array, valid until released.
+     * 
+     * @return Array containing written bytes from index 0 to {@link #size()}
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return Copy of written bytes
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[count];
+        System.arraycopy(buffer, 0, copy, 0, count);
+        return copy;
+    }
+
+    /**
+     * @return Stream reading written bytes without copying them
+     */
+    public InputStream toInputStream() {
+        return new ByteArrayInputStream(buffer, 0, count);
+    }
+
+    /**
+     * Takes the array out of the pool, so that the returned stream stays valid
+     * after the stream is released. The array is left to the garbage
+     * collector instead of being reused.
+     * 
+     * @return Stream reading written bytes without copying them
+     */
+    public InputStream detach() {
+        InputStream in = toInputStream();
+        buffer = null;
+        count = 0;
+        return in;
+    }
+
+    /**
+     * Decodes written bytes.
+     * 
+     * @param charsetName
+     *            Character set of the bytes
+     * @return Decoded string
+     * @throws UnsupportedEncodingException
+     *             If character set is not supported
+     */
+    public String toString(String charsetName) throws UnsupportedEncodingException {
+        return new String(buffer, 0, count, charsetName);
+    }
+
+    /**
+     * Gives the array back to the pool. Calling again has no effect.
+     */
+    public void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+            count = 0;
+        }
+    }
+}
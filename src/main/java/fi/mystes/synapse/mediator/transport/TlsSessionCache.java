@@ -0,0 +1,182 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Client TLS context of one connection pool. The context keeps its own session
+ * cache, sessions are looked up by host and port so every endpoint resumes its
+ * own sessions instead of doing a full handshake on each new connection.
+ * Counts full and resumed handshakes and the time spent in them. The server
+ * certificate must match the host name, verified with the HTTPS endpoint
+ * identification of the JVM.
+ */
+public class TlsSessionCache {
+
+    private static final Method SET_ENDPOINT_IDENTIFICATION = getSetEndpointIdentificationMethod();
+
+    private final SSLContext sslContext;
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong failedHandshakes = new AtomicLong();
+    private final AtomicLong handshakeTime = new AtomicLong();
+
+    /**
+     * Constructor for cache using default key and trust material.
+     * 
+     * @param configuration
+     *            Pool settings containing session cache size and timeout
+     * @throws GeneralSecurityException
+     *             If TLS context cannot be created
+     */
+    public TlsSessionCache(ConnectionPoolConfiguration configuration) throws GeneralSecurityException {
+        this(createDefaultContext(), configuration);
+    }
+
+    /**
+     * Constructor for cache using given TLS context.
+     * 
+     * @param sslContext
+     *            Initiated TLS context, not shared with others
+     * @param configuration
+     *            Pool settings containing session cache size and timeout
+     */
+    TlsSessionCache(SSLContext sslContext, ConnectionPoolConfiguration configuration) {
+        this.sslContext = sslContext;
+        SSLSessionContext sessions = sslContext.getClientSessionContext();
+        if (configuration.getTlsSessionCacheSize() > 0) {
+            sessions.setSessionCacheSize(configuration.getTlsSessionCacheSize());
+        }
+        if (configuration.getTlsSessionTimeout() > 0) {
+            sessions.setSessionTimeout((int) Math.max(1, configuration.getTlsSessionTimeout() / 1000));
+        }
+    }
+
+    /**
+     * Helper method to create a TLS context of its own, the JVM default
+     * context would share its session cache with everything else.
+     */
+    private static SSLContext createDefaultContext() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        return context;
+    }
+
+    /**
+     * Helper method to look up endpoint identification of TLS parameters,
+     * which is not available before Java 7.
+     */
+    private static Method getSetEndpointIdentificationMethod() {
+        try {
+            return SSLParameters.class.getMethod("setEndpointIdentificationAlgorithm", String.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Helper method to make the handshake verify that the server certificate
+     * matches the host name.
+     */
+    private static void enableHostnameVerification(SSLSocket sslSocket) throws IOException {
+        if (SET_ENDPOINT_IDENTIFICATION == null) {
+            throw new IOException("Host name verification is not supported by this JVM");
+        }
+        SSLParameters parameters = sslSocket.getSSLParameters();
+        try {
+            SET_ENDPOINT_IDENTIFICATION.invoke(parameters, "HTTPS");
+        } catch (Exception e) {
+            throw new IOException("Could not enable host name verification : " + e.getMessage());
+        }
+        sslSocket.setSSLParameters(parameters);
+    }
+
+    /**
+     * Layers TLS over given connected socket and completes the handshake,
+     * verifying that the server certificate matches given host.
+     * 
+     * @param socket
+     *            Connected plain socket
+     * @param host
+     *            Host name the certificate is verified against and the
+     *            session is cached with
+     * @param port
+     *            Port the session is cached with
+     * @return TLS socket with completed handshake
+     * @throws IOException
+     *             If handshake fails or certificate does not match the host
+     */
+    public SSLSocket handshake(Socket socket, String host, int port) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, host, port, true);
+        long start = System.currentTimeMillis();
+        try {
+            enableHostnameVerification(sslSocket);
+            sslSocket.startHandshake();
+        } catch (IOException e) {
+            failedHandshakes.incrementAndGet();
+            sslSocket.close();
+            throw e;
+        }
+        handshakeTime.addAndGet(System.currentTimeMillis() - start);
+        SSLSession session = sslSocket.getSession();
+        // A resumed session was created by an earlier handshake
+        if (session.getCreationTime() < start) {
+            resumedHandshakes.incrementAndGet();
+        } else {
+            fullHandshakes.incrementAndGet();
+        }
+        return sslSocket;
+    }
+
+    /**
+     * @return Number of handshakes negotiating a new session
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * @return Number of handshakes resuming a cached session
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * @return Number of failed handshakes
+     */
+    public long getFailedHandshakes() {
+        return failedHandshakes.get();
+    }
+
+    /**
+     * @return Total time of successful handshakes in milliseconds
+     */
+    public long getHandshakeTime() {
+        return handshakeTime.get();
+    }
+}
@@ -16,6 +16,9 @@
 package fi.mystes.synapse.mediator.xml;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 
 import javax.xml.namespace.QName;
@@ -31,18 +34,50 @@ import org.apache.synapse.endpoints.Endpoint;
 import org.jaxen.JaxenException;
 import org.kohsuke.MetaInfServices;
 
+import fi.mystes.synapse.mediator.CalloutWarmUp;
 import fi.mystes.synapse.mediator.CustomCalloutMediator;
+import fi.mystes.synapse.mediator.RequestTemplate;
+import fi.mystes.synapse.mediator.balancer.LoadBalancer;
+import fi.mystes.synapse.mediator.cache.ResponseCacheConfiguration;
+import fi.mystes.synapse.mediator.capture.SlowCallCaptureConfiguration;
+import fi.mystes.synapse.mediator.compression.CompressionConfiguration;
+import fi.mystes.synapse.mediator.health.HealthCheckConfiguration;
+import fi.mystes.synapse.mediator.json.JsonPath;
+import fi.mystes.synapse.mediator.transport.ConnectionPoolConfiguration;
 
 /**
  * Factory for {@link CustomCalloutMediator} instances.
  * 
  * <pre>
- * &lt;customCallout serviceURL="string" | endpointKey="string" [action="string"]&gt;
+ * &lt;customCallout serviceURL="string" | endpointKey="string" [action="string"] [branchTimeout="long"] [transport="axis2|http"] [memoize="boolean"] [faultMode="full|stackless"] [encoding="xml|fastinfoset"]&gt;
  *      &lt;configuration [axis2xml="string"] [repository="string"]/&gt;?
+ *      &lt;connectionPool [maxConnectionsPerRoute="int"] [maxConnectionsTotal="int"] [leaseTimeout="long"]
+ *                      [idleTimeout="long"] [keepAlive="boolean"] [validateAfterInactivity="long"]
+ *                      [tlsSessionCacheSize="int"] [tlsSessionTimeout="long"] [protocol="http/1.1|h2c"]
+ *                      [maxConcurrentStreams="int"] [initialWindowSize="int"] [connectionWindowSize="int"]/&gt;?
+ *      &lt;warmUp [connections="int"] [pingMethod="string"] [iterations="int"] [timeout="long"]/&gt;?
+ *      &lt;responseCache [maxSize="long"] [timeToLive="long"] [file="string"] [varyHeaders="string"]/&gt;?
+ *      &lt;loadBalance [algorithm="leastLatency|roundRobin"] [demotionTime="long"]&gt;
+ *           &lt;member serviceURL="string"/&gt;+
+ *      &lt;/loadBalance&gt;?
+ *      &lt;healthCheck [interval="long"] [timeout="long"] [method="string"] [path="string"]
+ *                   [healthyThreshold="int"] [unhealthyThreshold="int"]/&gt;?
+ *      &lt;slowCallCapture [threshold="long"] [sampleRate="double"] [maxPayloadSize="int"] [capacity="int"]/&gt;?
+ *      &lt;compression [algorithm="gzip|deflate"] [threshold="int"] [level="int"] [acceptEncoding="boolean"]
+ *                   [maxResponseSize="int"]/&gt;?
  *      &lt;endpoint/&gt;?
- *      &lt;source xpath="expression" | key="string" | type="envelope"&gt;?
- *      &lt;target xpath="expression" | key="string"/&gt;?
+ *      &lt;source xpath="expression" | key="string" | jsonPath="string" | type="envelope"&gt;?
+ *           &lt;template [mediaType="xml|json"]&gt;payload with $1..$n&lt;/template&gt;?
+ *           &lt;args&gt;&lt;arg expression="xpath" | value="string"/&gt;*&lt;/args&gt;?
+ *      &lt;/source&gt;?
+ *      &lt;target xpath="expression" | key="string" | jsonPath="string" [key="string"]/&gt;?
  *      &lt;enableSec policy="string" | outboundPolicy="String" | inboundPolicy="String" /&gt;?
+ *      &lt;branch [name="string"] serviceURL="string" | endpointKey="string" [action="string"]&gt;
+ *           &lt;endpoint/&gt;?
+ *           &lt;source xpath="expression" | key="string" | jsonPath="string" | type="envelope"&gt;?
+ *           &lt;target xpath="expression" | key="string" | jsonPath="string" [key="string"]/&gt;?
+ *           &lt;enableSec policy="string" | outboundPolicy="String" | inboundPolicy="String" /&gt;?
+ *      &lt;/branch&gt;*
  * &lt;/customCallout&gt;
  * </pre>
  */
@@ -61,11 +96,66 @@ public class CustomCalloutMediatorFactory extends AbstractMediatorFactory {
     public static final QName Q_SOURCE = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "source");
     public static final QName Q_TARGET = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "target");
     public static final QName ATT_SOURCE_TYPE = new QName(XMLConfigConstants.NULL_NAMESPACE, "type");
+    public static final QName ATT_JSON_PATH = new QName(XMLConfigConstants.NULL_NAMESPACE, "jsonPath");
     public static final QName Q_SEC = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "enableSec");
     public static final QName ATT_POLICY = new QName(XMLConfigConstants.NULL_NAMESPACE, "policy");
     public static final QName ATT_OUTBOUND_SEC_POLICY = new QName(XMLConfigConstants.NULL_NAMESPACE, "outboundPolicy");
     public static final QName ATT_INBOUND_SEC_POLICY = new QName(XMLConfigConstants.NULL_NAMESPACE, "inboundPolicy");
     public static final QName Q_ENDPOINT = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "endpoint");
+    public static final QName Q_BRANCH = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "branch");
+    public static final QName ATT_BRANCH_NAME = new QName("name");
+    public static final QName ATT_BRANCH_TIMEOUT = new QName("branchTimeout");
+    public static final QName ATT_TRANSPORT = new QName("transport");
+    public static final QName ATT_FAULT_MODE = new QName("faultMode");
+    public static final QName ATT_ENCODING = new QName("encoding");
+    public static final QName ATT_MEMOIZE = new QName("memoize");
+    public static final QName Q_CONNECTION_POOL = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "connectionPool");
+    public static final QName ATT_MAX_CONNECTIONS_PER_ROUTE = new QName("maxConnectionsPerRoute");
+    public static final QName ATT_LEASE_TIMEOUT = new QName("leaseTimeout");
+    public static final QName ATT_MAX_CONNECTIONS_TOTAL = new QName("maxConnectionsTotal");
+    public static final QName ATT_IDLE_TIMEOUT = new QName("idleTimeout");
+    public static final QName ATT_KEEP_ALIVE = new QName("keepAlive");
+    public static final QName ATT_VALIDATE_AFTER_INACTIVITY = new QName("validateAfterInactivity");
+    public static final QName ATT_TLS_SESSION_CACHE_SIZE = new QName("tlsSessionCacheSize");
+    public static final QName ATT_TLS_SESSION_TIMEOUT = new QName("tlsSessionTimeout");
+    public static final QName ATT_PROTOCOL = new QName("protocol");
+    public static final QName ATT_MAX_CONCURRENT_STREAMS = new QName("maxConcurrentStreams");
+    public static final QName ATT_INITIAL_WINDOW_SIZE = new QName("initialWindowSize");
+    public static final QName ATT_CONNECTION_WINDOW_SIZE = new QName("connectionWindowSize");
+    public static final QName Q_WARM_UP = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "warmUp");
+    public static final QName ATT_CONNECTIONS = new QName("connections");
+    public static final QName ATT_PING_METHOD = new QName("pingMethod");
+    public static final QName ATT_ITERATIONS = new QName("iterations");
+    public static final QName ATT_TIMEOUT = new QName("timeout");
+    public static final QName Q_RESPONSE_CACHE = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "responseCache");
+    public static final QName ATT_MAX_SIZE = new QName("maxSize");
+    public static final QName ATT_TIME_TO_LIVE = new QName("timeToLive");
+    public static final QName ATT_FILE = new QName("file");
+    public static final QName ATT_VARY_HEADERS = new QName("varyHeaders");
+    public static final QName Q_LOAD_BALANCE = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "loadBalance");
+    public static final QName ATT_ALGORITHM = new QName("algorithm");
+    public static final QName ATT_DEMOTION_TIME = new QName("demotionTime");
+    public static final QName Q_MEMBER = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "member");
+    public static final QName Q_HEALTH_CHECK = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "healthCheck");
+    public static final QName ATT_INTERVAL = new QName("interval");
+    public static final QName ATT_METHOD = new QName("method");
+    public static final QName ATT_PATH = new QName("path");
+    public static final QName ATT_HEALTHY_THRESHOLD = new QName("healthyThreshold");
+    public static final QName ATT_UNHEALTHY_THRESHOLD = new QName("unhealthyThreshold");
+    public static final QName Q_SLOW_CALL_CAPTURE = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE,
+            "slowCallCapture");
+    public static final QName ATT_THRESHOLD = new QName("threshold");
+    public static final QName ATT_SAMPLE_RATE = new QName("sampleRate");
+    public static final QName ATT_MAX_PAYLOAD_SIZE = new QName("maxPayloadSize");
+    public static final QName ATT_CAPACITY = new QName("capacity");
+    public static final QName Q_COMPRESSION = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "compression");
+    public static final QName ATT_LEVEL = new QName("level");
+    public static final QName ATT_ACCEPT_ENCODING = new QName("acceptEncoding");
+    public static final QName ATT_MAX_RESPONSE_SIZE = new QName("maxResponseSize");
+    public static final QName Q_TEMPLATE = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "template");
+    public static final QName ATT_MEDIA_TYPE = new QName("mediaType");
+    public static final QName Q_ARGS = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "args");
+    public static final QName Q_ARG = new QName(XMLConfigConstants.SYNAPSE_NAMESPACE, "arg");
 
     /**
      * The QName of custom callout mediator element in the XML config
@@ -104,6 +194,27 @@ public class CustomCalloutMediatorFactory extends AbstractMediatorFactory {
 
         setInitAxis2ClientOptionsToCalloutOnDemand(elem, callout);
 
+        setTransportToCalloutOnDemand(elem, callout);
+
+        setFaultModeToCalloutOnDemand(elem, callout);
+        setEncodingToCalloutOnDemand(elem, callout);
+
+        callout.setMemoize(getBooleanAttribute(elem, ATT_MEMOIZE, callout.isMemoize()));
+
+        setConnectionPoolToCalloutOnDemand(elem, callout);
+
+        setWarmUpToCalloutOnDemand(elem, callout);
+
+        setResponseCacheToCalloutOnDemand(elem, callout);
+
+        setLoadBalancerToCalloutOnDemand(elem, callout);
+
+        setHealthCheckToCalloutOnDemand(elem, callout);
+
+        setSlowCallCaptureToCalloutOnDemand(elem, callout);
+
+        setCompressionToCalloutOnDemand(elem, callout);
+
         setAxis2ConfigAndClientRepositoryToCalloutOnDemand(elem, callout);
 
         setSourceToCallout(elem, callout);
@@ -112,9 +223,340 @@ public class CustomCalloutMediatorFactory extends AbstractMediatorFactory {
 
         enableWsSecurityAtCalloutOnDemand(elem, callout);
 
+        setBranchesToCalloutOnDemand(elem, properties, callout);
+
         return callout;
     }
 
+    /**
+     * Helper method to set concurrently invoked branches and their shared
+     * timeout to given callout.
+     * 
+     * @param elem
+     *            Contains necessary branch elements and timeout attribute
+     * @param properties
+     *            Properties needed by Endpoint factory
+     * @param callout
+     *            Mediator to set branches to
+     */
+    private void setBranchesToCalloutOnDemand(OMElement elem, Properties properties, CustomCalloutMediator callout) {
+        int index = 0;
+        for (Iterator<?> itr = elem.getChildrenWithName(Q_BRANCH); itr.hasNext();) {
+            OMElement branchElt = (OMElement) itr.next();
+            index++;
+
+            CustomCalloutMediator branch = new CustomCalloutMediator();
+            OMAttribute nameAttr = branchElt.getAttribute(ATT_BRANCH_NAME);
+            branch.setBranchName(nameAttr != null ? nameAttr.getAttributeValue() : "branch" + index);
+
+            setEndpointKeyOrServiceUrlAttributeToCalloutOnDemand(branchElt, branch);
+            setEndpointToCalloutOnDemand(branchElt, properties, branch);
+            setActionToCalloutOnDemand(branchElt, branch);
+            setSourceToCallout(branchElt, branch);
+            setTargetToCalloutOnDemand(branchElt, branch);
+            enableWsSecurityAtCalloutOnDemand(branchElt, branch);
+
+            callout.addBranch(branch);
+        }
+
+        callout.setBranchTimeout(getLongAttribute(elem, ATT_BRANCH_TIMEOUT, callout.getBranchTimeout()));
+    }
+
+    /**
+     * Helper method to set HTTP transport connection pool settings to given
+     * callout.
+     * 
+     * @param elem
+     *            Contains necessary element for connection pool
+     * @param callout
+     *            Mediator to set connection pool settings to
+     */
+    private void setConnectionPoolToCalloutOnDemand(OMElement elem, CustomCalloutMediator callout) {
+        OMElement poolElt = elem.getFirstChildWithName(Q_CONNECTION_POOL);
+        if (poolElt != null) {
+            ConnectionPoolConfiguration pool = new ConnectionPoolConfiguration();
+            pool.setMaxConnectionsPerRoute(
+                    (int) getLongAttribute(poolElt, ATT_MAX_CONNECTIONS_PER_ROUTE, pool.getMaxConnectionsPerRoute()));
+            pool.setMaxConnectionsTotal(
+                    (int) getLongAttribute(poolElt, ATT_MAX_CONNECTIONS_TOTAL, pool.getMaxConnectionsTotal()));
+            pool.setLeaseTimeout(getLongAttribute(poolElt, ATT_LEASE_TIMEOUT, pool.getLeaseTimeout()));
+            pool.setIdleTimeout(getLongAttribute(poolElt, ATT_IDLE_TIMEOUT, pool.getIdleTimeout()));
+            pool.setKeepAlive(getBooleanAttribute(poolElt, ATT_KEEP_ALIVE, pool.isKeepAlive()));
+            pool.setValidateAfterInactivity(
+                    getLongAttribute(poolElt, ATT_VALIDATE_AFTER_INACTIVITY, pool.getValidateAfterInactivity()));
+            pool.setTlsSessionCacheSize(
+                    (int) getLongAttribute(poolElt, ATT_TLS_SESSION_CACHE_SIZE, pool.getTlsSessionCacheSize()));
+            pool.setTlsSessionTimeout(getLongAttribute(poolElt, ATT_TLS_SESSION_TIMEOUT, pool.getTlsSessionTimeout()));
+            OMAttribute protocol = poolElt.getAttribute(ATT_PROTOCOL);
+            if (protocol != null) {
+                if (!ConnectionPoolConfiguration.PROTOCOL_HTTP_1_1.equals(protocol.getAttributeValue())
+                        && !ConnectionPoolConfiguration.PROTOCOL_H2C.equals(protocol.getAttributeValue())) {
+                    handleException("Unknown connection pool protocol : " + protocol.getAttributeValue());
+                }
+                pool.setProtocol(protocol.getAttributeValue());
+            }
+            pool.setMaxConcurrentStreams(
+                    (int) getLongAttribute(poolElt, ATT_MAX_CONCURRENT_STREAMS, pool.getMaxConcurrentStreams()));
+            pool.setInitialWindowSize(
+                    (int) getLongAttribute(poolElt, ATT_INITIAL_WINDOW_SIZE, pool.getInitialWindowSize()));
+            pool.setConnectionWindowSize(
+                    (int) getLongAttribute(poolElt, ATT_CONNECTION_WINDOW_SIZE, pool.getConnectionWindowSize()));
+            if (pool.getMaxConcurrentStreams() <= 0 || pool.getInitialWindowSize() <= 0
+                    || pool.getConnectionWindowSize() <= 0) {
+                handleException("HTTP/2 streams and window sizes must be positive");
+            }
+            callout.setConnectionPoolConfiguration(pool);
+        }
+    }
+
+    /**
+     * Helper method to set warm-up run at initiation to given callout.
+     * 
+     * @param elem
+     *            Contains necessary element for warm-up
+     * @param callout
+     *            Mediator to set warm-up to
+     */
+    private void setWarmUpToCalloutOnDemand(OMElement elem, CustomCalloutMediator callout) {
+        OMElement warmUpElt = elem.getFirstChildWithName(Q_WARM_UP);
+        if (warmUpElt != null) {
+            CalloutWarmUp warmUp = new CalloutWarmUp();
+            warmUp.setConnections((int) getLongAttribute(warmUpElt, ATT_CONNECTIONS, warmUp.getConnections()));
+            OMAttribute pingMethod = warmUpElt.getAttribute(ATT_PING_METHOD);
+            if (pingMethod != null) {
+                warmUp.setPingMethod(pingMethod.getAttributeValue().toUpperCase());
+            }
+            warmUp.setIterations((int) getLongAttribute(warmUpElt, ATT_ITERATIONS, warmUp.getIterations()));
+            warmUp.setTimeout(getLongAttribute(warmUpElt, ATT_TIMEOUT, warmUp.getTimeout()));
+            callout.setWarmUp(warmUp);
+        }
+    }
+
+    /**
+     * Helper method to set response cache settings to given callout.
+     * 
+     * @param elem
+     *            Contains necessary element for response cache
+     * @param callout
+     *            Mediator to set response cache settings to
+     */
+    private void setResponseCacheToCalloutOnDemand(OMElement elem, CustomCalloutMediator callout) {
+        OMElement cacheElt = elem.getFirstChildWithName(Q_RESPONSE_CACHE);
+        if (cacheElt != null) {
+            ResponseCacheConfiguration cache = new ResponseCacheConfiguration();
+            cache.setMaxSize(getLongAttribute(cacheElt, ATT_MAX_SIZE, cache.getMaxSize()));
+            cache.setTimeToLive(getLongAttribute(cacheElt, ATT_TIME_TO_LIVE, cache.getTimeToLive()));
+            OMAttribute file = cacheElt.getAttribute(ATT_FILE);
+            if (file != null) {
+                cache.setFile(file.getAttributeValue());
+            }
+            OMAttribute varyHeaders = cacheElt.getAttribute(ATT_VARY_HEADERS);
+            if (varyHeaders != null) {
+                List<String> names = new ArrayList<String>();
+                for (String name : varyHeaders.getAttributeValue().split(",")) {
+                    if (name.trim().length() > 0) {
+                        names.add(name.trim());
+                    }
+                }
+                cache.setVaryHeaders(names);
+            }
+            callout.setResponseCacheConfiguration(cache);
+        }
+    }
+
+    /**
+     * Helper method to set load balancer of service nodes to given callout.
+     * 
+     * @param elem
+     *            Contains necessary element for load balancer
+     * @param callout
+     *            Mediator to set load balancer to
+     */
+    private void setLoadBalancerToCalloutOnDemand(OMElement elem, CustomCalloutMediator callout) {
+        OMElement balanceElt = elem.getFirstChildWithName(Q_LOAD_BALANCE);
+        if (balanceElt != null) {
+            LoadBalancer balancer = new LoadBalancer();
+            OMAttribute algorithm = balanceElt.getAttribute(ATT_ALGORITHM);
+            if (algorithm != null) {
+                if (!LoadBalancer.ALGORITHM_LEAST_LATENCY.equals(algorithm.getAttributeValue())
+                        && !LoadBalancer.ALGORITHM_ROUND_ROBIN.equals(algorithm.getAttributeValue())) {
+                    handleException("Unknown load balance algorithm : " + algorithm.getAttributeValue());
+                }
+                balancer.setAlgorithm(algorithm.getAttributeValue());
+            }
+            balancer.setDemotionTime(getLongAttribute(balanceElt, ATT_DEMOTION_TIME, balancer.getDemotionTime()));
+            for (Iterator<?> itr = balanceElt.getChildrenWithName(Q_MEMBER); itr.hasNext();) {
+                OMElement memberElt = (OMElement) itr.next();
+                OMAttribute url = memberElt.getAttribute(ATT_URL);
+                if (url == null) {
+                    handleException("A 'serviceURL' attribute is required for the load balance 'member'");
+                }
+                balancer.addMember(url.getAttributeValue());
+            }
+            if (balancer.getMembers().isEmpty()) {
+                handleException("At least one 'member' is required for 'loadBalance'");
+            }
+            callout.setLoadBalancer(balancer);
+        }
+    }
+
+    /**
+     * Helper method to set active health check settings to given callout.
+     * 
+     * @param elem
+     *            Contains necessary element for health check
+     * @param callout
+     *            Mediator to set health check settings to
+     */
+    private void setHealthCheckToCalloutOnDemand(OMElement elem, CustomCalloutMediator callout) {
+        OMElement healthElt = elem.getFirstChildWithName(Q_HEALTH_CHECK);
+        if (healthElt != null) {
+            HealthCheckConfiguration health = new HealthCheckConfiguration();
+            health.setInterval(getLongAttribute(healthElt, ATT_INTERVAL, health.getInterval()));
+            health.setTimeout(getLongAttribute(healthElt, ATT_TIMEOUT, health.getTimeout()));
+            OMAttribute method = healthElt.getAttribute(ATT_METHOD);
+            if (method != null) {
+                health.setMethod(method.getAttributeValue());
+            }
+            OMAttribute path = healthElt.getAttribute(ATT_PATH);
+            if (path != null) {
+                health.setPath(path.getAttributeValue());
+            }
+            health.setHealthyThreshold(
+                    (int) getLongAttribute(healthElt, ATT_HEALTHY_THRESHOLD, health.getHealthyThreshold()));
+            health.setUnhealthyThreshold(
+                    (int) getLongAttribute(healthElt, ATT_UNHEALTHY_THRESHOLD, health.getUnhealthyThreshold()));
+            callout.setHealthCheckConfiguration(health);
+        }
+    }
+
+    /**
+     * Helper method to set slow call capture settings to given callout.
+     * 
+     * @param elem
+     *            Contains necessary element for slow call capture
+     * @param callout
+     *            Mediator to set slow call capture settings to
+     */
+    private void setSlowCallCaptureToCalloutOnDemand(OMElement elem, CustomCalloutMediator callout) {
+        OMElement captureElt = elem.getFirstChildWithName(Q_SLOW_CALL_CAPTURE);
+        if (captureElt != null) {
+            SlowCallCaptureConfiguration capture = new SlowCallCaptureConfiguration();
+            capture.setThreshold(getLongAttribute(captureElt, ATT_THRESHOLD, capture.getThreshold()));
+            capture.setSampleRate(getDoubleAttribute(captureElt, ATT_SAMPLE_RATE, capture.getSampleRate()));
+            capture.setMaxPayloadSize(
+                    (int) getLongAttribute(captureElt, ATT_MAX_PAYLOAD_SIZE, capture.getMaxPayloadSize()));
+            capture.setCapacity((int) getLongAttribute(captureElt, ATT_CAPACITY, capture.getCapacity()));
+            callout.setSlowCallCaptureConfiguration(capture);
+        }
+    }
+
+    /**
+     * Helper method to set compression settings to given callout.
+     * 
+     * @param elem
+     *            Contains necessary element for compression
+     * @param callout
+     *            Mediator to set compression settings to
+     */
+    private void setCompressionToCalloutOnDemand(OMElement elem, CustomCalloutMediator callout) {
+        OMElement compressionElt = elem.getFirstChildWithName(Q_COMPRESSION);
+        if (compressionElt != null) {
+            CompressionConfiguration compression = new CompressionConfiguration();
+            OMAttribute algorithm = compressionElt.getAttribute(ATT_ALGORITHM);
+            if (algorithm != null) {
+                if (!CompressionConfiguration.ALGORITHM_GZIP.equals(algorithm.getAttributeValue())
+                        && !CompressionConfiguration.ALGORITHM_DEFLATE.equals(algorithm.getAttributeValue())) {
+                    handleException("Unknown compression algorithm : " + algorithm.getAttributeValue());
+                }
+                compression.setAlgorithm(algorithm.getAttributeValue());
+            }
+            compression.setThreshold((int) getLongAttribute(compressionElt, ATT_THRESHOLD, compression.getThreshold()));
+            compression.setLevel((int) getLongAttribute(compressionElt, ATT_LEVEL, compression.getLevel()));
+            if (compression.getLevel() < 1 || compression.getLevel() > 9) {
+                handleException("The 'level' attribute only accepts values from 1 to 9.");
+            }
+            compression.setAcceptEncoding(
+                    getBooleanAttribute(compressionElt, ATT_ACCEPT_ENCODING, compression.isAcceptEncoding()));
+            compression.setMaxResponseSize(
+                    (int) getLongAttribute(compressionElt, ATT_MAX_RESPONSE_SIZE, compression.getMaxResponseSize()));
+            callout.setCompressionConfiguration(compression);
+        }
+    }
+
+    /**
+     * Helper method to read boolean attribute.
+     * 
+     * @param elem
+     *            Element containing the attribute
+     * @param name
+     *            Name of the attribute
+     * @param defaultValue
+     *            Value returned if attribute is not defined
+     * @return Attribute value as boolean
+     */
+    private boolean getBooleanAttribute(OMElement elem, QName name, boolean defaultValue) {
+        OMAttribute attr = elem.getAttribute(name);
+        if (attr == null) {
+            return defaultValue;
+        }
+        if ("true".equals(attr.getAttributeValue().toLowerCase())) {
+            return true;
+        } else if ("false".equals(attr.getAttributeValue().toLowerCase())) {
+            return false;
+        }
+        handleException("The '" + name.getLocalPart() + "' attribute only accepts a boolean value.");
+        return defaultValue;
+    }
+
+    /**
+     * Helper method to read numeric attribute.
+     * 
+     * @param elem
+     *            Element containing the attribute
+     * @param name
+     *            Name of the attribute
+     * @param defaultValue
+     *            Value returned if attribute is not defined
+     * @return Attribute value as long
+     */
+    private long getLongAttribute(OMElement elem, QName name, long defaultValue) {
+        OMAttribute attr = elem.getAttribute(name);
+        if (attr == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(attr.getAttributeValue().trim());
+        } catch (NumberFormatException e) {
+            handleException("The '" + name.getLocalPart() + "' attribute only accepts a numeric value.");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Helper method to read decimal attribute.
+     * 
+     * @param elem
+     *            Element containing the attribute
+     * @param name
+     *            Name of the attribute
+     * @param defaultValue
+     *            Value returned if attribute is not defined
+     * @return Attribute value as double
+     */
+    private double getDoubleAttribute(OMElement elem, QName name, double defaultValue) {
+        OMAttribute attr = elem.getAttribute(name);
+        if (attr == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(attr.getAttributeValue().trim());
+        } catch (NumberFormatException e) {
+            handleException("The '" + name.getLocalPart() + "' attribute only accepts a numeric value.");
+            return defaultValue;
+        }
+    }
+
     /**
      * Helper method to enable WS security on given callout.
      * 
@@ -157,7 +599,10 @@ public class CustomCalloutMediatorFactory extends AbstractMediatorFactory {
     private void setTargetToCalloutOnDemand(OMElement elem, CustomCalloutMediator callout) {
         OMElement targetElt = elem.getFirstChildWithName(Q_TARGET);
         if (targetElt != null) {
-            if (targetElt.getAttribute(ATT_XPATH) != null) {
+            if (targetElt.getAttribute(ATT_JSON_PATH) != null) {
+                callout.setTargetJsonPath(createJsonPath(targetElt, "target"));
+                callout.setTargetKey(targetElt.getAttributeValue(ATT_KEY));
+            } else if (targetElt.getAttribute(ATT_XPATH) != null) {
                 try {
                     callout.setTargetXPath(SynapseXPathFactory.getSynapseXPath(targetElt, ATT_XPATH));
                 } catch (JaxenException e) {
@@ -166,7 +611,7 @@ public class CustomCalloutMediatorFactory extends AbstractMediatorFactory {
             } else if (targetElt.getAttribute(ATT_KEY) != null) {
                 callout.setTargetKey(targetElt.getAttributeValue(ATT_KEY));
             } else {
-                handleException("A 'xpath' or 'key' attribute " + "is required for the Callout 'target'");
+                handleException("A 'xpath', 'key' or 'jsonPath' attribute " + "is required for the Callout 'target'");
             }
         }
     }
@@ -185,8 +630,14 @@ public class CustomCalloutMediatorFactory extends AbstractMediatorFactory {
         if (sourceElt != null) {
             OMAttribute sourceType = sourceElt.getAttribute(ATT_SOURCE_TYPE);
 
+            OMElement templateElt = sourceElt.getFirstChildWithName(Q_TEMPLATE);
+
             if (sourceType != null && sourceType.getAttributeValue().equals("envelope")) {
                 callout.setUseEnvelopeAsSource(true);
+            } else if (templateElt != null) {
+                callout.setRequestTemplate(createRequestTemplate(sourceElt, templateElt));
+            } else if (sourceElt.getAttribute(ATT_JSON_PATH) != null) {
+                callout.setRequestJsonPath(createJsonPath(sourceElt, "source"));
             } else if (sourceElt.getAttribute(ATT_XPATH) != null) {
                 try {
                     callout.setRequestXPath(SynapseXPathFactory.getSynapseXPath(sourceElt, ATT_XPATH));
@@ -196,13 +647,87 @@ public class CustomCalloutMediatorFactory extends AbstractMediatorFactory {
             } else if (sourceElt.getAttribute(ATT_KEY) != null) {
                 callout.setRequestKey(sourceElt.getAttributeValue(ATT_KEY));
             } else {
-                handleException("A 'xpath' or 'key' attribute " + "is required for the Callout 'source'");
+                handleException("A 'xpath', 'key' or 'jsonPath' attribute or 'template' element "
+                        + "is required for the Callout 'source'");
             }
         } else {
             callout.setUseEnvelopeAsSource(true);
         }
     }
 
+    /**
+     * Helper method to compile JSONPath of given source or target.
+     * 
+     * @param elem
+     *            Source or target element with jsonPath attribute
+     * @param name
+     *            Name of the element for error message
+     * @return Compiled JSONPath
+     */
+    private JsonPath createJsonPath(OMElement elem, String name) {
+        try {
+            return new JsonPath(elem.getAttributeValue(ATT_JSON_PATH));
+        } catch (IllegalArgumentException e) {
+            handleException("Invalid Callout '" + name + "' JSONPath : " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Helper method to compile inline request template of given source.
+     * 
+     * @param sourceElt
+     *            Contains optional arguments of the template
+     * @param templateElt
+     *            Contains the template as child element or JSON text
+     * @return Compiled request template
+     */
+    private RequestTemplate createRequestTemplate(OMElement sourceElt, OMElement templateElt) {
+        OMAttribute mediaTypeAttr = templateElt.getAttribute(ATT_MEDIA_TYPE);
+        String mediaType = mediaTypeAttr != null ? mediaTypeAttr.getAttributeValue() : RequestTemplate.MEDIA_TYPE_XML;
+        String text;
+        if (RequestTemplate.MEDIA_TYPE_XML.equals(mediaType)) {
+            OMElement payload = templateElt.getFirstElement();
+            if (payload == null) {
+                handleException("XML template of the Callout 'source' must contain an element");
+            }
+            // Unprefixed template elements inherit the Synapse namespace
+            text = payload.toString().replace(" xmlns=\"" + XMLConfigConstants.SYNAPSE_NAMESPACE + "\"", "");
+        } else {
+            text = templateElt.getText();
+        }
+
+        RequestTemplate template = null;
+        try {
+            template = new RequestTemplate(text, mediaType);
+        } catch (IllegalArgumentException e) {
+            handleException("Invalid Callout 'source' template : " + e.getMessage());
+        }
+
+        OMElement argsElt = sourceElt.getFirstChildWithName(Q_ARGS);
+        if (argsElt != null) {
+            for (Iterator<?> itr = argsElt.getChildrenWithName(Q_ARG); itr.hasNext();) {
+                OMElement argElt = (OMElement) itr.next();
+                if (argElt.getAttribute(ATT_EXPRN) != null) {
+                    try {
+                        template.addExpression(SynapseXPathFactory.getSynapseXPath(argElt, ATT_EXPRN));
+                    } catch (JaxenException e) {
+                        handleException("Invalid template argument XPath : " + argElt.getAttributeValue(ATT_EXPRN));
+                    }
+                } else if (argElt.getAttribute(ATT_VALUE) != null) {
+                    template.addValue(argElt.getAttributeValue(ATT_VALUE));
+                } else {
+                    handleException("An 'expression' or 'value' attribute is required for the template 'arg'");
+                }
+            }
+        }
+        if (template.getRequiredArguments() > template.getArguments().size()) {
+            handleException("Callout 'source' template refers to $" + template.getRequiredArguments() + " but has "
+                    + template.getArguments().size() + " arguments");
+        }
+        return template;
+    }
+
     /**
      * Helper method to whether set Axis2 XML configuration or client repository
      * to given callout.
@@ -282,6 +807,69 @@ public class CustomCalloutMediatorFactory extends AbstractMediatorFactory {
         }
     }
 
+    /**
+     * Helper method to set transport used for JSON payloads to given callout.
+     * 
+     * @param elem
+     *            Contains necessary attribute for 'transport'
+     * @param callout
+     *            Mediator to set transport to
+     */
+    private void setTransportToCalloutOnDemand(OMElement elem, CustomCalloutMediator callout) {
+        OMAttribute transport = elem.getAttribute(ATT_TRANSPORT);
+        if (transport != null) {
+            String value = transport.getAttributeValue().toLowerCase();
+            if (CustomCalloutMediator.TRANSPORT_AXIS2.equals(value)
+                    || CustomCalloutMediator.TRANSPORT_HTTP.equals(value)) {
+                callout.setTransport(value);
+            } else {
+                handleException("The 'transport' attribute only accepts values 'axis2' or 'http'.");
+            }
+        }
+    }
+
+    /**
+     * Helper method to set fault mode to given callout.
+     * 
+     * @param elem
+     *            Contains necessary attribute for 'faultMode'
+     * @param callout
+     *            Mediator to set fault mode to
+     */
+    private void setFaultModeToCalloutOnDemand(OMElement elem, CustomCalloutMediator callout) {
+        OMAttribute faultMode = elem.getAttribute(ATT_FAULT_MODE);
+        if (faultMode != null) {
+            String value = faultMode.getAttributeValue().toLowerCase();
+            if (CustomCalloutMediator.FAULT_MODE_FULL.equals(value)
+                    || CustomCalloutMediator.FAULT_MODE_STACKLESS.equals(value)) {
+                callout.setFaultMode(value);
+            } else {
+                handleException("The 'faultMode' attribute only accepts values 'full' or 'stackless'.");
+            }
+        }
+    }
+
+    /**
+     * Helper method to set encoding to given callout.
+     * 
+     * @param elem
+     *            Contains necessary attribute for 'encoding'
+     * @param callout
+     *            Mediator to set encoding to
+     */
+    private void setEncodingToCalloutOnDemand(OMElement elem, CustomCalloutMediator callout) {
+        OMAttribute encoding = elem.getAttribute(ATT_ENCODING);
+        if (encoding != null) {
+            String value = encoding.getAttributeValue().toLowerCase();
+            if (CustomCalloutMediator.ENCODING_XML.equals(value)
+                    || CustomCalloutMediator.ENCODING_FAST_INFOSET.equals(value)) {
+                callout.setEncoding(value);
+            } else {
+                handleException("The 'encoding' attribute only accepts values 'xml' or 'fastinfoset'.");
+            }
+        }
+    }
+
     /**
      * Helper method to set use server config to given callout.
      * 
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+public class AllocationAccountingTest {
+
+    @Test
+    public void shouldAccountBytesAllocatedInPhase() {
+        assumeTrue(AllocationAccounting.isSupported());
+        AllocationAccounting accounting = new AllocationAccounting();
+
+        long start = AllocationAccounting.getAllocatedBytes();
+        byte[] allocated = new byte[1024 * 1024];
+        long mark = accounting.record(AllocationAccounting.PHASE_SEND, start);
+        accounting.recordCall(start, accounting.record(AllocationAccounting.PHASE_RESPONSE, mark));
+
+        assertTrue("Array should be allocated", allocated.length > 0);
+        assertTrue("Call should be accounted", accounting.getCalls() == 1);
+        assertTrue("Send phase should contain the array",
+                accounting.getAverageBytes(AllocationAccounting.PHASE_SEND) >= 1024 * 1024);
+        assertTrue("Response phase should not contain the array",
+                accounting.getAverageBytes(AllocationAccounting.PHASE_RESPONSE) < 1024 * 1024);
+        assertTrue("Call should contain the array", accounting.getAverageBytesPerCall() >= 1024 * 1024);
+        assertTrue("Summary should list phases", accounting.getPhaseSummary()[2].startsWith("send "));
+    }
+
+    @Test
+    public void shouldIgnoreUnknownMarks() {
+        AllocationAccounting accounting = new AllocationAccounting();
+        accounting.record(AllocationAccounting.PHASE_PREPARE, -1);
+        accounting.recordCall(-1, -1);
+
+        assertTrue("Call should not be accounted", accounting.getCalls() == 0);
+        assertTrue("Average should be zero", accounting.getAverageBytesPerCall() == 0);
+        assertTrue("Phase should be empty", accounting.getAverageBytes(AllocationAccounting.PHASE_PREPARE) == 0);
+    }
+}
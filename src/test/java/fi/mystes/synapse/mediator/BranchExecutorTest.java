@@ -0,0 +1,57 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.Test;
+
+public class BranchExecutorTest {
+
+    @Test
+    public void shouldRejectInvocationsBeyondThreadsAndQueue() throws Exception {
+        ThreadPoolExecutor executor = BranchExecutor.create(2, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Callable<Object> blocking = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                release.await();
+                return null;
+            }
+        };
+        try {
+            executor.submit(blocking);
+            executor.submit(blocking);
+            executor.submit(blocking);
+            try {
+                executor.submit(blocking);
+                fail("Invocation beyond threads and queue should be rejected");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            assertTrue("Pool should not grow beyond its maximum", executor.getPoolSize() == 2);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.apache.axis2.AxisFault;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseConstants;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.endpoints.AddressEndpoint;
+import org.apache.synapse.endpoints.Endpoint;
+import org.junit.Test;
+
+import fi.mystes.synapse.mediator.balancer.LoadBalancer;
+import fi.mystes.synapse.mediator.health.HealthCheckConfiguration;
+import fi.mystes.synapse.mediator.health.HealthProbe;
+
+public class CalloutRoutingTest {
+
+    @Test
+    public void shouldSendToChosenMemberAndDemoteFailingOne() throws Exception {
+        LoadBalancer balancer = new LoadBalancer();
+        balancer.setAlgorithm(LoadBalancer.ALGORITHM_ROUND_ROBIN);
+        final LoadBalancer.Member failing = balancer.addMember("http://a/");
+        LoadBalancer.Member working = balancer.addMember("http://b/");
+        failing.setEndpoint(new AddressEndpoint());
+        working.setEndpoint(new AddressEndpoint());
+        final int[] sent = new int[2];
+        CalloutRouting routing = new CalloutRouting(balancer, false, new CalloutRouting.Sender() {
+            @Override
+            public MessageContext send(MessageContext synapseOutMsgCtx) throws Exception {
+                Endpoint endpoint = (Endpoint) synapseOutMsgCtx
+                        .getProperty(CustomCalloutMediator.RESOLVED_ENDPOINT_PROPERTY);
+                MessageContext response = newContext();
+                if (endpoint == failing.getEndpoint()) {
+                    sent[0]++;
+                    response.setProperty(SynapseConstants.BLOCKING_SENDER_ERROR, "true");
+                } else {
+                    sent[1]++;
+                }
+                return response;
+            }
+        });
+
+        for (int i = 0; i < 10; i++) {
+            routing.send(newContext());
+        }
+
+        assertEquals("Failing member should be demoted after one request", 1, sent[0]);
+        assertEquals(9, sent[1]);
+        assertTrue("Failure should be counted", failing.getFailures() == 1 && failing.isDemoted());
+        assertEquals(0, working.getInFlight());
+    }
+
+    @Test
+    public void shouldFailFastWithoutSendingToUnhealthyEndpoint() throws Exception {
+        HealthCheckConfiguration configuration = new HealthCheckConfiguration();
+        configuration.setUnhealthyThreshold(1);
+        final int[] sent = new int[1];
+        CalloutRouting routing = new CalloutRouting(null, true, new CalloutRouting.Sender() {
+            @Override
+            public MessageContext send(MessageContext synapseOutMsgCtx) throws Exception {
+                sent[0]++;
+                return synapseOutMsgCtx;
+            }
+        });
+        routing.startHealthChecks(configuration, "http://127.0.0.1:" + getClosedPort() + "/service");
+        HealthProbe probe = routing.getHealthProbes().get(0);
+        try {
+            // The first probe runs right away and fails on the closed port
+            for (int i = 0; i < 500 && probe.isHealthy(); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue("Probe of closed port should fail", !probe.isHealthy());
+
+            try {
+                routing.send(newContext());
+                fail("Callout to unhealthy endpoint should fail");
+            } catch (AxisFault e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("is unhealthy, callout not sent"));
+            }
+            assertEquals("Nothing should be sent", 0, sent[0]);
+        } finally {
+            routing.release();
+        }
+        assertTrue("Probes should be released", routing.getHealthProbes().isEmpty());
+    }
+
+    private static int getClosedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static MessageContext newContext() {
+        return new Axis2MessageContext(new org.apache.axis2.context.MessageContext(), null, null);
+    }
+}
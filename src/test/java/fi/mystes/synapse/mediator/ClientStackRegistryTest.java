@@ -0,0 +1,191 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.context.ConfigurationContext;
+import org.apache.synapse.message.senders.blocking.BlockingMsgSender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.mystes.synapse.mediator.ClientStackRegistry.ClientStack;
+
+public class ClientStackRegistryTest {
+
+    private CountingFactory factory;
+
+    @Before
+    public void setUp() {
+        System.setProperty(ClientStackRegistry.RELEASE_DELAY_PROPERTY, "0");
+        factory = new CountingFactory();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(ClientStackRegistry.RELEASE_DELAY_PROPERTY);
+    }
+
+    @Test
+    public void shouldReuseStackOfIdenticalConfiguration() throws AxisFault {
+        ClientStack first = ClientStackRegistry.acquire("reuse", factory);
+        ClientStack second = ClientStackRegistry.acquire("reuse", factory);
+        ClientStackRegistry.release("reuse");
+        ClientStackRegistry.release("reuse");
+
+        assertTrue("Stack should be created once", factory.created == 1);
+        assertTrue("Same stack should be returned", first == second);
+    }
+
+    @Test
+    public void shouldNotShareStackOfDifferentConfiguration() throws AxisFault {
+        ClientStack first = ClientStackRegistry.acquire("first", factory);
+        ClientStack second = ClientStackRegistry.acquire("second", factory);
+        ClientStackRegistry.release("first");
+        ClientStackRegistry.release("second");
+
+        assertTrue("Stack should be created per configuration", factory.created == 2);
+        assertTrue("Different stacks should be returned", first != second);
+    }
+
+    @Test
+    public void shouldTerminateStackOnlyWhenLastReferenceIsReleased() throws AxisFault {
+        ClientStack stack = ClientStackRegistry.acquire("terminate", factory);
+        ClientStackRegistry.acquire("terminate", factory);
+
+        ClientStackRegistry.release("terminate");
+        verify(stack.configCtx, never()).terminate();
+
+        ClientStackRegistry.release("terminate");
+        verify(stack.configCtx).terminate();
+
+        ClientStackRegistry.acquire("terminate", factory);
+        ClientStackRegistry.release("terminate");
+        assertTrue("Terminated stack should not be reused", factory.created == 2);
+    }
+
+    @Test
+    public void shouldReuseReleasedStackWithinReleaseDelay() throws AxisFault {
+        System.setProperty(ClientStackRegistry.RELEASE_DELAY_PROPERTY, "60000");
+        ClientStack old = ClientStackRegistry.acquire("redeploy", factory);
+        ClientStackRegistry.release("redeploy");
+        ClientStack redeployed = ClientStackRegistry.acquire("redeploy", factory);
+
+        System.setProperty(ClientStackRegistry.RELEASE_DELAY_PROPERTY, "0");
+        ClientStackRegistry.release("redeploy");
+
+        assertTrue("Redeployed mediator should take over the stack", old == redeployed);
+        assertTrue("Stack should be created once", factory.created == 1);
+        verify(old.configCtx).terminate();
+    }
+
+    @Test
+    public void shouldNotBlockOtherConfigurationsWhileCreatingStack() throws Exception {
+        BlockingFactory slow = new BlockingFactory();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ClientStack> pending = executor.submit(acquisition("slow", slow));
+            assertTrue("Slow creation should start", slow.started.await(5, TimeUnit.SECONDS));
+
+            ClientStack other = ClientStackRegistry.acquire("other", factory);
+            ClientStackRegistry.release("other");
+            assertTrue("Other configuration should get its stack", other != null);
+
+            slow.proceed.countDown();
+            pending.get(5, TimeUnit.SECONDS);
+            ClientStackRegistry.release("slow");
+        } finally {
+            slow.proceed.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldShareSingleCreationBetweenConcurrentAcquirers() throws Exception {
+        BlockingFactory slow = new BlockingFactory();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<ClientStack> first = executor.submit(acquisition("shared", slow));
+            assertTrue("Slow creation should start", slow.started.await(5, TimeUnit.SECONDS));
+            Future<ClientStack> second = executor.submit(acquisition("shared", slow));
+
+            slow.proceed.countDown();
+            ClientStack firstStack = first.get(5, TimeUnit.SECONDS);
+            ClientStack secondStack = second.get(5, TimeUnit.SECONDS);
+            ClientStackRegistry.release("shared");
+            verify(firstStack.configCtx, never()).terminate();
+            ClientStackRegistry.release("shared");
+
+            assertTrue("Stack should be created once", slow.created == 1);
+            assertTrue("Same stack should be returned", firstStack == secondStack);
+            verify(firstStack.configCtx).terminate();
+        } finally {
+            slow.proceed.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static Callable<ClientStack> acquisition(final String key, final ClientStackRegistry.Factory factory) {
+        return new Callable<ClientStack>() {
+            @Override
+            public ClientStack call() throws AxisFault {
+                return ClientStackRegistry.acquire(key, factory);
+            }
+        };
+    }
+
+    private static class BlockingFactory implements ClientStackRegistry.Factory {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch proceed = new CountDownLatch(1);
+        private volatile int created = 0;
+
+        @Override
+        public ClientStack create() throws AxisFault {
+            created++;
+            started.countDown();
+            try {
+                proceed.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ClientStack(mock(ConfigurationContext.class), mock(BlockingMsgSender.class), null);
+        }
+    }
+
+    private static class CountingFactory implements ClientStackRegistry.Factory {
+
+        private int created = 0;
+
+        @Override
+        public ClientStack create() throws AxisFault {
+            created++;
+            return new ClientStack(mock(ConfigurationContext.class), mock(BlockingMsgSender.class), null);
+        }
+    }
+}
@@ -16,7 +16,9 @@
 package fi.mystes.synapse.mediator;
 
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -34,6 +36,8 @@ import org.apache.axis2.AxisFault;
 import org.apache.axis2.context.ConfigurationContext;
 import org.apache.axis2.context.ConfigurationContextFactory;
 import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseConstants;
+import org.apache.synapse.commons.json.JsonUtil;
 import org.apache.synapse.core.SynapseEnvironment;
 import org.apache.synapse.core.axis2.Axis2MessageContext;
 import org.apache.synapse.endpoints.Endpoint;
@@ -45,15 +49,25 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import fi.mystes.synapse.mediator.json.JsonPath;
+
 @RunWith(PowerMockRunner.class)
+@PowerMockIgnore({ "com.sun.management.*", "javax.management.*", "jdk.jfr.*" })
 @PrepareForTest({ MessageHelper.class, ConfigurationContextFactory.class })
 public class CustomCalloutMediatorTest {
 
+    // About 1.5 times the bytes per call measured on JDK 8, JSON with room for
+    // the payload buffers of JsonUtil
+    private static final long MAX_XML_BYTES_PER_CALL = 84 * 1024;
+    private static final long MAX_JSON_BYTES_PER_CALL = 100 * 1024;
+
     private CustomCalloutMediator callout;
     private String endpointName = "CustomEndpointName";
 
@@ -64,6 +78,9 @@ public class CustomCalloutMediatorTest {
     @Mock
     private Endpoint endpoint;
 
+    @Mock
+    private Endpoint failingEndpoint;
+
     @Mock
     private SynapseEnvironment environtment;
 
@@ -186,4 +203,127 @@ public class CustomCalloutMediatorTest {
         callout.mediate(reqMcMock);
         verify(reqMcMock).setEnvelope(resEnvelope);
     }
+
+    @Test
+    public void shouldRecordBranchFaultWithoutAbortingOtherBranches() throws AxisFault {
+        when(blockingMsgSender.send(failingEndpoint, reqMC)).thenThrow(new AxisFault("Service unavailable"));
+
+        CustomCalloutMediator succeeding = new CustomCalloutMediator();
+        succeeding.setBranchName("succeeding");
+        succeeding.setEndpoint(endpoint);
+        succeeding.setUseEnvelopeAsSource(true);
+        succeeding.setTargetKey("succeedingResponse");
+        CustomCalloutMediator failing = new CustomCalloutMediator();
+        failing.setBranchName("failing");
+        failing.setEndpoint(failingEndpoint);
+        failing.setUseEnvelopeAsSource(true);
+        failing.setTargetKey("failingResponse");
+
+        callout = new CustomCalloutMediator();
+        callout.addBranch(succeeding);
+        callout.addBranch(failing);
+        callout.setBranchTimeout(5000);
+        callout.initBlockingMsgSender(blockingMsgSender);
+
+        callout.mediate(reqMC);
+
+        assertTrue("Succeeding branch should set its target",
+                ((OMElement) reqMC.getProperty("succeedingResponse")).getLocalName().equals("Response"));
+        assertTrue("Failing branch should not set its target", reqMC.getProperty("failingResponse") == null);
+        assertTrue("Failing branch should record its fault message",
+                "Service unavailable".equals(reqMC.getProperty("failing." + SynapseConstants.ERROR_MESSAGE)));
+    }
+
+    @Test
+    public void shouldReuseMemoizedResponseOfIdenticalCallout() throws Exception {
+        when(MessageHelper.cloneMessageContext(resMC)).thenReturn(resMC);
+        callout.setMemoize(true);
+        callout.setTargetKey("memoizedResponse");
+
+        callout.mediate(reqMC);
+        reqMC.setProperty("memoizedResponse", null);
+        callout.mediate(reqMC);
+
+        verify(blockingMsgSender, times(1)).send(endpoint, reqMC);
+        assertTrue("Memoized response should be set to target",
+                ((OMElement) reqMC.getProperty("memoizedResponse")).getLocalName().equals("Response"));
+    }
+
+    @Test
+    public void shouldInvokeServiceForEachCalloutWhenNotMemoized() throws Exception {
+        callout.setTargetKey("response");
+
+        callout.mediate(reqMC);
+        callout.mediate(reqMC);
+
+        verify(blockingMsgSender, times(2)).send(endpoint, reqMC);
+        assertTrue("No memo should be stored", reqMC.getProperty(CalloutMemo.MEMO_PROPERTY) == null);
+    }
+
+    @Test
+    public void shouldMergeJsonResponseIntoTargetKeyAtJsonPath() throws AxisFault {
+        JsonUtil.newJsonPayload(reqAMC, "{\"order\":{\"customer\":{\"id\":1}}}", true, true);
+        JsonUtil.newJsonPayload(resAMC, "{\"name\":\"Ann\"}", true, true);
+        callout.setUseEnvelopeAsSource(false);
+        callout.setRequestJsonPath(new JsonPath("$.order.customer"));
+        callout.setTargetJsonPath(new JsonPath("$.customer"));
+        callout.setTargetKey("order");
+        reqMC.setProperty("order", "{\"id\":7}");
+
+        callout.mediate(reqMC);
+
+        String order = ((String) reqMC.getProperty("order")).replaceAll("\\s", "");
+        assertTrue("Response should be merged at JSONPath : " + order,
+                order.equals("{\"id\":7,\"customer\":{\"name\":\"Ann\"}}"));
+    }
+
+    @Test
+    public void shouldAllocateBoundedBytesPerXmlCallout() {
+        assumeTrue(AllocationAccounting.isSupported());
+        long perCall = measureAllocatedBytesPerCall();
+        assertTrue("XML callout allocated " + perCall + " bytes per call", perCall < MAX_XML_BYTES_PER_CALL);
+    }
+
+    @Test
+    public void shouldAllocateBoundedBytesPerJsonCallout() throws AxisFault {
+        assumeTrue(AllocationAccounting.isSupported());
+        JsonUtil.newJsonPayload(reqAMC, "{\"request\":{\"id\":1}}", true, true);
+        JsonUtil.newJsonPayload(resAMC, "{\"response\":{\"id\":1,\"items\":[1,2,3]}}", true, true);
+        long perCall = measureAllocatedBytesPerCall();
+        assertTrue("JSON callout allocated " + perCall + " bytes per call", perCall < MAX_JSON_BYTES_PER_CALL);
+    }
+
+    /**
+     * Helper method to mediate repeatedly after warm up with allocation
+     * accounting enabled.
+     * 
+     * @return Average bytes allocated per call
+     */
+    private long measureAllocatedBytesPerCall() {
+        for (int i = 0; i < 200; i++) {
+            callout.mediate(reqMC);
+        }
+        callout.setAllocationAccountingEnabled(true);
+        for (int i = 0; i < 200; i++) {
+            callout.mediate(reqMC);
+        }
+        AllocationAccounting accounting = callout.getAllocationAccounting();
+        assertTrue("All calls should be accounted", accounting.getCalls() == 200);
+        return accounting.getAverageBytesPerCall();
+    }
+
+    @Test
+    public void shouldNotCreateClientStackAtInitWhenLazy() throws AxisFault {
+        System.setProperty(CustomCalloutMediator.LAZY_INIT_PROPERTY, "true");
+        try {
+            CustomCalloutMediator lazy = new CustomCalloutMediator();
+            lazy.setEndpoint(endpoint);
+            lazy.init(environtment);
+            lazy.destroy();
+        } finally {
+            System.clearProperty(CustomCalloutMediator.LAZY_INIT_PROPERTY);
+        }
+        PowerMockito.verifyStatic(Mockito.never());
+        ConfigurationContextFactory.createConfigurationContextFromFileSystem(anyString(), anyString());
+    }
 }
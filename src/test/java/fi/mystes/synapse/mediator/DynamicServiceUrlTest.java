@@ -0,0 +1,126 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axis2.AxisFault;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.endpoints.AddressEndpoint;
+import org.apache.synapse.endpoints.EndpointDefinition;
+import org.junit.After;
+import org.junit.Test;
+
+public class DynamicServiceUrlTest {
+
+    private int created = 0;
+
+    private final DynamicServiceUrl.EndpointFactory factory = new DynamicServiceUrl.EndpointFactory() {
+        @Override
+        public AddressEndpoint create(String address) {
+            created++;
+            AddressEndpoint endpoint = new AddressEndpoint();
+            EndpointDefinition definition = new EndpointDefinition();
+            definition.setAddress(address);
+            endpoint.setDefinition(definition);
+            return endpoint;
+        }
+    };
+
+    @After
+    public void tearDown() {
+        System.clearProperty(DynamicServiceUrl.ENDPOINT_CACHE_SIZE_PROPERTY);
+    }
+
+    @Test
+    public void shouldResolveExpressionsPerMessage() throws Exception {
+        DynamicServiceUrl url = new DynamicServiceUrl("http://localhost/{$ctx:tenant}/service", factory);
+
+        assertTrue("URL should be resolved with message property",
+                url.resolve(createMessage("acme")).equals("http://localhost/acme/service"));
+        assertTrue("URL should be resolved with message property",
+                url.resolve(createMessage("mystes")).equals("http://localhost/mystes/service"));
+    }
+
+    @Test
+    public void shouldEncodeResolvedValuesAsPathSegments() throws Exception {
+        DynamicServiceUrl url = new DynamicServiceUrl("http://localhost/{$ctx:tenant}/service", factory);
+
+        assertTrue("Separators should not redirect the callout", url.resolve(createMessage("evil.com/x?y#z"))
+                .equals("http://localhost/evil.com%2Fx%3Fy%23z/service"));
+        assertTrue("Spaces and non-ASCII characters should be percent-encoded",
+                url.resolve(createMessage("a b\u00e4")).equals("http://localhost/a%20b%C3%A4/service"));
+    }
+
+    @Test
+    public void shouldFailOnEmptyValue() throws Exception {
+        DynamicServiceUrl url = new DynamicServiceUrl("http://localhost/{$ctx:tenant}/service", factory);
+
+        try {
+            url.resolve(createMessage(""));
+            fail("Empty value should not be substituted");
+        } catch (AxisFault e) {
+            assertTrue("Fault should name the expression", e.getMessage().contains("$ctx:tenant"));
+        }
+    }
+
+    @Test
+    public void shouldReuseEndpointOfResolvedUrl() throws Exception {
+        DynamicServiceUrl url = new DynamicServiceUrl("http://localhost/{$ctx:tenant}/service", factory);
+
+        AddressEndpoint first = url.getEndpoint(createMessage("acme"));
+        AddressEndpoint second = url.getEndpoint(createMessage("acme"));
+        AddressEndpoint other = url.getEndpoint(createMessage("mystes"));
+
+        assertTrue("Endpoint should be reused for same URL", first == second);
+        assertTrue("Endpoint should be created for each URL", created == 2 && other != first);
+        assertTrue("Endpoint should send to resolved URL",
+                other.getDefinition().getAddress().equals("http://localhost/mystes/service"));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEndpoint() throws Exception {
+        System.setProperty(DynamicServiceUrl.ENDPOINT_CACHE_SIZE_PROPERTY, "2");
+        DynamicServiceUrl url = new DynamicServiceUrl("http://localhost/{$ctx:tenant}", factory);
+
+        url.getEndpoint(createMessage("a"));
+        url.getEndpoint(createMessage("b"));
+        url.getEndpoint(createMessage("a"));
+        url.getEndpoint(createMessage("c"));
+        url.getEndpoint(createMessage("a"));
+
+        assertTrue("Cache should be bounded", url.getCachedEndpoints() == 2);
+        assertTrue("Recently used endpoint should be kept", created == 3);
+    }
+
+    @Test
+    public void shouldNotTreatSystemPropertiesAsDynamic() {
+        assertTrue("System properties are substituted at deploy time",
+                !DynamicServiceUrl.isDynamic("http://{system.prop.host}/service"));
+        assertTrue("Expressions are resolved per message",
+                DynamicServiceUrl.isDynamic("http://{system.prop.host}/{$ctx:tenant}"));
+    }
+
+    private MessageContext createMessage(String tenant) throws Exception {
+        MessageContext synCtx = new Axis2MessageContext(new org.apache.axis2.context.MessageContext(), null, null);
+        synCtx.setEnvelope(OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope());
+        synCtx.setProperty("tenant", tenant);
+        return synCtx;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.mystes.synapse.mediator.transport.ConnectionPoolConfiguration;
+
+/**
+ * Initiates a configuration of many mediators eagerly and lazily against a
+ * local client repository and logs the times. Mediators usually share the
+ * client stack of the default repository, so the eager case is measured both
+ * with a shared stack and with a stack of its own for every mediator. Times
+ * depend on the machine, so they are only logged.
+ */
+public class LazyInitStartupTest {
+
+    private static final Log log = LogFactory.getLog(LazyInitStartupTest.class);
+
+    private static final int MEDIATORS = 300;
+    private static final String DEFAULT_AXIS2_XML = "org/apache/axis2/deployment/axis2_default.xml";
+
+    private File repository;
+    private File axis2xml;
+
+    @Before
+    public void setUp() throws IOException {
+        System.setProperty(ClientStackRegistry.RELEASE_DELAY_PROPERTY, "0");
+        InputStream in = getClass().getClassLoader().getResourceAsStream(DEFAULT_AXIS2_XML);
+        assumeTrue(in != null);
+        repository = File.createTempFile("customCallout", "repository");
+        assertTrue("Repository should be created", repository.delete() && repository.mkdir());
+        axis2xml = new File(repository, "axis2.xml");
+        OutputStream out = new FileOutputStream(axis2xml);
+        try {
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(ClientStackRegistry.RELEASE_DELAY_PROPERTY);
+        System.clearProperty(CustomCalloutMediator.LAZY_INIT_PROPERTY);
+        if (repository != null) {
+            axis2xml.delete();
+            repository.delete();
+        }
+    }
+
+    @Test
+    public void shouldLogStartupOfManyMediatorsInBothModes() {
+        // First round loads the classes of Axis2 and the mediator
+        initMediators(false);
+
+        long eagerShared = initMediators(false);
+        long eagerDistinct = initMediators(true);
+        System.setProperty(CustomCalloutMediator.LAZY_INIT_PROPERTY, "true");
+        long lazy = initMediators(true);
+
+        log.info("Initiated " + MEDIATORS + " mediators: eager with shared client stack " + eagerShared / 1000000
+                + " ms, eager with own client stacks " + eagerDistinct / 1000000 + " ms, lazy " + lazy / 1000000
+                + " ms");
+    }
+
+    /**
+     * Helper method to initiate and destroy the mediators.
+     * 
+     * @param distinct
+     *            Whether every mediator gets a client stack of its own
+     * @return Nanoseconds taken by initiation
+     */
+    private long initMediators(boolean distinct) {
+        List<CustomCalloutMediator> mediators = new ArrayList<CustomCalloutMediator>(MEDIATORS);
+        for (int i = 0; i < MEDIATORS; i++) {
+            CustomCalloutMediator mediator = new CustomCalloutMediator();
+            mediator.setServiceURL("http://localhost:8280/services/Service" + i);
+            mediator.setClientRepository(repository.getAbsolutePath());
+            mediator.setAxis2xml(axis2xml.getAbsolutePath());
+            if (distinct) {
+                // Pool settings are part of the client stack key
+                ConnectionPoolConfiguration pool = new ConnectionPoolConfiguration();
+                pool.setMaxConnectionsPerRoute(i + 1);
+                mediator.setConnectionPoolConfiguration(pool);
+            }
+            mediators.add(mediator);
+        }
+        long start = System.nanoTime();
+        for (CustomCalloutMediator mediator : mediators) {
+            mediator.init(null);
+        }
+        long time = System.nanoTime() - start;
+        boolean lazy = Boolean.getBoolean(CustomCalloutMediator.LAZY_INIT_PROPERTY);
+        for (CustomCalloutMediator mediator : mediators) {
+            assertTrue("Client stack should be created only when not lazy",
+                    mediator.isClientStackInitialized() != lazy);
+            mediator.destroy();
+        }
+        return time;
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class RequestTemplateTest {
+
+    @Test
+    public void shouldRenderJsonTemplateWithEscapedValues() throws Exception {
+        RequestTemplate template = new RequestTemplate("{\"id\":\"$1\",\"name\":\"$2\",\"ref\":\"$1\"}",
+                RequestTemplate.MEDIA_TYPE_JSON);
+        template.addValue("42");
+        template.addValue("a\"b\\c\n");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.render(null, out);
+
+        assertTrue("Slots should be filled with escaped values",
+                out.toString("UTF-8").equals("{\"id\":\"42\",\"name\":\"a\\\"b\\\\c\\n\",\"ref\":\"42\"}"));
+    }
+
+    @Test
+    public void shouldRenderXmlTemplateWithEscapedValues() throws Exception {
+        RequestTemplate template = new RequestTemplate("<m:req xmlns:m=\"urn:test\" id=\"$1\"><m:q>$2</m:q></m:req>",
+                RequestTemplate.MEDIA_TYPE_XML);
+        template.addValue("\"1\"");
+        template.addValue("R&D <x>");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.render(null, out);
+
+        assertTrue("Slots should be filled with escaped values", out.toString("UTF-8").equals(
+                "<m:req xmlns:m=\"urn:test\" id=\"&quot;1&quot;\"><m:q>R&amp;D &lt;x&gt;</m:q></m:req>"));
+    }
+
+    @Test
+    public void shouldReportHighestSlotAsRequiredArguments() {
+        RequestTemplate template = new RequestTemplate("[\"$3\", \"$1\"]", RequestTemplate.MEDIA_TYPE_JSON);
+
+        assertTrue("Highest slot should be required", template.getRequiredArguments() == 3);
+    }
+
+    @Test
+    public void shouldRejectUnknownMediaType() {
+        try {
+            new RequestTemplate("$1", "text");
+            assertTrue("Unknown media type should be rejected", false);
+        } catch (IllegalArgumentException e) {
+            assertTrue("Media type should be reported", e.getMessage().contains("text"));
+        }
+    }
+}
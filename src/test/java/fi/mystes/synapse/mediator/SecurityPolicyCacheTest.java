@@ -0,0 +1,114 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.util.AXIOMUtil;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.config.Entry;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SecurityPolicyCacheTest {
+
+    private static final String POLICY = "<wsp:Policy xmlns:wsp=\"http://schemas.xmlsoap.org/ws/2004/09/policy\">"
+            + "<rampart:RampartConfig xmlns:rampart=\"http://ws.apache.org/rampart/policy\">"
+            + "<rampart:signatureCrypto><rampart:crypto provider=\"org.apache.ws.security.components.crypto.Merlin\">"
+            + "<rampart:property name=\"org.apache.ws.security.crypto.merlin.file\">client.jks</rampart:property>"
+            + "</rampart:crypto></rampart:signatureCrypto></rampart:RampartConfig></wsp:Policy>";
+
+    private SecurityPolicyCache cache;
+    private MessageContext synCtx;
+    private Map<String, Object> contextEntries;
+
+    @Before
+    public void setUp() {
+        cache = new SecurityPolicyCache();
+        synCtx = mock(MessageContext.class);
+        contextEntries = new HashMap<String, Object>();
+        when(synCtx.getContextEntries()).thenReturn(contextEntries);
+    }
+
+    @Test
+    public void shouldReusePreparedPolicyWhileEntryIsUnchanged() throws XMLStreamException {
+        when(synCtx.getEntry("policy")).thenReturn(AXIOMUtil.stringToOM(POLICY));
+
+        cache.apply(synCtx, "policy", null);
+        OMElement first = getPolicy("policy");
+        cache.apply(synCtx, "policy", null);
+
+        assertTrue("One policy should be cached", cache.size() == 1);
+        assertTrue("Prepared policy should be reused", getPolicy("policy") == first);
+    }
+
+    @Test
+    public void shouldPrepareChangedEntryAgain() throws XMLStreamException {
+        when(synCtx.getEntry("policy")).thenReturn(AXIOMUtil.stringToOM(POLICY));
+        cache.apply(synCtx, "policy");
+        OMElement first = getPolicy("policy");
+
+        when(synCtx.getEntry("policy")).thenReturn(AXIOMUtil.stringToOM(POLICY));
+        cache.apply(synCtx, "policy");
+
+        assertTrue("Changed entry should invalidate the prepared policy", getPolicy("policy") != first);
+    }
+
+    @Test
+    public void shouldSetKeystoreFileAsCryptoKey() throws XMLStreamException {
+        when(synCtx.getEntry("policy")).thenReturn(AXIOMUtil.stringToOM(POLICY));
+        cache.apply(synCtx, "policy");
+
+        OMElement crypto = findCrypto(getPolicy("policy"));
+        assertTrue("Crypto should be found", crypto != null);
+        assertTrue("Keystore file should be used as cryptoKey",
+                SecurityPolicyCache.MERLIN_FILE.equals(crypto.getAttributeValue(SecurityPolicyCache.ATT_CRYPTO_KEY)));
+    }
+
+    @Test
+    public void shouldIgnoreMissingPolicy() {
+        cache.apply(synCtx, "missing");
+        assertTrue("Missing policy should not be cached", cache.size() == 0);
+        assertTrue("Missing policy should not be set", contextEntries.isEmpty());
+    }
+
+    private OMElement getPolicy(String key) {
+        return (OMElement) ((Entry) contextEntries.get(key)).getValue();
+    }
+
+    private OMElement findCrypto(OMElement element) {
+        if (SecurityPolicyCache.Q_CRYPTO.equals(element.getQName())) {
+            return element;
+        }
+        Iterator<?> children = element.getChildElements();
+        while (children.hasNext()) {
+            OMElement crypto = findCrypto((OMElement) children.next());
+            if (crypto != null) {
+                return crypto;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.balancer;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fi.mystes.synapse.mediator.balancer.LoadBalancer.Member;
+import fi.mystes.synapse.mediator.health.HealthCheckConfiguration;
+import fi.mystes.synapse.mediator.health.HealthCheckRegistry;
+import fi.mystes.synapse.mediator.health.HealthProbe;
+
+public class LoadBalancerTest {
+
+    private static final long MILLIS = 1000000L;
+    private static final int REQUESTS = 3000;
+
+    /**
+     * Service times of simulated stub backends, the last one is slow.
+     */
+    private static final long[] SERVICE_TIMES = { 1 * MILLIS, 1 * MILLIS, 6 * MILLIS };
+
+    @Test
+    public void shouldBeatRoundRobinWithHeterogeneousNodes() {
+        LoadBalancer leastLatency = createBalancer(LoadBalancer.ALGORITHM_LEAST_LATENCY);
+        LoadBalancer roundRobin = createBalancer(LoadBalancer.ALGORITHM_ROUND_ROBIN);
+
+        double leastLatencyMean = simulate(leastLatency);
+        double roundRobinMean = simulate(roundRobin);
+
+        long slowRequests = leastLatency.getMembers().get(2).getRequests();
+        assertTrue("Slow node should get a small share, got " + slowRequests, slowRequests < REQUESTS * 15 / 100);
+        assertTrue("Least latency (" + leastLatencyMean + " ms) should beat round robin (" + roundRobinMean
+                + " ms)", leastLatencyMean * 4 < roundRobinMean);
+    }
+
+    @Test
+    public void shouldNotChooseDemotedMember() {
+        LoadBalancer balancer = createBalancer(LoadBalancer.ALGORITHM_LEAST_LATENCY);
+        Member failing = balancer.select();
+        balancer.complete(failing, MILLIS, false);
+
+        for (int i = 0; i < 100; i++) {
+            Member member = balancer.select();
+            assertTrue("Demoted member should not be chosen", member != failing);
+            balancer.complete(member, MILLIS, true);
+        }
+        assertTrue("Failure should be counted", failing.getFailures() == 1 && failing.isDemoted());
+    }
+
+    @Test
+    public void shouldChooseDemotedMemberWhenAllAreDemoted() {
+        LoadBalancer balancer = createBalancer(LoadBalancer.ALGORITHM_ROUND_ROBIN);
+        for (Member member : balancer.getMembers()) {
+            balancer.complete(balancer.select(), MILLIS, false);
+            assertTrue("Member should be demoted", member.isDemoted());
+        }
+
+        Member member = balancer.select();
+        assertTrue("Some member should still be chosen", member != null && member.getInFlight() == 1);
+    }
+
+    @Test
+    public void shouldRecoverMemberAfterDemotionTime() {
+        LoadBalancer balancer = createBalancer(LoadBalancer.ALGORITHM_ROUND_ROBIN);
+        balancer.setDemotionTime(0);
+        Member member = balancer.select();
+        balancer.complete(member, MILLIS, false);
+
+        assertTrue("Member should not stay demoted", !member.isDemoted());
+    }
+
+    @Test
+    public void shouldPreferDemotedHealthyMemberOverUnhealthyOne() throws Exception {
+        HealthCheckConfiguration configuration = new HealthCheckConfiguration();
+        configuration.setUnhealthyThreshold(1);
+        HealthProbe probe = HealthCheckRegistry.acquire("http://127.0.0.1:" + getClosedPort() + "/service",
+                configuration);
+        try {
+            // The first probe runs right away and fails on the closed port
+            for (int i = 0; i < 500 && probe.isHealthy(); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue("Probe of closed port should fail", !probe.isHealthy());
+
+            for (String algorithm : new String[] { LoadBalancer.ALGORITHM_LEAST_LATENCY,
+                    LoadBalancer.ALGORITHM_ROUND_ROBIN }) {
+                LoadBalancer balancer = new LoadBalancer(new Random(42));
+                balancer.setAlgorithm(algorithm);
+                Member demoted = balancer.addMember("http://localhost/demoted");
+                balancer.complete(balancer.select(), MILLIS, true);
+                balancer.complete(balancer.select(), MILLIS, false);
+                assertTrue("Member should be demoted", demoted.isDemoted());
+                // Unhealthy member without samples costs nothing
+                balancer.addMember("http://localhost/unhealthy").setHealthProbe(probe);
+
+                for (int i = 0; i < 20; i++) {
+                    Member member = balancer.select();
+                    assertTrue(algorithm + " should choose the healthy member", member == demoted);
+                    balancer.abandon(member);
+                }
+            }
+        } finally {
+            HealthCheckRegistry.release(probe);
+        }
+    }
+
+    /**
+     * Simulates requests arriving at a fixed rate in virtual time to stub
+     * backends, each serving its requests one at a time.
+     * 
+     * @return Mean latency in milliseconds
+     */
+    private double simulate(LoadBalancer balancer) {
+        long interval = 6 * MILLIS / 10;
+        long[] busyUntil = new long[SERVICE_TIMES.length];
+        PriorityQueue<long[]> pending = new PriorityQueue<long[]>(64, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+            }
+        });
+        double total = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            long now = i * interval;
+            while (!pending.isEmpty() && pending.peek()[0] <= now) {
+                completeNext(balancer, pending);
+            }
+            Member member = balancer.select();
+            int index = balancer.getMembers().indexOf(member);
+            long start = Math.max(now, busyUntil[index]);
+            busyUntil[index] = start + SERVICE_TIMES[index];
+            long latency = busyUntil[index] - now;
+            total += latency;
+            pending.add(new long[] { busyUntil[index], index, latency });
+        }
+        while (!pending.isEmpty()) {
+            completeNext(balancer, pending);
+        }
+        return total / REQUESTS / MILLIS;
+    }
+
+    private void completeNext(LoadBalancer balancer, PriorityQueue<long[]> pending) {
+        long[] completion = pending.poll();
+        balancer.complete(balancer.getMembers().get((int) completion[1]), completion[2], true);
+    }
+
+    private LoadBalancer createBalancer(String algorithm) {
+        LoadBalancer balancer = new LoadBalancer(new Random(42));
+        balancer.setAlgorithm(algorithm);
+        for (int i = 0; i < SERVICE_TIMES.length; i++) {
+            balancer.addMember("http://localhost/node" + i);
+        }
+        return balancer;
+    }
+
+    private static int getClosedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
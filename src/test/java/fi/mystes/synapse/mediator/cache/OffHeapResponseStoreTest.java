@@ -0,0 +1,150 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.cache;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapResponseStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("response-cache", ".dat");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".index").delete();
+    }
+
+    @Test
+    public void shouldReturnStoredResponse() throws IOException {
+        OffHeapResponseStore store = OffHeapResponseStore.open(configuration(1024, null));
+        byte[] response = "<Response/>".getBytes("UTF-8");
+
+        assertTrue("Response should be stored", store.put("key", response));
+        assertTrue("Stored response should be returned", Arrays.equals(response, store.get("key")));
+        assertTrue("Unknown key should not be found", store.get("other") == null);
+        assertTrue("Hit should be counted", store.getHits() == 1);
+        assertTrue("Miss should be counted", store.getMisses() == 1);
+        store.close();
+    }
+
+    @Test
+    public void shouldEvictOldestResponsesWhenFull() throws IOException {
+        OffHeapResponseStore store = OffHeapResponseStore.open(configuration(100, null));
+
+        store.put("first", new byte[40]);
+        store.put("second", new byte[40]);
+        store.put("third", new byte[40]);
+
+        assertTrue("Overwritten response should be evicted", store.get("first") == null);
+        assertTrue("Newer response should be kept", store.get("second") != null);
+        assertTrue("Newest response should be kept", store.get("third") != null);
+        assertTrue("Eviction should be counted", store.getEvictions() == 1);
+        assertTrue("Response larger than store should be refused", !store.put("large", new byte[101]));
+        store.close();
+    }
+
+    @Test
+    public void shouldExpireResponses() throws Exception {
+        ResponseCacheConfiguration configuration = configuration(1024, null);
+        configuration.setTimeToLive(1);
+        OffHeapResponseStore store = OffHeapResponseStore.open(configuration);
+
+        store.put("key", new byte[10]);
+        Thread.sleep(10);
+
+        assertTrue("Expired response should not be returned", store.get("key") == null);
+        assertTrue("Expired response should be removed", store.getEntries() == 0);
+        store.close();
+    }
+
+    @Test
+    public void shouldKeepFileBackedResponsesOverReopen() throws IOException {
+        byte[] response = "{\"a\":1}".getBytes("UTF-8");
+        OffHeapResponseStore store = OffHeapResponseStore.open(configuration(1024, file.getPath()));
+        store.put("key", response);
+        store.close();
+
+        OffHeapResponseStore reopened = OffHeapResponseStore.open(configuration(1024, file.getPath()));
+        assertTrue("Response should survive reopening", Arrays.equals(response, reopened.get("key")));
+        assertTrue("Index should be removed while open", !new File(file.getPath() + ".index").exists());
+        reopened.close();
+    }
+
+    @Test
+    public void shouldShareFileBackedStore() throws IOException {
+        OffHeapResponseStore first = OffHeapResponseStore.open(configuration(1024, file.getPath()));
+        OffHeapResponseStore second = OffHeapResponseStore.open(configuration(1024, file.getPath()));
+        first.put("key", new byte[10]);
+        first.close();
+
+        assertTrue("Same store should be shared", first == second);
+        assertTrue("Store should stay open for other users", second.get("key") != null);
+        second.close();
+    }
+
+    @Test
+    public void shouldEvictOnlyOverwrittenRangeAfterWrapAround() throws IOException {
+        OffHeapResponseStore store = OffHeapResponseStore.open(configuration(100, null));
+
+        for (int i = 0; i < 10; i++) {
+            store.put("old" + i, new byte[10]);
+        }
+        store.put("new", new byte[25]);
+
+        assertTrue("Overwritten responses should be evicted",
+                store.get("old0") == null && store.get("old1") == null && store.get("old2") == null);
+        for (int i = 3; i < 10; i++) {
+            assertTrue("Response after overwritten range should be kept", store.get("old" + i) != null);
+        }
+        assertTrue("Evictions should be counted", store.getEvictions() == 3);
+        assertTrue("Entries should be counted", store.getEntries() == 8);
+        store.close();
+    }
+
+    @Test
+    public void shouldRefuseToShareFileBackedStoreOfOtherSettings() throws IOException {
+        OffHeapResponseStore store = OffHeapResponseStore.open(configuration(1024, file.getPath()));
+        try {
+            OffHeapResponseStore.open(configuration(2048, file.getPath()));
+            assertTrue("Store of other size should not be shared", false);
+        } catch (IOException e) {
+            assertTrue("Error should name the file", e.getMessage().contains(file.getName()));
+        } finally {
+            store.close();
+        }
+    }
+
+    private ResponseCacheConfiguration configuration(long maxSize, String file) {
+        ResponseCacheConfiguration configuration = new ResponseCacheConfiguration();
+        configuration.setMaxSize(maxSize);
+        configuration.setFile(file);
+        return configuration;
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.capture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SlowCallCaptureTest {
+
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void shouldCaptureSlowAndSampledCallouts() {
+        SlowCallCaptureConfiguration configuration = new SlowCallCaptureConfiguration();
+        configuration.setThreshold(100);
+        configuration.setSampleRate(0.25);
+        SlowCallCapture capture = new SlowCallCapture(configuration);
+
+        int sampled = 0;
+        for (int i = 0; i < 100; i++) {
+            if (CapturedCall.REASON_SAMPLED.equals(capture.getCaptureReason(10 * MILLIS))) {
+                sampled++;
+            }
+        }
+        assertEquals(25, sampled);
+        assertEquals(CapturedCall.REASON_SLOW, capture.getCaptureReason(101 * MILLIS));
+    }
+
+    @Test
+    public void shouldNotCaptureFastCalloutsWithoutSampling() {
+        SlowCallCapture capture = new SlowCallCapture(new SlowCallCaptureConfiguration());
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(null, capture.getCaptureReason(999 * MILLIS));
+        }
+    }
+
+    @Test
+    public void shouldKeepNewestCalloutsInRingBuffer() throws IOException {
+        SlowCallCaptureConfiguration configuration = new SlowCallCaptureConfiguration();
+        configuration.setCapacity(3);
+        SlowCallCapture capture = new SlowCallCapture(configuration);
+
+        for (int i = 0; i < 5; i++) {
+            capture.record(createCall("http://localhost/service" + i));
+        }
+
+        List<CapturedCall> calls = capture.getCalls();
+        assertEquals(5L, capture.getCaptured());
+        assertEquals(3, calls.size());
+        assertEquals("http://localhost/service2", calls.get(0).getEndpoint());
+        assertEquals("http://localhost/service4", calls.get(2).getEndpoint());
+
+        StringWriter writer = new StringWriter();
+        assertEquals(3, capture.dump(writer));
+        assertTrue("Dump should contain the callouts",
+                writer.toString().contains("endpoint=http://localhost/service3"));
+
+        File file = File.createTempFile("capture", ".log");
+        try {
+            assertEquals(3, capture.dump(file));
+            assertTrue("Dump file should be written", file.length() > 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void shouldTruncatePayloadAtLimit() throws IOException {
+        SlowCallCapture.BoundedOutputStream out = new SlowCallCapture.BoundedOutputStream(5);
+        out.write("abc".getBytes("UTF-8"));
+        try {
+            out.write("defgh".getBytes("UTF-8"));
+        } catch (IOException e) {
+            // Expected, aborts the serializer
+        }
+
+        assertTrue("Stream should be truncated", out.isTruncated());
+        assertEquals("abcde...", out.toString());
+    }
+
+    private static CapturedCall createCall(String endpoint) {
+        return new CapturedCall(System.currentTimeMillis(), CapturedCall.REASON_SLOW, endpoint, 1500 * MILLIS,
+                null, "<request/>", "<response/>");
+    }
+}
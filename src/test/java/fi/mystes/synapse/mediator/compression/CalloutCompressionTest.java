@@ -0,0 +1,180 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.compression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.axis2.context.MessageContext;
+import org.apache.axis2.transport.http.HTTPConstants;
+import org.junit.Test;
+
+import fi.mystes.synapse.mediator.transport.PooledByteArrayOutputStream;
+
+public class CalloutCompressionTest {
+
+    private static byte[] payload(int lines) throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < lines; i++) {
+            json.append(i > 0 ? "," : "").append("{\"sku\":\"A-").append(i % 10).append("\",\"qty\":2}");
+        }
+        return json.append("]").toString().getBytes("UTF-8");
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] roundTrip(String algorithm, byte[] body) throws IOException {
+        CompressionConfiguration configuration = new CompressionConfiguration();
+        configuration.setAlgorithm(algorithm);
+        CalloutCompression compression = new CalloutCompression(configuration);
+        PooledByteArrayOutputStream compressed = compression.compress("http://localhost/orders", body, body.length);
+        try {
+            assertTrue("Payload should shrink", compressed.size() < body.length / 4);
+            return readAll(CalloutCompression.decompress(compressed.toInputStream(), algorithm));
+        } finally {
+            compressed.release();
+        }
+    }
+
+    @Test
+    public void shouldRoundTripGzipAndDeflate() throws IOException {
+        byte[] body = payload(1000);
+        assertEquals(new String(body, "UTF-8"), new String(roundTrip("gzip", body), "UTF-8"));
+        assertEquals(new String(body, "UTF-8"), new String(roundTrip("deflate", body), "UTF-8"));
+    }
+
+    @Test
+    public void shouldDecodeRawDeflateAndIdentity() throws IOException {
+        byte[] body = payload(100);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        DeflaterOutputStream out = new DeflaterOutputStream(raw, deflater);
+        out.write(body);
+        out.close();
+        deflater.end();
+
+        PooledByteArrayOutputStream received = new PooledByteArrayOutputStream();
+        received.write(raw.toByteArray(), 0, raw.size());
+        assertEquals(new String(body, "UTF-8"),
+                new String(readAll(CalloutCompression.decompress(received.toInputStream(), " Deflate ")), "UTF-8"));
+        received.release();
+
+        InputStream plain = new ByteArrayInputStream(body);
+        assertTrue(plain == CalloutCompression.decompress(plain, "identity"));
+        try {
+            CalloutCompression.decompress(plain, "br");
+            fail("Unsupported encoding should be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("br"));
+        }
+    }
+
+    @Test
+    public void shouldDecompressFullyUpToMaxSize() throws IOException {
+        byte[] body = payload(1000);
+        CalloutCompression compression = new CalloutCompression(new CompressionConfiguration());
+        PooledByteArrayOutputStream compressed = compression.compress("http://localhost/orders", body, body.length);
+        try {
+            assertEquals(new String(body, "UTF-8"), new String(
+                    CalloutCompression.decompress(compressed.toInputStream(), "gzip", body.length), "UTF-8"));
+            try {
+                CalloutCompression.decompress(compressed.toInputStream(), "gzip", body.length - 1);
+                fail("Response larger than maximum size should be rejected");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("exceeds"));
+            }
+        } finally {
+            compressed.release();
+        }
+    }
+
+    @Test
+    public void shouldCompressOnlyAboveThreshold() {
+        CompressionConfiguration configuration = new CompressionConfiguration();
+        configuration.setThreshold(2048);
+        configuration.setAcceptEncoding(false);
+        CalloutCompression compression = new CalloutCompression(configuration);
+        assertTrue(!compression.shouldCompress(2047));
+        assertTrue(compression.shouldCompress(2048));
+        assertTrue(!compression.shouldCompress(-1));
+        assertEquals(null, compression.getAcceptEncoding());
+        configuration.setAcceptEncoding(true);
+        assertEquals(CalloutCompression.ACCEPT_ENCODING, compression.getAcceptEncoding());
+    }
+
+    @Test
+    public void shouldRecordRatiosPerEndpoint() throws IOException {
+        CalloutCompression compression = new CalloutCompression(new CompressionConfiguration());
+        byte[] body = payload(1000);
+        compression.compress("http://b/", body, body.length).release();
+        compression.compress("http://b/", body, body.length).release();
+        compression.recordResponse("http://a/", 250, 1000, 5000000);
+        compression.recordTransportCompressedRequest("http://a/");
+
+        List<CompressionStatistics> statistics = compression.getStatistics();
+        assertEquals(2, statistics.size());
+        CompressionStatistics a = statistics.get(0);
+        assertEquals("http://a/", a.getEndpoint());
+        assertEquals(1L, a.getRequests());
+        assertEquals(1L, a.getResponses());
+        assertTrue(a.getResponseRatio() == 0.25);
+        assertTrue(a.getRequestRatio() == 1);
+        assertEquals(750L, a.getSavedBytes());
+        assertTrue(a.toString(), a.toString().contains("responseRatio=0.250 decompressCpu=5.0ms savedBytes=750"));
+
+        CompressionStatistics b = statistics.get(1);
+        assertEquals(2L, b.getRequests());
+        assertTrue(b.getRequestRatio() < 0.25);
+        assertTrue(b.getSavedBytes() > body.length);
+    }
+
+    @Test
+    public void shouldLetAxis2TransportGzipRequestAndAcceptGzippedResponse() {
+        CompressionConfiguration configuration = new CompressionConfiguration();
+        configuration.setAcceptEncoding(false);
+        CalloutCompression compression = new CalloutCompression(configuration);
+        MessageContext axis2Ctx = new MessageContext();
+
+        compression.applyToAxis2Transport(axis2Ctx, "http://a/");
+
+        assertEquals(Boolean.TRUE, axis2Ctx.getProperty(HTTPConstants.MC_GZIP_REQUEST));
+        assertEquals("Gzipped responses should be accepted only if configured", null,
+                axis2Ctx.getProperty(HTTPConstants.MC_ACCEPT_GZIP));
+
+        configuration.setAcceptEncoding(true);
+        compression.applyToAxis2Transport(axis2Ctx, "http://a/");
+
+        assertEquals(Boolean.TRUE, axis2Ctx.getProperty(HTTPConstants.MC_ACCEPT_GZIP));
+        assertEquals(2L, compression.getStatistics().get(0).getRequests());
+    }
+}
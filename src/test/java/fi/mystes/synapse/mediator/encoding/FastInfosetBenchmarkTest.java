@@ -0,0 +1,145 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.encoding;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNamespace;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axiom.soap.impl.builder.StAXSOAPModelBuilder;
+import org.junit.Test;
+
+import com.sun.xml.fastinfoset.stax.StAXDocumentParser;
+import com.sun.xml.fastinfoset.stax.StAXDocumentSerializer;
+
+/**
+ * Compares bytes on the wire and CPU time of serializing and parsing a
+ * typical order envelope as Fast Infoset and as text XML.
+ */
+public class FastInfosetBenchmarkTest {
+
+    private static final String NS_URI = "http://mystes.fi/order/v1";
+    private static final int LINES = 50;
+    private static final int ROUNDS = 500;
+
+    @Test
+    public void shouldEncodeTypicalEnvelopeSmallerThanTextXml() throws Exception {
+        SOAPEnvelope envelope = createOrderEnvelope();
+        byte[] text = serializeText(envelope);
+        byte[] fastInfoset = serializeFastInfoset(envelope);
+
+        assertEquals(LINES, countLines(parse(fastInfoset, true)));
+        assertEquals(LINES, countLines(parse(text, false)));
+
+        // First round warms up both encodings
+        long textCpu = 0;
+        long fastInfosetCpu = 0;
+        for (int round = 0; round < 2; round++) {
+            textCpu = measure(envelope, false);
+            fastInfosetCpu = measure(envelope, true);
+        }
+
+        String figures = "text XML " + text.length + " bytes, " + textCpu / ROUNDS / 1000
+                + " us CPU per round trip; Fast Infoset " + fastInfoset.length + " bytes, "
+                + fastInfosetCpu / ROUNDS / 1000 + " us CPU per round trip";
+        assertTrue(figures, fastInfoset.length < text.length);
+    }
+
+    /**
+     * Helper method to measure CPU time of serializing and parsing given
+     * envelope the benchmark rounds.
+     */
+    private static long measure(SOAPEnvelope envelope, boolean fastInfoset) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long start = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            byte[] bytes = fastInfoset ? serializeFastInfoset(envelope) : serializeText(envelope);
+            parse(bytes, fastInfoset).build();
+        }
+        return threads.getCurrentThreadCpuTime() - start;
+    }
+
+    private static byte[] serializeText(SOAPEnvelope envelope) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        envelope.serialize(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] serializeFastInfoset(SOAPEnvelope envelope) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLStreamWriter writer = new StAXDocumentSerializer(out);
+        writer.writeStartDocument();
+        envelope.serialize(writer);
+        writer.writeEndDocument();
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    private static SOAPEnvelope parse(byte[] bytes, boolean fastInfoset) throws Exception {
+        XMLStreamReader reader = fastInfoset ? new StAXDocumentParser(new ByteArrayInputStream(bytes))
+                : XMLInputFactory.newInstance().createXMLStreamReader(new ByteArrayInputStream(bytes));
+        return new StAXSOAPModelBuilder(reader).getSOAPEnvelope();
+    }
+
+    private static int countLines(SOAPEnvelope envelope) {
+        OMElement lines = envelope.getBody().getFirstElement().getFirstChildWithName(new QName(NS_URI, "lines"));
+        int count = 0;
+        for (Iterator<?> itr = lines.getChildElements(); itr.hasNext(); itr.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Helper method to create an order envelope typical for internal
+     * callouts.
+     */
+    private static SOAPEnvelope createOrderEnvelope() {
+        SOAPFactory factory = OMAbstractFactory.getSOAP11Factory();
+        SOAPEnvelope envelope = factory.getDefaultEnvelope();
+        OMNamespace ns = factory.createOMNamespace(NS_URI, "ord");
+        OMElement order = factory.createOMElement("order", ns, envelope.getBody());
+        factory.createOMElement("id", ns, order).setText("ORD-2016-000123");
+        OMElement customer = factory.createOMElement("customer", ns, order);
+        factory.createOMElement("name", ns, customer).setText("Example Customer Oy");
+        factory.createOMElement("businessId", ns, customer).setText("1234567-8");
+        OMElement lines = factory.createOMElement("lines", ns, order);
+        for (int i = 0; i < LINES; i++) {
+            OMElement line = factory.createOMElement("line", ns, lines);
+            line.addAttribute("number", String.valueOf(i + 1), null);
+            factory.createOMElement("sku", ns, line).setText("SKU-" + (10000 + i));
+            factory.createOMElement("description", ns, line).setText("Product description " + i);
+            factory.createOMElement("quantity", ns, line).setText(String.valueOf(i % 7 + 1));
+            factory.createOMElement("unitPrice", ns, line).setText("19.90");
+        }
+        return envelope;
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.encoding;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.Constants;
+import org.apache.axis2.context.MessageContext;
+import org.apache.synapse.SynapseConstants;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.endpoints.Endpoint;
+import org.apache.synapse.message.senders.blocking.BlockingMsgSender;
+import org.junit.Test;
+
+public class FastInfosetNegotiationTest {
+
+    @Test
+    public void shouldUseTextXmlUntilRetryIntervalAfterRejection() {
+        FastInfosetNegotiation negotiation = new FastInfosetNegotiation(1000);
+
+        assertTrue("Fast Infoset should be used initially", negotiation.isActive("http://orders", 0));
+        negotiation.fallback("http://orders", 100);
+        assertTrue("Text XML should be used after rejection", !negotiation.isActive("http://orders", 1099));
+        assertTrue("Fast Infoset should be retried after interval", negotiation.isActive("http://orders", 1100));
+        assertEquals(1L, negotiation.getFallbacks());
+    }
+
+    @Test
+    public void shouldFallBackOnlyForRejectingEndpointInAllMediators() {
+        FastInfosetNegotiation negotiation = new FastInfosetNegotiation(1000);
+        FastInfosetNegotiation other = new FastInfosetNegotiation(1000);
+
+        negotiation.fallback("http://legacy", 100);
+
+        assertTrue("Rejecting endpoint should use text XML in other mediators", !other.isActive("http://legacy", 200));
+        assertTrue("Other endpoints should keep Fast Infoset", negotiation.isActive("http://modern", 200));
+    }
+
+    @Test
+    public void shouldRecognizeRejectedFastInfoset() {
+        assertTrue("HTTP 415 should be a rejection",
+                FastInfosetNegotiation.isRejected(new AxisFault("Transport error: 415 Error: Unsupported Media Type")));
+        assertTrue("Wrapped HTTP 415 should be a rejection", FastInfosetNegotiation.isRejected(
+                new AxisFault("Error", new AxisFault("Transport error: 415 Error: Unsupported Media Type"))));
+        assertTrue("Business fault mentioning the content type should not be a rejection",
+                !FastInfosetNegotiation.isRejected(new AxisFault("Order rejected: unsupported media type fastinfoset")));
+        assertTrue("Server error should not be a rejection",
+                !FastInfosetNegotiation.isRejected(new AxisFault("Transport error: 500 Error: Internal Server Error")));
+        assertTrue("Connection error should not be a rejection",
+                !FastInfosetNegotiation.isRejected(new ConnectException("Connection refused")));
+        assertTrue("Missing error should not be a rejection", !FastInfosetNegotiation.isRejected((Throwable) null));
+    }
+
+    @Test
+    public void shouldSetFastInfosetContentTypeAndAcceptHeader() {
+        MessageContext axis2Ctx = new MessageContext();
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("SOAPAction", "urn:getOrder");
+        axis2Ctx.setProperty(MessageContext.TRANSPORT_HEADERS, headers);
+        FastInfosetNegotiation negotiation = new FastInfosetNegotiation();
+
+        negotiation.apply(axis2Ctx);
+
+        assertEquals(FastInfosetNegotiation.CONTENT_TYPE_SOAP,
+                axis2Ctx.getProperty(Constants.Configuration.MESSAGE_TYPE));
+        Map<?, ?> sent = (Map<?, ?>) axis2Ctx.getProperty(MessageContext.TRANSPORT_HEADERS);
+        assertEquals("urn:getOrder", sent.get("SOAPAction"));
+        assertTrue("Fast Infoset response should be accepted",
+                sent.get("Accept").toString().startsWith(FastInfosetNegotiation.CONTENT_TYPE_SOAP));
+        assertTrue("Original headers should not be modified", !headers.containsKey("Accept"));
+        assertEquals(1L, negotiation.getRequests());
+    }
+
+    @Test
+    public void shouldNotRegisterWithoutConfiguration() {
+        assertTrue("Registration should fail without configuration", !FastInfosetNegotiation.register(null));
+    }
+
+    @Test
+    public void shouldResendAsTextXmlWhenEndpointRespondsWith415() throws Exception {
+        org.apache.synapse.MessageContext rejected = newSynapseContext();
+        ((Axis2MessageContext) rejected).getAxis2MessageContext().setProperty(SynapseConstants.HTTP_SC, 415);
+        org.apache.synapse.MessageContext accepted = newSynapseContext();
+        RecordingSender sender = new RecordingSender(rejected, accepted);
+        org.apache.synapse.MessageContext request = newSynapseContext();
+        FastInfosetNegotiation negotiation = new FastInfosetNegotiation(60000);
+
+        org.apache.synapse.MessageContext response = negotiation.send(sender, null, request, "http://legacy");
+
+        assertSame(accepted, response);
+        assertEquals(2, sender.messageTypes.size());
+        assertEquals(FastInfosetNegotiation.CONTENT_TYPE_SOAP, sender.messageTypes.get(0));
+        assertEquals("Text XML should be resent", null, sender.messageTypes.get(1));
+        assertEquals(1L, negotiation.getFallbacks());
+        assertTrue("Endpoint should use text XML after rejection",
+                !negotiation.isActive("http://legacy", System.currentTimeMillis()));
+    }
+
+    @Test
+    public void shouldNotResendOnOtherFaults() throws Exception {
+        RecordingSender sender = new RecordingSender(
+                new AxisFault("Transport error: 500 Error: Internal Server Error"));
+        FastInfosetNegotiation negotiation = new FastInfosetNegotiation(60000);
+
+        try {
+            negotiation.send(sender, null, newSynapseContext(), "http://modern");
+            fail("Fault should be thrown");
+        } catch (AxisFault e) {
+            assertTrue(e.getMessage().contains("500"));
+        }
+        assertEquals(1, sender.messageTypes.size());
+        assertEquals(0L, negotiation.getFallbacks());
+    }
+
+    private static org.apache.synapse.MessageContext newSynapseContext() {
+        return new Axis2MessageContext(new MessageContext(), null, null);
+    }
+
+    /**
+     * Sender returning or throwing given results in order and recording the
+     * message type of each sent message.
+     */
+    private static class RecordingSender extends BlockingMsgSender {
+
+        private final List<Object> results = new ArrayList<Object>();
+        private final List<Object> messageTypes = new ArrayList<Object>();
+
+        RecordingSender(Object... results) {
+            for (Object result : results) {
+                this.results.add(result);
+            }
+        }
+
+        @Override
+        public org.apache.synapse.MessageContext send(Endpoint endpoint, org.apache.synapse.MessageContext synCtx)
+                throws Exception {
+            messageTypes.add(((Axis2MessageContext) synCtx).getAxis2MessageContext().getProperty(
+                    Constants.Configuration.MESSAGE_TYPE));
+            Object result = results.remove(0);
+            if (result instanceof Exception) {
+                throw (Exception) result;
+            }
+            return (org.apache.synapse.MessageContext) result;
+        }
+    }
+}
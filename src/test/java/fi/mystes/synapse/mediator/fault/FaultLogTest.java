@@ -0,0 +1,71 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.fault;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.net.ConnectException;
+
+import org.apache.axis2.AxisFault;
+import org.apache.commons.logging.Log;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FaultLogTest {
+
+    private static final String ENDPOINT = "http://localhost:8280/service";
+
+    private Log log;
+    private AxisFault fault;
+
+    @Before
+    public void setUp() {
+        log = mock(Log.class);
+        fault = new AxisFault("Error sending request", new ConnectException("Connection refused"));
+    }
+
+    @Test
+    public void shouldLogOnceWithinIntervalAndReportSuppressedFaults() {
+        FaultLog faultLog = new FaultLog(log, 1000);
+
+        assertTrue("First fault should be logged", faultLog.log(ENDPOINT, fault, 10000));
+        assertFalse("Fault within interval should not be logged", faultLog.log(ENDPOINT, fault, 10500));
+        assertFalse("Fault within interval should not be logged", faultLog.log(ENDPOINT, fault, 10999));
+        assertEquals(2L, faultLog.getSuppressed());
+        assertTrue("Fault after interval should be logged", faultLog.log(ENDPOINT, fault, 11000));
+
+        assertEquals(4L, faultLog.getFaults());
+        assertEquals(0L, faultLog.getSuppressed());
+        verify(log).warn(contains("exception=java.net.ConnectException message=\"Connection refused\" suppressed=0"));
+        verify(log).warn(contains("suppressed=2"));
+    }
+
+    @Test
+    public void shouldLogEveryFaultWithoutInterval() {
+        FaultLog faultLog = new FaultLog(log, 0);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue("Every fault should be logged", faultLog.log(ENDPOINT, fault, 10000));
+        }
+        verify(log, times(3)).warn(contains("endpoint=" + ENDPOINT));
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.fault;
+
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+/**
+ * Logs the throughput of throwing stackless and full faults from a deep call
+ * stack. Wall-clock figures depend on the machine and its load, so they are
+ * only logged, {@link StacklessFaultTest} asserts the difference in stack
+ * frames and allocation.
+ */
+public class StacklessFaultBenchmarkTest {
+
+    private static final Log log = LogFactory.getLog(StacklessFaultBenchmarkTest.class);
+
+    private static final int FAULTS = 20000;
+
+    @Test
+    public void shouldLogFaultThroughput() {
+        // First round warms up both paths
+        long full = 0;
+        long stackless = 0;
+        for (int round = 0; round < 2; round++) {
+            full = measure(false);
+            stackless = measure(true);
+        }
+
+        log.info("Faults thrown from stack depth " + StacklessFaultTest.STACK_DEPTH + ": full "
+                + FAULTS * 1000000000L / Math.max(1, full) + "/s, stackless " + FAULTS * 1000000000L
+                / Math.max(1, stackless) + "/s");
+        assertTrue("Both paths should be measured", full > 0 && stackless > 0);
+    }
+
+    /**
+     * Helper method to measure the time of throwing the benchmark faults.
+     */
+    private static long measure(boolean stackless) {
+        long start = System.nanoTime();
+        for (int i = 0; i < FAULTS; i++) {
+            StacklessFaultTest.throwFrom(StacklessFaultTest.STACK_DEPTH, stackless);
+        }
+        return System.nanoTime() - start;
+    }
+}
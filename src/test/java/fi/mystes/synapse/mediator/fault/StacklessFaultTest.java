@@ -0,0 +1,111 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.fault;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import org.apache.axis2.AxisFault;
+import org.apache.synapse.SynapseException;
+import org.junit.Test;
+
+import fi.mystes.synapse.mediator.AllocationAccounting;
+
+public class StacklessFaultTest {
+
+    /**
+     * Depth of the call stack faults are thrown from, mediation flows of
+     * Synapse are typically deep.
+     */
+    static final int STACK_DEPTH = 150;
+
+    @Test
+    public void shouldReplaceTransportFailureWithStacklessFault() {
+        Exception ex = StacklessAxisFault.ofTransportFailure(new AxisFault("Error sending request : timed out",
+                new SocketTimeoutException("Read timed out")));
+
+        assertTrue("Transport failure should be replaced", ex instanceof StacklessAxisFault);
+        assertTrue("Message should be kept", ex.getMessage().startsWith("Error sending request : timed out"));
+        assertEquals(0, ex.getStackTrace().length);
+    }
+
+    @Test
+    public void shouldKeepOtherExceptions() {
+        Exception ex = new IllegalStateException("Unexpected");
+
+        assertTrue("Other exceptions should be kept", StacklessAxisFault.ofTransportFailure(ex) == ex);
+    }
+
+    @Test
+    public void shouldNotCaptureStackFramesWhenThrownFromDeepStack() {
+        SynapseException ex = throwFrom(STACK_DEPTH, true);
+
+        assertEquals(0, ex.getStackTrace().length);
+        assertEquals(0, ex.getCause().getStackTrace().length);
+        assertTrue("Full faults should capture the stack", throwFrom(STACK_DEPTH, false).getStackTrace().length
+                > STACK_DEPTH);
+    }
+
+    @Test
+    public void shouldAllocateLessForStacklessFaults() {
+        assumeTrue(AllocationAccounting.isSupported());
+        // First round loads the classes of both paths
+        long fullAllocated = 0;
+        long stacklessAllocated = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = AllocationAccounting.getAllocatedBytes();
+            throwFrom(STACK_DEPTH, false);
+            fullAllocated = AllocationAccounting.getAllocatedBytes() - start;
+            start = AllocationAccounting.getAllocatedBytes();
+            throwFrom(STACK_DEPTH, true);
+            stacklessAllocated = AllocationAccounting.getAllocatedBytes() - start;
+        }
+
+        assertTrue("Stackless fault allocated " + stacklessAllocated + " bytes, full fault " + fullAllocated
+                + " bytes", stacklessAllocated * 4 < fullAllocated);
+    }
+
+    /**
+     * Throws and catches a fault wrapped like the mediator does from given
+     * stack depth.
+     * 
+     * @param depth
+     *            Remaining stack depth
+     * @param stackless
+     *            Whether a stackless fault is thrown
+     * @return Caught fault
+     */
+    static SynapseException throwFrom(int depth, boolean stackless) {
+        if (depth > 0) {
+            return throwFrom(depth - 1, stackless);
+        }
+        try {
+            if (stackless) {
+                throw new StacklessSynapseException("Error while performing the CustomCallout operation",
+                        new StacklessAxisFault("Error sending request : Connection refused"));
+            }
+            throw new SynapseException("Error while performing the CustomCallout operation",
+                    new AxisFault("Error sending request : Connection refused",
+                            new ConnectException("Connection refused")));
+        } catch (SynapseException e) {
+            return e;
+        }
+    }
+}
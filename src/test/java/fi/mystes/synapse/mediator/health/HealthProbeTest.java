@@ -0,0 +1,112 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.health;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HealthProbeTest {
+
+    private HttpServer server;
+    private String address;
+    private volatile int status = 200;
+    private HealthCheckConfiguration configuration;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        address = "http://127.0.0.1:" + server.getAddress().getPort() + "/service";
+        configuration = new HealthCheckConfiguration();
+        configuration.setPath("/health");
+        configuration.setHealthyThreshold(2);
+        configuration.setUnhealthyThreshold(2);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldBecomeUnhealthyAfterThresholdOfFailedProbes() {
+        HealthProbe probe = new HealthProbe(address, configuration);
+        status = 503;
+
+        probe.run();
+        assertTrue("Single failure should not mark endpoint unhealthy", probe.isHealthy());
+        probe.run();
+        assertTrue("Endpoint should be unhealthy after threshold", !probe.isHealthy());
+        assertTrue("Failed probes should be counted", probe.getFailedProbes() == 2);
+    }
+
+    @Test
+    public void shouldRecoverAfterThresholdOfSuccessfulProbes() {
+        HealthProbe probe = new HealthProbe(address, configuration);
+        probe.record(false);
+        probe.record(false);
+        status = 200;
+
+        probe.run();
+        assertTrue("Single success should not mark endpoint healthy", !probe.isHealthy());
+        probe.run();
+        assertTrue("Endpoint should be healthy after threshold", probe.isHealthy());
+    }
+
+    @Test
+    public void shouldFailProbeOfUnreachableEndpoint() throws IOException {
+        HttpServer stopped = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        stopped.start();
+        int port = stopped.getAddress().getPort();
+        stopped.stop(0);
+        HealthProbe probe = new HealthProbe("http://127.0.0.1:" + port + "/service", configuration);
+
+        assertTrue("Probe of closed port should fail", !probe.probe());
+    }
+
+    @Test
+    public void shouldShareProbeOfSameAddress() {
+        HealthProbe first = HealthCheckRegistry.acquire(address, configuration);
+        HealthProbe second = HealthCheckRegistry.acquire(address, new HealthCheckConfiguration());
+        HealthCheckRegistry.release(first);
+        HealthProbe third = HealthCheckRegistry.acquire(address, configuration);
+        HealthCheckRegistry.release(second);
+        HealthCheckRegistry.release(third);
+        HealthProbe fourth = HealthCheckRegistry.acquire(address, configuration);
+        HealthCheckRegistry.release(fourth);
+
+        assertTrue("Mediators of same address should share probe", first == second && second == third);
+        assertTrue("Probe should be recreated after last release", fourth != first);
+        assertTrue("Settings of first mediator should be used", first.getConfiguration() == configuration);
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.inflight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class InFlightRegistryTest {
+
+    private static final String ENDPOINT = "http://localhost:8280/service";
+
+    @Test
+    public void shouldListOldestCalloutsAndCountsByEndpoint() throws InterruptedException {
+        InFlightCallout first = InFlightRegistry.begin("urn:uuid:1", "customCallout", ENDPOINT);
+        Thread.sleep(2);
+        InFlightCallout second = InFlightRegistry.begin("urn:uuid:2", "customCallout", ENDPOINT);
+        InFlightCallout third = InFlightRegistry.begin("urn:uuid:3", "customCallout", "http://localhost:8280/other");
+        try {
+            List<InFlightCallout> oldest = InFlightRegistry.getOldest(2);
+            assertEquals(2, oldest.size());
+            assertTrue("Callout waiting longest should be first", oldest.get(0) == first);
+
+            Map<String, Integer> counts = InFlightRegistry.getCountsByEndpoint();
+            assertEquals(Integer.valueOf(2), counts.get(ENDPOINT));
+            assertEquals(Integer.valueOf(1), counts.get("http://localhost:8280/other"));
+            assertTrue("Current callout should be the latest", InFlightRegistry.current() == third);
+        } finally {
+            InFlightRegistry.end(third);
+            InFlightRegistry.end(second);
+            InFlightRegistry.end(first);
+        }
+        assertEquals(0, InFlightRegistry.getOldest(10).size());
+        assertEquals(null, InFlightRegistry.current());
+    }
+
+    @Test
+    public void shouldCancelStuckCallout() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean closed = new AtomicBoolean();
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final AtomicBoolean interruptLeaked = new AtomicBoolean(true);
+        final long[] id = new long[1];
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                InFlightCallout callout = InFlightRegistry.begin("urn:uuid:4", "customCallout", ENDPOINT);
+                callout.setConnection(new Closeable() {
+                    @Override
+                    public void close() {
+                        closed.set(true);
+                    }
+                });
+                id[0] = callout.getId();
+                started.countDown();
+                try {
+                    // Stands for a callout waiting for a response
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    Thread.currentThread().interrupt();
+                } finally {
+                    InFlightRegistry.end(callout);
+                }
+                interruptLeaked.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        caller.start();
+        assertTrue("Callout should start", started.await(5, TimeUnit.SECONDS));
+
+        assertTrue("Callout should be cancelled", InFlightRegistry.cancel(id[0]));
+        caller.join(5000);
+
+        assertTrue("Connection should be closed", closed.get());
+        assertTrue("Waiting thread should be interrupted", interrupted.get());
+        assertFalse("Interrupt should be cleared when the callout ends", interruptLeaked.get());
+        assertFalse("Completed callout should not be cancelled", InFlightRegistry.cancel(id[0]));
+    }
+}
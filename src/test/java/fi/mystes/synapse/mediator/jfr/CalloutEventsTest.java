@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+import fi.mystes.synapse.mediator.jfr.CalloutEvents.PhaseEvent;
+
+/**
+ * Flight Recorder API is used through reflection, so that the tests compile
+ * and are skipped on JVMs without it.
+ */
+public class CalloutEventsTest {
+
+    @Test
+    public void shouldNotBeginPhaseWithoutRecording() {
+        CalloutEvents events = CalloutEvents.getInstance();
+
+        assertFalse("Event should be disabled without recording", events.isEnabled());
+        assertEquals(null, events.begin(CalloutEvents.PHASE_SEND));
+    }
+
+    @Test
+    public void shouldRecordPhaseEvents() throws Exception {
+        assumeTrue(isFlightRecorderAvailable());
+        CalloutEvents events = CalloutEvents.getInstance();
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        Object recording = recordingClass.newInstance();
+        recordingClass.getMethod("enable", String.class).invoke(recording, CalloutEvents.EVENT_NAME);
+        recordingClass.getMethod("start").invoke(recording);
+        File file = File.createTempFile("callout", ".jfr");
+        try {
+            assertTrue("Event should be enabled while recording", events.isEnabled());
+            PhaseEvent event = events.begin(CalloutEvents.PHASE_SEND);
+            event.commit("customCallout@1", "http://localhost:8280/service", "urn:test", 128,
+                    CalloutEvents.OUTCOME_FAULT);
+
+            recordingClass.getMethod("stop").invoke(recording);
+            Object path = File.class.getMethod("toPath").invoke(file);
+            recordingClass.getMethod("dump", Class.forName("java.nio.file.Path")).invoke(recording, path);
+
+            List<?> recorded = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+                    .getMethod("readAllEvents", Class.forName("java.nio.file.Path")).invoke(null, path);
+            assertEquals(1, recorded.size());
+            Object recordedEvent = recorded.get(0);
+            assertEquals(CalloutEvents.PHASE_SEND, getString(recordedEvent, "phase"));
+            assertEquals("http://localhost:8280/service", getString(recordedEvent, "endpoint"));
+            assertEquals(CalloutEvents.OUTCOME_FAULT, getString(recordedEvent, "outcome"));
+            assertEquals(128L, recordedEvent.getClass().getMethod("getLong", String.class).invoke(recordedEvent,
+                    "payloadSize"));
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+            file.delete();
+        }
+    }
+
+    private static String getString(Object recordedEvent, String field) throws Exception {
+        return (String) recordedEvent.getClass().getMethod("getString", String.class).invoke(recordedEvent, field);
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.EventFactory");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
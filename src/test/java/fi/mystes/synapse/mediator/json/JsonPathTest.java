@@ -0,0 +1,97 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class JsonPathTest {
+
+    private static final String ORDER = "{ \"id\": 7, \"note\": \"a \\\"quoted\\\" } ]\",\n"
+            + "  \"customer\": {\"name\": \"Ann\", \"tags\": [\"x\", {\"y\": [1, 2]}]},\n"
+            + "  \"lines\": [ {\"sku\": \"A\"}, {\"sku\": \"B\", \"qty\": 2} ], \"line\\u0073x\": true }";
+
+    @Test
+    public void shouldSelectMembersAndIndexes() {
+        assertEquals("7", new JsonPath("$.id").select(ORDER));
+        assertEquals("\"Ann\"", new JsonPath("$.customer.name").select(ORDER));
+        assertEquals("{\"y\": [1, 2]}", new JsonPath("$.customer.tags[1]").select(ORDER));
+        assertEquals("2", new JsonPath("$['lines'][1].qty").select(ORDER));
+        assertEquals("true", new JsonPath("$.linesx").select(ORDER));
+        assertEquals(ORDER.trim(), new JsonPath("$").select(ORDER));
+    }
+
+    @Test
+    public void shouldReturnNullWhenPathDoesNotMatch() {
+        assertEquals(null, new JsonPath("$.missing").select(ORDER));
+        assertEquals(null, new JsonPath("$.lines[2]").select(ORDER));
+        assertEquals(null, new JsonPath("$.id.value").select(ORDER));
+        assertEquals(null, new JsonPath("$.customer[0]").select(ORDER));
+    }
+
+    @Test
+    public void shouldReplaceAndInsertValues() {
+        assertEquals("{\"a\":{\"b\":[1,{\"c\":true}]}}",
+                new JsonPath("$.a.b[1]").set("{\"a\":{\"b\":[1,2]}}", "{\"c\":true}"));
+        assertEquals("{\"a\":1,\"b\":[0]}", new JsonPath("$.b").set("{\"a\":1}", "[0]"));
+        assertEquals("{\"a\":{\"b\\\"\":2}}", new JsonPath("$.a['b\"']").set("{\"a\":{}}", "2"));
+        assertEquals("[1,2,3]", new JsonPath("$[2]").set("[1,2]", "3"));
+        assertEquals("{}", new JsonPath("$").set("[1]", "{}"));
+    }
+
+    @Test
+    public void shouldScanUtf8BytesWithinGivenLength() throws Exception {
+        byte[] json = "{\"n\u00e4me\": \"\u20ac\", \"k\\u00e4y\": [1]}trailing".getBytes("UTF-8");
+        int length = json.length - "trailing".length();
+
+        ByteArrayOutputStream selected = new ByteArrayOutputStream();
+        assertTrue("Non-ASCII member should match", new JsonPath("$.n\u00e4me").select(json, length, selected));
+        assertEquals("\"\u20ac\"", selected.toString("UTF-8"));
+
+        ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        byte[] value = "\"\u00e5\"".getBytes("UTF-8");
+        new JsonPath("$['k\u00e4y'][1]").set(json, length, value, value.length, merged);
+        assertEquals("{\"n\u00e4me\": \"\u20ac\", \"k\\u00e4y\": [1,\"\u00e5\"]}", merged.toString("UTF-8"));
+    }
+
+    @Test
+    public void shouldRejectSetWhenParentIsMissing() {
+        try {
+            new JsonPath("$.a.b").set("{}", "1");
+            fail("Missing parent should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("JSONPath $.a.b does not match the message", e.getMessage());
+        }
+    }
+
+    @Test
+    public void shouldRejectUnsupportedExpressions() {
+        String[] expressions = { "a.b", "$..a", "$.*", "$[?(@.a)]", "$[-1]", "$.a[" };
+        for (String expression : expressions) {
+            try {
+                new JsonPath(expression);
+                fail("Expression should be rejected : " + expression);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.context.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.junit.Test;
+
+import fi.mystes.synapse.mediator.AllocationAccounting;
+
+public class JsonPayloadsTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void shouldMovePayloadToTargetContext() throws Exception {
+        MessageContext source = createContext("{\"items\":[1,2,3]}".getBytes("UTF-8"));
+        MessageContext target = createContext("{\"old\":true}".getBytes("UTF-8"));
+
+        assertTrue("Payload should be moved", JsonPayloads.transfer(source, target));
+
+        assertTrue("Target should have source envelope", target.getEnvelope() == source.getEnvelope());
+        assertTrue("Target should have source payload", toJson(target).equals("{\"items\":[1,2,3]}"));
+    }
+
+    @Test
+    public void shouldNotMoveMissingPayload() throws Exception {
+        MessageContext source = new MessageContext();
+        source.setEnvelope(OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope());
+        MessageContext target = createContext("{\"old\":true}".getBytes("UTF-8"));
+
+        assertTrue("Nothing should be moved", !JsonPayloads.transfer(source, target));
+        assertTrue("Target should keep its payload", toJson(target).equals("{\"old\":true}"));
+    }
+
+    @Test
+    public void shouldHandOffLargeResponsesWithoutCopying() throws Exception {
+        assumeTrue(AllocationAccounting.isSupported());
+        for (int size : new int[] { MB, 5 * MB, 20 * MB }) {
+            byte[] json = createJson(size);
+            // First round warms up both paths
+            for (int round = 0; round < 2; round++) {
+                MessageContext response = createContext(json);
+                MessageContext message = createContext("{}".getBytes("UTF-8"));
+                long allocated = AllocationAccounting.getAllocatedBytes();
+                long start = System.nanoTime();
+                JsonUtil.cloneJsonPayload(response, message);
+                long cloneTime = System.nanoTime() - start;
+                long cloneAllocated = AllocationAccounting.getAllocatedBytes() - allocated;
+
+                response = createContext(json);
+                message = createContext("{}".getBytes("UTF-8"));
+                allocated = AllocationAccounting.getAllocatedBytes();
+                start = System.nanoTime();
+                JsonPayloads.transfer(response, message);
+                long transferTime = System.nanoTime() - start;
+                long transferAllocated = AllocationAccounting.getAllocatedBytes() - allocated;
+
+                String figures = size / MB + " MB response: clone allocated " + cloneAllocated + " bytes in "
+                        + cloneTime / 1000 + " us, transfer allocated " + transferAllocated + " bytes in "
+                        + transferTime / 1000 + " us";
+                assertTrue(figures, transferAllocated < 64 * 1024);
+                assertTrue(figures, transferAllocated < cloneAllocated);
+            }
+        }
+    }
+
+    @Test
+    public void shouldSelectPayloadAtPath() throws Exception {
+        MessageContext msgCtx = createContext("{\"order\":{\"id\":7},\"note\":\"x\"}".getBytes("UTF-8"));
+
+        JsonPayloads.select(msgCtx, new JsonPath("$.order"));
+
+        assertEquals("{\"id\":7}", toJson(msgCtx));
+    }
+
+    @Test
+    public void shouldFailToSelectMissingPath() throws Exception {
+        MessageContext msgCtx = createContext("{\"order\":{\"id\":7}}".getBytes("UTF-8"));
+
+        try {
+            JsonPayloads.select(msgCtx, new JsonPath("$.customer"));
+            fail("Missing path should fail");
+        } catch (AxisFault e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("did not match"));
+        }
+    }
+
+    @Test
+    public void shouldMergeResponseIntoPayloadAtPath() throws Exception {
+        MessageContext response = createContext("{\"status\":\"ok\"}".getBytes("UTF-8"));
+        MessageContext msgCtx = createContext("{\"order\":{\"id\":7}}".getBytes("UTF-8"));
+
+        JsonPayloads.merge(response, msgCtx, new JsonPath("$.order.result"));
+
+        assertEquals("{\"order\":{\"id\":7,\"result\":{\"status\":\"ok\"}}}", toJson(msgCtx));
+    }
+
+    @Test
+    public void shouldMergeResponseIntoJsonText() throws Exception {
+        MessageContext response = createContext("[1,2]".getBytes("UTF-8"));
+
+        String merged = JsonPayloads.merge(response, "{}", new JsonPath("$.items"));
+
+        assertEquals("{\"items\":[1,2]}", merged.replaceAll("\\s", ""));
+    }
+
+    /**
+     * Helper method to create a message context with given JSON payload.
+     */
+    private static MessageContext createContext(byte[] json) throws Exception {
+        MessageContext msgCtx = new MessageContext();
+        msgCtx.setEnvelope(OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope());
+        JsonUtil.newJsonPayload(msgCtx, new ByteArrayInputStream(json), true, true);
+        return msgCtx;
+    }
+
+    /**
+     * Helper method to write JSON payload of given context as text.
+     */
+    private static String toJson(MessageContext msgCtx) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonUtil.writeAsJson(msgCtx, out);
+        return out.toString("UTF-8").replaceAll("\\s", "");
+    }
+
+    /**
+     * Helper method to create JSON array of given size in bytes.
+     */
+    private static byte[] createJson(int size) throws Exception {
+        String item = "{\"id\":12345,\"name\":\"customer\"}";
+        StringBuilder json = new StringBuilder(size + item.length());
+        json.append("{\"items\":[").append(item);
+        while (json.length() < size - 2) {
+            json.append(',').append(item);
+        }
+        return json.append("]}").toString().getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void shouldReuseReleasedBuffer() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        byte[] first = pool.acquire(1000);
+        pool.release(first);
+        byte[] second = pool.acquire(2000);
+
+        assertTrue("Buffer should be rounded up to size class", first.length == BufferPool.SIZE_CLASSES[0]);
+        assertTrue("Released buffer should be reused", first == second);
+        assertTrue("Hit rate should be published", pool.getHitRate() == 0.5);
+        assertTrue("Taken buffer should not be retained", pool.getRetainedBytes() == 0);
+    }
+
+    @Test
+    public void shouldNotRetainMoreThanCap() {
+        BufferPool pool = new BufferPool(BufferPool.SIZE_CLASSES[0]);
+        byte[] first = pool.acquire(1);
+        byte[] second = pool.acquire(1);
+        pool.release(first);
+        pool.release(second);
+
+        assertTrue("Retained memory should be capped", pool.getRetainedBytes() == BufferPool.SIZE_CLASSES[0]);
+        assertTrue("Buffer beyond cap should be discarded", pool.getDiscarded() == 1);
+    }
+
+    @Test
+    public void shouldNotPoolBuffersLargerThanLargestClass() {
+        BufferPool pool = new BufferPool(16 * 1024 * 1024);
+        int size = BufferPool.SIZE_CLASSES[BufferPool.SIZE_CLASSES.length - 1] + 1;
+        byte[] large = pool.acquire(size);
+        pool.release(large);
+
+        assertTrue("Large buffer should have exact size", large.length == size);
+        assertTrue("Large buffer should not be retained", pool.getRetainedBytes() == 0);
+    }
+
+    @Test
+    public void shouldGrowPooledStreamAcrossSizeClasses() throws Exception {
+        BufferPool pool = new BufferPool(16 * 1024 * 1024);
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream(pool, 100);
+        out.write(data, 0, 10000);
+        out.readFrom(new ByteArrayInputStream(data, 10000, 10000), 10000);
+
+        assertTrue("Written bytes should be kept", Arrays.equals(data, out.toByteArray()));
+        out.release();
+        assertTrue("Buffers should be returned", pool.getRetainedBytes() == BufferPool.SIZE_CLASSES[0]
+                + BufferPool.SIZE_CLASSES[1] + BufferPool.SIZE_CLASSES[2]);
+    }
+
+    @Test
+    public void shouldNotReturnDetachedBufferToPool() throws Exception {
+        BufferPool pool = new BufferPool(16 * 1024 * 1024);
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream(pool, 100);
+        out.write(new byte[] { 1, 2, 3 }, 0, 3);
+        InputStream in = out.detach();
+        out.release();
+
+        assertTrue("Detached buffer should not be retained", pool.getRetainedBytes() == 0);
+        assertTrue("Detached bytes should stay readable", in.read() == 1 && in.read() == 2 && in.read() == 3
+                && in.read() == -1);
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HpackDecoderTest {
+
+    @Test
+    public void shouldDecodeHuffmanCodedRequestsWithDynamicTable() throws IOException {
+        // RFC 7541 appendix C.4
+        HpackDecoder decoder = new HpackDecoder(HpackDecoder.DEFAULT_TABLE_SIZE, 65536);
+
+        List<String[]> first = decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff");
+        assertHeaders(first, ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertEquals(57, decoder.getTableSize());
+
+        List<String[]> second = decode(decoder, "828684be5886a8eb10649cbf");
+        assertHeaders(second, ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertEquals(110, decoder.getTableSize());
+
+        List<String[]> third = decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf");
+        assertHeaders(third, ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority",
+                "www.example.com", "custom-key", "custom-value");
+        assertEquals(164, decoder.getTableSize());
+    }
+
+    @Test
+    public void shouldEvictOldestEntriesOfFullDynamicTable() throws IOException {
+        // RFC 7541 appendix C.6
+        HpackDecoder decoder = new HpackDecoder(256, 65536);
+
+        List<String[]> first = decode(decoder, "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff"
+                + "6e919d29ad171863c78f0b97c8e9ae82ae43d3");
+        assertHeaders(first, ":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "location", "https://www.example.com");
+        assertEquals(222, decoder.getTableSize());
+
+        List<String[]> second = decode(decoder, "4883640effc1c0bf");
+        assertHeaders(second, ":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "location", "https://www.example.com");
+        assertEquals(222, decoder.getTableSize());
+
+        List<String[]> third = decode(decoder, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7"
+                + "821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007");
+        assertHeaders(third, ":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+                "location", "https://www.example.com", "content-encoding", "gzip", "set-cookie",
+                "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+        assertEquals(215, decoder.getTableSize());
+    }
+
+    @Test
+    public void shouldDecodeEncodedLiterals() throws IOException {
+        HpackEncoder encoder = new HpackEncoder();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            longValue.append((char) ('a' + i % 26));
+        }
+        encoder.encode(":path", "/orders?id=1", block);
+        encoder.encode("x-correlation-id", "abc-123", block);
+        encoder.encode("authorization", longValue.toString(), block);
+        HpackDecoder decoder = new HpackDecoder(HpackDecoder.DEFAULT_TABLE_SIZE, 65536);
+
+        List<String[]> headers = decoder.decode(block.toByteArray(), block.size());
+
+        assertHeaders(headers, ":path", "/orders?id=1", "x-correlation-id", "abc-123", "authorization",
+                longValue.toString());
+        assertEquals("Literals without indexing should leave the table empty", 0, decoder.getTableSize());
+    }
+
+    @Test
+    public void shouldRejectInvalidBlocks() {
+        assertInvalid("Index outside tables", "be");
+        assertInvalid("Truncated string", "0f0005616263");
+        assertInvalid("Padding longer than seven bits", "0082" + "1fff" + "81ff");
+        assertInvalid("Table size update above the limit", "3fe21f");
+    }
+
+    private static void assertInvalid(String message, String hex) {
+        try {
+            new HpackDecoder(HpackDecoder.DEFAULT_TABLE_SIZE, 65536).decode(toBytes(hex), hex.length() / 2);
+            fail(message + " should be rejected");
+        } catch (IOException expected) {
+            assertTrue(message, expected.getMessage() != null);
+        }
+    }
+
+    private static List<String[]> decode(HpackDecoder decoder, String hex) throws IOException {
+        return decoder.decode(toBytes(hex), hex.length() / 2);
+    }
+
+    private static void assertHeaders(List<String[]> headers, String... expected) {
+        assertEquals("Header count", expected.length / 2, headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            assertEquals(expected[2 * i], headers.get(i)[0]);
+            assertEquals(expected[2 * i + 1], headers.get(i)[1]);
+        }
+    }
+
+    private static byte[] toBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,482 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class Http2ConnectionTest {
+
+    private H2cStubServer server;
+    private HttpCalloutTransport transport;
+
+    @After
+    public void tearDown() throws IOException {
+        if (transport != null) {
+            transport.destroy();
+        }
+        if (server != null) {
+            server.close();
+        }
+        System.clearProperty(Http2Connection.PING_TIMEOUT_PROPERTY);
+    }
+
+    @Test
+    public void shouldMultiplexConcurrentCalloutsOverOneConnection() throws Exception {
+        server = new H2cStubServer(100, Http2Connection.DEFAULT_WINDOW_SIZE);
+        // Responses are held until all callouts are open at the same time
+        server.holdUntilOpen = 4;
+        transport = newTransport(1, ConnectionPoolConfiguration.DEFAULT_INITIAL_WINDOW_SIZE);
+
+        List<Throwable> errors = postConcurrently(4, "{\"id\":1}".getBytes("UTF-8"));
+
+        assertTrue("Callouts should succeed : " + errors, errors.isEmpty());
+        assertEquals("Callouts should share one connection", 1, server.connections);
+        assertEquals("Callouts should be open concurrently", 4, server.maxOpenStreams);
+        assertEquals(1, transport.getConnectionPool().getHttp2Connections(server.route));
+    }
+
+    @Test
+    public void shouldLimitConcurrentStreamsToServerSetting() throws Exception {
+        server = new H2cStubServer(2, Http2Connection.DEFAULT_WINDOW_SIZE);
+        transport = newTransport(1, ConnectionPoolConfiguration.DEFAULT_INITIAL_WINDOW_SIZE);
+
+        List<Throwable> errors = postConcurrently(6, "{}".getBytes("UTF-8"));
+
+        assertTrue("Callouts should succeed : " + errors, errors.isEmpty());
+        assertTrue("Open streams should not exceed server setting", server.maxOpenStreams <= 2);
+        assertEquals(1, server.connections);
+    }
+
+    @Test
+    public void shouldFollowFlowControlWindowsInBothDirections() throws Exception {
+        // Server grants 100 bytes per stream, client 1024 bytes
+        server = new H2cStubServer(100, 100);
+        server.responseRepeat = 50;
+        transport = newTransport(1, 1024);
+        byte[] request = new byte[5000];
+        Arrays.fill(request, (byte) 'x');
+
+        HttpResponse response = transport.post(server.url, "application/json", request, 5000);
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("Whole request should be received", 5000, server.lastRequestLength);
+        assertEquals("Whole response should be read", 5000 * 50, response.getBodyLength());
+        assertTrue("Request should not exceed server window", !server.windowExceeded);
+        assertTrue("Client should give credit for the response", server.windowUpdates > 0);
+        response.release();
+    }
+
+    @Test
+    public void shouldKeepReadingWhileRequestBodyIsBlocked() throws Exception {
+        // Server stops reading after the request head and answers with a
+        // PING and the response while the client is still sending the body
+        server = new H2cStubServer(100, Integer.MAX_VALUE);
+        server.respondBeforeBody = true;
+        transport = newTransport(1, ConnectionPoolConfiguration.DEFAULT_INITIAL_WINDOW_SIZE);
+        final byte[] request = new byte[32 * 1024 * 1024];
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final int[] status = new int[1];
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    HttpResponse response = transport.post(server.url, "application/json", request, 5000);
+                    status[0] = response.getStatusCode();
+                    response.release();
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+            }
+        });
+        caller.setDaemon(true);
+        caller.start();
+        caller.join(10000);
+
+        assertTrue("Response should be read while the request body is blocked", !caller.isAlive());
+        assertTrue("Callout should succeed : " + errors, errors.isEmpty());
+        assertEquals(200, status[0]);
+    }
+
+    @Test
+    public void shouldReplaceConnectionThatStopsAnswering() throws Exception {
+        System.setProperty(Http2Connection.PING_TIMEOUT_PROPERTY, "300");
+        server = new H2cStubServer(100, Http2Connection.DEFAULT_WINDOW_SIZE);
+        // First connection reads requests but answers neither them nor PING
+        server.silent = true;
+        transport = newTransport(1, ConnectionPoolConfiguration.DEFAULT_INITIAL_WINDOW_SIZE);
+        try {
+            transport.post(server.url, "application/json", "{}".getBytes("UTF-8"), 300);
+            fail("Unanswered callout should time out");
+        } catch (SocketTimeoutException e) {
+            // Expected
+        }
+        server.silent = false;
+        Thread.sleep(600);
+
+        long start = System.currentTimeMillis();
+        HttpResponse response = transport.post(server.url, "application/json", "{}".getBytes("UTF-8"), 2000);
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue("Callout should not wait for the failed connection", System.currentTimeMillis() - start < 1000);
+        assertEquals("Failed connection should be replaced", 2, server.connections);
+        response.release();
+    }
+
+    @Test
+    public void shouldFallBackToHttp11WhenServerDoesNotSpeakHttp2() throws Exception {
+        HttpServer http11 = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        http11.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read() != -1) {
+                    // Consume request
+                }
+                byte[] body = "{\"protocol\":\"http/1.1\"}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        http11.start();
+        try {
+            transport = newTransport(1, ConnectionPoolConfiguration.DEFAULT_INITIAL_WINDOW_SIZE);
+            String url = "http://127.0.0.1:" + http11.getAddress().getPort() + "/";
+
+            HttpResponse first = transport.post(url, "application/json", "{}".getBytes("UTF-8"), 5000);
+            HttpResponse second = transport.post(url, "application/json", "{}".getBytes("UTF-8"), 5000);
+
+            assertEquals("{\"protocol\":\"http/1.1\"}", new String(first.getBody(), "UTF-8"));
+            assertEquals(200, second.getStatusCode());
+            assertEquals(0, transport.getConnectionPool().getHttp2Connections(
+                    "http://127.0.0.1:" + http11.getAddress().getPort()));
+            first.release();
+            second.release();
+        } finally {
+            http11.stop(0);
+        }
+    }
+
+    private HttpCalloutTransport newTransport(int maxConnections, int initialWindowSize) {
+        ConnectionPoolConfiguration configuration = new ConnectionPoolConfiguration();
+        configuration.setProtocol(ConnectionPoolConfiguration.PROTOCOL_H2C);
+        configuration.setMaxConnectionsPerRoute(maxConnections);
+        configuration.setInitialWindowSize(initialWindowSize);
+        configuration.setLeaseTimeout(5000);
+        HttpCalloutTransport created = new HttpCalloutTransport(configuration);
+        created.getConnectionPool().setConnectTimeout(2000);
+        return created;
+    }
+
+    private List<Throwable> postConcurrently(int callers, final byte[] body) throws InterruptedException {
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < callers; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HttpResponse response = transport.post(server.url, "application/json", body, 5000);
+                        if (response.getStatusCode() != 200 || !Arrays.equals(body, response.getBody())) {
+                            throw new IOException("Unexpected response " + response.getStatusCode());
+                        }
+                        response.release();
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        return errors;
+    }
+
+    /**
+     * Minimal h2c server echoing request bodies, repeated a given number of
+     * times, on single threaded connections. Keeps track of open streams and
+     * flow control windows granted to the client.
+     */
+    private static class H2cStubServer implements Runnable {
+
+        final ServerSocket socket;
+        final String url;
+        final String route;
+        final int maxStreams;
+        final int windowSize;
+        volatile int holdUntilOpen = 0;
+        volatile int responseRepeat = 1;
+        volatile boolean respondBeforeBody = false;
+        volatile boolean silent = false;
+        volatile int connections = 0;
+        volatile int maxOpenStreams = 0;
+        volatile int lastRequestLength = 0;
+        volatile int windowUpdates = 0;
+        volatile boolean windowExceeded = false;
+
+        H2cStubServer(int maxStreams, int windowSize) throws IOException {
+            this.maxStreams = maxStreams;
+            this.windowSize = windowSize;
+            socket = new ServerSocket(0, 50, java.net.InetAddress.getByName("127.0.0.1"));
+            url = "http://127.0.0.1:" + socket.getLocalPort() + "/orders";
+            route = "http://127.0.0.1:" + socket.getLocalPort();
+            Thread thread = new Thread(this, "h2c-stub");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    final Socket client = socket.accept();
+                    connections++;
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                serve(client);
+                            } catch (IOException e) {
+                                // Connection closed
+                            } finally {
+                                try {
+                                    client.close();
+                                } catch (IOException ignore) {
+                                }
+                            }
+                        }
+                    }, "h2c-stub-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        void serve(Socket client) throws IOException {
+            boolean silentConnection = silent;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            OutputStream out = new BufferedOutputStream(client.getOutputStream());
+            byte[] preface = new byte[Http2Connection.PREFACE.length];
+            in.readFully(preface);
+            if (!Arrays.equals(preface, Http2Connection.PREFACE)) {
+                throw new IOException("Invalid preface");
+            }
+            ByteArrayOutputStream settings = new ByteArrayOutputStream();
+            settings.write(new byte[] { 0, Http2Connection.SETTINGS_MAX_CONCURRENT_STREAMS });
+            settings.write(toBytes(maxStreams));
+            settings.write(new byte[] { 0, Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE });
+            settings.write(toBytes(windowSize));
+            writeFrame(out, Http2Connection.TYPE_SETTINGS, 0, 0, settings.toByteArray());
+            if (respondBeforeBody) {
+                writeFrame(out, Http2Connection.TYPE_WINDOW_UPDATE, 0, 0,
+                        toBytes(Integer.MAX_VALUE - Http2Connection.DEFAULT_WINDOW_SIZE));
+            }
+            out.flush();
+
+            HpackDecoder decoder = new HpackDecoder(HpackDecoder.DEFAULT_TABLE_SIZE, 65536);
+            HpackEncoder encoder = new HpackEncoder();
+            Map<Integer, ByteArrayOutputStream> requests = new LinkedHashMap<Integer, ByteArrayOutputStream>();
+            List<Integer> complete = new ArrayList<Integer>();
+            Map<Integer, byte[]> responses = new LinkedHashMap<Integer, byte[]>();
+            Map<Integer, Integer> responseOffsets = new LinkedHashMap<Integer, Integer>();
+            Map<Integer, Long> sendWindows = new LinkedHashMap<Integer, Long>();
+            Map<Integer, Integer> receiveWindows = new LinkedHashMap<Integer, Integer>();
+            long connectionSendWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+            long clientWindowSize = Http2Connection.DEFAULT_WINDOW_SIZE;
+            while (true) {
+                int length = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int streamId = in.readInt() & Integer.MAX_VALUE;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (silentConnection) {
+                    continue;
+                }
+                Integer id = Integer.valueOf(streamId);
+                if (type == Http2Connection.TYPE_SETTINGS && (flags & Http2Connection.FLAG_ACK) == 0) {
+                    for (int offset = 0; offset < length; offset += 6) {
+                        if (payload[offset + 1] == Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE) {
+                            clientWindowSize = getInt(payload, offset + 2);
+                        }
+                    }
+                    writeFrame(out, Http2Connection.TYPE_SETTINGS, Http2Connection.FLAG_ACK, 0, new byte[0]);
+                } else if (type == Http2Connection.TYPE_WINDOW_UPDATE) {
+                    windowUpdates++;
+                    if (streamId == 0) {
+                        connectionSendWindow += getInt(payload, 0);
+                    } else if (sendWindows.containsKey(id)) {
+                        sendWindows.put(id, sendWindows.get(id) + getInt(payload, 0));
+                    }
+                } else if (type == Http2Connection.TYPE_HEADERS) {
+                    decoder.decode(payload, length);
+                    requests.put(id, new ByteArrayOutputStream());
+                    receiveWindows.put(id, Integer.valueOf(windowSize));
+                    sendWindows.put(id, Long.valueOf(clientWindowSize));
+                    maxOpenStreams = Math.max(maxOpenStreams, requests.size() + responses.size());
+                    if ((flags & Http2Connection.FLAG_END_STREAM) != 0) {
+                        complete.add(id);
+                    } else if (respondBeforeBody) {
+                        respondAndStopReading(out, encoder, streamId);
+                        return;
+                    }
+                } else if (type == Http2Connection.TYPE_DATA) {
+                    int window = receiveWindows.get(id).intValue() - length;
+                    windowExceeded |= window < 0;
+                    requests.get(id).write(payload);
+                    // Gives the consumed bytes back to the client at once
+                    writeFrame(out, Http2Connection.TYPE_WINDOW_UPDATE, 0, 0, toBytes(length));
+                    writeFrame(out, Http2Connection.TYPE_WINDOW_UPDATE, 0, streamId, toBytes(length));
+                    receiveWindows.put(id, Integer.valueOf(window + length));
+                    if ((flags & Http2Connection.FLAG_END_STREAM) != 0) {
+                        complete.add(id);
+                    }
+                } else if (type == Http2Connection.TYPE_GOAWAY) {
+                    return;
+                }
+                if (complete.size() >= holdUntilOpen) {
+                    for (Integer completed : complete) {
+                        byte[] request = requests.remove(completed).toByteArray();
+                        lastRequestLength = request.length;
+                        ByteArrayOutputStream response = new ByteArrayOutputStream();
+                        for (int i = 0; i < responseRepeat; i++) {
+                            response.write(request);
+                        }
+                        ByteArrayOutputStream block = new ByteArrayOutputStream();
+                        encoder.encode(":status", "200", block);
+                        encoder.encode("content-type", "application/json", block);
+                        writeFrame(out, Http2Connection.TYPE_HEADERS, Http2Connection.FLAG_END_HEADERS,
+                                completed.intValue(), block.toByteArray());
+                        responses.put(completed, response.toByteArray());
+                        responseOffsets.put(completed, Integer.valueOf(0));
+                    }
+                    complete.clear();
+                }
+                // Sends as much of pending responses as the client windows allow
+                for (Iterator<Map.Entry<Integer, byte[]>> pending = responses.entrySet().iterator(); pending
+                        .hasNext();) {
+                    Map.Entry<Integer, byte[]> entry = pending.next();
+                    byte[] body = entry.getValue();
+                    int offset = responseOffsets.get(entry.getKey()).intValue();
+                    long window = Math.min(connectionSendWindow, sendWindows.get(entry.getKey()).longValue());
+                    int chunk = (int) Math.min(Math.min(body.length - offset, window),
+                            Http2Connection.DEFAULT_MAX_FRAME_SIZE);
+                    if (chunk <= 0 && offset < body.length) {
+                        continue;
+                    }
+                    boolean last = offset + chunk == body.length;
+                    writeFrame(out, Http2Connection.TYPE_DATA, last ? Http2Connection.FLAG_END_STREAM : 0,
+                            entry.getKey().intValue(), Arrays.copyOfRange(body, offset, offset + chunk));
+                    connectionSendWindow -= chunk;
+                    sendWindows.put(entry.getKey(), Long.valueOf(sendWindows.get(entry.getKey()) - chunk));
+                    responseOffsets.put(entry.getKey(), Integer.valueOf(offset + chunk));
+                    if (last) {
+                        pending.remove();
+                        sendWindows.remove(entry.getKey());
+                    }
+                }
+                out.flush();
+            }
+        }
+
+        /**
+         * Answers given stream with a PING and an empty JSON response once the
+         * client has filled the socket buffers, and stops reading the
+         * connection until the server is closed.
+         */
+        void respondAndStopReading(OutputStream out, HpackEncoder encoder, int streamId) throws IOException {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.encode(":status", "200", block);
+            writeFrame(out, Http2Connection.TYPE_HEADERS, Http2Connection.FLAG_END_HEADERS, streamId,
+                    block.toByteArray());
+            writeFrame(out, Http2Connection.TYPE_PING, 0, 0, new byte[8]);
+            writeFrame(out, Http2Connection.TYPE_DATA, Http2Connection.FLAG_END_STREAM, streamId,
+                    "{}".getBytes("UTF-8"));
+            out.flush();
+            while (!socket.isClosed()) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+
+        private static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload)
+                throws IOException {
+            out.write(payload.length >>> 16);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+            out.write(type);
+            out.write(flags);
+            out.write(toBytes(streamId));
+            out.write(payload);
+        }
+
+        private static int getInt(byte[] bytes, int offset) {
+            return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                    | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+        }
+
+        private static byte[] toBytes(int value) {
+            return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axis2.Constants;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpCalloutTransportTest {
+
+    private HttpServer server;
+    private String address;
+    private HttpCalloutTransport transport;
+    private final Set<Integer> clientPorts = new HashSet<Integer>();
+    private volatile Headers requestHeaders;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/echo", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                synchronized (clientPorts) {
+                    clientPorts.add(exchange.getRemoteAddress().getPort());
+                }
+                byte[] request = readAll(exchange.getRequestBody());
+                exchange.getResponseHeaders().set("Content-Type", exchange.getRequestHeaders().getFirst("Content-Type"));
+                exchange.sendResponseHeaders(200, request.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(request);
+                out.close();
+            }
+        });
+        server.createContext("/chunked", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readAll(exchange.getRequestBody());
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                out.write("{\"first\":".getBytes("UTF-8"));
+                out.flush();
+                out.write("\"second\"}".getBytes("UTF-8"));
+                out.close();
+            }
+        });
+        server.createContext("/error", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readAll(exchange.getRequestBody());
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            }
+        });
+        server.createContext("/empty", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readAll(exchange.getRequestBody());
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        server.createContext("/headers", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requestHeaders = exchange.getRequestHeaders();
+                readAll(exchange.getRequestBody());
+                byte[] response = "{}".getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        address = "http://127.0.0.1:" + server.getAddress().getPort();
+        transport = new HttpCalloutTransport();
+    }
+
+    @After
+    public void tearDown() {
+        transport.destroy();
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldPostBodyAndReadResponse() throws IOException {
+        HttpResponse response = transport.post(address + "/echo", HttpCalloutTransport.JSON_CONTENT_TYPE,
+                "{\"id\":1}".getBytes("UTF-8"), 0);
+        assertTrue("Response status should be OK", response.getStatusCode() == 200);
+        assertTrue("Response should echo request", new String(response.getBody(), "UTF-8").equals("{\"id\":1}"));
+        assertTrue("Response should have content type",
+                HttpCalloutTransport.JSON_CONTENT_TYPE.equals(response.getHeader("content-type")));
+    }
+
+    @Test
+    public void shouldReuseKeptAliveConnection() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            transport.post(address + "/echo", HttpCalloutTransport.JSON_CONTENT_TYPE, "{}".getBytes("UTF-8"), 0);
+        }
+        assertTrue("Sequential requests should use one connection", clientPorts.size() == 1);
+    }
+
+    @Test
+    public void shouldReadChunkedResponse() throws IOException {
+        HttpResponse response = transport.post(address + "/chunked", HttpCalloutTransport.JSON_CONTENT_TYPE,
+                "{}".getBytes("UTF-8"), 0);
+        assertTrue("Chunks should be joined",
+                new String(response.getBody(), "UTF-8").equals("{\"first\":\"second\"}"));
+    }
+
+    @Test
+    public void shouldReturnErrorStatus() throws IOException {
+        HttpResponse response = transport.post(address + "/error", HttpCalloutTransport.JSON_CONTENT_TYPE,
+                "{}".getBytes("UTF-8"), 0);
+        assertTrue("Response status should be service unavailable", response.getStatusCode() == 503);
+        assertTrue("Response should have empty body", response.getBody().length == 0);
+    }
+
+    @Test
+    public void shouldKeepDetachedBodyWhenPoolIsReused() throws IOException {
+        HttpResponse first = transport.post(address + "/echo", HttpCalloutTransport.JSON_CONTENT_TYPE,
+                "{\"call\":\"first\"}".getBytes("UTF-8"), 0);
+        InputStream payload = first.detachBody();
+        first.release();
+
+        // Next callout acquires a buffer of the same size class from the pool
+        HttpResponse second = transport.post(address + "/echo", HttpCalloutTransport.JSON_CONTENT_TYPE,
+                "{\"call\":\"other\"}".getBytes("UTF-8"), 0);
+        assertTrue("Second response should be read", second.getBodyLength() > 0);
+
+        assertTrue("Detached payload should not be overwritten by the next callout",
+                new String(readAll(payload), "UTF-8").equals("{\"call\":\"first\"}"));
+        second.release();
+    }
+
+    @Test
+    public void shouldNotReturnRequestPayloadForEmptyResponse() throws Exception {
+        org.apache.axis2.context.MessageContext axis2Ctx = createContext("{\"request\":true}");
+
+        transport.send(address + "/empty", new Axis2MessageContext(axis2Ctx, null, null), 0);
+
+        assertTrue("Request payload should be removed", !JsonUtil.hasAJsonPayload(axis2Ctx));
+        assertTrue("Response body should be empty", axis2Ctx.getEnvelope().getBody().getFirstElement() == null);
+    }
+
+    @Test
+    public void shouldForwardEndToEndTransportHeaders() throws Exception {
+        org.apache.axis2.context.MessageContext axis2Ctx = createContext("{\"request\":true}");
+        Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        headers.put("Authorization", "Bearer token");
+        headers.put("X-Correlation-ID", "42");
+        headers.put("Connection", "X-Hop");
+        headers.put("X-Hop", "hop");
+        headers.put("Transfer-Encoding", "chunked");
+        headers.put("Content-Type", "application/xml");
+        axis2Ctx.setProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS, headers);
+
+        transport.send(address + "/headers", new Axis2MessageContext(axis2Ctx, null, null), 0);
+
+        assertTrue("Authorization should be forwarded",
+                "Bearer token".equals(requestHeaders.getFirst("Authorization")));
+        assertTrue("Correlation id should be forwarded", "42".equals(requestHeaders.getFirst("X-Correlation-ID")));
+        assertTrue("Header listed in Connection should not be forwarded", !requestHeaders.containsKey("X-Hop"));
+        assertTrue("Transfer encoding should not be forwarded", !requestHeaders.containsKey("Transfer-Encoding"));
+        assertTrue("JSON content type should be sent",
+                HttpCalloutTransport.JSON_CONTENT_TYPE.equals(requestHeaders.getFirst("Content-Type")));
+        assertTrue("Content type should be taken from response", "application/json; charset=UTF-8"
+                .equals(axis2Ctx.getProperty(Constants.Configuration.CONTENT_TYPE)));
+    }
+
+    /**
+     * Helper method to create a message context with given JSON payload.
+     */
+    private static org.apache.axis2.context.MessageContext createContext(String json) throws Exception {
+        org.apache.axis2.context.MessageContext axis2Ctx = new org.apache.axis2.context.MessageContext();
+        axis2Ctx.setEnvelope(OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope());
+        JsonUtil.newJsonPayload(axis2Ctx, json, true, true);
+        return axis2Ctx;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
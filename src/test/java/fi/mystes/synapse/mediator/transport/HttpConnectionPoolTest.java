@@ -0,0 +1,181 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpConnectionPoolTest {
+
+    private HttpServer server;
+    private URL url;
+    private final Set<Integer> clientPorts = new HashSet<Integer>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                synchronized (clientPorts) {
+                    clientPorts.add(exchange.getRemoteAddress().getPort());
+                }
+                InputStream in = exchange.getRequestBody();
+                while (in.read() != -1) {
+                    // Consume request
+                }
+                in.close();
+                byte[] response = "{}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldShareLimitedConnectionsBetweenConcurrentCallers() throws Exception {
+        ConnectionPoolConfiguration configuration = new ConnectionPoolConfiguration();
+        configuration.setMaxConnectionsPerRoute(2);
+        final HttpConnectionPool pool = new HttpConnectionPool(configuration);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5; j++) {
+                            HttpConnection connection = pool.lease(url);
+                            HttpResponse response = connection.execute("POST", url, null, new byte[0], 0);
+                            pool.release(connection, response.isKeepAlive());
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        pool.shutdown();
+
+        assertTrue("All requests should succeed: " + errors, errors.isEmpty());
+        assertTrue("At most two connections should be opened", clientPorts.size() <= 2);
+    }
+
+    @Test
+    public void shouldTimeoutWhenNoConnectionIsReleased() throws IOException {
+        ConnectionPoolConfiguration configuration = new ConnectionPoolConfiguration();
+        configuration.setMaxConnectionsPerRoute(1);
+        configuration.setLeaseTimeout(50);
+        HttpConnectionPool pool = new HttpConnectionPool(configuration);
+
+        HttpConnection leased = pool.lease(url);
+        try {
+            pool.lease(url);
+            fail("Lease should time out while the only connection is leased");
+        } catch (IOException expected) {
+            // Expected
+        }
+        pool.release(leased, true);
+        pool.release(pool.lease(url), true);
+        pool.shutdown();
+    }
+
+    @Test
+    public void shouldPublishLeaseStatistics() throws IOException {
+        HttpConnectionPool pool = new HttpConnectionPool();
+
+        HttpConnection connection = pool.lease(url);
+        assertTrue("One connection should be leased", pool.getLeasedConnections() == 1);
+        assertTrue("No connection should be available", pool.getAvailableConnections() == 0);
+        pool.release(connection, true);
+
+        assertTrue("No connection should be leased", pool.getLeasedConnections() == 0);
+        assertTrue("Released connection should be available", pool.getAvailableConnections() == 1);
+        assertTrue("No lease should be pending", pool.getPendingLeases() == 0);
+        long leases = 0;
+        for (long count : pool.getLeaseWaitHistogram()) {
+            leases += count;
+        }
+        assertTrue("Lease should be recorded in histogram", leases == 1);
+        pool.shutdown();
+    }
+
+    @Test
+    public void shouldEvictExpiredIdleConnections() throws Exception {
+        ConnectionPoolConfiguration configuration = new ConnectionPoolConfiguration();
+        configuration.setIdleTimeout(20);
+        HttpConnectionPool pool = new HttpConnectionPool(configuration);
+
+        HttpConnection first = pool.lease(url);
+        first.execute("POST", url, null, new byte[0], 0);
+        pool.release(first, true);
+        Thread.sleep(50);
+        HttpConnection second = pool.lease(url);
+
+        assertTrue("Expired connection should not be reused", first != second);
+        pool.release(second, true);
+        pool.shutdown();
+    }
+
+    @Test
+    public void shouldCloseConnectionsWhenKeepAliveIsDisabled() throws IOException {
+        ConnectionPoolConfiguration configuration = new ConnectionPoolConfiguration();
+        configuration.setKeepAlive(false);
+        HttpConnectionPool pool = new HttpConnectionPool(configuration);
+
+        HttpConnection connection = pool.lease(url);
+        HttpResponse response = connection.execute("POST", url, null, new byte[0], 0);
+        pool.release(connection, response.isKeepAlive());
+
+        assertTrue("Connection should not be kept alive", pool.getAvailableConnections() == 0);
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpConnectionTest {
+
+    private ServerSocket server;
+    private URL url;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        url = new URL("http://127.0.0.1:" + server.getLocalPort() + "/service");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        System.clearProperty(HttpConnection.MAX_RESPONSE_SIZE_PROPERTY);
+        server.close();
+    }
+
+    @Test
+    public void shouldFailAndCloseOnMalformedContentLength() throws Exception {
+        respondWith("HTTP/1.1 200 OK\r\nContent-Length: 12x\r\n\r\n{}");
+        assertFailureClosesConnection("Invalid HTTP Content-Length");
+    }
+
+    @Test
+    public void shouldFailAndCloseOnMalformedChunkSize() throws Exception {
+        respondWith("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n{}\r\n0\r\n\r\n");
+        assertFailureClosesConnection("Invalid HTTP chunk size");
+    }
+
+    @Test
+    public void shouldRejectContentLengthExceedingMaximumSizeBeforeReading() throws Exception {
+        respondWith("HTTP/1.1 200 OK\r\nContent-Length: 2147483647\r\n\r\n{}");
+        assertFailureClosesConnection("exceeds maximum size");
+    }
+
+    @Test
+    public void shouldRejectChunkedBodyExceedingMaximumSize() throws Exception {
+        System.setProperty(HttpConnection.MAX_RESPONSE_SIZE_PROPERTY, "16");
+        respondWith("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n10\r\n{\"id\":1234567890}\r\n"
+                + "10\r\n{\"id\":1234567890}\r\n0\r\n\r\n");
+        assertFailureClosesConnection("exceeds maximum size");
+    }
+
+    /**
+     * Helper method to execute a request and check that it fails with given
+     * message and that the connection gets closed.
+     */
+    private void assertFailureClosesConnection(String message) throws Exception {
+        HttpConnection connection = new HttpConnection(url, "route", 5000, 5000, true, null);
+        try {
+            connection.execute("GET", url, null, null, 0);
+            fail("Malformed response should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+        assertTrue("Connection should be closed", closed.await(5, TimeUnit.SECONDS));
+        assertTrue("Closed connection should be stale", connection.isStale());
+    }
+
+    /**
+     * Helper method to answer the next request with given raw response and
+     * signal when the client closes the connection.
+     */
+    private void respondWith(final String response) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    try {
+                        InputStream in = socket.getInputStream();
+                        readHead(in);
+                        OutputStream out = socket.getOutputStream();
+                        out.write(response.getBytes("ISO-8859-1"));
+                        out.flush();
+                        while (in.read() != -1) {
+                            // Wait for the client to close
+                        }
+                        closed.countDown();
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException ignore) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Helper method to read request head until the empty line.
+     */
+    private static void readHead(InputStream in) throws IOException {
+        int matched = 0;
+        int b;
+        while (matched < 4 && (b = in.read()) != -1) {
+            matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : b == '\r' ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2016 Mystes Oy (http://www.mystes.fi)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.mystes.synapse.mediator.transport;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+public class TlsSessionCacheTest {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private HttpsServer server;
+    private URL url;
+    private URL ipUrl;
+    private KeyStore keyStore;
+
+    @Before
+    public void setUp() throws Exception {
+        keyStore = KeyStore.getInstance("JKS");
+        InputStream in = getClass().getResourceAsStream("/tls-stub.jks");
+        try {
+            keyStore.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASSWORD);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+
+        server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read() != -1) {
+                    // Consume request
+                }
+                in.close();
+                byte[] response = "{}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        // Certificate of the stub is issued to localhost
+        url = new URL("https://localhost:" + server.getAddress().getPort() + "/");
+        ipUrl = new URL("https://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldResumeSessionOnNewConnections() throws Exception {
+        ConnectionPoolConfiguration configuration = new ConnectionPoolConfiguration();
+        configuration.setKeepAlive(false);
+        configuration.setTlsSessionCacheSize(10);
+        configuration.setTlsSessionTimeout(60000);
+        HttpConnectionPool pool = createPool(configuration);
+
+        for (int i = 0; i < 3; i++) {
+            HttpConnection connection = pool.lease(url);
+            HttpResponse response = connection.execute("POST", url, null, new byte[0], 0);
+            assertTrue("Response should be OK", response.getStatusCode() == 200);
+            pool.release(connection, response.isKeepAlive());
+        }
+        pool.shutdown();
+
+        TlsSessionCache tls = pool.peekTlsSessionCache();
+        assertTrue("Only first connection should do a full handshake", tls.getFullHandshakes() == 1);
+        assertTrue("Later connections should resume the session", tls.getResumedHandshakes() == 2);
+    }
+
+    @Test
+    public void shouldCountFailedHandshake() throws Exception {
+        ConnectionPoolConfiguration configuration = new ConnectionPoolConfiguration();
+        HttpConnectionPool pool = new HttpConnectionPool(configuration);
+        // Default trust material does not trust the self-signed stub
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        pool.setTlsSessionCache(new TlsSessionCache(context, configuration));
+        try {
+            pool.lease(url);
+            assertTrue("Untrusted server should fail the handshake", false);
+        } catch (IOException expected) {
+            // Expected
+        }
+        pool.shutdown();
+
+        TlsSessionCache tls = pool.peekTlsSessionCache();
+        assertTrue("Failed handshake should be counted", tls.getFailedHandshakes() == 1);
+        assertTrue("No handshake should succeed", tls.getFullHandshakes() == 0);
+    }
+
+    @Test
+    public void shouldRejectTrustedCertificateOfAnotherHost() throws Exception {
+        HttpConnectionPool pool = createPool(new ConnectionPoolConfiguration());
+        try {
+            pool.lease(ipUrl);
+            assertTrue("Certificate of localhost should not be accepted for 127.0.0.1", false);
+        } catch (IOException expected) {
+            // Expected
+        }
+        pool.shutdown();
+
+        TlsSessionCache tls = pool.peekTlsSessionCache();
+        assertTrue("Host name mismatch should fail the handshake", tls.getFailedHandshakes() == 1);
+        assertTrue("No handshake should succeed", tls.getFullHandshakes() == 0);
+    }
+
+    private HttpConnectionPool createPool(ConnectionPoolConfiguration configuration) throws Exception {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        HttpConnectionPool pool = new HttpConnectionPool(configuration);
+        pool.setTlsSessionCache(new TlsSessionCache(context, configuration));
+        return pool;
+    }
+}
@@ -25,6 +25,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import fi.mystes.synapse.mediator.CustomCalloutMediator;
+import fi.mystes.synapse.mediator.RequestTemplate;
+import fi.mystes.synapse.mediator.balancer.LoadBalancer;
+import fi.mystes.synapse.mediator.cache.ResponseCacheConfiguration;
+import fi.mystes.synapse.mediator.compression.CompressionConfiguration;
 
 public class CustomCalloutMediatorFactoryTest {
 
@@ -62,4 +66,136 @@ public class CustomCalloutMediatorFactoryTest {
         assertTrue("Mediator should have target XPath", mediator.getTargetXPath().toString().equals("body/result"));
         assertTrue("Mediator should not use envelope as source", mediator.isUseEnvelopeAsSource() == false);
     }
+
+    @Test
+    public void shouldInitiateCustomCalloutMediatorWithBranches() {
+        mediatorElement.addAttribute("branchTimeout", "2500", null);
+        OMElement first = omFactory.createOMElement(CustomCalloutMediatorFactory.Q_BRANCH);
+        first.addAttribute("name", "customer", null);
+        first.addAttribute("serviceURL", serviceURL + "/customer", null);
+        first.addChild(omFactory.createOMElement(CustomCalloutMediatorFactory.Q_TARGET)
+                .addAttribute("key", "customerResponse", null).getOwner());
+        mediatorElement.addChild(first);
+        OMElement second = omFactory.createOMElement(CustomCalloutMediatorFactory.Q_BRANCH);
+        second.addAttribute("serviceURL", serviceURL + "/order", null);
+        mediatorElement.addChild(second);
+
+        CustomCalloutMediator mediator = (CustomCalloutMediator) factory.createSpecificMediator(mediatorElement, null);
+
+        assertTrue("Mediator should have branch timeout", mediator.getBranchTimeout() == 2500);
+        assertTrue("Mediator should have two branches", mediator.getBranches().size() == 2);
+        CustomCalloutMediator customer = mediator.getBranches().get(0);
+        assertTrue("Branch should have given name", customer.getBranchName().equals("customer"));
+        assertTrue("Branch should have serviceURL set", customer.getServiceURL().equals(serviceURL + "/customer"));
+        assertTrue("Branch should have target key", customer.getTargetKey().equals("customerResponse"));
+        assertTrue("Branch without name should be named by position",
+                mediator.getBranches().get(1).getBranchName().equals("branch2"));
+        assertTrue("Branch without source should use envelope as source",
+                mediator.getBranches().get(1).isUseEnvelopeAsSource());
+    }
+
+    @Test
+    public void shouldInitiateCustomCalloutMediatorWithRequestTemplate() {
+        OMElement source = omFactory.createOMElement(CustomCalloutMediatorFactory.Q_SOURCE);
+        OMElement template = omFactory.createOMElement(CustomCalloutMediatorFactory.Q_TEMPLATE);
+        template.addAttribute("mediaType", "json", null);
+        template.setText("{\"id\":\"$1\",\"type\":\"$2\"}");
+        source.addChild(template);
+        OMElement args = omFactory.createOMElement(CustomCalloutMediatorFactory.Q_ARGS);
+        args.addChild(omFactory.createOMElement(CustomCalloutMediatorFactory.Q_ARG)
+                .addAttribute("expression", "//id", null).getOwner());
+        args.addChild(omFactory.createOMElement(CustomCalloutMediatorFactory.Q_ARG)
+                .addAttribute("value", "customer", null).getOwner());
+        source.addChild(args);
+        mediatorElement.addChild(source);
+
+        CustomCalloutMediator mediator = (CustomCalloutMediator) factory.createSpecificMediator(mediatorElement, null);
+
+        RequestTemplate requestTemplate = mediator.getRequestTemplate();
+        assertTrue("Mediator should have request template", requestTemplate != null);
+        assertTrue("Template should be JSON", requestTemplate.getMediaType().equals(RequestTemplate.MEDIA_TYPE_JSON));
+        assertTrue("Template should have two arguments", requestTemplate.getArguments().size() == 2);
+        assertTrue("Constant argument should be kept", requestTemplate.getArguments().get(1).equals("customer"));
+        assertTrue("Mediator should not use envelope as source", mediator.isUseEnvelopeAsSource() == false);
+    }
+
+    @Test
+    public void shouldInitiateCustomCalloutMediatorWithLoadBalancer() {
+        OMElement balance = omFactory.createOMElement(CustomCalloutMediatorFactory.Q_LOAD_BALANCE);
+        balance.addAttribute("algorithm", LoadBalancer.ALGORITHM_ROUND_ROBIN, null);
+        balance.addAttribute("demotionTime", "5000", null);
+        balance.addChild(omFactory.createOMElement(CustomCalloutMediatorFactory.Q_MEMBER)
+                .addAttribute("serviceURL", serviceURL + "/node1", null).getOwner());
+        balance.addChild(omFactory.createOMElement(CustomCalloutMediatorFactory.Q_MEMBER)
+                .addAttribute("serviceURL", serviceURL + "/node2", null).getOwner());
+        mediatorElement.addChild(balance);
+
+        CustomCalloutMediator mediator = (CustomCalloutMediator) factory.createSpecificMediator(mediatorElement, null);
+
+        LoadBalancer balancer = mediator.getLoadBalancer();
+        assertTrue("Mediator should have load balancer", balancer != null);
+        assertTrue("Load balancer should use given algorithm",
+                balancer.getAlgorithm().equals(LoadBalancer.ALGORITHM_ROUND_ROBIN));
+        assertTrue("Load balancer should have demotion time", balancer.getDemotionTime() == 5000);
+        assertTrue("Load balancer should have two members", balancer.getMembers().size() == 2);
+        assertTrue("Member should have given address",
+                balancer.getMembers().get(1).getAddress().equals(serviceURL + "/node2"));
+    }
+
+    @Test
+    public void shouldInitiateCustomCalloutMediatorWithJsonPaths() {
+        mediatorElement.addChild(omFactory.createOMElement(CustomCalloutMediatorFactory.Q_SOURCE)
+                .addAttribute("jsonPath", "$.order.customer", null).getOwner());
+        OMElement target = omFactory.createOMElement(CustomCalloutMediatorFactory.Q_TARGET);
+        target.addAttribute("jsonPath", "$.customer", null);
+        target.addAttribute("key", "order", null);
+        mediatorElement.addChild(target);
+
+        CustomCalloutMediator mediator = (CustomCalloutMediator) factory.createSpecificMediator(mediatorElement, null);
+
+        assertTrue("Mediator should have source JSONPath",
+                mediator.getRequestJsonPath().getExpression().equals("$.order.customer"));
+        assertTrue("Mediator should have target JSONPath",
+                mediator.getTargetJsonPath().getExpression().equals("$.customer"));
+        assertTrue("Mediator should merge into target key", mediator.getTargetKey().equals("order"));
+        assertTrue("Mediator should not use envelope as source", !mediator.isUseEnvelopeAsSource());
+    }
+
+    @Test
+    public void shouldInitiateCustomCalloutMediatorWithCompression() {
+        OMElement compression = omFactory.createOMElement(CustomCalloutMediatorFactory.Q_COMPRESSION);
+        compression.addAttribute("algorithm", CompressionConfiguration.ALGORITHM_DEFLATE, null);
+        compression.addAttribute("threshold", "4096", null);
+        compression.addAttribute("level", "1", null);
+        compression.addAttribute("acceptEncoding", "false", null);
+        compression.addAttribute("maxResponseSize", "1048576", null);
+        mediatorElement.addChild(compression);
+
+        CustomCalloutMediator mediator = (CustomCalloutMediator) factory.createSpecificMediator(mediatorElement, null);
+
+        CompressionConfiguration configuration = mediator.getCompressionConfiguration();
+        assertTrue("Mediator should have compression settings", configuration != null);
+        assertTrue("Compression should use given algorithm",
+                configuration.getAlgorithm().equals(CompressionConfiguration.ALGORITHM_DEFLATE));
+        assertTrue("Compression should have given threshold", configuration.getThreshold() == 4096);
+        assertTrue("Compression should have given level", configuration.getLevel() == 1);
+        assertTrue("Compressed responses should not be accepted", !configuration.isAcceptEncoding());
+        assertTrue("Compression should have given maximum response size",
+                configuration.getMaxResponseSize() == 1048576);
+    }
+
+    @Test
+    public void shouldInitiateCustomCalloutMediatorWithResponseCacheVaryHeaders() {
+        OMElement cache = omFactory.createOMElement(CustomCalloutMediatorFactory.Q_RESPONSE_CACHE);
+        cache.addAttribute("varyHeaders", "Authorization, X-Tenant-Id", null);
+        mediatorElement.addChild(cache);
+
+        CustomCalloutMediator mediator = (CustomCalloutMediator) factory.createSpecificMediator(mediatorElement, null);
+
+        ResponseCacheConfiguration configuration = mediator.getResponseCacheConfiguration();
+        assertTrue("Mediator should have response cache settings", configuration != null);
+        assertTrue("Response cache should vary by given headers", configuration.getVaryHeaders().size() == 2
+                && configuration.getVaryHeaders().get(0).equals("Authorization")
+                && configuration.getVaryHeaders().get(1).equals("X-Tenant-Id"));
+    }
 }